@@ -0,0 +1,139 @@
+/*
+ * Table of measured conversion costs, used to pick the fastest conversion
+ * path on the host the library runs on
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <errno.h>
+#include <inttypes.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "costs.h"
+
+/* First line of a saved table, so that unrelated files are not mistaken for one */
+#define COSTS_HEADER "# v4lconvert costs v1: converter width height ns\n"
+
+struct cost {
+	u32 converter_id;
+	u32 width;
+	u32 height;
+	uint64_t ns;
+};
+
+/* Protects everything below */
+static pthread_mutex_t costs_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct cost* costs = NULL;
+static size_t num_costs = 0;
+static size_t costs_cap = 0;
+
+/*
+ * Must hold costs_lock
+ */
+static int set_locked(u32 converter_id, u32 width, u32 height, uint64_t ns) {
+	for (size_t i = 0; i < num_costs; i++) {
+		struct cost* cost = &costs[i];
+		if (cost->converter_id == converter_id && cost->width == width && cost->height == height) {
+			cost->ns = ns;
+			return EXIT_SUCCESS;
+		}
+	}
+	if (num_costs == costs_cap) {
+		size_t cap = costs_cap ? costs_cap * 2 : 64;
+		struct cost* grown = realloc(costs, cap * sizeof(struct cost));
+		if (!grown)
+			return EXIT_FAILURE;
+		costs = grown;
+		costs_cap = cap;
+	}
+	costs[num_costs++] = (struct cost) { converter_id, width, height, ns };
+	return EXIT_SUCCESS;
+}
+
+int v4lconvert_costs_set(u32 converter_id, u32 width, u32 height, uint64_t ns) {
+	pthread_mutex_lock(&costs_lock);
+	int result = set_locked(converter_id, width, height, ns);
+	pthread_mutex_unlock(&costs_lock);
+	return result;
+}
+
+bool v4lconvert_costs_get(u32 converter_id, u32 width, u32 height, uint64_t* ns) {
+	const uint64_t pixels = (uint64_t) width * height;
+	const struct cost* closest = NULL;
+	uint64_t closest_distance = UINT64_MAX;
+	pthread_mutex_lock(&costs_lock);
+	for (size_t i = 0; i < num_costs; i++) {
+		const struct cost* cost = &costs[i];
+		if (cost->converter_id != converter_id)
+			continue;
+		uint64_t measured = (uint64_t) cost->width * cost->height;
+		uint64_t distance = measured > pixels ? measured - pixels : pixels - measured;
+		if (distance < closest_distance) {
+			closest = cost;
+			closest_distance = distance;
+		}
+	}
+	bool found = closest != NULL;
+	if (found) {
+		uint64_t measured = (uint64_t) closest->width * closest->height;
+		//Conversions are linear in the number of pixels, give or take the caches
+		*ns = measured ? closest->ns * pixels / measured : closest->ns;
+	}
+	pthread_mutex_unlock(&costs_lock);
+	return found;
+}
+
+void v4lconvert_costs_clear(void) {
+	pthread_mutex_lock(&costs_lock);
+	free(costs);
+	costs = NULL;
+	num_costs = 0;
+	costs_cap = 0;
+	pthread_mutex_unlock(&costs_lock);
+}
+
+int v4lconvert_costs_load(const char* path) {
+	FILE* file = fopen(path, "r");
+	if (!file)
+		return -1;
+	char line[128];
+	if (!fgets(line, sizeof(line), file) || strcmp(line, COSTS_HEADER)) {
+		fclose(file);
+		errno = EINVAL;
+		return -1;
+	}
+	int count = 0;
+	pthread_mutex_lock(&costs_lock);
+	while (fgets(line, sizeof(line), file)) {
+		u32 converter_id, width, height;
+		uint64_t ns;
+		if (sscanf(line, "%" SCNu32 " %" SCNu32 " %" SCNu32 " %" SCNu64, &converter_id, &width, &height, &ns) != 4)
+			continue;
+		if (set_locked(converter_id, width, height, ns) != EXIT_SUCCESS)
+			break;
+		count++;
+	}
+	pthread_mutex_unlock(&costs_lock);
+	fclose(file);
+	return count;
+}
+
+int v4lconvert_costs_save(const char* path) {
+	FILE* file = fopen(path, "w");
+	if (!file)
+		return -1;
+	int count = 0;
+	fputs(COSTS_HEADER, file);
+	pthread_mutex_lock(&costs_lock);
+	for (size_t i = 0; i < num_costs; i++, count++)
+		fprintf(file, "%" PRIu32 " %" PRIu32 " %" PRIu32 " %" PRIu64 "\n", costs[i].converter_id, costs[i].width, costs[i].height, costs[i].ns);
+	pthread_mutex_unlock(&costs_lock);
+	if (fclose(file))
+		return -1;
+	return count;
+}
@@ -0,0 +1,60 @@
+/*
+ * Table of measured conversion costs, used to pick the fastest conversion
+ * path on the host the library runs on
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __LIBV4LCONVERT_COSTS_H
+#define __LIBV4LCONVERT_COSTS_H
+
+#include <stdbool.h>
+#include <stdint.h>
+#include "types.h"
+
+/**
+ * Record how long a converter takes to convert a frame of the given size,
+ * replacing any previous measurement
+ * @param converter_id ID of the converter
+ * @param width Frame width
+ * @param height Frame height
+ * @param ns Time to convert a frame, in nanoseconds
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if out of memory
+ */
+extern int v4lconvert_costs_set(u32 converter_id, u32 width, u32 height, uint64_t ns);
+
+/**
+ * Look up how long a converter takes to convert a frame of the given size.
+ * If it was not measured at that size, the measurement at the closest size
+ * is scaled by the ratio of the number of pixels.
+ * @param converter_id ID of the converter
+ * @param width Frame width
+ * @param height Frame height
+ * @param ns Set to the time to convert a frame, in nanoseconds
+ * @return false if the converter was never measured
+ */
+extern bool v4lconvert_costs_get(u32 converter_id, u32 width, u32 height, uint64_t* ns);
+
+/**
+ * Forget all measurements
+ */
+extern void v4lconvert_costs_clear(void);
+
+/**
+ * Add the measurements saved in the given file to the table
+ * @return the number of measurements read, or -1 if the file cannot be read
+ * 		or is not a cost table (errno is then set)
+ */
+extern int v4lconvert_costs_load(const char* path);
+
+/**
+ * Save all measurements to the given file, which can be read back with
+ * v4lconvert_costs_load()
+ * @return the number of measurements written, or -1 on error (errno is then
+ * 		set)
+ */
+extern int v4lconvert_costs_save(const char* path);
+
+#endif
@@ -0,0 +1,111 @@
+/*
+ * Checks the table of measured conversion costs: lookups at other sizes,
+ * and saving and loading it back
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <inttypes.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include "costs.h"
+
+static int check_cost(u32 converter_id, u32 width, u32 height, bool expect_found, uint64_t expect_ns) {
+	uint64_t ns = 0;
+	bool found = v4lconvert_costs_get(converter_id, width, height, &ns);
+	if (found != expect_found) {
+		fprintf(stderr, "FAIL converter %u at %ux%u was %s\n", converter_id, width, height, found ? "found" : "not found");
+		return 1;
+	}
+	if (found && ns != expect_ns) {
+		fprintf(stderr, "FAIL converter %u at %ux%u costs %" PRIu64 "ns (expected %" PRIu64 "ns)\n", converter_id, width, height, ns, expect_ns);
+		return 1;
+	}
+	return 0;
+}
+
+static int check_lookup(void) {
+	int failures = 0;
+	v4lconvert_costs_clear();
+	v4lconvert_costs_set(3, 640, 480, 1000000);
+	v4lconvert_costs_set(3, 1920, 1080, 6000000);
+	v4lconvert_costs_set(7, 640, 480, 500000);
+
+	failures += check_cost(3, 640, 480, true, 1000000);
+	failures += check_cost(3, 1920, 1080, true, 6000000);
+	//Scaled from the closest size measured
+	failures += check_cost(3, 320, 240, true, 250000);
+	failures += check_cost(3, 800, 600, true, 1562500);
+	failures += check_cost(3, 1280, 960, true, 3555555);
+	failures += check_cost(7, 1280, 960, true, 2000000);
+	failures += check_cost(4, 640, 480, false, 0);
+
+	//Measuring again replaces the last measurement
+	v4lconvert_costs_set(3, 640, 480, 2000000);
+	failures += check_cost(3, 640, 480, true, 2000000);
+
+	v4lconvert_costs_clear();
+	failures += check_cost(3, 640, 480, false, 0);
+	return failures;
+}
+
+static int check_save_load(void) {
+	int failures = 0;
+	char path[] = "/tmp/costs_testXXXXXX";
+	int fd = mkstemp(path);
+	if (fd < 0) {
+		perror("mkstemp");
+		return 1;
+	}
+	close(fd);
+
+	v4lconvert_costs_clear();
+	v4lconvert_costs_set(1, 640, 480, 123456);
+	v4lconvert_costs_set(2, 320, 240, 7890123456789ULL);
+	int saved = v4lconvert_costs_save(path);
+	if (saved != 2) {
+		fprintf(stderr, "FAIL saved %d costs (expected 2)\n", saved);
+		failures++;
+	}
+	v4lconvert_costs_clear();
+	int loaded = v4lconvert_costs_load(path);
+	if (loaded != 2) {
+		fprintf(stderr, "FAIL loaded %d costs (expected 2)\n", loaded);
+		failures++;
+	}
+	failures += check_cost(1, 640, 480, true, 123456);
+	failures += check_cost(2, 320, 240, true, 7890123456789ULL);
+
+	//Files without the header are not cost tables
+	FILE* file = fopen(path, "w");
+	fputs("1 640 480 123456\n", file);
+	fclose(file);
+	v4lconvert_costs_clear();
+	if (v4lconvert_costs_load(path) != -1) {
+		fprintf(stderr, "FAIL loaded a file without the header\n");
+		failures++;
+	}
+	failures += check_cost(1, 640, 480, false, 0);
+
+	unlink(path);
+	if (v4lconvert_costs_load(path) != -1) {
+		fprintf(stderr, "FAIL loaded a missing file\n");
+		failures++;
+	}
+	return failures;
+}
+
+int main(void) {
+	int failures = 0;
+
+	failures += check_lookup();
+	failures += check_save_load();
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -255,3 +255,33 @@ void v4lconvert_crop(u8 *src, u8 *dest, const struct v4l2_format *src_fmt, const
 		break;
 	}
 }
+
+/*
+ * Copies a region of a packed frame, one row at a time. Only the bytes of
+ * the region are read.
+ */
+void v4lconvert_crop_packed(const u8 *src, u8 *dest, u32 src_line, u32 bpp, u32 left, u32 top, u32 width, u32 height) {
+	const u32 dest_line = width * bpp;
+	src += (size_t) top * src_line + (size_t) left * bpp;
+	for (u32 y = 0; y < height; y++) {
+		memcpy(dest, src, dest_line);
+		src += src_line;
+		dest += dest_line;
+	}
+}
+
+/*
+ * Copies a region of a YUV420 or YVU420 frame. left, top, width and height
+ * must be even, so that the region has whole chroma samples.
+ */
+void v4lconvert_crop_yuv420_region(const u8 *src, u8 *dest, u32 src_width, u32 src_height, u32 left, u32 top, u32 width, u32 height) {
+	const size_t src_luma = (size_t) src_width * src_height;
+	const size_t dest_luma = (size_t) width * height;
+
+	/* Y */
+	v4lconvert_crop_packed(src, dest, src_width, 1, left, top, width, height);
+	/* U */
+	v4lconvert_crop_packed(src + src_luma, dest + dest_luma, src_width / 2, 1, left / 2, top / 2, width / 2, height / 2);
+	/* V */
+	v4lconvert_crop_packed(src + src_luma + src_luma / 4, dest + dest_luma + dest_luma / 4, src_width / 2, 1, left / 2, top / 2, width / 2, height / 2);
+}
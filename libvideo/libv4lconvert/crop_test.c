@@ -0,0 +1,110 @@
+/*
+ * Checks that cropping a region of interest copies exactly the pixels of
+ * that region, and does not write past the cropped frame
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "libv4lconvert-priv.h"
+
+/* Bytes after the cropped frame that must be left alone */
+#define GUARD 64
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+static int check_guard(const u8* guard, const char* what) {
+	for (unsigned int i = 0; i < GUARD; i++) {
+		if (guard[i] != 0xA5) {
+			fprintf(stderr, "FAIL %s wrote past the cropped frame\n", what);
+			return 1;
+		}
+	}
+	return 0;
+}
+
+static int check_packed(u32 src_width, u32 src_height, u32 bpp, u32 left, u32 top, u32 width, u32 height) {
+	size_t size = (size_t) src_width * src_height * bpp;
+	size_t dst_size = (size_t) width * height * bpp;
+	u8* src = malloc(size);
+	u8* dst = malloc(dst_size + GUARD);
+	int failures = 0;
+	fill_source(src, size);
+	memset(dst, 0xA5, dst_size + GUARD);
+
+	v4lconvert_crop_packed(src, dst, src_width * bpp, bpp, left, top, width, height);
+	for (u32 y = 0; y < height && !failures; y++) {
+		for (u32 x = 0; x < width * bpp; x++) {
+			if (dst[(size_t) y * width * bpp + x] != src[(size_t) (top + y) * src_width * bpp + left * bpp + x]) {
+				fprintf(stderr, "FAIL %ux%u region at (%u, %u) of %ux%u frame, %u bytes per pixel: byte %u of row %u differs\n", width, height, left, top, src_width, src_height, bpp, x, y);
+				failures++;
+				break;
+			}
+		}
+	}
+	failures += check_guard(dst + dst_size, "packed crop");
+
+	free(src);
+	free(dst);
+	return failures;
+}
+
+static int check_yuv420(u32 src_width, u32 src_height, u32 left, u32 top, u32 width, u32 height) {
+	size_t size = (size_t) src_width * src_height * 3 / 2;
+	size_t dst_size = (size_t) width * height * 3 / 2;
+	u8* src = malloc(size);
+	u8* dst = malloc(dst_size + GUARD);
+	int failures = 0;
+	fill_source(src, size);
+	memset(dst, 0xA5, dst_size + GUARD);
+
+	v4lconvert_crop_yuv420_region(src, dst, src_width, src_height, left, top, width, height);
+	//Check the pixels of each plane, by their position in the full frame
+	const u8* src_plane = src;
+	const u8* dst_plane = dst;
+	for (unsigned int plane = 0; plane < 3 && !failures; plane++) {
+		u32 shift = plane ? 1 : 0;
+		u32 sw = src_width >> shift, w = width >> shift, h = height >> shift;
+		for (u32 y = 0; y < h && !failures; y++) {
+			for (u32 x = 0; x < w; x++) {
+				if (dst_plane[y * w + x] != src_plane[((top >> shift) + y) * sw + (left >> shift) + x]) {
+					fprintf(stderr, "FAIL YUV420 %ux%u region at (%u, %u): plane %u differs at (%u, %u)\n", width, height, left, top, plane, x, y);
+					failures++;
+					break;
+				}
+			}
+		}
+		src_plane += (size_t) (src_width >> shift) * (src_height >> shift);
+		dst_plane += (size_t) w * h;
+	}
+	failures += check_guard(dst + dst_size, "YUV420 crop");
+
+	free(src);
+	free(dst);
+	return failures;
+}
+
+int main(void) {
+	int failures = 0;
+
+	failures += check_packed(640, 480, 3, 0, 0, 640, 480);
+	failures += check_packed(640, 480, 3, 100, 50, 128, 96);
+	failures += check_packed(640, 480, 3, 639, 479, 1, 1);
+	failures += check_packed(640, 480, 2, 2, 1, 320, 240);
+	failures += check_packed(1920, 1080, 1, 1000, 600, 920, 480);
+	failures += check_yuv420(640, 480, 0, 0, 640, 480);
+	failures += check_yuv420(640, 480, 100, 50, 128, 96);
+	failures += check_yuv420(1920, 1080, 1918, 1078, 2, 2);
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,160 @@
+/*
+ * Checks that a fanout gives each output what its encoders would give when
+ * run one after the other, whatever the number of threads it may use, and
+ * that outputs nobody asked for are still worked out for their children
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "libv4lconvert-flat.h"
+
+#define WIDTH 64
+#define HEIGHT 48
+/* The source frame, converted to RGB24, then scaled and converted again */
+#define NUM_ENCODERS 5
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+static struct v4lconvert_encoder encoders[NUM_ENCODERS];
+static struct v4lconvert_encoder* encoder_ptrs[NUM_ENCODERS];
+static const int parents[NUM_ENCODERS] = { -1, -1, 0, 0, 0 };
+
+static int init_encoders(void) {
+	memset(encoders, 0, sizeof(encoders));
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++)
+		encoder_ptrs[i] = &encoders[i];
+	return v4lconvert_encoder_initForIMF(&encoders[0], YUYV, RGB24, WIDTH, HEIGHT) == EXIT_SUCCESS
+			&& v4lconvert_encoder_initForIMF(&encoders[1], YUYV, YUV420, WIDTH, HEIGHT) == EXIT_SUCCESS
+			&& v4lconvert_encoder_initForScale(&encoders[2], RGB24, RGB24, WIDTH, HEIGHT, WIDTH / 2, HEIGHT / 2, V4LCONVERT_SCALE_BOX) == EXIT_SUCCESS
+			&& v4lconvert_encoder_initForIMF(&encoders[3], RGB24, YUV420, WIDTH, HEIGHT) == EXIT_SUCCESS
+			&& v4lconvert_encoder_initForIMF(&encoders[4], RGB24, BGR24, WIDTH, HEIGHT) == EXIT_SUCCESS;
+}
+
+static void release_encoders(void) {
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++)
+		if (encoders[i].release)
+			encoders[i].release(&encoders[i]);
+}
+
+/* Runs each encoder on its parent's output, one after the other */
+static void run_directly(const u8* src, u32 src_len, u8** expected, u32* expected_lens) {
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++) {
+		expected[i] = malloc(encoders[i].dst_len);
+		if (parents[i] < 0)
+			expected_lens[i] = encoders[i].apply(&encoders[i], src, expected[i], src_len);
+		else
+			expected_lens[i] = encoders[i].apply(&encoders[i], expected[parents[i]], expected[i], expected_lens[parents[i]]);
+	}
+}
+
+static int check_outputs(struct v4lconvert_encoder_fanout* fanout, const u8* src, u32 src_len, u8** expected, const u32* expected_lens, const bool* wanted, unsigned int parallelism) {
+	u8* outputs[NUM_ENCODERS];
+	u32 caps[NUM_ENCODERS];
+	u32 lens[NUM_ENCODERS];
+	int failures = 0;
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++) {
+		caps[i] = wanted[i] ? encoders[i].dst_len : 0;
+		outputs[i] = wanted[i] ? calloc(1, caps[i]) : NULL;
+	}
+	if (!v4lconvert_encoder_fanout_apply(fanout, src, src_len, outputs, caps, lens, parallelism)) {
+		fprintf(stderr, "FAIL fanout failed with %u threads\n", parallelism);
+		failures++;
+	} else {
+		for (unsigned int i = 0; i < NUM_ENCODERS; i++) {
+			if (!wanted[i])
+				continue;
+			if (lens[i] != expected_lens[i] || memcmp(outputs[i], expected[i], lens[i])) {
+				fprintf(stderr, "FAIL output #%u with %u threads differs from running its encoders directly\n", i, parallelism);
+				failures++;
+			}
+		}
+	}
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++)
+		free(outputs[i]);
+	return failures;
+}
+
+static int check_fanout(void) {
+	const u32 src_len = WIDTH * HEIGHT * 2;
+	u8* src = malloc(src_len);
+	u8* expected[NUM_ENCODERS];
+	u32 expected_lens[NUM_ENCODERS];
+	struct v4lconvert_encoder_fanout fanout;
+	int failures = 0;
+	fill_source(src, src_len);
+	run_directly(src, src_len, expected, expected_lens);
+
+	if (v4lconvert_encoder_fanout_init(&fanout, NUM_ENCODERS, encoder_ptrs, parents) != EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL could not create the fanout\n");
+		failures++;
+	} else {
+		const bool all[NUM_ENCODERS] = { true, true, true, true, true };
+		//The RGB24 frame is only needed by its children
+		const bool leaves[NUM_ENCODERS] = { false, false, true, true, true };
+		const bool none[NUM_ENCODERS] = { false, false, false, false, false };
+		//Fewer threads than encoders at a depth, as many, and more
+		const unsigned int parallelisms[] = { 1, 2, 3, 8 };
+		for (unsigned int i = 0; i < sizeof(parallelisms) / sizeof(parallelisms[0]); i++) {
+			failures += check_outputs(&fanout, src, src_len, expected, expected_lens, all, parallelisms[i]);
+			failures += check_outputs(&fanout, src, src_len, expected, expected_lens, leaves, parallelisms[i]);
+			failures += check_outputs(&fanout, src, src_len, expected, expected_lens, none, parallelisms[i]);
+		}
+
+		//Outputs too small for their encoder are refused
+		u8* outputs[NUM_ENCODERS] = { NULL, NULL, NULL, NULL, NULL };
+		u32 caps[NUM_ENCODERS] = { 0, 0, 0, 0, 0 };
+		u32 lens[NUM_ENCODERS];
+		outputs[4] = malloc(encoders[4].dst_len);
+		caps[4] = encoders[4].dst_len - 1;
+		if (v4lconvert_encoder_fanout_apply(&fanout, src, src_len, outputs, caps, lens, 2)) {
+			fprintf(stderr, "FAIL wrote to an output buffer too small\n");
+			failures++;
+		}
+		free(outputs[4]);
+		v4lconvert_encoder_fanout_release(&fanout);
+	}
+
+	//Children must come after their parent, and take its output
+	const int backwards[NUM_ENCODERS] = { -1, -1, 3, 0, 0 };
+	const int mismatched[NUM_ENCODERS] = { -1, -1, 1, 0, 0 };
+	if (v4lconvert_encoder_fanout_init(&fanout, NUM_ENCODERS, encoder_ptrs, backwards) == EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL created a fanout with a child before its parent\n");
+		v4lconvert_encoder_fanout_release(&fanout);
+		failures++;
+	}
+	if (v4lconvert_encoder_fanout_init(&fanout, NUM_ENCODERS, encoder_ptrs, mismatched) == EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL created a fanout scaling YUV420 frames as RGB24\n");
+		v4lconvert_encoder_fanout_release(&fanout);
+		failures++;
+	}
+
+	for (unsigned int i = 0; i < NUM_ENCODERS; i++)
+		free(expected[i]);
+	free(src);
+	return failures;
+}
+
+int main(void) {
+	int failures = 0;
+
+	if (!init_encoders()) {
+		fprintf(stderr, "FAIL could not create the encoders\n");
+		failures++;
+	} else {
+		failures += check_fanout();
+	}
+	release_encoders();
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,368 @@
+/*
+ * JPEG compression of a single frame on several cores, as horizontal stripes
+ * joined with restart markers into one baseline JPEG image
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * A restart marker (RSTn) resets the DC predictions of the entropy coder and
+ * starts on a byte boundary, so the entropy coded data between two markers
+ * only depends on the MCUs it codes. Each stripe, a whole number of MCU rows
+ * high, is compressed as an image of its own by its own libjpeg compressor,
+ * with the same quantisation and Huffman tables: its entropy coded data is
+ * then exactly what a single compressor with a restart interval of one
+ * stripe would have written between two markers. The image is the headers of
+ * the first stripe, with the height of the frame and a DRI segment, followed
+ * by the data of every stripe, separated by RST0 to RST7 in turn.
+ */
+
+#include <stdlib.h>
+#include <string.h>
+#include "jpeg_memsrcdest.h"
+#include "jpeg_stripes.h"
+#include "libv4lconvert-priv.h"
+#include "parallel.h"
+#include "../libvideo.h"
+
+#define JPEG_MARKER_SOF0 0xC0
+#define JPEG_MARKER_RST0 0xD0
+#define JPEG_MARKER_EOI 0xD9
+#define JPEG_MARKER_SOS 0xDA
+#define JPEG_MARKER_DRI 0xDD
+
+/**
+ * Largest restart interval a DRI segment can hold, in MCUs
+ */
+#define JPEG_MAX_RESTART_INTERVAL 65535
+
+struct v4lconvert_jpeg_stripe {
+	struct jpeg_compress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	/**
+	 * Buffer the stripe is compressed to, grown by jpeg_mem_dest() when full
+	 */
+	u8* out;
+	unsigned long out_size;
+	unsigned long out_len;
+	/**
+	 * Planes a stripe of a packed 4:2:2 frame is split into
+	 */
+	u8* planes;
+	u32 first_row;
+	u32 rows;
+};
+
+struct v4lconvert_jpeg_stripes {
+	u32 fmt;
+	u32 width;
+	u32 height;
+	/**
+	 * Number of MCUs in a stripe
+	 */
+	unsigned int restart_interval;
+	/**
+	 * Frame and quality being compressed
+	 */
+	const u8* src;
+	int quality;
+	unsigned int count;
+	struct v4lconvert_jpeg_stripe stripes[];
+};
+
+bool v4lconvert_jpeg_stripes_supports(u32 fmt) {
+	switch (fmt) {
+		case GREY:
+		case RGB24:
+		case YUV420:
+		case YUV422P:
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY:
+			return true;
+		default:
+			return false;
+	}
+}
+
+static void v4lconvert_jpeg_stripes_setup(struct v4lconvert_jpeg_stripes* self, struct v4lconvert_jpeg_stripe* stripe) {
+	struct jpeg_compress_struct* cinfo = &stripe->cinfo;
+	cinfo->err = jpeg_std_error(&stripe->jerr);
+	jpeg_create_compress(cinfo);
+	cinfo->image_width = self->width;
+	cinfo->image_height = stripe->rows;
+
+	if (self->fmt == GREY) {
+		cinfo->input_components = 1;
+		cinfo->in_color_space = JCS_GRAYSCALE;
+		jpeg_set_defaults(cinfo);
+	} else if (self->fmt == RGB24) {
+		cinfo->input_components = 3;
+		cinfo->in_color_space = JCS_RGB;
+		jpeg_set_defaults(cinfo);
+	} else {
+		cinfo->input_components = 3;
+		jpeg_set_defaults(cinfo);
+		jpeg_set_colorspace(cinfo, JCS_YCbCr);
+		cinfo->raw_data_in = TRUE;
+		cinfo->comp_info[0].h_samp_factor = 2;
+		cinfo->comp_info[0].v_samp_factor = self->fmt == YUV420 ? 2 : 1;
+		for (int c = 1; c < 3; c++)
+			cinfo->comp_info[c].h_samp_factor = cinfo->comp_info[c].v_samp_factor = 1;
+#if JPEG_LIB_VERSION >= 70
+		cinfo->do_fancy_downsampling = FALSE;
+#endif
+	}
+	cinfo->dct_method = JDCT_FASTEST;
+}
+
+struct v4lconvert_jpeg_stripes* v4lconvert_jpeg_stripes_create(u32 fmt, u32 width, u32 height, unsigned int stripes) {
+	if (!v4lconvert_jpeg_stripes_supports(fmt) || !width || !height || width > 65535 || height > 65535
+			|| stripes < 1 || stripes > V4LCONVERT_JPEG_MAX_STRIPES)
+		return NULL;
+
+	u32 mcu_rows, mcu_cols;
+	switch (fmt) {
+		case GREY:
+			mcu_rows = 8;
+			mcu_cols = 8;
+			break;
+		case RGB24:
+			//jpeg_set_defaults() subsamples chroma 2x2
+			mcu_rows = 16;
+			mcu_cols = 16;
+			break;
+		case YUV420:
+			mcu_rows = 16;
+			mcu_cols = 16;
+			break;
+		default:
+			mcu_rows = 8;
+			mcu_cols = 16;
+			break;
+	}
+	//libjpeg reads whole MCUs from raw planes
+	if (fmt != GREY && fmt != RGB24 && (width % mcu_cols || (fmt == YUV420 && height % 2)))
+		return NULL;
+
+	const u32 mcus_per_row = (width + mcu_cols - 1) / mcu_cols;
+	const u32 total_mcu_rows = (height + mcu_rows - 1) / mcu_rows;
+	u32 stripe_mcu_rows = (total_mcu_rows + stripes - 1) / stripes;
+	if (stripe_mcu_rows * mcus_per_row > JPEG_MAX_RESTART_INTERVAL)
+		stripe_mcu_rows = JPEG_MAX_RESTART_INTERVAL / mcus_per_row;
+	const unsigned int count = (total_mcu_rows + stripe_mcu_rows - 1) / stripe_mcu_rows;
+	const u32 stripe_rows = stripe_mcu_rows * mcu_rows;
+
+	struct v4lconvert_jpeg_stripes* self = calloc(1, sizeof(struct v4lconvert_jpeg_stripes) + count * sizeof(struct v4lconvert_jpeg_stripe));
+	if (!self)
+		return NULL;
+	self->fmt = fmt;
+	self->width = width;
+	self->height = height;
+	self->restart_interval = stripe_mcu_rows * mcus_per_row;
+	self->count = count;
+
+	for (unsigned int i = 0; i < count; i++) {
+		struct v4lconvert_jpeg_stripe* stripe = &self->stripes[i];
+		stripe->first_row = i * stripe_rows;
+		stripe->rows = height - stripe->first_row < stripe_rows ? height - stripe->first_row : stripe_rows;
+		//About the size of a stripe at high quality, grown as needed
+		stripe->out_size = (unsigned long) width * stripe->rows;
+		stripe->out = malloc(stripe->out_size);
+		if (!stripe->out)
+			goto fail;
+		if (fmt == YUYV || fmt == YVYU || fmt == UYVY || fmt == VYUY) {
+			stripe->planes = malloc((size_t) width * stripe->rows * 2);
+			if (!stripe->planes) {
+				free(stripe->out);
+				goto fail;
+			}
+		}
+		v4lconvert_jpeg_stripes_setup(self, stripe);
+	}
+	return self;
+
+fail:
+	//Stripes before this one are fully set up
+	for (unsigned int i = 0; i < count && self->stripes[i].cinfo.err; i++) {
+		jpeg_destroy_compress(&self->stripes[i].cinfo);
+		free(self->stripes[i].out);
+		free(self->stripes[i].planes);
+	}
+	free(self);
+	return NULL;
+}
+
+unsigned int v4lconvert_jpeg_stripes_count(const struct v4lconvert_jpeg_stripes* self) {
+	return self->count;
+}
+
+/*
+ * Feed rows [first, first + rows) of YUV planes holding plane_rows rows to
+ * libjpeg, an MCU row at a time. Rows past the end of the planes repeat the
+ * last one, as libjpeg pads scanlines.
+ */
+static void v4lconvert_jpeg_stripes_write_raw(struct jpeg_compress_struct* cinfo, const u8* y, const u8* u, const u8* v, u32 width, u32 first, u32 rows, u32 plane_rows, bool yuv420) {
+	JSAMPROW y_rows[16], u_rows[16], v_rows[16];
+	JSAMPARRAY data[3] = { y_rows, u_rows, v_rows };
+	const u32 lines = yuv420 ? 16 : 8;
+	const u32 chroma_width = width / 2;
+	const u32 last_row = plane_rows - 1;
+	const u32 last_chroma_row = yuv420 ? (plane_rows + 1) / 2 - 1 : last_row;
+
+	for (u32 line = first; line < first + rows; line += lines) {
+		for (u32 i = 0; i < lines; i++) {
+			u32 row = line + i < last_row ? line + i : last_row;
+			y_rows[i] = (JSAMPROW) y + (size_t) row * width;
+		}
+		for (u32 i = 0; i < (yuv420 ? lines / 2 : lines); i++) {
+			u32 row = (yuv420 ? line / 2 : line) + i;
+			if (row > last_chroma_row)
+				row = last_chroma_row;
+			u_rows[i] = (JSAMPROW) u + (size_t) row * chroma_width;
+			v_rows[i] = (JSAMPROW) v + (size_t) row * chroma_width;
+		}
+		jpeg_write_raw_data(cinfo, data, lines);
+	}
+}
+
+static void v4lconvert_jpeg_stripes_encode_stripe(void* arg, unsigned int index, unsigned int count) {
+	struct v4lconvert_jpeg_stripes* self = arg;
+	struct v4lconvert_jpeg_stripe* stripe = &self->stripes[index];
+	struct jpeg_compress_struct* cinfo = &stripe->cinfo;
+	const u32 width = self->width;
+	(void) count;
+	const size_t luma_len = (size_t) width * self->height;
+
+	stripe->out_len = stripe->out_size;
+	jpeg_mem_dest(cinfo, &stripe->out, &stripe->out_len);
+	jpeg_set_quality(cinfo, self->quality, TRUE);
+	jpeg_start_compress(cinfo, TRUE);
+
+	switch (self->fmt) {
+		case GREY:
+		case RGB24: {
+			const size_t stride = (size_t) width * (self->fmt == GREY ? 1 : 3);
+			const u8* src = self->src + stripe->first_row * stride;
+			JSAMPROW row[1];
+			while (cinfo->next_scanline < stripe->rows) {
+				row[0] = (JSAMPROW) src + cinfo->next_scanline * stride;
+				jpeg_write_scanlines(cinfo, row, 1);
+			}
+			break;
+		}
+		case YUV420: {
+			const u8* u = self->src + luma_len;
+			v4lconvert_jpeg_stripes_write_raw(cinfo, self->src, u, u + luma_len / 4, width, stripe->first_row, stripe->rows, self->height, true);
+			break;
+		}
+		case YUV422P: {
+			const u8* u = self->src + luma_len;
+			v4lconvert_jpeg_stripes_write_raw(cinfo, self->src, u, u + luma_len / 2, width, stripe->first_row, stripe->rows, self->height, false);
+			break;
+		}
+		default: {
+			//Split the rows of this stripe only, so that splitting runs in parallel too
+			const u8* src = self->src + (size_t) stripe->first_row * width * 2;
+			const size_t stripe_luma_len = (size_t) width * stripe->rows;
+			if (self->fmt == YUYV)
+				v4lconvert_packed422_to_yuv422p(src, stripe->planes, width, stripe->rows, 0, 1, 3);
+			else if (self->fmt == YVYU)
+				v4lconvert_packed422_to_yuv422p(src, stripe->planes, width, stripe->rows, 0, 3, 1);
+			else if (self->fmt == UYVY)
+				v4lconvert_packed422_to_yuv422p(src, stripe->planes, width, stripe->rows, 1, 0, 2);
+			else
+				v4lconvert_packed422_to_yuv422p(src, stripe->planes, width, stripe->rows, 1, 2, 0);
+			const u8* u = stripe->planes + stripe_luma_len;
+			v4lconvert_jpeg_stripes_write_raw(cinfo, stripe->planes, u, u + stripe_luma_len / 2, width, 0, stripe->rows, stripe->rows, false);
+			break;
+		}
+	}
+
+	jpeg_finish_compress(cinfo);
+	//jpeg_mem_dest() replaced out_len with the length of the image, and may
+	//have grown the buffer past out_size
+	if (stripe->out_len > stripe->out_size)
+		stripe->out_size = stripe->out_len;
+}
+
+/*
+ * Find the SOS segment of a JPEG image written by libjpeg, and its SOF0
+ * segment if sof is not NULL
+ * @return The offset of the SOS marker, or 0 if not found
+ */
+static size_t v4lconvert_jpeg_stripes_find_sos(const u8* jpeg, size_t len, size_t* sof) {
+	size_t pos = 2;
+	while (pos + 4 <= len && jpeg[pos] == 0xFF) {
+		if (jpeg[pos + 1] == JPEG_MARKER_SOS)
+			return pos;
+		if (sof && jpeg[pos + 1] == JPEG_MARKER_SOF0)
+			*sof = pos;
+		pos += 2 + (((size_t) jpeg[pos + 2] << 8) | jpeg[pos + 3]);
+	}
+	return 0;
+}
+
+size_t v4lconvert_jpeg_stripes_encode(struct v4lconvert_jpeg_stripes* self, const u8* src, int quality, u8* dst, size_t dst_len) {
+	if (!self || quality < 0 || quality > 100)
+		return 0;
+	self->src = src;
+	self->quality = quality;
+	v4lconvert_parallel_for(self->count, v4lconvert_jpeg_stripes_encode_stripe, self);
+
+	//Headers of the first stripe, up to its SOS segment
+	const struct v4lconvert_jpeg_stripe* first = &self->stripes[0];
+	size_t sof = 0;
+	size_t sos = v4lconvert_jpeg_stripes_find_sos(first->out, first->out_len, &sof);
+	if (!sos || !sof)
+		return 0;
+	size_t sos_len = 2 + (((size_t) first->out[sos + 2] << 8) | first->out[sos + 3]);
+	size_t dri_len = self->count > 1 ? 6 : 0;
+	if (sos + dri_len + sos_len > dst_len)
+		return 0;
+	memcpy(dst, first->out, sos);
+	//Height field of SOF0, after its length and sample precision
+	dst[sof + 5] = (u8) (self->height >> 8);
+	dst[sof + 6] = (u8) self->height;
+	size_t len = sos;
+	if (dri_len) {
+		dst[len++] = 0xFF;
+		dst[len++] = JPEG_MARKER_DRI;
+		dst[len++] = 0;
+		dst[len++] = 4;
+		dst[len++] = (u8) (self->restart_interval >> 8);
+		dst[len++] = (u8) self->restart_interval;
+	}
+	memcpy(dst + len, first->out + sos, sos_len);
+	len += sos_len;
+
+	//Entropy coded data of every stripe, between its SOS segment and EOI
+	for (unsigned int i = 0; i < self->count; i++) {
+		const struct v4lconvert_jpeg_stripe* stripe = &self->stripes[i];
+		size_t start = i ? v4lconvert_jpeg_stripes_find_sos(stripe->out, stripe->out_len, NULL) : sos;
+		if (!start || stripe->out_len < 2 || stripe->out[stripe->out_len - 1] != JPEG_MARKER_EOI)
+			return 0;
+		start += 2 + (((size_t) stripe->out[start + 2] << 8) | stripe->out[start + 3]);
+		size_t data_len = stripe->out_len - 2 - start;
+		if (len + data_len + 2 > dst_len)
+			return 0;
+		memcpy(dst + len, stripe->out + start, data_len);
+		len += data_len;
+		dst[len++] = 0xFF;
+		dst[len++] = i + 1 < self->count ? (u8) (JPEG_MARKER_RST0 + i % 8) : JPEG_MARKER_EOI;
+	}
+	return len;
+}
+
+void v4lconvert_jpeg_stripes_destroy(struct v4lconvert_jpeg_stripes* self) {
+	if (!self)
+		return;
+	for (unsigned int i = 0; i < self->count; i++) {
+		jpeg_destroy_compress(&self->stripes[i].cinfo);
+		free(self->stripes[i].out);
+		free(self->stripes[i].planes);
+	}
+	free(self);
+}
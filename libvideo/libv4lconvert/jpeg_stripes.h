@@ -0,0 +1,74 @@
+/*
+ * JPEG compression of a single frame on several cores, as horizontal stripes
+ * joined with restart markers into one baseline JPEG image
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __LIBV4LCONVERT_JPEG_STRIPES_H
+#define __LIBV4LCONVERT_JPEG_STRIPES_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include "types.h"
+
+/**
+ * Maximum number of stripes a frame can be split into
+ */
+#define V4LCONVERT_JPEG_MAX_STRIPES 64
+
+/**
+ * A striped JPEG compressor, holding a libjpeg compressor and an output
+ * buffer for each stripe
+ */
+struct v4lconvert_jpeg_stripes;
+
+/**
+ * Whether frames of the given format can be compressed in stripes. These are
+ * GREY, RGB24, YUV420, YUV422P, YUYV, YVYU, UYVY and VYUY.
+ */
+extern bool v4lconvert_jpeg_stripes_supports(u32 fmt);
+
+/**
+ * Create a striped compressor. Stripes are a whole number of MCU rows (16
+ * rows, or 8 for GREY and 4:2:2 formats) high, so fewer stripes than asked
+ * for may be used on short frames, and of at most 65535 MCUs, the largest
+ * restart interval, so more may be used on very wide ones.
+ * @param fmt Format of frames to compress
+ * @param width Width of frames. Must be a multiple of 16 for YUV formats,
+ *     whose planes libjpeg reads whole MCUs of.
+ * @param height Height of frames
+ * @param stripes Number of stripes to split frames into, from 1 to
+ *     V4LCONVERT_JPEG_MAX_STRIPES
+ * @return The compressor, or NULL if the format or size is not supported, or
+ *     out of memory
+ */
+extern struct v4lconvert_jpeg_stripes* v4lconvert_jpeg_stripes_create(u32 fmt, u32 width, u32 height, unsigned int stripes);
+
+/**
+ * Get the number of stripes frames are actually split into
+ */
+extern unsigned int v4lconvert_jpeg_stripes_count(const struct v4lconvert_jpeg_stripes* self);
+
+/**
+ * Compress a frame, its stripes at the same time on the shared worker pool
+ * (see v4lconvert_parallel_for()). The stripes are joined into a single
+ * baseline JPEG image, with a restart interval of one stripe. A compressor
+ * can only compress a frame at a time.
+ * @param self Compressor
+ * @param src Frame
+ * @param quality JPEG quality, from 0 to 100
+ * @param dst Buffer to write the JPEG image to
+ * @param dst_len Size of dst
+ * @return The length of the JPEG image, or 0 if dst is too small
+ */
+extern size_t v4lconvert_jpeg_stripes_encode(struct v4lconvert_jpeg_stripes* self, const u8* src, int quality, u8* dst, size_t dst_len);
+
+/**
+ * Release a compressor
+ */
+extern void v4lconvert_jpeg_stripes_destroy(struct v4lconvert_jpeg_stripes* self);
+
+#endif
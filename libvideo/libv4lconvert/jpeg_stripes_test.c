@@ -0,0 +1,236 @@
+/*
+ * Checks that frames compressed in stripes are exactly the JPEG images a
+ * single libjpeg compressor writes with the same restart interval, for every
+ * supported format, and frames whose height is not a whole number of MCU
+ * rows. Run with -b to compare the time taken to compress a frame in one
+ * stripe with the time taken in 2, 4 and 8.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <jpeglib.h>
+#include "jpeg_memsrcdest.h"
+#include "jpeg_stripes.h"
+#include "libv4lconvert-priv.h"
+#include "../libvideo.h"
+
+#define BENCHMARK_ROUNDS 20
+
+static const u32 formats[] = { GREY, RGB24, YUV420, YUV422P, YUYV, YVYU, UYVY, VYUY };
+static const char* const format_names[] = { "GREY", "RGB24", "YUV420", "YUV422P", "YUYV", "YVYU", "UYVY", "VYUY" };
+
+#define NUM_FORMATS (sizeof(formats) / sizeof(formats[0]))
+
+static const unsigned int stripe_counts[] = { 1, 2, 3, 8, 64 };
+
+#define NUM_STRIPE_COUNTS (sizeof(stripe_counts) / sizeof(stripe_counts[0]))
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	//Smooth gradients with some noise, so the images compress like real ones
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) ((i / 7 + (size_t) (rand() & 0x0F)) & 0xFF);
+}
+
+/*
+ * Restart interval in the DRI segment of an image, or 0 if none
+ */
+static unsigned int restart_interval(const u8* jpeg, size_t len) {
+	for (size_t pos = 2; pos + 6 <= len && jpeg[pos] == 0xFF && jpeg[pos + 1] != 0xDA; pos += 2 + (size_t) ((jpeg[pos + 2] << 8) | jpeg[pos + 3]))
+		if (jpeg[pos + 1] == 0xDD)
+			return (jpeg[pos + 4] << 8) | jpeg[pos + 5];
+	return 0;
+}
+
+/*
+ * Compress a whole frame with a single libjpeg compressor, the stripe
+ * compressors' settings, and the given restart interval
+ */
+static size_t reference_encode(const u8* src, u32 fmt, u32 width, u32 height, unsigned int interval, u8* dst, size_t dst_len) {
+	struct jpeg_compress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	u8* out = NULL;
+	unsigned long out_len = 0;
+	u8* planes = NULL;
+
+	cinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_compress(&cinfo);
+	cinfo.image_width = width;
+	cinfo.image_height = height;
+	cinfo.input_components = fmt == GREY ? 1 : 3;
+	cinfo.in_color_space = fmt == GREY ? JCS_GRAYSCALE : JCS_RGB;
+	jpeg_set_defaults(&cinfo);
+	if (fmt != GREY && fmt != RGB24) {
+		jpeg_set_colorspace(&cinfo, JCS_YCbCr);
+		cinfo.raw_data_in = TRUE;
+		cinfo.comp_info[0].h_samp_factor = 2;
+		cinfo.comp_info[0].v_samp_factor = fmt == YUV420 ? 2 : 1;
+		for (int c = 1; c < 3; c++)
+			cinfo.comp_info[c].h_samp_factor = cinfo.comp_info[c].v_samp_factor = 1;
+#if JPEG_LIB_VERSION >= 70
+		cinfo.do_fancy_downsampling = FALSE;
+#endif
+	}
+	cinfo.dct_method = JDCT_FASTEST;
+	cinfo.restart_interval = interval;
+	jpeg_mem_dest(&cinfo, &out, &out_len);
+	jpeg_set_quality(&cinfo, 80, TRUE);
+	jpeg_start_compress(&cinfo, TRUE);
+
+	if (fmt == GREY || fmt == RGB24) {
+		const size_t stride = (size_t) width * (fmt == GREY ? 1 : 3);
+		while (cinfo.next_scanline < height) {
+			JSAMPROW row = (JSAMPROW) src + cinfo.next_scanline * stride;
+			jpeg_write_scanlines(&cinfo, &row, 1);
+		}
+	} else {
+		const bool yuv420 = fmt == YUV420;
+		const u32 lines = yuv420 ? 16 : 8;
+		const u8* y = src;
+		if (fmt != YUV420 && fmt != YUV422P) {
+			planes = malloc((size_t) width * height * 2);
+			static const unsigned int offsets[4][3] = { { 0, 1, 3 }, { 0, 3, 1 }, { 1, 0, 2 }, { 1, 2, 0 } };
+			unsigned int o = fmt == YUYV ? 0 : fmt == YVYU ? 1 : fmt == UYVY ? 2 : 3;
+			v4lconvert_packed422_to_yuv422p(src, planes, width, height, offsets[o][0], offsets[o][1], offsets[o][2]);
+			y = planes;
+		}
+		const u8* u = y + (size_t) width * height;
+		const u8* v = u + (size_t) width * height / (yuv420 ? 4 : 2);
+		JSAMPROW y_rows[16], u_rows[16], v_rows[16];
+		JSAMPARRAY data[3] = { y_rows, u_rows, v_rows };
+		const u32 chroma_height = yuv420 ? height / 2 : height;
+		for (u32 line = 0; line < height; line += lines) {
+			for (u32 i = 0; i < lines; i++) {
+				u32 row = line + i < height ? line + i : height - 1;
+				y_rows[i] = (JSAMPROW) y + (size_t) row * width;
+			}
+			for (u32 i = 0; i < (yuv420 ? lines / 2 : lines); i++) {
+				u32 row = (yuv420 ? line / 2 : line) + i;
+				if (row >= chroma_height)
+					row = chroma_height - 1;
+				u_rows[i] = (JSAMPROW) u + (size_t) row * width / 2;
+				v_rows[i] = (JSAMPROW) v + (size_t) row * width / 2;
+			}
+			jpeg_write_raw_data(&cinfo, data, lines);
+		}
+	}
+	jpeg_finish_compress(&cinfo);
+	jpeg_destroy_compress(&cinfo);
+
+	size_t len = out_len <= dst_len ? out_len : 0;
+	memcpy(dst, out, len);
+	free(out);
+	free(planes);
+	return len;
+}
+
+static int check_format(unsigned int f, u32 width, u32 height) {
+	size_t size = (size_t) width * height * 3;
+	u8* src = malloc(size);
+	u8* dst = malloc(size);
+	u8* expected = malloc(size);
+	int failures = 0;
+	fill_source(src, size);
+
+	for (unsigned int s = 0; s < NUM_STRIPE_COUNTS; s++) {
+		struct v4lconvert_jpeg_stripes* stripes = v4lconvert_jpeg_stripes_create(formats[f], width, height, stripe_counts[s]);
+		if (!stripes) {
+			fprintf(stderr, "FAIL %s %ux%u in %u stripes: no compressor\n", format_names[f], width, height, stripe_counts[s]);
+			failures++;
+			continue;
+		}
+		unsigned int count = v4lconvert_jpeg_stripes_count(stripes);
+		//Twice, to check that a compressor can be reused
+		for (int round = 0; round < 2; round++) {
+			size_t len = v4lconvert_jpeg_stripes_encode(stripes, src, 80, dst, size);
+			unsigned int interval = restart_interval(dst, len);
+			size_t expected_len = reference_encode(src, formats[f], width, height, interval, expected, size);
+			if (!len || (count > 1) != (interval > 0) || len != expected_len || memcmp(dst, expected, len)) {
+				fprintf(stderr, "FAIL %s %ux%u in %u stripes: %zu bytes, interval %u, expected %zu bytes\n", format_names[f], width, height, count, len, interval, expected_len);
+				failures++;
+				break;
+			}
+		}
+		if (v4lconvert_jpeg_stripes_encode(stripes, src, 80, dst, 64)) {
+			fprintf(stderr, "FAIL %s %ux%u: image written to a 64 byte buffer\n", format_names[f], width, height);
+			failures++;
+		}
+		v4lconvert_jpeg_stripes_destroy(stripes);
+	}
+
+	free(src);
+	free(dst);
+	free(expected);
+	return failures;
+}
+
+static double elapsed_ms(const struct timespec* start, const struct timespec* end) {
+	return ((double) (end->tv_sec - start->tv_sec) * 1e3 + (double) (end->tv_nsec - start->tv_nsec) / 1e6) / BENCHMARK_ROUNDS;
+}
+
+static void benchmark(u32 fmt, const char* name, u32 width, u32 height) {
+	size_t size = (size_t) width * height * 3;
+	u8* src = malloc(size);
+	u8* dst = malloc(size);
+	struct timespec start, end;
+	double single_ms = 0;
+	fill_source(src, size);
+
+	for (unsigned int stripes = 1; stripes <= 8; stripes *= 2) {
+		struct v4lconvert_jpeg_stripes* self = v4lconvert_jpeg_stripes_create(fmt, width, height, stripes);
+		size_t len = 0;
+		//Once to start the worker threads
+		v4lconvert_jpeg_stripes_encode(self, src, 80, dst, size);
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+			len = v4lconvert_jpeg_stripes_encode(self, src, 80, dst, size);
+		clock_gettime(CLOCK_MONOTONIC, &end);
+		double ms = elapsed_ms(&start, &end);
+		if (stripes == 1)
+			single_ms = ms;
+		printf("%s %ux%u in %u stripes: %.2f ms (%zu bytes), %.2fx\n", name, width, height, v4lconvert_jpeg_stripes_count(self), ms, len, single_ms / ms);
+		v4lconvert_jpeg_stripes_destroy(self);
+	}
+
+	free(src);
+	free(dst);
+}
+
+int main(int argc, char** argv) {
+	int failures = 0;
+
+	for (unsigned int f = 0; f < NUM_FORMATS; f++) {
+		failures += check_format(f, 64, 48);
+		failures += check_format(f, 640, 480);
+		//Last stripe ends with part of an MCU row
+		failures += check_format(f, 320, 250);
+	}
+	//Odd widths, which only scanline formats can have
+	failures += check_format(0, 321, 241);
+	failures += check_format(1, 321, 241);
+	//Stripes shortened to keep the restart interval under 65536 MCUs
+	failures += check_format(0, 8192, 512);
+
+	if (v4lconvert_jpeg_stripes_create(YUYV, 648, 480, 4) || v4lconvert_jpeg_stripes_create(MJPEG, 640, 480, 4)
+			|| v4lconvert_jpeg_stripes_create(GREY, 640, 480, 0)
+			|| v4lconvert_jpeg_stripes_create(GREY, 640, 480, V4LCONVERT_JPEG_MAX_STRIPES + 1)) {
+		fprintf(stderr, "FAIL invalid compressor created\n");
+		failures++;
+	}
+
+	if (argc > 1 && !strcmp(argv[1], "-b")) {
+		benchmark(YUYV, "YUYV", 1920, 1080);
+		benchmark(YUV420, "YUV420", 3840, 2160);
+		benchmark(RGB24, "RGB24", 3840, 2160);
+	}
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
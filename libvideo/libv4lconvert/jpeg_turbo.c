@@ -0,0 +1,251 @@
+/*
+ * JPEG compression with the TurboJPEG API of libjpeg-turbo, loaded at runtime
+ * so that it is used where installed without being required
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * TurboJPEG compresses a whole frame per call, from packed RGB or from YUV
+ * planes, with its SIMD colour conversion and downsampling, instead of
+ * handing libjpeg one scanline or MCU row at a time. The library is opened
+ * with dlopen, so neither turbojpeg.h nor libturbojpeg are needed to build:
+ * the few declarations used are copied below.
+ */
+
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include "jpeg_turbo.h"
+#include "libv4lconvert-priv.h"
+#include "../libvideo.h"
+
+/* From turbojpeg.h */
+#define TJSAMP_422 1
+#define TJSAMP_420 2
+#define TJSAMP_GRAY 3
+#define TJPF_RGB 0
+#define TJPF_BGR 1
+#define TJPF_BGRX 3
+#define TJPF_XRGB 5
+#define TJPF_GRAY 6
+#define TJFLAG_NOREALLOC 1024
+#define TJFLAG_FASTDCT 2048
+
+typedef void* tjhandle;
+
+static struct {
+	tjhandle (*initCompress)(void);
+	int (*compress2)(tjhandle handle, const unsigned char* srcBuf, int width, int pitch, int height, int pixelFormat, unsigned char** jpegBuf, unsigned long* jpegSize, int jpegSubsamp, int jpegQual, int flags);
+	int (*compressFromYUVPlanes)(tjhandle handle, const unsigned char** srcPlanes, int width, const int* strides, int height, int subsamp, unsigned char** jpegBuf, unsigned long* jpegSize, int jpegQual, int flags);
+	unsigned long (*bufSize)(int width, int height, int jpegSubsamp);
+	void (*free)(unsigned char* buffer);
+	int (*destroy)(tjhandle handle);
+} tj;
+
+static pthread_once_t tj_once = PTHREAD_ONCE_INIT;
+static bool tj_loaded = false;
+
+#define V4LCONVERT_JPEG_UNKNOWN -1
+
+static int v4lconvert_jpeg_backend = V4LCONVERT_JPEG_UNKNOWN;
+
+struct v4lconvert_turbojpeg {
+	tjhandle handle;
+	/**
+	 * Planes packed 4:2:2 frames are split into, allocated the first time
+	 * one is compressed
+	 */
+	u8* planes;
+	size_t planes_len;
+};
+
+static void v4lconvert_turbojpeg_load(void) {
+	static const char* const names[] = { "libturbojpeg.so.0", "libturbojpeg.so" };
+	void* lib = NULL;
+	for (unsigned int i = 0; !lib && i < sizeof(names) / sizeof(names[0]); i++)
+		lib = dlopen(names[i], RTLD_NOW | RTLD_LOCAL);
+	if (!lib)
+		return;
+	*(void**) &tj.initCompress = dlsym(lib, "tjInitCompress");
+	*(void**) &tj.compress2 = dlsym(lib, "tjCompress2");
+	*(void**) &tj.compressFromYUVPlanes = dlsym(lib, "tjCompressFromYUVPlanes");
+	*(void**) &tj.bufSize = dlsym(lib, "tjBufSize");
+	*(void**) &tj.free = dlsym(lib, "tjFree");
+	*(void**) &tj.destroy = dlsym(lib, "tjDestroy");
+	if (!tj.initCompress || !tj.compress2 || !tj.compressFromYUVPlanes || !tj.bufSize || !tj.free || !tj.destroy) {
+		//Older than libjpeg-turbo 1.4
+		dlclose(lib);
+		memset(&tj, 0, sizeof(tj));
+		return;
+	}
+	//The library stays loaded until the process exits
+	tj_loaded = true;
+}
+
+bool v4lconvert_turbojpeg_available(void) {
+	pthread_once(&tj_once, v4lconvert_turbojpeg_load);
+	return tj_loaded;
+}
+
+static enum v4lconvert_jpeg_backend v4lconvert_jpeg_detect_backend(void) {
+	const char* name = getenv("V4L4J_JPEG_BACKEND");
+	if (name && !strcmp(name, "libjpeg"))
+		return V4LCONVERT_JPEG_LIBJPEG;
+	return v4lconvert_turbojpeg_available() ? V4LCONVERT_JPEG_TURBOJPEG : V4LCONVERT_JPEG_LIBJPEG;
+}
+
+enum v4lconvert_jpeg_backend v4lconvert_jpeg_get_backend(void) {
+	int backend = __atomic_load_n(&v4lconvert_jpeg_backend, __ATOMIC_RELAXED);
+	if (backend == V4LCONVERT_JPEG_UNKNOWN) {
+		//Racing threads all detect the same value
+		backend = v4lconvert_jpeg_detect_backend();
+		__atomic_store_n(&v4lconvert_jpeg_backend, backend, __ATOMIC_RELAXED);
+	}
+	return (enum v4lconvert_jpeg_backend) backend;
+}
+
+enum v4lconvert_jpeg_backend v4lconvert_jpeg_set_backend(enum v4lconvert_jpeg_backend backend) {
+	if (backend != V4LCONVERT_JPEG_TURBOJPEG || !v4lconvert_turbojpeg_available())
+		backend = V4LCONVERT_JPEG_LIBJPEG;
+	__atomic_store_n(&v4lconvert_jpeg_backend, backend, __ATOMIC_RELAXED);
+	return backend;
+}
+
+bool v4lconvert_turbojpeg_supports(u32 fmt) {
+	switch (fmt) {
+		case GREY:
+		case RGB24:
+		case BGR24:
+		case RGB32:
+		case BGR32:
+		case YUV420:
+		case YUV422P:
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY:
+			return true;
+		default:
+			return false;
+	}
+}
+
+struct v4lconvert_turbojpeg* v4lconvert_turbojpeg_create(void) {
+	if (!v4lconvert_turbojpeg_available())
+		return NULL;
+	struct v4lconvert_turbojpeg* self = calloc(1, sizeof(struct v4lconvert_turbojpeg));
+	if (!self)
+		return NULL;
+	if (!(self->handle = tj.initCompress())) {
+		free(self);
+		return NULL;
+	}
+	return self;
+}
+
+size_t v4lconvert_turbojpeg_encode(struct v4lconvert_turbojpeg* self, const u8* src, u32 fmt, u32 width, u32 height, int quality, u8* dst, size_t dst_len) {
+	if (!self || !width || !height || quality < 0 || quality > 100)
+		return 0;
+	const int w = (int) width, h = (int) height;
+	const size_t luma_len = (size_t) width * height;
+	const u8* planes[3];
+	int pixel_format = -1, subsamp = TJSAMP_420;
+	switch (fmt) {
+		case GREY:
+			pixel_format = TJPF_GRAY;
+			subsamp = TJSAMP_GRAY;
+			break;
+		case RGB24:
+			pixel_format = TJPF_RGB;
+			break;
+		case BGR24:
+			pixel_format = TJPF_BGR;
+			break;
+		case RGB32:
+			pixel_format = TJPF_XRGB;
+			break;
+		case BGR32:
+			pixel_format = TJPF_BGRX;
+			break;
+		case YUV420:
+			planes[0] = src;
+			planes[1] = src + luma_len;
+			planes[2] = planes[1] + (size_t) ((width + 1) / 2) * ((height + 1) / 2);
+			break;
+		case YUV422P:
+			subsamp = TJSAMP_422;
+			planes[0] = src;
+			planes[1] = src + luma_len;
+			planes[2] = planes[1] + (size_t) ((width + 1) / 2) * height;
+			break;
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY: {
+			if (width % 2)
+				return 0;
+			subsamp = TJSAMP_422;
+			if (self->planes_len < luma_len * 2) {
+				u8* planes_buf = realloc(self->planes, luma_len * 2);
+				if (!planes_buf)
+					return 0;
+				self->planes = planes_buf;
+				self->planes_len = luma_len * 2;
+			}
+			if (fmt == YUYV)
+				v4lconvert_packed422_to_yuv422p(src, self->planes, width, height, 0, 1, 3);
+			else if (fmt == YVYU)
+				v4lconvert_packed422_to_yuv422p(src, self->planes, width, height, 0, 3, 1);
+			else if (fmt == UYVY)
+				v4lconvert_packed422_to_yuv422p(src, self->planes, width, height, 1, 0, 2);
+			else
+				v4lconvert_packed422_to_yuv422p(src, self->planes, width, height, 1, 2, 0);
+			planes[0] = self->planes;
+			planes[1] = self->planes + luma_len;
+			planes[2] = planes[1] + luma_len / 2;
+			break;
+		}
+		default:
+			return 0;
+	}
+
+	//Same trade-off as JDCT_FASTEST in the libjpeg encoders
+	int flags = TJFLAG_FASTDCT;
+	unsigned char* out = dst;
+	unsigned long out_len = (unsigned long) dst_len;
+	unsigned long worst_len = tj.bufSize(w, h, subsamp);
+	if (worst_len != (unsigned long) -1 && out_len >= worst_len) {
+		flags |= TJFLAG_NOREALLOC;
+	} else {
+		//TurboJPEG can't be told how large dst is, so let it allocate a buffer
+		//large enough, and copy the image if it fits
+		out = NULL;
+		out_len = 0;
+	}
+
+	int result;
+	if (pixel_format >= 0)
+		result = tj.compress2(self->handle, src, w, 0, h, pixel_format, &out, &out_len, subsamp, quality, flags);
+	else
+		result = tj.compressFromYUVPlanes(self->handle, planes, w, NULL, h, subsamp, &out, &out_len, quality, flags);
+
+	if (out != dst) {
+		if (result == 0 && out_len <= dst_len)
+			memcpy(dst, out, out_len);
+		else
+			result = -1;
+		tj.free(out);
+	}
+	return result == 0 ? (size_t) out_len : 0;
+}
+
+void v4lconvert_turbojpeg_destroy(struct v4lconvert_turbojpeg* self) {
+	if (!self)
+		return;
+	tj.destroy(self->handle);
+	free(self->planes);
+	free(self);
+}
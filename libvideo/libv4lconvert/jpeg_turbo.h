@@ -0,0 +1,92 @@
+/*
+ * JPEG compression with the TurboJPEG API of libjpeg-turbo, loaded at runtime
+ * so that it is used where installed without being required
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __LIBV4LCONVERT_JPEG_TURBO_H
+#define __LIBV4LCONVERT_JPEG_TURBO_H
+
+#include <stdbool.h>
+#include <stddef.h>
+#include "types.h"
+
+/**
+ * Library JPEG encoders are created with
+ */
+enum v4lconvert_jpeg_backend {
+	/**
+	 * The libjpeg API, fed one scanline or MCU row at a time
+	 */
+	V4LCONVERT_JPEG_LIBJPEG = 0,
+	/**
+	 * The TurboJPEG API, compressing whole frames in one call
+	 */
+	V4LCONVERT_JPEG_TURBOJPEG = 1
+};
+
+/**
+ * A TurboJPEG compressor, and the buffer packed 4:2:2 frames are split into
+ * planes in
+ */
+struct v4lconvert_turbojpeg;
+
+/**
+ * Whether libturbojpeg could be loaded. It is looked for the first time this
+ * or any of the functions below is called.
+ */
+extern bool v4lconvert_turbojpeg_available(void);
+
+/**
+ * Get the library JPEG encoders are created with from now on. Defaults to
+ * TurboJPEG if available, unless the V4L4J_JPEG_BACKEND environment
+ * variable is set to "libjpeg".
+ */
+extern enum v4lconvert_jpeg_backend v4lconvert_jpeg_get_backend(void);
+
+/**
+ * Set the library JPEG encoders are created with from now on. Encoders
+ * already created keep theirs.
+ * @return The backend actually used, which is libjpeg if TurboJPEG was asked
+ *     for but is not available
+ */
+extern enum v4lconvert_jpeg_backend v4lconvert_jpeg_set_backend(enum v4lconvert_jpeg_backend backend);
+
+/**
+ * Whether frames of the given format can be compressed with TurboJPEG.
+ * These are GREY, RGB24, BGR24, RGB32, BGR32, YUV420, YUV422P, YUYV, YVYU,
+ * UYVY and VYUY.
+ */
+extern bool v4lconvert_turbojpeg_supports(u32 fmt);
+
+/**
+ * Create a TurboJPEG compressor
+ * @return The compressor, or NULL if TurboJPEG is not available or out of
+ *     memory
+ */
+extern struct v4lconvert_turbojpeg* v4lconvert_turbojpeg_create(void);
+
+/**
+ * Compress a frame. A compressor can only compress a frame at a time.
+ * @param self Compressor
+ * @param src Frame
+ * @param fmt Format of the frame
+ * @param width Width of the frame
+ * @param height Height of the frame
+ * @param quality JPEG quality, from 0 to 100
+ * @param dst Buffer to write the JPEG image to
+ * @param dst_len Size of dst
+ * @return The length of the JPEG image, or 0 if the format is not supported,
+ *     dst is too small, or compression failed
+ */
+extern size_t v4lconvert_turbojpeg_encode(struct v4lconvert_turbojpeg* self, const u8* src, u32 fmt, u32 width, u32 height, int quality, u8* dst, size_t dst_len);
+
+/**
+ * Release a compressor
+ */
+extern void v4lconvert_turbojpeg_destroy(struct v4lconvert_turbojpeg* self);
+
+#endif
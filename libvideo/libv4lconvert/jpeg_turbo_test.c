@@ -0,0 +1,189 @@
+/*
+ * Checks that TurboJPEG compresses every supported format to a complete JPEG
+ * image, and rejects what it can't compress. Run with -b to compare the
+ * throughput of TurboJPEG with the one of libjpeg, set up the way
+ * src/jpeg.c sets it up, at qualities 50, 80 and 95.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <jpeglib.h>
+#include "jpeg_memsrcdest.h"
+#include "jpeg_turbo.h"
+#include "../libvideo.h"
+
+#define BENCHMARK_ROUNDS 50
+
+static const u32 formats[] = { GREY, RGB24, BGR24, RGB32, BGR32, YUV420, YUV422P, YUYV, YVYU, UYVY, VYUY };
+static const char* const format_names[] = { "GREY", "RGB24", "BGR24", "RGB32", "BGR32", "YUV420", "YUV422P", "YUYV", "YVYU", "UYVY", "VYUY" };
+
+#define NUM_FORMATS (sizeof(formats) / sizeof(formats[0]))
+
+static const int qualities[] = { 50, 80, 95 };
+
+#define NUM_QUALITIES (sizeof(qualities) / sizeof(qualities[0]))
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	//Smooth gradients with some noise, so the images compress like real ones
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) ((i / 7 + (size_t) (rand() & 0x0F)) & 0xFF);
+}
+
+static int check_format(struct v4lconvert_turbojpeg* tj, unsigned int f, u32 width, u32 height) {
+	size_t size = (size_t) width * height * 4;
+	u8* src = malloc(size);
+	u8* dst = malloc(size);
+	int failures = 0;
+	fill_source(src, size);
+
+	size_t len = v4lconvert_turbojpeg_encode(tj, src, formats[f], width, height, 80, dst, size);
+	if (len < 4 || dst[0] != 0xFF || dst[1] != 0xD8 || dst[len - 2] != 0xFF || dst[len - 1] != 0xD9) {
+		fprintf(stderr, "FAIL %s %ux%u: no complete JPEG image (%zu bytes)\n", format_names[f], width, height, len);
+		failures++;
+	}
+	//Too small for the image, whether or not TurboJPEG could write in place
+	if (v4lconvert_turbojpeg_encode(tj, src, formats[f], width, height, 80, dst, 16)) {
+		fprintf(stderr, "FAIL %s %ux%u: image written to a 16 byte buffer\n", format_names[f], width, height);
+		failures++;
+	}
+
+	free(src);
+	free(dst);
+	return failures;
+}
+
+static double elapsed_ms(const struct timespec* start, const struct timespec* end) {
+	return ((double) (end->tv_sec - start->tv_sec) * 1e3 + (double) (end->tv_nsec - start->tv_nsec) / 1e6) / BENCHMARK_ROUNDS;
+}
+
+/*
+ * Compress YUV planes with libjpeg, feeding it raw data MCU row by MCU row
+ * as src/jpeg.c does
+ */
+static size_t libjpeg_encode(struct jpeg_compress_struct* cinfo, const u8* src, u32 width, u32 height, bool yuv420, int quality, u8* dst, size_t dst_len) {
+	const unsigned int lines = yuv420 ? 16 : 8;
+	JSAMPROW y[16], cb[16], cr[16];
+	JSAMPARRAY data[3] = { y, cb, cr };
+	const u8* u_plane = src + (size_t) width * height;
+	const u8* v_plane = u_plane + (size_t) width * height / (yuv420 ? 4 : 2);
+	unsigned long len = (unsigned long) dst_len;
+
+	jpeg_mem_dest(cinfo, &dst, &len);
+	jpeg_set_quality(cinfo, quality, TRUE);
+	jpeg_start_compress(cinfo, TRUE);
+	for (u32 line = 0; line < height; line += lines) {
+		for (unsigned int i = 0; i < lines; i++) {
+			y[i] = (JSAMPROW) src + (size_t) (line + i) * width;
+			if (yuv420) {
+				cb[i / 2] = (JSAMPROW) u_plane + (size_t) (line + i) / 2 * width / 2;
+				cr[i / 2] = (JSAMPROW) v_plane + (size_t) (line + i) / 2 * width / 2;
+			} else {
+				cb[i] = (JSAMPROW) u_plane + (size_t) (line + i) * width / 2;
+				cr[i] = (JSAMPROW) v_plane + (size_t) (line + i) * width / 2;
+			}
+		}
+		jpeg_write_raw_data(cinfo, data, lines);
+	}
+	jpeg_finish_compress(cinfo);
+	return dst_len - cinfo->dest->free_in_buffer;
+}
+
+static void benchmark(struct v4lconvert_turbojpeg* tj, u32 width, u32 height, bool yuv420) {
+	size_t size = (size_t) width * height * (yuv420 ? 3 : 4) / 2;
+	u8* src = malloc(size);
+	u8* dst = malloc(size);
+	struct timespec start, end;
+	fill_source(src, size);
+
+	struct jpeg_compress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	cinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_compress(&cinfo);
+	cinfo.image_width = width;
+	cinfo.image_height = height;
+	cinfo.input_components = 3;
+	jpeg_set_defaults(&cinfo);
+	jpeg_set_colorspace(&cinfo, JCS_YCbCr);
+	cinfo.dct_method = JDCT_FASTEST;
+	cinfo.raw_data_in = TRUE;
+	cinfo.comp_info[0].h_samp_factor = 2;
+	cinfo.comp_info[0].v_samp_factor = yuv420 ? 2 : 1;
+	for (int c = 1; c < 3; c++)
+		cinfo.comp_info[c].h_samp_factor = cinfo.comp_info[c].v_samp_factor = 1;
+
+	for (unsigned int q = 0; q < NUM_QUALITIES; q++) {
+		size_t len = 0;
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+			len = libjpeg_encode(&cinfo, src, width, height, yuv420, qualities[q], dst, size);
+		clock_gettime(CLOCK_MONOTONIC, &end);
+		double libjpeg_ms = elapsed_ms(&start, &end);
+		printf("%s %ux%u quality %d: libjpeg %.2f ms (%zu bytes)", yuv420 ? "YUV420" : "YUV422P", width, height, qualities[q], libjpeg_ms, len);
+
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+			len = v4lconvert_turbojpeg_encode(tj, src, yuv420 ? YUV420 : YUV422P, width, height, qualities[q], dst, size);
+		clock_gettime(CLOCK_MONOTONIC, &end);
+		double turbo_ms = elapsed_ms(&start, &end);
+		printf(", TurboJPEG %.2f ms (%zu bytes), %.1f frames/s vs %.1f\n", turbo_ms, len, 1e3 / turbo_ms, 1e3 / libjpeg_ms);
+	}
+
+	jpeg_destroy_compress(&cinfo);
+	free(src);
+	free(dst);
+}
+
+int main(int argc, char** argv) {
+	int failures = 0;
+
+	if (!v4lconvert_turbojpeg_available()) {
+		if (v4lconvert_turbojpeg_create() || v4lconvert_jpeg_set_backend(V4LCONVERT_JPEG_TURBOJPEG) != V4LCONVERT_JPEG_LIBJPEG) {
+			fprintf(stderr, "FAIL TurboJPEG used while not available\n");
+			failures++;
+		}
+		printf("libturbojpeg not found, only checked that libjpeg is used\n");
+		printf("%s\n", failures ? "FAILED" : "OK");
+		return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+	}
+
+	struct v4lconvert_turbojpeg* tj = v4lconvert_turbojpeg_create();
+	if (!tj) {
+		fprintf(stderr, "FAIL could not create a TurboJPEG compressor\n");
+		printf("FAILED\n");
+		return EXIT_FAILURE;
+	}
+	for (unsigned int f = 0; f < NUM_FORMATS; f++) {
+		failures += check_format(tj, f, 64, 48);
+		failures += check_format(tj, f, 642, 482);
+	}
+	u8 buf[64] = { 0 };
+	if (v4lconvert_turbojpeg_encode(tj, buf, YUYV, 3, 2, 80, buf, sizeof(buf))
+			|| v4lconvert_turbojpeg_encode(tj, buf, MJPEG, 4, 2, 80, buf, sizeof(buf))
+			|| v4lconvert_turbojpeg_encode(tj, buf, GREY, 4, 2, 101, buf, sizeof(buf))) {
+		fprintf(stderr, "FAIL invalid frame accepted\n");
+		failures++;
+	}
+	if (v4lconvert_jpeg_set_backend(V4LCONVERT_JPEG_LIBJPEG) != V4LCONVERT_JPEG_LIBJPEG || v4lconvert_jpeg_get_backend() != V4LCONVERT_JPEG_LIBJPEG
+			|| v4lconvert_jpeg_set_backend(V4LCONVERT_JPEG_TURBOJPEG) != V4LCONVERT_JPEG_TURBOJPEG || v4lconvert_jpeg_get_backend() != V4LCONVERT_JPEG_TURBOJPEG) {
+		fprintf(stderr, "FAIL backend not switched\n");
+		failures++;
+	}
+
+	if (argc > 1 && !strcmp(argv[1], "-b")) {
+		benchmark(tj, 1920, 1080, true);
+		benchmark(tj, 1920, 1080, false);
+		benchmark(tj, 640, 480, true);
+	}
+
+	v4lconvert_turbojpeg_destroy(tj);
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -1,7 +1,13 @@
 
 #include <stdlib.h>
+#include <string.h>
+#include <time.h>
 #include "libv4lconvert-flat.h"
 #include "jpeg_memsrcdest.h"
+#include "parallel.h"
+#include "costs.h"
+#include "scale.h"
+#include "jpeg_turbo.h"
 #include "../libvideo-palettes.h"
 #include "../types.h"
 #include "../log.h"
@@ -22,149 +28,133 @@ extern "C" {
 #define UNUSED(x) (void)(x)
 #endif
 
-#define GENERATE_CONVERTER(id, initFn, applyFn, costFn, src_fmt, dst_fmt, signature, flag1, flag2) \
+#define GENERATE_CONVERTER(_id, applyFn, _src_fmt, _dst_fmt, _signature, _flag1, _flag2) \
 	{\
-		.id = (id),\
-		.init = (initFn),\
-		.estimateCost = (costFn),\
-		.type = v4lconvert_conversion_type_imf,\
-		.src_fmt = (src_fmt),\
-		.dst_fmt = (dst_fmt),\
-		.imf_params = {\
-			.signature = v4lconvert_conversion_signature_##signature,\
-			.target = {.cvt_##signature = (applyFn)},\
-			.flag1 = (flag1),\
-			.flag2 = (flag2),\
-		}\
+		.id = (_id),\
+		.signature = v4lconvert_conversion_signature_##_signature,\
+		.target = {.cvt_##_signature = (applyFn)},\
+		.src_fmt = (_src_fmt),\
+		.dst_fmt = (_dst_fmt),\
+		.flag1 = (_flag1),\
+		.flag2 = (_flag2),\
 	}
 
-#define GENERATE_CONVERTER_SDWH_0F(id, applyFn, costFn, src_fmt, dst_fmt)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sdwh, (applyFn), (costFn), (src_fmt), (dst_fmt), sdwh_0f, false, false)
+#define GENERATE_CONVERTER_SDWH_0F(id, applyFn, src_fmt, dst_fmt)\
+	GENERATE_CONVERTER((id), (applyFn), (src_fmt), (dst_fmt), sdwh_0f, false, false)
 
-#define GENERATE_CONVERTER_SDWH_1F(id, applyFn, costFn, src_fmt, dst_fmt, flag1)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sdwh, (applyFn), (costFn), (src_fmt), (dst_fmt), sdwh_1f, (flag1), false)
+#define GENERATE_CONVERTER_SDWH_1F(id, applyFn, src_fmt, dst_fmt, flag1)\
+	GENERATE_CONVERTER((id), (applyFn), (src_fmt), (dst_fmt), sdwh_1f, (flag1), false)
 
-#define GENERATE_CONVERTER_SDWH_2F(id, applyFn, costFn, src_fmt, dst_fmt, flag1, flag2)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sdwh, (applyFn), (costFn), (src_fmt), (dst_fmt), sdwh_2f, (flag1), (flag2))
+#define GENERATE_CONVERTER_SD_SF_0F(id, applyFn, src_fmt, dst_fmt)\
+	GENERATE_CONVERTER((id), (applyFn), (src_fmt), (dst_fmt), sd_sf_0f, false, false)
 
-#define GENERATE_CONVERTER_SD_SF_0F(id, applyFn, costFn, src_fmt, dst_fmt)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sd_sf, (applyFn), (costFn), (src_fmt), (dst_fmt), sd_sf_0f, false, false)
+#define GENERATE_CONVERTER_SD_SF_1F(id, applyFn, src_fmt, dst_fmt, flag1)\
+	GENERATE_CONVERTER((id), (applyFn), (src_fmt), (dst_fmt), sd_sf_1f, (flag1), false)
 
-#define GENERATE_CONVERTER_SD_SF_1F(id, applyFn, costFn, src_fmt, dst_fmt, flag1)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sd_sf, (applyFn), (costFn), (src_fmt), (dst_fmt), sd_sf_1f, (flag1), false)
+#define GENERATE_CONVERTER_SD_SF_2F(id, applyFn, src_fmt, dst_fmt, flag1, flag2)\
+	GENERATE_CONVERTER((id), (applyFn), (src_fmt), (dst_fmt), sd_sf_2f, (flag1), (flag2))
 
-#define GENERATE_CONVERTER_SD_SF_2F(id, applyFn, costFn, src_fmt, dst_fmt, flag1, flag2)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_sd_sf, (applyFn), (costFn), (src_fmt), (dst_fmt), sd_sf_2f, (flag1), (flag2))
+#define GENERATE_CONVERTER_SDWH_1F_x2(id, applyFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
+	GENERATE_CONVERTER_SDWH_1F(id    , (applyFn), (src_fmt_0), (dst_fmt_0), false),\
+	GENERATE_CONVERTER_SDWH_1F(id + 1, (applyFn), (src_fmt_1), (dst_fmt_1), true)
 
-#define GENERATE_CONVERTER_SPECIAL(id, src_fmt, dst_fmt, flag1, flag2) {(id), v4lconvert_conversion_signature_special, {.user_defined = NULL}, v4lconvert_conversion_type_unknown, (src_fmt), (dst_fmt), (flag1), (flag2)}
+#define GENERATE_CONVERTER_SD_SF_1F_x2(id, applyFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
+	GENERATE_CONVERTER_SD_SF_1F(id    , (applyFn), (src_fmt_0), (dst_fmt_0), false),\
+	GENERATE_CONVERTER_SD_SF_1F(id + 1, (applyFn), (src_fmt_1), (dst_fmt_1), true)
 
-#define GENERATE_CONVERTER_SDWH_1F_x2(id, applyFn, costFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
-	GENERATE_CONVERTER_SDWH_1F(id    , (applyFn), (costFn), (src_fmt_0), (dst_fmt_0), false),\
-	GENERATE_CONVERTER_SDWH_1F(id + 1, (applyFn), (costFn), (src_fmt_1), (dst_fmt_1), true)
+#define GENERATE_CONVERTER_SD_SF_2F_x4(id, applyFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
+	GENERATE_CONVERTER_SD_SF_2F(id    , (applyFn), (src_fmt_0), (dst_fmt_0), false, false),\
+	GENERATE_CONVERTER_SD_SF_2F(id + 1, (applyFn), (src_fmt_1), (dst_fmt_0), true, false),\
+	GENERATE_CONVERTER_SD_SF_2F(id + 2, (applyFn), (src_fmt_0), (dst_fmt_1), false, true),\
+	GENERATE_CONVERTER_SD_SF_2F(id + 3, (applyFn), (src_fmt_1), (dst_fmt_1), true, true)
 
-#define GENERATE_CONVERTER_SD_SF_1F_x2(id, applyFn, costFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
-	GENERATE_CONVERTER_SD_SF_1F(id    , (applyFn), (costFn), (src_fmt_0), (dst_fmt_0), false),\
-	GENERATE_CONVERTER_SD_SF_1F(id + 1, (applyFn), (costFn), (src_fmt_1), (dst_fmt_1), true)
+//Virtual JPEG converters. Can't be applied on their own, but encoders can compress to JPEG from these formats.
+#define GENERATE_CONVERTER_JPEG(id, src_fmt)\
+	GENERATE_CONVERTER((id), NULL, (src_fmt), JPEG, special, false, false)
 
-#define GENERATE_CONVERTER_SD_SF_2F_x4(id, applyFn, costFn, src_fmt_0, src_fmt_1, dst_fmt_0, dst_fmt_1) \
-	GENERATE_CONVERTER_SD_SF_2F(id    , (applyFn), (costFn), (src_fmt_0), (dst_fmt_0), 0, 0),\
-	GENERATE_CONVERTER_SD_SF_2F(id + 1, (applyFn), (costFn), (src_fmt_1), (dst_fmt_0), 1, 0),\
-	GENERATE_CONVERTER_SD_SF_2F(id + 2, (applyFn), (costFn), (src_fmt_0), (dst_fmt_1), 0, 1),\
-	GENERATE_CONVERTER_SD_SF_2F(id + 3, (applyFn), (costFn), (src_fmt_1), (dst_fmt_1), 1, 1)
-
-static v4lconvert_converter_t* v4lconvert_init_imf_sdwh(v4lconvert_converter_prototype_t* self, struct v4l2_format* src_fmt, struct v4l2_format* dst_fmt, size_t options_len, void* options, char** errmsg);
-static v4lconvert_converter_t* v4lconvert_init_imf_sd_sf(v4lconvert_converter_prototype_t* self, struct v4l2_format* src_fmt, struct v4l2_format* dst_fmt, size_t options_len, void* options, char** errmsg);
-
-static v4lconvert_converter_prototype const v4lconvert_converter_prototypes[][] = {
-	[v4lconvert_conversion_type_identity] = {
-		
-	},
-	[v4lconvert_conversion_type_imf] = {
-		GENERATE_CONVERTER_SD_SF_2F_x4(0, v4lconvert_rgb24_to_yuv420, NULL, RGB24, BGR24, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(4, v4lconvert_yuv420_to_rgb24, NULL, YUV420, YVU420, RGB24, RGB24),
-		GENERATE_CONVERTER_SDWH_1F_x2(6, v4lconvert_yuv420_to_bgr24, YUV420, YVU420, BGR24, BGR24),
-		GENERATE_CONVERTER_SDWH_0F(8, v4lconvert_yuyv_to_rgb24, YUYV, RGB24),
-		GENERATE_CONVERTER_SDWH_0F(9, v4lconvert_yuyv_to_bgr24, YUYV, BGR24),
-		GENERATE_CONVERTER_SDWH_1F_x2(10, v4lconvert_yuyv_to_yuv420, YUYV, YUYV, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_0F(12, v4lconvert_yvyu_to_rgb24, YUYV, RGB24),
-		GENERATE_CONVERTER_SDWH_0F(13, v4lconvert_yvyu_to_bgr24, YUYV, BGR24),
-		GENERATE_CONVERTER_SDWH_0F(14, v4lconvert_uyvy_to_rgb24, UYVY, RGB24),
-		GENERATE_CONVERTER_SDWH_0F(15, v4lconvert_uyvy_to_bgr24, UYVY, BGR24),
-		GENERATE_CONVERTER_SDWH_1F_x2(16, v4lconvert_uyvy_to_yuv420, UYVY, UYVY, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_0F(18, v4lconvert_swap_rgb, RGB24, BGR24),
-		GENERATE_CONVERTER_SDWH_0F(19, v4lconvert_swap_rgb, BGR24, RGB24),
-		GENERATE_CONVERTER_SD_SF_0F(20, v4lconvert_swap_uv, YUV420, YVU420),//TODO figure out if this is right...
-		GENERATE_CONVERTER_SD_SF_0F(21, v4lconvert_swap_uv, YVU420, YUV420),
-		GENERATE_CONVERTER_SDWH_0F(22, v4lconvert_grey_to_rgb24, GREY, RGB24),
-		GENERATE_CONVERTER_SD_SF_0F(23, v4lconvert_grey_to_yuv420, GREY, YUV420),
-		GENERATE_CONVERTER_SDWH_0F(24, v4lconvert_rgb565_to_rgb24, RGB565, RGB24),
-		GENERATE_CONVERTER_SDWH_0F(25, v4lconvert_rgb565_to_bgr24, RGB565, BGR24),
-		GENERATE_CONVERTER_SD_SF_1F_x2(26, v4lconvert_rgb565_to_yuv420, RGB565, RGB565, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(27, v4lconvert_spca501_to_yuv420, SPCA501, SPCA501, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(28, v4lconvert_spca505_to_yuv420, SPCA505, SPCA505, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(32, v4lconvert_spca508_to_yuv420, SPCA508, SPCA508, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(34, v4lconvert_cit_yyvyuy_to_yuv420, CIT_YYVYUY, CIT_YYVYUY, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(36, v4lconvert_konica_yuv420_to_yuv420, KONICA420, KONICA420, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(38, v4lconvert_m420_to_yuv420, M420, M420, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_1F_x2(40, v4lconvert_sn9c20x_to_yuv420, SN9C20X_I420, SN9C20X_I420, YUV420, YVU420),
-		GENERATE_CONVERTER_SDWH_0F(42, v4lconvert_decode_sn9c10x, SN9C10X, SBGGR8),
-		GENERATE_CONVERTER_SDWH_0F(43, v4lconvert_decode_sn9c2028, SN9C2028, SBGGR8),
-		GENERATE_CONVERTER_SDWH_0F(44, v4lconvert_decode_sq905c, SQ905C, SRGGB8),
-		GENERATE_CONVERTER_SDWH_0F(45, v4lconvert_decode_stv0680, STV0680, SRGGB8),
-		GENERATE_CONVERTER_SDWH_0F(46, v4lconvert_grey_to_rgb24, GREY, RGB24),
-		GENERATE_CONVERTER_SDWH_0F(47, v4lconvert_hm12_to_bgr24, HM12, BGR24),
-		GENERATE_CONVERTER_SDWH_1F_x2(48, v4lconvert_hm12_to_yuv420, HM12, HM12, YUV420, YVU420),
-#define GENERATE_CONVERTER_JPEG(id, costFn, src_fmt)\
-	GENERATE_CONVERTER((id), v4lconvert_init_imf_jpeg, NULL, (costFn), (src_fmt), JPEG, special, false, false)
-		//Virtual JPEG converters. Can't be used, but are placeholders because encoders can support them.
-		GENERATE_CONVERTER_JPEG(50, NULL, GREY),
-		GENERATE_CONVERTER_JPEG(51, NULL, RGB24),
-		GENERATE_CONVERTER_JPEG(52, NULL, YUV420),
-		GENERATE_CONVERTER_JPEG(53, NULL, YUYV),
-		GENERATE_CONVERTER_JPEG(54, NULL, YVYU),
-		GENERATE_CONVERTER_JPEG(55, NULL, UYVY),
-		GENERATE_CONVERTER_JPEG(56, NULL, VYUY),
-#undef GENERATE_CONVERTER_JPEG
-		//v4lconvert_y10b_to_rgb24(struct v4lconvert_data *data, const u8 *src, u8 *dest, u32 width, u32 height);
-		//v4lconvert_y10b_to_yuv420(struct v4lconvert_data *data, const u8 *src, u8 *dest, u32 width, u32 height);
-		//v4lconvert_cpia1_to_yuv420(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dst, u32 width, u32 height, int yvu);
-		//v4lconvert_se401_to_rgb24(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dest, u32 width, u32 height);
-		//v4lconvert_decode_jpeg_tinyjpeg(struct v4lconvert_data *data, u8 *src, int src_size, u8 *dest, struct v4l2_format *fmt, unsigned int dest_pix_fmt, int flags);
-		//v4lconvert_decode_jpeg_libjpeg(struct v4lconvert_data *data, u8 *src, int src_size, u8 *dest, struct v4l2_format *fmt, unsigned int dest_pix_fmt);
-		//v4lconvert_decode_jpgl(const u8 *src, u32 src_size, unsigned int dest_pix_fmt, u8 *dest, u32 width, u32 height);
-		//v4lconvert_decode_spca561(const u8 *src, u8 *dst, u32 width, u32 height);
-		//v4lconvert_decode_pac207(struct v4lconvert_data *data, const u8 *inp, int src_size, u8 *outp, u32 width, u32 height);
-		//v4lconvert_decode_mr97310a(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dst, u32 width, u32 height);
-		//v4lconvert_decode_jl2005bcd(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dest, u32 width, u32 height);
-		//v4lconvert_bayer_to_rgb24(const u8 *bayer, u8 *rgb, u32 width, u32 height, unsigned int pixfmt);
-		//v4lconvert_bayer_to_bgr24(const u8 *bayer, u8 *rgb, u32 width, u32 height, unsigned int pixfmt);
-		//v4lconvert_bayer_to_yuv420(const u8 *bayer, u8 *yuv, u32 width, u32 height, unsigned int src_pixfmt, int yvu);
-	}
+/**
+ * Every converter, by ID. IDs are known to Java and kept in saved cost tables,
+ * so they must not change; they have gaps, and are looked up rather than used
+ * as indices.
+ */
+static v4lconvert_converter_t v4lconvert_converters[] = {
+	GENERATE_CONVERTER_SD_SF_2F_x4(0, v4lconvert_rgb24_to_yuv420, RGB24, BGR24, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(4, v4lconvert_yuv420_to_rgb24, YUV420, YVU420, RGB24, RGB24),
+	GENERATE_CONVERTER_SDWH_1F_x2(6, v4lconvert_yuv420_to_bgr24, YUV420, YVU420, BGR24, BGR24),
+	GENERATE_CONVERTER_SDWH_0F(8, v4lconvert_yuyv_to_rgb24, YUYV, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(9, v4lconvert_yuyv_to_bgr24, YUYV, BGR24),
+	GENERATE_CONVERTER_SDWH_1F_x2(10, v4lconvert_yuyv_to_yuv420, YUYV, YUYV, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_0F(12, v4lconvert_yvyu_to_rgb24, YVYU, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(13, v4lconvert_yvyu_to_bgr24, YVYU, BGR24),
+	GENERATE_CONVERTER_SDWH_0F(14, v4lconvert_uyvy_to_rgb24, UYVY, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(15, v4lconvert_uyvy_to_bgr24, UYVY, BGR24),
+	GENERATE_CONVERTER_SDWH_1F_x2(16, v4lconvert_uyvy_to_yuv420, UYVY, UYVY, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_0F(18, v4lconvert_swap_rgb, RGB24, BGR24),
+	GENERATE_CONVERTER_SDWH_0F(19, v4lconvert_swap_rgb, BGR24, RGB24),
+	GENERATE_CONVERTER_SD_SF_0F(20, v4lconvert_swap_uv, YUV420, YVU420),
+	GENERATE_CONVERTER_SD_SF_0F(21, v4lconvert_swap_uv, YVU420, YUV420),
+	GENERATE_CONVERTER_SDWH_0F(22, v4lconvert_grey_to_rgb24, GREY, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(23, v4lconvert_grey_to_yuv420, GREY, YUV420),
+	GENERATE_CONVERTER_SDWH_0F(24, v4lconvert_rgb565_to_rgb24, RGB565, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(25, v4lconvert_rgb565_to_bgr24, RGB565, BGR24),
+	GENERATE_CONVERTER_SD_SF_1F_x2(26, v4lconvert_rgb565_to_yuv420, RGB565, RGB565, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(28, v4lconvert_spca501_to_yuv420, SPCA501, SPCA501, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(30, v4lconvert_spca505_to_yuv420, SPCA505, SPCA505, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(32, v4lconvert_spca508_to_yuv420, SPCA508, SPCA508, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(34, v4lconvert_cit_yyvyuy_to_yuv420, CIT_YYVYUY, CIT_YYVYUY, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(36, v4lconvert_konica_yuv420_to_yuv420, KONICA420, KONICA420, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_1F_x2(40, v4lconvert_sn9c20x_to_yuv420, SN9C20X_I420, SN9C20X_I420, YUV420, YVU420),
+	GENERATE_CONVERTER_SDWH_0F(42, v4lconvert_decode_sn9c10x, SN9C10X, SBGGR8),
+	GENERATE_CONVERTER_SDWH_0F(43, v4lconvert_decode_sn9c2028, SN9C2028, SBGGR8),
+	GENERATE_CONVERTER_SDWH_0F(44, v4lconvert_decode_sq905c, SQ905C, SRGGB8),
+	GENERATE_CONVERTER_SDWH_0F(45, v4lconvert_decode_stv0680, STV0680, SRGGB8),
+	GENERATE_CONVERTER_SDWH_0F(46, v4lconvert_hm12_to_rgb24, HM12, RGB24),
+	GENERATE_CONVERTER_SDWH_0F(47, v4lconvert_hm12_to_bgr24, HM12, BGR24),
+	GENERATE_CONVERTER_SDWH_1F_x2(48, v4lconvert_hm12_to_yuv420, HM12, HM12, YUV420, YVU420),
+	GENERATE_CONVERTER_JPEG(50, GREY),
+	GENERATE_CONVERTER_JPEG(51, RGB24),
+	GENERATE_CONVERTER_JPEG(52, YUV420),
+	GENERATE_CONVERTER_JPEG(53, YUYV),
+	GENERATE_CONVERTER_JPEG(54, YVYU),
+	GENERATE_CONVERTER_JPEG(55, UYVY),
+	GENERATE_CONVERTER_JPEG(56, VYUY),
+	GENERATE_CONVERTER_SDWH_1F_x2(57, v4lconvert_nv12_to_rgb24, NV12, NV21, RGB24, RGB24),
+	GENERATE_CONVERTER_SDWH_1F_x2(59, v4lconvert_nv12_to_bgr24, NV12, NV21, BGR24, BGR24),
+	//Needs a palette for M420 (IDs 38 and 39)
+	//v4lconvert_m420_to_yuv420(const u8 *src, u8 *ydest, u32 width, u32 height, bool yvu);
+	//v4lconvert_y10b_to_rgb24(struct v4lconvert_data *data, const u8 *src, u8 *dest, u32 width, u32 height);
+	//v4lconvert_y10b_to_yuv420(struct v4lconvert_data *data, const u8 *src, u8 *dest, u32 width, u32 height);
+	//v4lconvert_cpia1_to_yuv420(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dst, u32 width, u32 height, int yvu);
+	//v4lconvert_se401_to_rgb24(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dest, u32 width, u32 height);
+	//v4lconvert_decode_jpeg_tinyjpeg(struct v4lconvert_data *data, u8 *src, int src_size, u8 *dest, struct v4l2_format *fmt, unsigned int dest_pix_fmt, int flags);
+	//v4lconvert_decode_jpeg_libjpeg(struct v4lconvert_data *data, u8 *src, int src_size, u8 *dest, struct v4l2_format *fmt, unsigned int dest_pix_fmt);
+	//v4lconvert_decode_jpgl(const u8 *src, u32 src_size, unsigned int dest_pix_fmt, u8 *dest, u32 width, u32 height);
+	//v4lconvert_decode_spca561(const u8 *src, u8 *dst, u32 width, u32 height);
+	//v4lconvert_decode_pac207(struct v4lconvert_data *data, const u8 *inp, int src_size, u8 *outp, u32 width, u32 height);
+	//v4lconvert_decode_mr97310a(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dst, u32 width, u32 height);
+	//v4lconvert_decode_jl2005bcd(struct v4lconvert_data *data, const u8 *src, int src_size, u8 *dest, u32 width, u32 height);
+	//v4lconvert_bayer_to_rgb24(const u8 *bayer, u8 *rgb, u32 width, u32 height, unsigned int pixfmt);
+	//v4lconvert_bayer_to_bgr24(const u8 *bayer, u8 *rgb, u32 width, u32 height, unsigned int pixfmt);
+	//v4lconvert_bayer_to_yuv420(const u8 *bayer, u8 *yuv, u32 width, u32 height, unsigned int src_pixfmt, int yvu);
 };
-#define COUNT_PROTOTYPES(type) [v4lconvert_conversion_type_##type] = ARRAY_SIZE(v4lconvert_converter_prototypes[v4lconvert_conversion_type_##type])
-static const size_t v4lconvert_converter_num_prototypes[] = {
-		COUNT_PROTOTYPES(identity),
-		COUNT_PROTOTYPES(imf),
-		COUNT_PROTOTYPES(crop),
-		COUNT_PROTOTYPES(pad),
-		COUNT_PROTOTYPES(scale),
-		COUNT_PROTOTYPES(rotate),
-		COUNT_PROTOTYPES(rotate90),
-		COUNT_PROTOTYPES(rotate180),
-		COUNT_PROTOTYPES(hflip),
-		COUNT_PROTOTYPES(vflip)
-	};
-#undef COUNT_PROTOTYPES
+#define NUM_V4L_CONVERTERS (sizeof(v4lconvert_converters) / sizeof(v4lconvert_converters[0]))
 
 static u32 v4lconvert_encoder_applyIMF_sdwh(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
 static u32 v4lconvert_encoder_applyIMF_sd_sf(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
 static u32 v4lconvert_encoder_encodePixelJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
 static u32 v4lconvert_encoder_encodePlanarJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+static u32 v4lconvert_encoder_encodeTurboJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+static u32 v4lconvert_encoder_encodeStripedJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+
+static u32 v4lconvert_encoder_applyScale(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+static u32 v4lconvert_encoder_applyCrop(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
 
 static int v4lconvert_encoder_releaseIMF(struct v4lconvert_encoder* self);
 static int v4lconvert_encoder_releaseJPEG(struct v4lconvert_encoder* self);
+static int v4lconvert_encoder_releaseStateless(struct v4lconvert_encoder* self);
 static u32 v4lconvert_encoder_series_doConvert(struct v4lconvert_encoder_series* self, struct v4lconvert_buffer* buffer);
-static inline int computeEncoderPath(unsigned int* map, unsigned int* distances, u32 from, u32 to, unsigned int maxIterations);
+static uint64_t v4lconvert_converter_predictCost(const v4lconvert_converter_t* converter, u32 width, u32 height);
+static inline unsigned int computeEncoderPath(u32* map, uint64_t* costs, u32 width, u32 height, u32 from, u32 to, unsigned int maxIterations);
 
 
 static u32 v4lconvert_encoder_applyIMF_sdwh(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
@@ -188,6 +178,71 @@ static u32 v4lconvert_encoder_applyIMF_sdwh(struct v4lconvert_encoder* self, con
 	return self->dst_len;
 }
 
+/**
+ * Get the length of a row of the given format, if it is a packed format
+ * whose rows can be converted independently of each other.
+ * @return length of a row, in bytes, or 0 if the format is planar, compressed,
+ * 		or a Bayer pattern (which is interpolated from the neighbouring rows)
+ */
+static u32 v4lconvert_lineLength(u32 fmt, u32 width) {
+	switch (fmt) {
+		case RGB32:
+		case BGR32:
+			return width * 4;
+		case RGB24:
+		case BGR24:
+			return width * 3;
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY:
+		case RGB555:
+		case RGB555X:
+		case RGB565:
+		case RGB565X:
+		case Y16:
+			return width * 2;
+		case GREY:
+		case RGB332:
+			return width;
+		default:
+			return 0;
+	}
+}
+
+/**
+ * Converts a band of rows with a sdwh converter. The argument is the encoder.
+ */
+static void v4lconvert_encoder_applyIMF_sdwh_band(void* arg, const u8* src, u8* dst, u32 rows) {
+	struct v4lconvert_encoder* self = arg;
+	v4lconvert_converter_t* converter = self->converter;
+	const u32 width = self->src_width;
+	switch (converter->signature) {
+		case v4lconvert_conversion_signature_sdwh_0f:
+			(*converter->target.cvt_sdwh_0f)(src, dst, width, rows);
+			break;
+		case v4lconvert_conversion_signature_sdwh_1f:
+			(*converter->target.cvt_sdwh_1f)(src, dst, width, rows, converter->flag1);
+			break;
+		case v4lconvert_conversion_signature_sdwh_2f:
+			(*converter->target.cvt_sdwh_2f)(src, dst, width, rows, converter->flag1, converter->flag2);
+			break;
+		default:
+			break;
+	}
+}
+
+u32 v4lconvert_encoder_applySliced(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len, unsigned int slices) {
+	if (slices <= 1 || self->apply != v4lconvert_encoder_applyIMF_sdwh || self->src_height != self->dst_height)
+		return self->apply(self, src, dst, src_len);
+	const u32 src_line = v4lconvert_lineLength(self->src_fmt, self->src_width);
+	const u32 dst_line = v4lconvert_lineLength(self->dst_fmt, self->dst_width);
+	if (!src_line || !dst_line)
+		return self->apply(self, src, dst, src_len);
+	v4lconvert_convert_bands(src, src_line, dst, dst_line, self->src_height, slices, v4lconvert_encoder_applyIMF_sdwh_band, self);
+	return self->dst_len;
+}
+
 static u32 v4lconvert_encoder_applyIMF_sd_sf(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
 	UNUSED(src_len);
 	v4lconvert_converter_t* converter = self->converter;
@@ -216,7 +271,7 @@ static u32 v4lconvert_encoder_encodePixelJPEG(struct v4lconvert_encoder* self, c
 	struct jpeg_compress_struct* cinfo = self->jpeg_encode_params.cinfo;
 	if (!cinfo)
 		return 0;
-	jpeg_set_quality(cinfo, self->jpeg_encode_params.quality, TRUE);
+	jpeg_set_quality(cinfo, (int) self->jpeg_encode_params.quality, TRUE);
 	
 	// Configure the output to write to the destination buffer
 	unsigned long dst_lencpy = (unsigned long) self->dst_len;
@@ -247,15 +302,17 @@ static u32 v4lconvert_encoder_encodePixelJPEG(struct v4lconvert_encoder* self, c
 	jpeg_finish_compress(cinfo);
 	
 	// Calculate the length of the resulting JPEG
-	return self->dst_len - cinfo->dest->free_in_buffer;
+	return self->dst_len - (u32) cinfo->dest->free_in_buffer;
 }
 
 static u32 v4lconvert_encoder_encodePlanarJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	UNUSED(src);
+	UNUSED(src_len);
 	struct jpeg_compress_struct* cinfo = self->jpeg_encode_params.cinfo;
 	if (!cinfo)
 		return 0;
 	
-	jpeg_set_quality(cinfo, self->jpeg_encode_params.quality, TRUE);
+	jpeg_set_quality(cinfo, (int) self->jpeg_encode_params.quality, TRUE);
 	
 	// Configure the output to write to the destination buffer
 	unsigned long dst_lencpy = (unsigned long) self->dst_len;
@@ -269,6 +326,133 @@ static u32 v4lconvert_encoder_encodePlanarJPEG(struct v4lconvert_encoder* self,
 	return 0;
 }
 
+/**
+ * v4lconvert_encoder::apply method for encoding to JPEG with TurboJPEG
+ */
+static u32 v4lconvert_encoder_encodeTurboJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	if (src_len < self->src_len)
+		return 0;
+	return (u32) v4lconvert_turbojpeg_encode(self->jpeg_encode_params.turbo, src, self->src_fmt, self->src_width, self->src_height, (int) self->jpeg_encode_params.quality, dst, self->dst_len);
+}
+
+/**
+ * v4lconvert_encoder::apply method for encoding to JPEG in stripes
+ */
+static u32 v4lconvert_encoder_encodeStripedJPEG(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	if (src_len < self->src_len)
+		return 0;
+	return (u32) v4lconvert_jpeg_stripes_encode(self->jpeg_encode_params.stripes, src, (int) self->jpeg_encode_params.quality, dst, self->dst_len);
+}
+
+int v4lconvert_encoder_setJPEGStripes(struct v4lconvert_encoder* encoder, unsigned int stripes) {
+	if (encoder->release != v4lconvert_encoder_releaseJPEG || stripes < 1)
+		return EXIT_FAILURE;
+	struct v4lconvert_jpeg_stripes* compressor = NULL;
+	if (stripes > 1 && !(compressor = v4lconvert_jpeg_stripes_create(encoder->src_fmt, encoder->src_width, encoder->src_height, stripes)))
+		return EXIT_FAILURE;
+	if (encoder->jpeg_encode_params.stripes)
+		v4lconvert_jpeg_stripes_destroy(encoder->jpeg_encode_params.stripes);
+	else
+		encoder->jpeg_encode_params.apply_whole = encoder->apply;
+	encoder->jpeg_encode_params.stripes = compressor;
+	encoder->apply = compressor ? v4lconvert_encoder_encodeStripedJPEG : encoder->jpeg_encode_params.apply_whole;
+	return EXIT_SUCCESS;
+}
+
+/**
+ * v4lconvert_encoder::apply method for scaling, fused with a conversion to
+ * RGB if the formats differ
+ */
+static u32 v4lconvert_encoder_applyScale(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	UNUSED(src_len);
+	const u32 sw = self->src_width;
+	const u32 sh = self->src_height;
+	const u32 dw = self->dst_width;
+	const u32 dh = self->dst_height;
+	const enum v4lconvert_scale_filter filter = self->scale_params.filter;
+	const bool bgr = self->dst_fmt == BGR24;
+	int result;
+	switch (self->src_fmt) {
+		case RGB24:
+		case BGR24:
+			result = v4lconvert_scale_packed(src, sw, sh, dst, dw, dh, 3, filter);
+			break;
+		case RGB32:
+		case BGR32:
+			result = v4lconvert_scale_packed(src, sw, sh, dst, dw, dh, 4, filter);
+			break;
+		case GREY:
+			result = v4lconvert_scale_packed(src, sw, sh, dst, dw, dh, 1, filter);
+			break;
+		case YUYV:
+		case YVYU:
+			if (self->dst_fmt == self->src_fmt)
+				result = v4lconvert_scale_yuyv(src, sw, sh, dst, dw, dh, true, filter);
+			else
+				result = v4lconvert_yuyv_to_rgb24_scaled(src, sw, sh, dst, dw, dh, bgr, filter);
+			break;
+		case UYVY:
+		case VYUY:
+			if (self->dst_fmt == self->src_fmt)
+				result = v4lconvert_scale_yuyv(src, sw, sh, dst, dw, dh, false, filter);
+			else
+				result = v4lconvert_uyvy_to_rgb24_scaled(src, sw, sh, dst, dw, dh, bgr, filter);
+			break;
+		case YUV420:
+		case YVU420:
+			if (self->dst_fmt == self->src_fmt)
+				result = v4lconvert_scale_yuv420(src, sw, sh, dst, dw, dh, filter);
+			else
+				result = v4lconvert_yuv420_to_rgb24_scaled(src, sw, sh, dst, dw, dh, bgr, self->src_fmt == YVU420, filter);
+			break;
+		default:
+			return 0;
+	}
+	return result == EXIT_SUCCESS ? self->dst_len : 0;
+}
+
+/**
+ * Whether v4lconvert_encoder_applyScale() can scale from one format to the
+ * other. Formats are kept, except for YUYV, UYVY and YUV420, which can also
+ * be converted to RGB24 or BGR24 while scaling.
+ */
+static bool v4lconvert_canScale(u32 src_fmt, u32 dst_fmt) {
+	switch (src_fmt) {
+		case RGB24:
+		case BGR24:
+		case RGB32:
+		case BGR32:
+		case GREY:
+			return dst_fmt == src_fmt;
+		case YUYV:
+		case UYVY:
+		case YUV420:
+		case YVU420:
+			return dst_fmt == src_fmt || dst_fmt == RGB24 || dst_fmt == BGR24;
+		case YVYU:
+		case VYUY:
+			//The fused converters only know where U comes before V
+			return dst_fmt == src_fmt;
+		default:
+			return false;
+	}
+}
+
+/**
+ * v4lconvert_encoder::apply method copying a region of the frame. The region
+ * is read once, so that it can be moved while frames are being converted.
+ */
+static u32 v4lconvert_encoder_applyCrop(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	UNUSED(src_len);
+	const u32 left = (u32) self->crop_params.left;
+	const u32 top = (u32) self->crop_params.top;
+	if (self->src_fmt == YUV420 || self->src_fmt == YVU420)
+		v4lconvert_crop_yuv420_region(src, dst, self->src_width, self->src_height, left, top, self->dst_width, self->dst_height);
+	else
+		v4lconvert_crop_packed(src, dst, v4lconvert_lineLength(self->src_fmt, self->src_width), v4lconvert_lineLength(self->src_fmt, 1), left, top, self->dst_width, self->dst_height);
+	return self->dst_len;
+}
+
 static int v4lconvert_encoder_releaseIMF(struct v4lconvert_encoder* self) {
 	switch (self->converter->signature) {
 		case v4lconvert_conversion_signature_sdwh_0f:
@@ -290,6 +474,14 @@ static int v4lconvert_encoder_releaseIMF(struct v4lconvert_encoder* self) {
 }
 
 static int v4lconvert_encoder_releaseJPEG(struct v4lconvert_encoder* self) {
+	if (self->jpeg_encode_params.stripes) {
+		v4lconvert_jpeg_stripes_destroy(self->jpeg_encode_params.stripes);
+		self->jpeg_encode_params.stripes = NULL;
+	}
+	if (self->jpeg_encode_params.turbo) {
+		v4lconvert_turbojpeg_destroy(self->jpeg_encode_params.turbo);
+		self->jpeg_encode_params.turbo = NULL;
+	}
 	if (self->jpeg_encode_params.cinfo) {
 		jpeg_destroy_compress(self->jpeg_encode_params.cinfo);
 		free(self->jpeg_encode_params.cinfo);
@@ -302,6 +494,16 @@ static int v4lconvert_encoder_releaseJPEG(struct v4lconvert_encoder* self) {
 	return EXIT_SUCCESS;
 }
 
+/**
+ * v4lconvert_encoder::release method for encoders that hold nothing but
+ * their parameters, such as scalers (which allocate their scratch memory per
+ * frame) and croppers
+ */
+static int v4lconvert_encoder_releaseStateless(struct v4lconvert_encoder* self) {
+	UNUSED(self);
+	return EXIT_SUCCESS;
+}
+
 u32 v4lconvert_estimateBufferSize(u32 fmt, u32 width, u32 height) {
 	u32 pixels = width * height;
 	switch (fmt) {
@@ -377,6 +579,8 @@ int v4lconvert_encoder_initWithConverter(struct v4lconvert_encoder* encoder, v4l
 		case v4lconvert_conversion_signature_unset:
 			break;
 		case v4lconvert_conversion_signature_sdwh_0f:
+		case v4lconvert_conversion_signature_sdwh_1f:
+		case v4lconvert_conversion_signature_sdwh_2f:
 			encoder->apply = v4lconvert_encoder_applyIMF_sdwh;
 			encoder->release = v4lconvert_encoder_releaseIMF;
 			break;
@@ -385,25 +589,16 @@ int v4lconvert_encoder_initWithConverter(struct v4lconvert_encoder* encoder, v4l
 		case v4lconvert_conversion_signature_sd_sf_2f:
 			encoder->apply = v4lconvert_encoder_applyIMF_sd_sf;
 			encoder->release = v4lconvert_encoder_releaseIMF;
-			if (!(encoder->imf_v4l2_src_fmt = malloc(sizeof(struct v4l2_format))))
+			if (!(encoder->imf_v4l2_src_fmt = calloc(1, sizeof(struct v4l2_format))))
 				return EXIT_FAILURE;
-			//TODO finish
-			switch (encoder->imf_v4l2_src_fmt->type) {
-				case V4L2_BUF_TYPE_VIDEO_CAPTURE:
-					encoder->imf_v4l2_src_fmt->fmt.pix.width = width;
-					encoder->imf_v4l2_src_fmt->fmt.pix.height = height;
-					break;
-				case V4L2_BUF_TYPE_VIDEO_CAPTURE_MPLANE:
-					encoder->imf_v4l2_src_fmt->fmt.pix_mp.width = width;
-					encoder->imf_v4l2_src_fmt->fmt.pix_mp.height = height;
-					break;
-				case V4L2_BUF_TYPE_VIDEO_OVERLAY:
-				case V4L2_BUF_TYPE_VBI_CAPTURE:
-				case V4L2_BUF_TYPE_SLICED_VBI_CAPTURE:
-					//Not sure how to handle these
-				default:
-					return EXIT_FAILURE;
-			}
+			//Frames are packed without padding, as V4L2 lays them out
+			encoder->imf_v4l2_src_fmt->type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
+			encoder->imf_v4l2_src_fmt->fmt.pix.width = width;
+			encoder->imf_v4l2_src_fmt->fmt.pix.height = height;
+			encoder->imf_v4l2_src_fmt->fmt.pix.pixelformat = libvideo_palettes[converter->src_fmt].v4l2_palette;
+			//Planar formats give the stride of their luma plane
+			encoder->imf_v4l2_src_fmt->fmt.pix.bytesperline = v4lconvert_lineLength(converter->src_fmt, width) ?: width;
+			encoder->imf_v4l2_src_fmt->fmt.pix.sizeimage = v4lconvert_estimateBufferSize(converter->src_fmt, width, height);
 			break;
 		case v4lconvert_conversion_signature_special:
 			//This gets tricky
@@ -414,6 +609,16 @@ int v4lconvert_encoder_initWithConverter(struct v4lconvert_encoder* encoder, v4l
 				
 				//Default to quality of 100%
 				encoder->jpeg_encode_params.quality = 100;
+				encoder->jpeg_encode_params.cinfo = NULL;
+				encoder->jpeg_encode_params.cerr = NULL;
+				encoder->jpeg_encode_params.turbo = NULL;
+				encoder->jpeg_encode_params.stripes = NULL;
+				
+				if (v4lconvert_jpeg_get_backend() == V4LCONVERT_JPEG_TURBOJPEG && v4lconvert_turbojpeg_supports(converter->src_fmt)
+						&& (encoder->jpeg_encode_params.turbo = v4lconvert_turbojpeg_create())) {
+					encoder->apply = v4lconvert_encoder_encodeTurboJPEG;
+					break;
+				}
 				
 				//Create jpeg encoder
 				if (!(encoder->jpeg_encode_params.cinfo = malloc(sizeof(struct jpeg_compress_struct))))
@@ -489,303 +694,116 @@ int v4lconvert_encoder_initForIMF(struct v4lconvert_encoder* encoder, u32 src_fm
 	return v4lconvert_encoder_initWithConverter(encoder, converter, width, height);
 }
 
-static unsigned int binaryGcd(unsigned int a, unsigned int b) {
-	if (a == 0)
-		return b;
-	if (b == 0)
-		return a;
-	int shift;
-	for (shift = 0; ((a | b) & 1) == 0; shift++) {
-		a >>= 1;
-		b >>= 1;
-	}
-	while ((a & 1) == 0)
-		a >>= 1;
-	do {
-		while ((b & 1) == 0)
-			b >>= 1;
-		if (a > b) {
-			unsigned int tmp = a;
-			a = b;
-			b = tmp;
-		}
-		v -= u;
-	} while (v);
-	return u << shift;
-}
-
-static size_t lookupPrototype(v4lconvert_conversion_type type, u32 src_fmt) {
-	size_t min = 0;
-	size_t max = v4lconvert_converter_num_prototypes[v4lconvert_conversion_type_rotate];
-	//Binary search
+int v4lconvert_encoder_initForScale(struct v4lconvert_encoder* encoder, u32 src_fmt, u32 dst_fmt, u32 src_width, u32 src_height, u32 dst_width, u32 dst_height, enum v4lconvert_scale_filter filter) {
+	if (!encoder || !v4lconvert_canScale(src_fmt, dst_fmt))
+		return EXIT_FAILURE;
+	if (!src_width || !src_height || !dst_width || !dst_height)
+		return EXIT_FAILURE;
+	if (filter != V4LCONVERT_SCALE_BOX && filter != V4LCONVERT_SCALE_BILINEAR)
+		return EXIT_FAILURE;
+	//Chroma is shared by pairs of pixels, or 2x2 blocks for YUV420
+	bool packed422 = src_fmt == YUYV || src_fmt == YVYU || src_fmt == UYVY || src_fmt == VYUY;
+	bool planar420 = src_fmt == YUV420 || src_fmt == YVU420;
+	if ((packed422 || planar420) && (src_width & 1))
+		return EXIT_FAILURE;
+	if (planar420 && (src_height & 1))
+		return EXIT_FAILURE;
+	if (src_fmt == dst_fmt && ((packed422 && (dst_width & 1)) || (planar420 && ((dst_width | dst_height) & 1))))
+		return EXIT_FAILURE;
 	
-	for (unsigned int i = 0; i < , i++) {
-		v4lconvert_converter_prototype* prototype = &v4lconvert_converter_prototypes[v4lconvert_conversion_type_rotate][i];
-		if (prototype->src_fmt == current_fmt) {
-			struct v4l2_format targetFormat;
-			node* target = malloc()
-			target->cost = current->cost + prototype->estimateCost(prototype, currentSourceFormat, ...);
-			target->prev = current_idx;
-		}
-	}
-	return NULL;
+	//Scalers aren't in the converter table, and have no ID
+	encoder->converter = NULL;
+	encoder->src_fmt = src_fmt;
+	encoder->dst_fmt = dst_fmt;
+	encoder->src_width = src_width;
+	encoder->src_height = src_height;
+	encoder->dst_width = dst_width;
+	encoder->dst_height = dst_height;
+	encoder->apply = v4lconvert_encoder_applyScale;
+	encoder->release = v4lconvert_encoder_releaseStateless;
+	encoder->scale_params.filter = filter;
+	encoder->src_len = v4lconvert_estimateBufferSize(src_fmt, src_width, src_height);
+	encoder->dst_len = v4lconvert_estimateBufferSize(dst_fmt, dst_width, dst_height);
+	return EXIT_SUCCESS;
 }
-struct node_s;
-typedef struct node_s node;
-struct node_s {
-	/**
-	 * Total cost to get to the current node.
-	 * 0 if undefined (infinity)
-	 */
-	size_t cost;
-	u32 fmt;
-	unsigned int flags;
-	node* path_prev;
-	v4lconvert_converter_prototype* prototype;
-	node* list_next;
-};
-static void addNode(node** list, size_t cost, u32 fmt, unsigned int flags, node* path_prev, v4lconvert_converter_prototype* prototype) {
-	node* node = (node*) malloc(sizeof(node));
-	node->cost = cost;
-	node->fmt = fmt;
-	node->flags = flags;
-	node->path_prev = path_prev;
-	node->prototype = prototype;
-	node* current = *list;
-	if (!current) {
-		*list = node;
-		return;
-	}
-	node* next = realList->next;
-	while (next) {
-		current = next;
-		//TODO finish here
-	}
-	current->list_next = node;
-}
-static size_t v4lconvert_encoder_series_computeConverters(v4lconvert_converter*** converters, struct v4lconvert_conversion_request* request, char** errmsg) {
-	#define FAIL(msg) do {\
-			if (errmsg) \
-				*errmsg = msg;\
-		} while (0);
-	unsigned int rotation;
-	{
-		int _rotation = request->rotation % 360;
-		rotation = (unsigned) (_rotation > 0 ? _rotation : (_rotation + 360));
-	}
-	
-	bool flipHorizontal = request->flipHorizontal;
-	bool flipVertical = request->flipVertical;
-	
-	if ((request->rotation % 180) == 0 && flipHorizontal && flipVertical) {
-		request->rotation = (request->rotation + 180) % 180;
-		flipHorizontal = false;
-		flipVertical = false;
-	}
-	
-	dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, "Final rotation: %u\n", rotation);
-	
-	unsigned int scaleNumerator = request->scaleNumerator;
-	unsigned int scaleDenominator = request->scaleDenominator;
-	{
-		unsigned int gcd = binaryGcd(scaleNumerator, scaleDenominator);
-		scaleNumerator /= gcd;
-		scaleDenominator /= gcd;
-		if (scaleNumerator == 0 || scaleDenominator == 0) {
-			FAIL("Scalar must be nonzero");
-			return 0;
-		}
-	}
-	
-	u32 src_fmt, dst_fmt;
-	unsigned int src_width, dst_width, src_height, dst_height;
-	//TODO populate values
-	
-	//Calculate the size of the image after scaling
-	unsigned int scaled_width = src_width * scaleNumerator / scaleDenominator;
-	unsigned int scaled_height = src_height * scaleNumerator / scaleDenominator
-	
-	
-	//Compute crop/pad offsets, in pixels from the edge (going in)
-	//Cropping is applied AFTER scaling.
-	signed int top_offset = request->top_offset;
-	signed int left_offset = request->left_offset;
-	signed int right_offset = dst_width - ((signed) scaled_width - left_offset);
-	signed int bottom_offset = dst_height - ((signed) scaled_height - top_offset);
-	
-	
-	//Create flags. This is to save space, b/c we won't need all of them every time
-	unsigned int shift = 0;
-	const unsigned int closed_mask = 1;
-	
-	unsigned int rotate_mask = 0;
-	if (rotation != 0)
-		rotate_mask = 1 << ++shift;
-	
-	unsigned int scale_mask = 0;
-	if (scaleNumerator != scaleDenominator)
-		scale_mask = 1 << ++shift;
-	
-	unsigned int crop_mask = 0;
-	if (top_offset || left_offset || right_offset || bottom_offset)
-		crop_mask = 1 << ++shift;
-	
-	unsigned int hflip_mask = 0;
-	if (flipHorizontal)
-		hflip_mask = 1 << ++shift;
-	
-	unsigned int vflip_mask = 0;
-	if (flipVertical)
-		vflip_mask = 1 << ++shift;
-	
-	//Sanity check for odd processors with small word sizes
-	if (sizeof(unsigned int) * 8 < shift) {
-		//We have too many flags to fit in a word.
-		FAIL("Word size is too small");
-		return 0;
-	}
-	
-	if (shift == 0 && src_fmt == dst_fmt) {
-		//No transformations needed. Find an identity method
-		dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, "Finding identity transformation\n");
-		v4lconvert_converter_prototype* identityPrototype = lookupPrototype(v4lconvert_conversion_type_identity, request->src_fmt, request->dst_fmt);
-		if (!identityPrototype) {
-			FAIL("Unable to lookup identity prototype");
-			return 0;
-		}
-		v4lconvert_converter* identityConverter = identityPrototype->init(identityPrototype, request->src_fmt, request->dst_fmt, 0, NULL, errmsg);
-		if (!identityConverter)
-			//Error message passed by init()
-			return 0;
-		*converters = calloc(1, sizeof(v4lconvert_converter*));
-		if (*converters == NULL) {
-			FAIL("Error allocating memory");
-			return 0;
-		}
-		(*converters)[0] = identityConverter;
-		return 1;
-	}
-	
-	//Let's do an A* search now
-	
-	//Number of tiers needed
-	const size_t numTiers = 1 << shift;
-	//Size of each tier (# of nodes/tier)
-	const size_t tierSize = libvideo_palettes_size;
-	
-	node** nodes = calloc(numTiers, sizeof(node*));
-	
-	//Get the origin node
-	node* startNode = malloc(sizeof(node));
-	startNode->cost = 1;
-	startNode->fmt = src_fmt;
-	startNode->flags = rotate_mask | scale_mask | crop_mask | hflip_mask | vflip_mask;
-	startNode->path_prev = NULL;
-	startNode->prototype = NULL;
-	startNode->list_prev = NULL;
-	startNode->list_next = NULL;
-	
-	node* queue = startNode;
-	
-	//Whether anything happened in this iteration
-	while (queue) {
-		//Pop a node from the queue
-		node* current = queue;
-		
-		if (current->flags & ~closed_mask == 0 && current->fmt == dst_fmt) {
-			//We found a viable path
+
+/**
+ * Whether regions of frames of the given format must start and end on even
+ * columns (and rows), so as not to split the chroma samples shared by pairs
+ * of pixels (or 2x2 blocks)
+ */
+static void v4lconvert_cropAlignment(u32 fmt, u32* x_align, u32* y_align) {
+	switch (fmt) {
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY:
+			*x_align = 2;
+			*y_align = 1;
+			break;
+		case YUV420:
+		case YVU420:
+			*x_align = 2;
+			*y_align = 2;
+			break;
+		default:
+			*x_align = 1;
+			*y_align = 1;
 			break;
-		}
-		//Move the queue up
-		queue = queue->next;
-		
-		//Calculate what the format should be passing through this node
-		struct v4l2_format currentSourceFormat;
-		//TODO finish
-		
-		if (current_tier & rotate_mask) {
-			//Look for rotations
-			size_t newTierOffset = (current_tier & ~rotate_mask) * tierSize;
-			for (unsigned int i = 0; i < v4lconvert_converter_num_prototypes[v4lconvert_conversion_type_rotate], i++) {
-				v4lconvert_converter_prototype* prototype = &v4lconvert_converter_prototypes[v4lconvert_conversion_type_rotate][i];
-				if (prototype->src_fmt == current_fmt) {
-					struct v4l2_format targetFormat;
-					node* target = malloc()
-					target->cost = current->cost + prototype->estimateCost(prototype, currentSourceFormat, ...);
-					target->prev = current_idx;
-				}
-			}
-		} else {
-			//Look for flips
-			if (current_tier & hflip_mask) {
-				size_t newTierOffset = (current_tier & ~hflip_mask) * tierSize;
-				for (unsigned int i = 0; i < v4lconvert_converter_num_prototypes[v4lconvert_conversion_type_hflip], i++) {
-					v4lconvert_converter_prototype* prototype = &v4lconvert_converter_prototypes[v4lconvert_conversion_type_hflip][i];
-					if (prototype->src_fmt == current_fmt) {
-						node* target = &nodes[newTierOffset + prototyper->dst_fmt];
-						target->cost = current->cost + prototype->estimateCost(prototype, ...);
-						target->prev = current_idx;
-					}
-				}
-			}
-			if (current_tier & vflip_mask) {
-				size_t newTierOffset = (current_tier & ~vflip_mask) * tierSize;
-				for (unsigned int i = 0; i < v4lconvert_converter_num_prototypes[v4lconvert_conversion_type_vflip], i++) {
-					v4lconvert_converter_prototype* prototype = &v4lconvert_converter_prototypes[v4lconvert_conversion_type_vflip][i];
-					if (prototype->src_fmt == current_fmt) {
-						node* target = &nodes[newTierOffset + prototyper->dst_fmt];
-						target->cost = current->cost + prototype->estimateCost(prototype, ...);
-						target->prev = current_idx;
-					}
-				}
-			}
-			if ((current_tier & hflip_mask) && (current_tier & vflip_mask)) {
-				//180deg rotation is the same as hflip + vflip
-				size_t newTierOffset = (current_tier & ~hflip_mask & ~vflip_mask) * tierSize;
-				for (unsigned int i = 0; i < v4lconvert_converter_num_prototypes[v4lconvert_conversion_type_rotate180], i++) {
-					v4lconvert_converter_prototype* prototype = &v4lconvert_converter_prototypes[v4lconvert_conversion_type_rotate180][i];
-					if (prototype->src_fmt == current_fmt) {
-						node* target = &nodes[newTierOffset + prototyper->dst_fmt];
-						target->cost = current->cost + prototype->estimateCost(prototype, ...);
-						target->prev = current_idx;
-					}
-				}
-			}
-		}
-		if (current_tier & scale_mask) {
-			
-		} else if (current_tier & crop_mask) {
-			
-		}
-		//Look for IMF conversions
-		
 	}
-	
-	//TODO finish
-	
-	return 0;
-	#undef FAIL
 }
 
+int v4lconvert_encoder_initForCrop(struct v4lconvert_encoder* encoder, u32 fmt, u32 src_width, u32 src_height, u32 left, u32 top, u32 width, u32 height) {
+	//Planar formats other than YUV420 aren't supported yet
+	if (!encoder || (!v4lconvert_lineLength(fmt, 1) && fmt != YUV420 && fmt != YVU420))
+		return EXIT_FAILURE;
+	u32 x_align, y_align;
+	v4lconvert_cropAlignment(fmt, &x_align, &y_align);
+	if (!width || !height || width > src_width || height > src_height || width % x_align || height % y_align || src_width % x_align || src_height % y_align)
+		return EXIT_FAILURE;
+	
+	//Croppers aren't in the converter table, and have no ID
+	encoder->converter = NULL;
+	encoder->src_fmt = fmt;
+	encoder->dst_fmt = fmt;
+	encoder->src_width = src_width;
+	encoder->src_height = src_height;
+	encoder->dst_width = width;
+	encoder->dst_height = height;
+	encoder->apply = v4lconvert_encoder_applyCrop;
+	encoder->release = v4lconvert_encoder_releaseStateless;
+	encoder->src_len = v4lconvert_estimateBufferSize(fmt, src_width, src_height);
+	encoder->dst_len = v4lconvert_estimateBufferSize(fmt, width, height);
+	encoder->crop_params.left = 0;
+	encoder->crop_params.top = 0;
+	if (v4lconvert_encoder_setCropOffset(encoder, left, top) != EXIT_SUCCESS)
+		return EXIT_FAILURE;
+	return EXIT_SUCCESS;
+}
 
-bool v4lconvert_encoder_series_create(struct v4lconvert_encoder_series* self, struct v4lconvert_conversion_request* request, char** errmsg) {
-	size_t num_converters = v4lconvert_encoder_series_computeConverters(&self->converters, request, errmsg);
-	if (num_converters == 0)
-		return false;
-	self->num_converters = num_converters;
-	self->convert = v4lconvert_encoder_series_doConvert;
-	self->release = v4lconvert_encoder_series_doRelease;
-	self->src_fmt = self->converters[0]->prototype->src_fmt;
-	self->dst_fmt = self->converters[num_converters - 1]->prototype->dst_fmt;
-	//TODO finish src_len/dst_len
-	return true;
+int v4lconvert_encoder_setCropOffset(struct v4lconvert_encoder* encoder, u32 left, u32 top) {
+	if (encoder->apply != v4lconvert_encoder_applyCrop)
+		return EXIT_FAILURE;
+	if (left > encoder->src_width - encoder->dst_width || top > encoder->src_height - encoder->dst_height)
+		return EXIT_FAILURE;
+	u32 x_align, y_align;
+	v4lconvert_cropAlignment(encoder->src_fmt, &x_align, &y_align);
+	encoder->crop_params.left = (signed int) (left - left % x_align);
+	encoder->crop_params.top = (signed int) (top - top % y_align);
+	return EXIT_SUCCESS;
 }
 
 static bool v4lconvert_encoder_series_doRelease(struct v4lconvert_encoder_series* self) {
 	if (self != NULL) {
 		if (self->encoders) {
-			for (unsigned i = 0; i < self->num_encoders; i++)
-				free(self->encoders[i]);
+			if (self->owns_encoders) {
+				for (unsigned i = 0; i < self->num_encoders; i++) {
+					struct v4lconvert_encoder* encoder = self->encoders[i];
+					if (encoder && encoder->release)
+						encoder->release(encoder);
+					free(encoder);
+				}
+			}
 			free(self->encoders);
 			self->encoders = NULL;
 		}
@@ -793,52 +811,109 @@ static bool v4lconvert_encoder_series_doRelease(struct v4lconvert_encoder_series
 	return true;
 }
 
+/**
+ * Whether the given stage of a series writes its output to buf1 (rather than
+ * buf2). Stages alternate between the two buffers, so that each stage reads
+ * from a different buffer than it writes to, and the last stage writes to buf1.
+ */
+static inline bool v4lconvert_encoder_series_writesBuf1(const struct v4lconvert_encoder_series* self, size_t stage) {
+	return ((self->num_encoders - 1 - stage) & 1) == 0;
+}
+
 static u32 v4lconvert_encoder_series_doConvert(struct v4lconvert_encoder_series* self, struct v4lconvert_buffer* buffer) {
-	struct v4lconvert_encoder* encoder = self->encoders[0];
-	u8* bufA;
-	u8* bufB;
-	if (self->num_encoders & 1) {
-		bufA = buffer->buf1;
-		bufB = buffer->buf2;
-	} else {
-		bufA = buffer->buf2;
-		bufB = buffer->buf1;
-	}
+	const u8* src = buffer->buf0;
 	u32 src_len = buffer->buf0_len;
-	if ((src_len = encoder->apply(encoder, buffer->buf0, buffer->buf0, src_len)) == 0)
-		return 0;
-	for (unsigned int i = 1; i < (self->num_encoders / 2) * 2; i++) {
-		encoder = self->encoders[i];
-		if ((src_len = encoder->apply(encoder, bufA, bufB, src_len)) == 0)
-			return 0;
-		encoder = self->encoders[++i];
-		if ((src_len = encoder->apply(encoder, bufB, bufA, src_len)) == 0)
+	for (size_t i = 0; i < self->num_encoders; i++) {
+		struct v4lconvert_encoder* encoder = self->encoders[i];
+		u8* dst = v4lconvert_encoder_series_writesBuf1(self, i) ? buffer->buf1 : buffer->buf2;
+		if ((src_len = v4lconvert_encoder_applySliced(encoder, src, dst, src_len, self->slices)) == 0)
 			return 0;
+		src = dst;
 	}
-	if (self->num_encoders & 1)
-		return src_len;
-	encoder = self->encoders[self->num_encoders - 1];
-	return buffer->buf1_len = encoder->apply(encoder, bufA, buffer->buf1, src_len);
+	return buffer->buf1_len = src_len;
 }
 
-int v4lconvert_encoder_series_createBuffers(struct v4lconvert_encoder_series* series, u32 num_buffers, struct v4lconvert_buffer** buffers, int allocate) {
-	u32 bufA_len = 0;
-	u32 bufB_len = 0;
-	for (unsigned int i = 0; i < (series->num_encoders / 2) * 2; i += 2) {
-		u32 size = series->encoders[i]->dst_len;
-		if (size > bufB_len)
-			bufB_len = size;
-		size = series->encoders[i + 1]->dst_len;
-		if (size > bufA_len)
-			bufA_len = size;
+/**
+ * Fills in the fields of a series whose encoders have been set
+ */
+static int v4lconvert_encoder_series_finishInit(struct v4lconvert_encoder_series* self) {
+	struct v4lconvert_encoder* first = self->encoders[0];
+	struct v4lconvert_encoder* last = self->encoders[self->num_encoders - 1];
+	self->convert = v4lconvert_encoder_series_doConvert;
+	self->release = v4lconvert_encoder_series_doRelease;
+	self->src_fmt = first->src_fmt;
+	self->dst_fmt = last->dst_fmt;
+	self->src_len = first->src_len;
+	self->dst_len = last->dst_len;
+	self->converters = NULL;
+	self->num_converters = 0;
+	self->slices = 1;
+	self->predicted_cost = 0;
+	for (size_t i = 0; i < self->num_encoders; i++) {
+		struct v4lconvert_encoder* encoder = self->encoders[i];
+		if (encoder->converter)
+			self->predicted_cost += v4lconvert_converter_predictCost(encoder->converter, encoder->src_width, encoder->src_height);
 	}
-	
-	if (series->num_encoders & 1) {
-		u32 tmp = bufA_len;
-		u32 endsize = series->encoders[series->num_encoders - 1]->dst_len;
-		bufA_len = bufB_len > endsize ? bufB_len : endsize;
-		bufB_len = tmp;
+	return EXIT_SUCCESS;
+}
+
+int v4lconvert_encoder_series_init(struct v4lconvert_encoder_series* self, u32 width, u32 height, u32 numConverters, u32* converterIds) {
+	if (numConverters == 0)
+		return EXIT_FAILURE;
+	if (!(self->encoders = calloc(numConverters, sizeof(struct v4lconvert_encoder*))))
+		return EXIT_FAILURE;
+	self->num_encoders = numConverters;
+	self->owns_encoders = true;
+	for (u32 i = 0; i < numConverters; i++) {
+		v4lconvert_converter_t* converter = v4lconvert_converter_getConverterById(converterIds[i]);
+		struct v4lconvert_encoder* encoder = calloc(1, sizeof(struct v4lconvert_encoder));
+		self->encoders[i] = encoder;
+		if (!converter || !encoder || v4lconvert_encoder_initWithConverter(encoder, converter, width, height) != EXIT_SUCCESS) {
+			v4lconvert_encoder_series_doRelease(self);
+			return EXIT_FAILURE;
+		}
+		//The next stage gets whatever size this one outputs
+		width = encoder->dst_width;
+		height = encoder->dst_height;
+	}
+	return v4lconvert_encoder_series_finishInit(self);
+}
+
+int v4lconvert_encoder_series_initWithEncoders(struct v4lconvert_encoder_series* self, u32 numEncoders, struct v4lconvert_encoder** encoders) {
+	if (numEncoders == 0)
+		return EXIT_FAILURE;
+	for (u32 i = 0; i < numEncoders; i++) {
+		if (!encoders[i] || !encoders[i]->apply)
+			return EXIT_FAILURE;
+		if (i > 0) {
+			struct v4lconvert_encoder* prev = encoders[i - 1];
+			if (prev->dst_fmt != encoders[i]->src_fmt || prev->dst_width != encoders[i]->src_width || prev->dst_height != encoders[i]->src_height)
+				return EXIT_FAILURE;
+		}
+	}
+	if (!(self->encoders = calloc(numEncoders, sizeof(struct v4lconvert_encoder*))))
+		return EXIT_FAILURE;
+	memcpy(self->encoders, encoders, numEncoders * sizeof(struct v4lconvert_encoder*));
+	self->num_encoders = numEncoders;
+	self->owns_encoders = false;
+	return v4lconvert_encoder_series_finishInit(self);
+}
+
+void v4lconvert_encoder_series_getBufferSizes(const struct v4lconvert_encoder_series* series, u32* buf1_len, u32* buf2_len) {
+	*buf1_len = 0;
+	*buf2_len = 0;
+	for (size_t i = 0; i < series->num_encoders; i++) {
+		u32 size = series->encoders[i]->dst_len;
+		u32* len = v4lconvert_encoder_series_writesBuf1(series, i) ? buf1_len : buf2_len;
+		if (size > *len)
+			*len = size;
 	}
+}
+
+int v4lconvert_encoder_series_createBuffers(struct v4lconvert_encoder_series* series, u32 num_buffers, struct v4lconvert_buffer** buffers, int allocate) {
+	u32 bufA_len;
+	u32 bufB_len;
+	v4lconvert_encoder_series_getBufferSizes(series, &bufA_len, &bufB_len);
 	
 	for (unsigned i = 0; i < num_buffers; i++) {
 		struct v4lconvert_buffer* buffer = buffers[i];
@@ -852,13 +927,14 @@ int v4lconvert_encoder_series_createBuffers(struct v4lconvert_encoder_series* se
 		buffer->buf0_len = 0;
 		buffer->buf1_len = 0;
 		buffer->buf0_cap = series->encoders[0]->src_len;
-		buffer->buf1_cap = buffer->buf1_len = bufA_len;
+		buffer->buf1_cap = bufA_len;
 		buffer->buf2_cap = bufB_len;
 		if (allocate) {
 			//Don't allocate buf0, because it might be used by the 
 			buffer->buf1 = calloc(buffer->buf1_cap, sizeof(u8*));
-			buffer->buf2 = calloc(buffer->buf2_cap, sizeof(u8*));
-			if (!buffer->buf1 || !buffer->buf2) {
+			//Single stage series don't need an intermediate buffer
+			buffer->buf2 = buffer->buf2_cap ? calloc(buffer->buf2_cap, sizeof(u8*)) : NULL;
+			if (!buffer->buf1 || (buffer->buf2_cap && !buffer->buf2)) {
 				free(buffer->buf1);
 				free(buffer->buf2);
 				buffer->buf1 = NULL;
@@ -902,62 +978,333 @@ int v4lconvert_buffer_release(struct v4lconvert_buffer* buffer) {
 	return EXIT_SUCCESS;
 }
 
-static inline int computeEncoderPath(unsigned int* map, unsigned int* distances, u32 from, u32 to, unsigned int maxIterations) {
-	distances[to] = 1;
-	// Variation of Dijkstra's Algorithm, where each distance is 1
-	// Works backwards from the 'to' format to the 'from' format
-	for (unsigned int i = 0; i < maxIterations; i++) {
-		int progress = 0;
-		for (unsigned int j = 0; j < NUM_V4L_CONVERTERS; j++) {
+int v4lconvert_encoder_fanout_init(struct v4lconvert_encoder_fanout* self, u32 numEncoders, struct v4lconvert_encoder** encoders, const int* parents) {
+	memset(self, 0, sizeof(struct v4lconvert_encoder_fanout));
+	if (numEncoders == 0 || !encoders[0])
+		return EXIT_FAILURE;
+	self->src_fmt = encoders[0]->src_fmt;
+	self->src_width = encoders[0]->src_width;
+	self->src_height = encoders[0]->src_height;
+	self->src_len = encoders[0]->src_len;
+	for (u32 i = 0; i < numEncoders; i++) {
+		struct v4lconvert_encoder* encoder = encoders[i];
+		//Parents must come first, which also rules out cycles
+		if (!encoder || !encoder->apply || parents[i] < -1 || parents[i] >= (int) i)
+			return EXIT_FAILURE;
+		u32 fmt = self->src_fmt, width = self->src_width, height = self->src_height;
+		if (parents[i] >= 0) {
+			struct v4lconvert_encoder* parent = encoders[parents[i]];
+			fmt = parent->dst_fmt;
+			width = parent->dst_width;
+			height = parent->dst_height;
+		}
+		if (encoder->src_fmt != fmt || encoder->src_width != width || encoder->src_height != height)
+			return EXIT_FAILURE;
+	}
+	
+	self->num_encoders = numEncoders;
+	self->encoders = calloc(numEncoders, sizeof(struct v4lconvert_encoder*));
+	self->parents = calloc(numEncoders, sizeof(int));
+	self->depths = calloc(numEncoders, sizeof(unsigned int));
+	self->scratch = calloc(numEncoders, sizeof(u8*));
+	if (!self->encoders || !self->parents || !self->depths || !self->scratch) {
+		v4lconvert_encoder_fanout_release(self);
+		return EXIT_FAILURE;
+	}
+	memcpy(self->encoders, encoders, numEncoders * sizeof(struct v4lconvert_encoder*));
+	memcpy(self->parents, parents, numEncoders * sizeof(int));
+	for (u32 i = 0; i < numEncoders; i++) {
+		int parent = parents[i];
+		if (parent < 0)
+			continue;
+		self->depths[i] = self->depths[parent] + 1;
+		if (self->depths[i] > self->max_depth)
+			self->max_depth = self->depths[i];
+		//Encoders with children need somewhere to write to, even if the caller doesn't want their output
+		if (!self->scratch[parent] && !(self->scratch[parent] = malloc(encoders[parent]->dst_len))) {
+			v4lconvert_encoder_fanout_release(self);
+			return EXIT_FAILURE;
+		}
+	}
+	return EXIT_SUCCESS;
+}
+
+/**
+ * State shared by the encoders of a fanout run at the same depth
+ */
+struct v4lconvert_fanout_level {
+	struct v4lconvert_encoder_fanout* fanout;
+	/* Indices of the encoders at this depth */
+	unsigned int* encoders;
+	unsigned int count;
+	/* Input of each encoder of the fanout, then its output */
+	const u8** inputs;
+	u8** dsts;
+	u32* lens;
+	unsigned int slices;
+	bool failed;
+};
+
+/**
+ * Runs every jobs-th encoder of a level, from the index-th one, so that a
+ * level is split into at most as many jobs as the fanout may use threads
+ */
+static void v4lconvert_encoder_fanout_runJob(void* arg, unsigned int index, unsigned int jobs) {
+	struct v4lconvert_fanout_level* level = arg;
+	for (unsigned int k = index; k < level->count; k += jobs) {
+		const unsigned int i = level->encoders[k];
+		const int parent = level->fanout->parents[i];
+		const u32 src_len = parent < 0 ? level->lens[level->fanout->num_encoders] : level->lens[parent];
+		if (!(level->lens[i] = v4lconvert_encoder_applySliced(level->fanout->encoders[i], level->inputs[i], level->dsts[i], src_len, level->slices)))
+			level->failed = true;
+	}
+}
+
+bool v4lconvert_encoder_fanout_apply(struct v4lconvert_encoder_fanout* self, const u8* src, u32 src_len, u8** outputs, const u32* output_caps, u32* output_lens, unsigned int parallelism) {
+	const size_t n = self->num_encoders;
+	bool needed[n];
+	const u8* inputs[n];
+	u8* dsts[n];
+	unsigned int level_encoders[n];
+	//Output lengths, then the source length, so that the source is just another parent
+	u32 lens[n + 1];
+	lens[n] = src_len;
+	
+	//Children come after their parents, so walking backwards finds every encoder a wanted output depends on
+	memset(needed, 0, sizeof(needed));
+	for (size_t i = n; i-- > 0;) {
+		if (outputs[i]) {
+			if (output_caps[i] < self->encoders[i]->dst_len)
+				return false;
+			needed[i] = true;
+		}
+		if (needed[i] && self->parents[i] >= 0)
+			needed[self->parents[i]] = true;
+	}
+	for (size_t i = 0; i < n; i++) {
+		lens[i] = 0;
+		dsts[i] = outputs[i] ? outputs[i] : self->scratch[i];
+		inputs[i] = self->parents[i] < 0 ? src : dsts[self->parents[i]];
+	}
+	
+	for (unsigned int depth = 0; depth <= self->max_depth; depth++) {
+		struct v4lconvert_fanout_level level = { self, level_encoders, 0, inputs, dsts, lens, 1, false };
+		for (size_t i = 0; i < n; i++)
+			if (needed[i] && self->depths[i] == depth)
+				level_encoders[level.count++] = (unsigned int) i;
+		if (parallelism > 1 && level.count > 1) {
+			//No more jobs than threads allowed, each running several encoders if need be
+			v4lconvert_parallel_for(level.count < parallelism ? level.count : parallelism, v4lconvert_encoder_fanout_runJob, &level);
+		} else {
+			//Alone at its depth, an encoder gets the whole pool to itself
+			level.slices = parallelism > 1 ? parallelism : 1;
+			v4lconvert_encoder_fanout_runJob(&level, 0, 1);
+		}
+		if (level.failed)
+			return false;
+	}
+	memcpy(output_lens, lens, n * sizeof(u32));
+	return true;
+}
+
+void v4lconvert_encoder_fanout_release(struct v4lconvert_encoder_fanout* self) {
+	if (self->scratch) {
+		for (size_t i = 0; i < self->num_encoders; i++)
+			free(self->scratch[i]);
+		free(self->scratch);
+		self->scratch = NULL;
+	}
+	free(self->encoders);
+	self->encoders = NULL;
+	free(self->parents);
+	self->parents = NULL;
+	free(self->depths);
+	self->depths = NULL;
+	self->num_encoders = 0;
+}
+
+/**
+ * Whether frames of the given format have a fixed size, so that a converter
+ * can be run on a made-up frame to measure it. Compressed formats are left
+ * out, as their decoders may not cope with arbitrary data.
+ */
+static bool v4lconvert_isRawFormat(u32 fmt) {
+	switch (fmt) {
+		case RGB32:
+		case BGR32:
+		case RGB24:
+		case BGR24:
+		case YUV444:
+		case YUV422P:
+		case YUYV:
+		case YVYU:
+		case UYVY:
+		case VYUY:
+		case NV16:
+		case NV61:
+		case RGB555:
+		case RGB555X:
+		case RGB565:
+		case RGB565X:
+		case Y16:
+		case NV12:
+		case NV21:
+		case YUV411:
+		case YUV420:
+		case YVU420:
+		case GREY:
+		case RGB332:
+		case SBGGR8:
+		case SGBRG8:
+		case SGRBG8:
+		case SRGGB8:
+			return true;
+		default:
+			return false;
+	}
+}
+
+/**
+ * Predict how long the given converter takes to convert a frame, in
+ * nanoseconds. Measured costs (see costs.h) are used when available.
+ * Otherwise the cost is guessed from the number of bytes read and written,
+ * at about a nanosecond per byte, and JPEG compression at about 8ns per pixel.
+ */
+static uint64_t v4lconvert_converter_predictCost(const v4lconvert_converter_t* converter, u32 width, u32 height) {
+	uint64_t ns;
+	if (v4lconvert_costs_get((u32) converter->id, width, height, &ns))
+		return ns;
+	ns = v4lconvert_estimateBufferSize(converter->src_fmt, width, height);
+	if (converter->dst_fmt == JPEG)
+		return ns + (uint64_t) width * height * 8;
+	return ns + v4lconvert_estimateBufferSize(converter->dst_fmt, width, height);
+}
+
+uint64_t v4lconvert_converter_measureCost(u32 converterId, u32 width, u32 height, unsigned int rounds) {
+	v4lconvert_converter_t* converter = v4lconvert_converter_getConverterById(converterId);
+	if (!converter || !rounds || !v4lconvert_isRawFormat(converter->src_fmt))
+		return 0;
+	struct v4lconvert_encoder encoder;
+	memset(&encoder, 0, sizeof(encoder));
+	if (v4lconvert_encoder_initWithConverter(&encoder, converter, width, height) != EXIT_SUCCESS || !encoder.apply)
+		return 0;
+	u8* src = malloc(encoder.src_len);
+	u8* dst = malloc(encoder.dst_len);
+	uint64_t ns = 0;
+	if (src && dst) {
+		//Mid-grey, which every format can represent
+		memset(src, 0x80, encoder.src_len);
+		//Warm up the caches first
+		encoder.apply(&encoder, src, dst, encoder.src_len);
+		struct timespec start, end;
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		for (unsigned int i = 0; i < rounds; i++)
+			encoder.apply(&encoder, src, dst, encoder.src_len);
+		clock_gettime(CLOCK_MONOTONIC, &end);
+		ns = ((uint64_t) (end.tv_sec - start.tv_sec) * 1000000000u + (uint64_t) end.tv_nsec - (uint64_t) start.tv_nsec) / rounds;
+		//A zero cost would make the converter look free
+		if (ns == 0)
+			ns = 1;
+		v4lconvert_costs_set(converterId, width, height, ns);
+	}
+	free(src);
+	free(dst);
+	if (encoder.release)
+		encoder.release(&encoder);
+	return ns;
+}
+
+int v4lconvert_costs_calibrate(u32 width, u32 height, unsigned int rounds) {
+	int measured = 0;
+	for (size_t i = 0; i < NUM_V4L_CONVERTERS; i++)
+		if (v4lconvert_converter_measureCost(v4lconvert_converters[i].id, width, height, rounds))
+			measured++;
+	return measured;
+}
+
+/**
+ * Find the cheapest chain of converters from one format to another, with the
+ * Bellman-Ford algorithm, working backwards from the 'to' format.
+ * @param map Set to the ID of the converter to apply first on the cheapest
+ * 		path of at most i + 1 converters from each format, at
+ * 		map[i * NB_SUPPORTED_PALETTES + fmt]. Must hold maxIterations rows.
+ * @param costs Set to the predicted cost of the cheapest path from each format
+ * @param maxIterations Maximum number of converters in the path
+ * @return the number of rows of map filled in, or 0 if no path was found
+ */
+static inline unsigned int computeEncoderPath(u32* map, uint64_t* costs, u32 width, u32 height, u32 from, u32 to, unsigned int maxIterations) {
+	uint64_t prev[NB_SUPPORTED_PALETTES];
+	for (unsigned int i = 0; i < NB_SUPPORTED_PALETTES; i++)
+		costs[i] = UINT64_MAX;
+	costs[to] = 0;
+	unsigned int rows = 0;
+	// After i iterations, costs[] holds the cheapest paths of at most i converters
+	while (rows < maxIterations) {
+		u32* row = map + rows * NB_SUPPORTED_PALETTES;
+		// Only extend the paths of the last iteration, so that no path gets longer than one converter per iteration
+		memcpy(prev, costs, sizeof(prev));
+		if (rows > 0)
+			memcpy(row, row - NB_SUPPORTED_PALETTES, NB_SUPPORTED_PALETTES * sizeof(u32));
+		rows++;
+		bool progress = false;
+		for (size_t j = 0; j < NUM_V4L_CONVERTERS; j++) {
 			v4lconvert_converter_t* converter = &(v4lconvert_converters[j]);
-			unsigned int distanceTo = distances[converter->dst_fmt];
-			if (distanceTo < 1)
+			if (converter->src_fmt >= NB_SUPPORTED_PALETTES || converter->dst_fmt >= NB_SUPPORTED_PALETTES)
+				continue;
+			uint64_t costTo = prev[converter->dst_fmt];
+			if (costTo == UINT64_MAX || converter->src_fmt == to)
 				continue;
-			if (distances[converter->src_fmt] == 0) {
-				// There was no path found to this node previously
-				map[converter->src_fmt] = i;
-				distances[converter->src_fmt] = distanceTo + 1;
-				progress = 1;
-				if (converter->src_fmt == from)
-					return EXIT_SUCCESS;
+			uint64_t cost = costTo + v4lconvert_converter_predictCost(converter, width, height);
+			if (cost < costs[converter->src_fmt]) {
+				row[converter->src_fmt] = converter->id;
+				costs[converter->src_fmt] = cost;
+				progress = true;
 			}
 		}
-		// If no progress has been made this iteration, we can conclude that no path exists
+		// If nothing got cheaper this iteration, nothing will
 		if (!progress)
-			return EXIT_FAILURE;
+			break;
 	}
-	// We took up too many iterations (the shortest path was too long)
-	return EXIT_FAILURE;
+	return costs[from] != UINT64_MAX ? rows : 0;
 }
 
 int v4lconvert_encoder_series_computeConversion(struct v4lconvert_encoder_series* self, u32 width, u32 height, u32 from, u32 to, unsigned int maxIterations) {
-	if (from > NB_SUPPORTED_PALETTES || to > NB_SUPPORTED_PALETTES)
+	if (from >= NB_SUPPORTED_PALETTES || to >= NB_SUPPORTED_PALETTES || from == to || maxIterations == 0)
 		return EXIT_FAILURE;
-	unsigned int* map = calloc(NB_SUPPORTED_PALETTES, sizeof(unsigned int));
-	unsigned int* distances = calloc(NB_SUPPORTED_PALETTES, sizeof(unsigned int));
-	if (map == NULL || distances == NULL || !computeEncoderPath(map, distances, from, to, maxIterations)) {
+	u32* map = calloc((size_t) maxIterations * NB_SUPPORTED_PALETTES, sizeof(u32));
+	uint64_t* costs = calloc(NB_SUPPORTED_PALETTES, sizeof(uint64_t));
+	unsigned int rows = 0;
+	if (map == NULL || costs == NULL || !(rows = computeEncoderPath(map, costs, width, height, from, to, maxIterations))) {
 		free(map);
-		free(distances);
+		free(costs);
 		return EXIT_FAILURE;
 	}
-	//Walk backwards along the map, building the a single path
-	unsigned int distance = distances[from] - 1;
-	unsigned int* route = calloc(distance, sizeof(unsigned int));
-	for (unsigned int i = 0, fmt = from; i < distance; i++) {
-		route[i] = map[fmt];
-		fmt = v4lconvert_converters[fmt].dst_fmt;
+	//Walk forwards along the map, building a single path. Each converter leaves one fewer for the rest of the path.
+	unsigned int distance = 0;
+	u32 fmt = from;
+	u32* route = calloc(rows, sizeof(u32));
+	for (; fmt != to && route && distance < rows; distance++) {
+		v4lconvert_converter_t* converter = v4lconvert_converter_getConverterById(map[(rows - 1 - distance) * NB_SUPPORTED_PALETTES + fmt]);
+		if (!converter)
+			break;
+		route[distance] = converter->id;
+		fmt = converter->dst_fmt;
 	}
-	free(distances);
+	free(costs);
 	free(map);
+	if (!route || fmt != to) {
+		free(route);
+		return EXIT_FAILURE;
+	}
 	
-	#if defined(DEBUG) || true
-		dprint(LIBVIDEO_LOG_SOURCE, LIBVIDEO_LOG_DEBUG, "Computed conversion path from %d to %d (len %d): %d", from, to, distance, route[0]);
+	#ifdef DEBUG
+		dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, "Computed conversion path from %u to %u (len %u): %u", from, to, distance, route[0]);
 		for (unsigned i = 1; i < distance; i++)
-			dprint(LIBVIDEO_LOG_SOURCE, LIBVIDEO_LOG_DEBUG, " => %d", route[i]);
-		dprint(LIBVIDEO_LOG_SOURCE, LIBVIDEO_LOG_DEBUG, "\nFormats: %s", libvideo_palettes[route[0]].name);
+			dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, " => %u", route[i]);
+		dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, "\nFormats: %s", libvideo_palettes[from].name);
 		for (unsigned i = 0; i < distance; i++)
-			dprint(LIBVIDEO_LOG_SOURCE, LIBVIDEO_LOG_DEBUG, " => %s", libvideo_palettes[route[i]].name);
-		dprint(LIBVIDEO_LOG_SOURCE, LIBVIDEO_LOG_DEBUG, "\n");
+			dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, " => %s", libvideo_palettes[v4lconvert_converter_getConverterById(route[i])->dst_fmt].name);
+		dprint(LIBVIDEO_SOURCE_CONVERT, LIBVIDEO_LOG_DEBUG, "\n");
 	#endif
 	
 	//Now initialize the encoder series with the route just computed
@@ -967,9 +1314,11 @@ int v4lconvert_encoder_series_computeConversion(struct v4lconvert_encoder_series
 }
 
 v4lconvert_converter_t* v4lconvert_converter_getConverterById(unsigned int converterId) {
-	if (converterId > NUM_V4L_CONVERTERS)
-		return NULL;
-	return &(v4lconvert_converters[converterId]);
+	//IDs have gaps, so they can't be used as indices
+	for (size_t i = 0; i < NUM_V4L_CONVERTERS; i++)
+		if (v4lconvert_converters[i].id == converterId)
+			return &(v4lconvert_converters[i]);
+	return NULL;
 }
 
 /**
@@ -979,10 +1328,10 @@ int v4lconvert_converter_lookupConverterByConversion(u32 from, u32 to) {
 	v4lconvert_converter_t* converter;
 	
 	//TODO use better lookup algorithm than O(n)
-	for (int i = 0; i < NUM_V4L_CONVERTERS; i++) {
+	for (size_t i = 0; i < NUM_V4L_CONVERTERS; i++) {
 		converter = &(v4lconvert_converters[i]);
 		if ((converter->src_fmt == from) && (converter->dst_fmt == to))
-			return i;
+			return (int) converter->id;
 	}
 	return -1;
 }
@@ -992,7 +1341,7 @@ int v4lconvert_converter_lookupConverterByConversion(u32 from, u32 to) {
  */
 v4lconvert_converter_t* v4lconvert_converter_getConverterByConversion(u32 from, u32 to) {
 	//TODO use better lookup algorithm than O(n)
-	for (int i = 0; i < NUM_V4L_CONVERTERS; i++) {
+	for (size_t i = 0; i < NUM_V4L_CONVERTERS; i++) {
 		v4lconvert_converter_t* converter = &(v4lconvert_converters[i]);
 		if ((converter->src_fmt == from) && (converter->dst_fmt == to))
 			return converter;
@@ -2,6 +2,9 @@
 #include "../types.h"
 #include "libvideo.h"
 #include "libv4lconvert-priv.h"
+#include "scale.h"
+#include "jpeg_stripes.h"
+#include "jpeg_turbo.h"
 
 #ifndef __LIBVIDEO_LIBV4LCONVERT_LIBV4LCONVERT_FLAT_H
 #define __LIBVIDEO_LIBV4LCONVERT_LIBV4LCONVERT_FLAT_H
@@ -118,11 +121,11 @@ struct v4lconvert_converter_prototype {
 			enum v4lconvert_conversion_signature signature;
 			union v4lconvert_conversion_fn {
 				void (*cvt_sdwh_0f) (const u8* src, u8* dst, u32 width, u32 height);
-				void (*cvt_sdwh_1f) (const u8* src, u8* dst, u32 width, u32 height, int flag1);
-				void (*cvt_sdwh_2f) (const u8* src, u8* dst, u32 width, u32 height, int flag1, int flag2);
+				void (*cvt_sdwh_1f) (const u8* src, u8* dst, u32 width, u32 height, bool flag1);
+				void (*cvt_sdwh_2f) (const u8* src, u8* dst, u32 width, u32 height, bool flag1, bool flag2);
 				void (*cvt_sd_sf_0f) (const u8* src, u8* dst, const struct v4l2_format* src_fmt);
-				void (*cvt_sd_sf_1f) (const u8* src, u8* dst, const struct v4l2_format* src_fmt, int flag1);
-				void (*cvt_sd_sf_2f) (const u8* src, u8* dst, const struct v4l2_format* src_fmt, int flag1, int flag2);
+				void (*cvt_sd_sf_1f) (const u8* src, u8* dst, const struct v4l2_format* src_fmt, bool flag1);
+				void (*cvt_sd_sf_2f) (const u8* src, u8* dst, const struct v4l2_format* src_fmt, bool flag1, bool flag2);
 				void* cvt_special;
 			} target;
 			int flag1;
@@ -205,6 +208,100 @@ LIBV4L_PUBLIC struct v4lconvert_converter {
 	struct control** controls;
 };
 
+/**
+ * One of the conversion functions of libv4lconvert, and how to call it
+ */
+typedef struct v4lconvert_converter_s {
+	/**
+	 * Unique ID of this converter, by which it is known to Java and in the
+	 * cost table (see costs.h)
+	 */
+	u32 id;
+	enum v4lconvert_conversion_signature signature;
+	union v4lconvert_conversion_fn target;
+	/**
+	 * Source format
+	 */
+	u32 src_fmt;
+	/**
+	 * Output format
+	 */
+	u32 dst_fmt;
+	int flag1;
+	int flag2;
+} v4lconvert_converter_t;
+
+/**
+ * A conversion of frames of one format and size, to frames of another format
+ * and size, with all the state it needs
+ */
+LIBV4L_PUBLIC struct v4lconvert_encoder {
+	/**
+	 * Convert a frame
+	 * @return number of bytes written to dst, or 0 if error
+	 */
+	u32 (*apply) (struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+	/**
+	 * Release the memory held by this encoder, but not the encoder itself
+	 */
+	int (*release) (struct v4lconvert_encoder* self);
+	u32 src_fmt;
+	u32 dst_fmt;
+	u32 src_width;
+	u32 src_height;
+	u32 dst_width;
+	u32 dst_height;
+	/**
+	 * Expected length of the source frames
+	 */
+	u32 src_len;
+	/**
+	 * Maximum length of the output frames
+	 */
+	u32 dst_len;
+	/**
+	 * Converter applied, or NULL for scalers and croppers, which aren't in
+	 * the converter table
+	 */
+	v4lconvert_converter_t* converter;
+	
+	//Private members. Please don't touch.
+	union {
+		/**
+		 * Format of the source frames, for converters taking a v4l2_format
+		 */
+		struct v4l2_format* imf_v4l2_src_fmt;
+		struct {
+			u32 row_stride;
+			unsigned int quality;
+			struct jpeg_compress_struct* cinfo;
+			struct jpeg_error_mgr* cerr;
+			/**
+			 * TurboJPEG compressor, used instead of cinfo if not NULL
+			 */
+			struct v4lconvert_turbojpeg* turbo;
+			/**
+			 * Compressor splitting frames into stripes, used instead of the
+			 * above if not NULL
+			 */
+			struct v4lconvert_jpeg_stripes* stripes;
+			/**
+			 * Apply method compressing frames whole, restored when frames
+			 * stop being compressed in stripes
+			 */
+			u32 (*apply_whole) (struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len);
+		} jpeg_encode_params;
+		struct {
+			enum v4lconvert_scale_filter filter;
+		} scale_params;
+		struct {
+			signed int top;
+			signed int left;
+			//dst_width & dst_height are used to determine the other two sides
+		} crop_params;
+	};
+};
+
 LIBV4L_PUBLIC struct v4lconvert_encoder_series {
 	/**
 	 * Method to invoke actual conversion
@@ -235,6 +332,69 @@ LIBV4L_PUBLIC struct v4lconvert_encoder_series {
 	 * Please don't change it.
 	 */
 	struct v4lconvert_converter** converters;
+	/**
+	 * Number of encoders in series
+	 */
+	size_t num_encoders;
+	/**
+	 * Encoders applied in order, each one to the output of the previous one.
+	 * The first one reads buf0 of the v4lconvert_buffer, the last one writes
+	 * buf1, and the ones in between alternate between buf1 and buf2.
+	 */
+	struct v4lconvert_encoder** encoders;
+	/**
+	 * Whether the encoders are released with this series
+	 */
+	bool owns_encoders;
+	/**
+	 * Predicted time to convert a frame, in nanoseconds, from the measured
+	 * costs of the encoders if available (see costs.h), or from their
+	 * static estimates otherwise
+	 */
+	uint64_t predicted_cost;
+	/**
+	 * Maximum number of bands each frame is split into, to be converted in
+	 * parallel. 1 to convert frames on the calling thread only.
+	 */
+	unsigned int slices;
+};
+
+/**
+ * Tree of encoders converting one source frame into several outputs, such as
+ * a full size JPEG, a small preview and a thumbnail for analysis. Each
+ * encoder converts either the source frame or the output of another encoder,
+ * so that the source is read once and the work common to several outputs
+ * (e.g. converting to RGB, then downscaling in steps) is only done once.
+ */
+LIBV4L_PUBLIC struct v4lconvert_encoder_fanout {
+	/**
+	 * Number of encoders in the tree
+	 */
+	size_t num_encoders;
+	/**
+	 * Encoders, each one after the one it converts the output of.
+	 * They are not released with the fanout.
+	 */
+	struct v4lconvert_encoder** encoders;
+	/**
+	 * Index of the encoder whose output each encoder converts, or -1 for the
+	 * source frame
+	 */
+	int* parents;
+	/**
+	 * Number of encoders between each encoder and the source frame
+	 */
+	unsigned int* depths;
+	unsigned int max_depth;
+	/**
+	 * Buffer holding the output of each encoder other encoders convert, used
+	 * when the caller does not want that output. NULL for leaves.
+	 */
+	u8** scratch;
+	u32 src_fmt;
+	u32 src_width;
+	u32 src_height;
+	size_t src_len;
 };
 
 LIBV4L_PUBLIC struct v4lconvert_conversion_request {
@@ -252,13 +412,144 @@ LIBV4L_PUBLIC struct v4lconvert_conversion_request {
 
 LIBV4L_PUBLIC u32 v4lconvert_estimateBufferSize(u32 fmt, u32 width, u32 height);
 
-LIBV4L_PUBLIC int v4lconvert_encoder_initWithConverter(struct v4lconvert_encoder* encoder, v4lconvert_converter* converter, u32 width, u32 height);
+/**
+ * Measure how long a converter takes to convert a frame of the given size on
+ * this host, and record it in the cost table (see costs.h). Converters from
+ * compressed formats cannot be measured, as they need real frames.
+ * @param rounds Number of frames to average over
+ * @return Time to convert a frame, in nanoseconds, or 0 if the converter
+ * 		cannot be measured
+ */
+LIBV4L_PUBLIC uint64_t v4lconvert_converter_measureCost(u32 converterId, u32 width, u32 height, unsigned int rounds);
+
+/**
+ * Measure every converter that can be measured at the given frame size. The
+ * results can then be saved with v4lconvert_costs_save() and loaded back on
+ * the next run, instead of measuring again.
+ * @param rounds Number of frames to average over
+ * @return Number of converters measured
+ */
+LIBV4L_PUBLIC int v4lconvert_costs_calibrate(u32 width, u32 height, unsigned int rounds);
+
+/**
+ * Get a converter by its ID
+ * @return the converter, or NULL if there is no converter with that ID
+ */
+LIBV4L_PUBLIC v4lconvert_converter_t* v4lconvert_converter_getConverterById(unsigned int converterId);
+/**
+ * Find a converter that does the conversion that you want
+ * @return the converter requested, or NULL
+ */
+LIBV4L_PUBLIC v4lconvert_converter_t* v4lconvert_converter_getConverterByConversion(u32 from, u32 to);
+/**
+ * Find a converter that does the conversion that you want
+ * @return the ID of the converter requested, or -1
+ */
+LIBV4L_PUBLIC int v4lconvert_converter_lookupConverterByConversion(u32 from, u32 to);
+
+LIBV4L_PUBLIC int v4lconvert_encoder_initWithConverter(struct v4lconvert_encoder* encoder, v4lconvert_converter_t* converter, u32 width, u32 height);
+/**
+ * Applies the given encoder, splitting the frame into at most
+ * <code>slices</code> horizontal bands converted in parallel on the shared
+ * worker pool (see parallel.h). Only image format conversions between packed
+ * formats, such as YUYV to RGB24, can be split; other encoders are applied
+ * on the calling thread.
+ * @return number of bytes written to dst, or 0 if error
+ */
+LIBV4L_PUBLIC u32 v4lconvert_encoder_applySliced(struct v4lconvert_encoder* encoder, const u8* src, u8* dst, u32 src_len, unsigned int slices);
 LIBV4L_PUBLIC int v4lconvert_encoder_initForIMF(struct v4lconvert_encoder* encoder, u32 src_fmt, u32 dst_fmt, u32 width, u32 height);
+/**
+ * Initialize an encoder copying a region of interest out of each frame, so
+ * that the encoders chained after it only convert that region. The region
+ * keeps its size, but can be moved between frames with
+ * v4lconvert_encoder_setCropOffset().
+ * Formats sharing chroma between pixels need even widths (and heights, for
+ * YUV420).
+ * @param left Offset of the region from the left edge of the frame
+ * @param top Offset of the region from the top edge of the frame
+ * @param width Width of the region, and of the output frames
+ * @param height Height of the region, and of the output frames
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the format is not supported or
+ * 		the region does not fit in the frame
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_initForCrop(struct v4lconvert_encoder* encoder, u32 fmt, u32 src_width, u32 src_height, u32 left, u32 top, u32 width, u32 height);
+/**
+ * Move the region a cropping encoder copies. Offsets that would split chroma
+ * samples are rounded down to the previous even column (or row).
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the encoder does not crop or the
+ * 		region would not fit in the frame
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_setCropOffset(struct v4lconvert_encoder* encoder, u32 left, u32 top);
+/**
+ * Make a JPEG encoder compress each frame as several horizontal stripes at
+ * the same time, on the shared worker pool, joined with restart markers into
+ * a single baseline JPEG image (see jpeg_stripes.h). Worth it for large
+ * frames when fewer frames are being compressed than there are cores.
+ * @param stripes Number of stripes, or 1 to compress frames whole again
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the encoder does not compress to
+ * 		JPEG, or its format or size can't be split into stripes
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_setJPEGStripes(struct v4lconvert_encoder* encoder, unsigned int stripes);
+/**
+ * Initialize an encoder scaling frames from one size to another (see
+ * scale.h). The format is kept, except that YUYV, UYVY, YUV420 and YVU420
+ * frames can be converted to RGB24 or BGR24 in the same pass, which is much
+ * cheaper than converting the full size frame then scaling it.
+ * Sizes must be even where the format shares chroma between pixels.
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the formats or sizes are not
+ * 		supported
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_initForScale(struct v4lconvert_encoder* encoder, u32 src_fmt, u32 dst_fmt, u32 src_width, u32 src_height, u32 dst_width, u32 dst_height, enum v4lconvert_scale_filter filter);
 
-LIBV4L_PUBLIC bool v4lconvert_encoder_series_create(struct v4lconvert_encoder_series* self, struct v4lconvert_conversion_request* request, char** errmsg) __attribute__((nonnull (1, 2)));
 LIBV4L_PUBLIC int v4lconvert_encoder_series_init(struct v4lconvert_encoder_series* self, u32 width, u32 height, u32 numConverters, u32* converterIds);
+/**
+ * Initialize a series chaining the given encoders. The output format and size
+ * of each encoder must be the input format and size of the next one. The
+ * encoders are not copied, and must outlive the series, which does not
+ * release them.
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the encoders cannot be chained
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_series_initWithEncoders(struct v4lconvert_encoder_series* self, u32 numEncoders, struct v4lconvert_encoder** encoders);
+/**
+ * Initialize a series with the cheapest chain of converters between two
+ * formats. The cost of each converter is the one measured on this host at
+ * the closest resolution, if any (see v4lconvert_costs_calibrate() and
+ * costs.h), or a static estimate otherwise.
+ * @param maxIterations Maximum number of converters in the chain
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if there is no such chain
+ */
 LIBV4L_PUBLIC int v4lconvert_encoder_series_computeConversion(struct v4lconvert_encoder_series* self, u32 width, u32 height, u32 from, u32 to, unsigned int maxIterations);
-LIBV4L_PUBLIC int v4lconvert_encoder_series_doRelease(struct v4lconvert_encoder_series* self);
+
+/**
+ * Initialize a fanout. The output format and size of each encoder's parent
+ * (or of the source frame, for encoders whose parent is -1) must be the input
+ * format and size of that encoder, and all encoders converting the source
+ * frame must agree on it.
+ * @param parents Index of the encoder whose output each encoder converts,
+ * 		which must come before it, or -1 for the source frame
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if the encoders cannot be arranged
+ * 		that way or out of memory
+ */
+LIBV4L_PUBLIC int v4lconvert_encoder_fanout_init(struct v4lconvert_encoder_fanout* self, u32 numEncoders, struct v4lconvert_encoder** encoders, const int* parents);
+/**
+ * Convert a frame into the outputs wanted. Encoders whose output is not
+ * wanted, either directly or by an encoder after them, are not run at all.
+ * Encoders at the same depth of the tree are run in parallel on the shared
+ * worker pool (see parallel.h) if <code>parallelism</code> is more than 1;
+ * encoders alone at their depth split the frame into that many bands instead.
+ * @param outputs Buffer to write the output of each encoder to, or NULL if
+ * 		that output is not wanted
+ * @param output_caps Capacity of each output buffer
+ * @param output_lens Set to the number of bytes each encoder wrote, or 0 if it
+ * 		was not run
+ * @return whether all encoders that had to be run succeeded. Fails without
+ * 		running any if an output buffer is too small.
+ */
+LIBV4L_PUBLIC bool v4lconvert_encoder_fanout_apply(struct v4lconvert_encoder_fanout* self, const u8* src, u32 src_len, u8** outputs, const u32* output_caps, u32* output_lens, unsigned int parallelism);
+/**
+ * Release the memory held by a fanout, but not its encoders
+ */
+LIBV4L_PUBLIC void v4lconvert_encoder_fanout_release(struct v4lconvert_encoder_fanout* self);
 
 /**
  * Allocate/compute buffers
@@ -269,6 +560,14 @@ LIBV4L_PUBLIC int v4lconvert_encoder_series_doRelease(struct v4lconvert_encoder_
  * @return 1 on success, 0 on failure
  */
 LIBV4L_PUBLIC int v4lconvert_encoder_series_createBuffers(struct v4lconvert_encoder_series* series, u32 num_buffers, struct v4lconvert_buffer** buffers, int allocate);
+/**
+ * Compute how large buf1 and buf2 of a v4lconvert_buffer must be to convert
+ * with the given series
+ * @param series Series to compute the sizes for
+ * @param buf1_len Set to the minimum capacity of buf1
+ * @param buf2_len Set to the minimum capacity of buf2, 0 if unused
+ */
+LIBV4L_PUBLIC void v4lconvert_encoder_series_getBufferSizes(const struct v4lconvert_encoder_series* series, u32* buf1_len, u32* buf2_len);
 LIBV4L_PUBLIC int v4lconvert_buffer_release(struct v4lconvert_buffer* buffer);
 
 #ifdef __cplusplus
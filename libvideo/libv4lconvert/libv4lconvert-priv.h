@@ -109,12 +109,21 @@ LIBV4LCONVERT_LOCAL void v4lconvert_yuv420_to_bgr24(const u8 *src, u8 *dst, u32
 
 LIBV4LCONVERT_LOCAL void v4lconvert_cvt_yuv420_to_bgr24(const u8 *ysrc, const u8* usrc, const u8* vsrc, u8 *dest, u32 width, u32 height);
 
+LIBV4LCONVERT_LOCAL void v4lconvert_nv12_to_rgb24(const u8 *src, u8 *dst, u32 width, u32 height, bool vu);
+
+LIBV4LCONVERT_LOCAL void v4lconvert_nv12_to_bgr24(const u8 *src, u8 *dst, u32 width, u32 height, bool vu);
+
 LIBV4LCONVERT_LOCAL void v4lconvert_yuyv_to_rgb24(const u8 *src, u8 *dst, u32 width, u32 height);
 
 LIBV4LCONVERT_LOCAL void v4lconvert_yuyv_to_bgr24(const u8 *src, u8 *dst, u32 width, u32 height);
 
 LIBV4LCONVERT_LOCAL void v4lconvert_yuyv_to_yuv420(const u8 *src, u8 *dst, u32 width, u32 height, bool yvu);
 
+/* Split a packed 4:2:2 frame into Y, U and V planes. The offsets are those
+ * of the first Y, the U and the V sample in each 4 byte pixel pair, eg 0, 1
+ * and 3 for YUYV. */
+LIBV4LCONVERT_LOCAL void v4lconvert_packed422_to_yuv422p(const u8 *src, u8 *dst, u32 width, u32 height, unsigned int y_offset, unsigned int u_offset, unsigned int v_offset);
+
 LIBV4LCONVERT_LOCAL void v4lconvert_yvyu_to_rgb24(const u8 *src, u8 *dst, u32 width, u32 height);
 
 LIBV4LCONVERT_LOCAL void v4lconvert_yvyu_to_bgr24(const u8 *src, u8 *dst, u32 width, u32 height);
@@ -201,6 +210,10 @@ LIBV4LCONVERT_LOCAL void v4lconvert_flip(u8 *src, u8 *dest, struct v4l2_format *
 
 LIBV4LCONVERT_LOCAL void v4lconvert_crop(u8 *src, u8 *dest, const struct v4l2_format *src_fmt, const struct v4l2_format *dest_fmt);
 
+LIBV4LCONVERT_LOCAL void v4lconvert_crop_packed(const u8 *src, u8 *dest, u32 src_line, u32 bpp, u32 left, u32 top, u32 width, u32 height);
+
+LIBV4LCONVERT_LOCAL void v4lconvert_crop_yuv420_region(const u8 *src, u8 *dest, u32 src_width, u32 src_height, u32 left, u32 top, u32 width, u32 height);
+
 LIBV4LCONVERT_LOCAL int v4lconvert_helper_decompress(struct v4lconvert_data *data, const char *helper, const u8 *src, unsigned int src_size, u8 *dest, unsigned int dest_size, u32 width, u32 height, int command);
 
 LIBV4LCONVERT_LOCAL void v4lconvert_helper_cleanup(struct v4lconvert_data *data);
@@ -0,0 +1,156 @@
+/*
+ * Worker pool splitting conversions into horizontal bands converted on
+ * several cores at once
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+#include "parallel.h"
+
+struct parallel_job {
+	void (*fn)(void* arg, unsigned int index, unsigned int count);
+	void* arg;
+	unsigned int count;
+	/* Next index to hand out */
+	unsigned int next;
+	/* Number of calls that have returned */
+	unsigned int done;
+	struct parallel_job* next_job;
+};
+
+/* Protects everything below */
+static pthread_mutex_t pool_lock = PTHREAD_MUTEX_INITIALIZER;
+/* Signalled when a job is queued */
+static pthread_cond_t pool_work = PTHREAD_COND_INITIALIZER;
+/* Broadcast when a job is complete */
+static pthread_cond_t pool_done = PTHREAD_COND_INITIALIZER;
+/* Jobs with indices left to hand out, oldest first */
+static struct parallel_job* pool_jobs = NULL;
+static unsigned int pool_workers = 0;
+
+/*
+ * Removes the given job from the queue. Must hold pool_lock.
+ */
+static void unqueue(struct parallel_job* job) {
+	struct parallel_job** link = &pool_jobs;
+	while (*link && *link != job)
+		link = &(*link)->next_job;
+	if (*link)
+		*link = job->next_job;
+}
+
+/*
+ * Runs the next index of the given job. Must hold pool_lock, which is
+ * released while the function runs.
+ */
+static void run_next(struct parallel_job* job) {
+	unsigned int index = job->next++;
+	if (job->next == job->count)
+		unqueue(job);
+	pthread_mutex_unlock(&pool_lock);
+	job->fn(job->arg, index, job->count);
+	pthread_mutex_lock(&pool_lock);
+	if (++job->done == job->count)
+		pthread_cond_broadcast(&pool_done);
+}
+
+static void* worker(void* unused) {
+	(void) unused;
+	pthread_mutex_lock(&pool_lock);
+	for (;;) {
+		while (!pool_jobs)
+			pthread_cond_wait(&pool_work, &pool_lock);
+		run_next(pool_jobs);
+	}
+	return NULL;
+}
+
+/*
+ * Grows the pool to the given number of workers. Must hold pool_lock.
+ */
+static void add_workers(unsigned int workers) {
+	pthread_attr_t attr;
+	if (workers > V4LCONVERT_MAX_WORKERS)
+		workers = V4LCONVERT_MAX_WORKERS;
+	if (pool_workers >= workers || pthread_attr_init(&attr))
+		return;
+	pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+	while (pool_workers < workers) {
+		pthread_t thread;
+		//The caller runs whatever the pool cannot, so failing here is not fatal
+		if (pthread_create(&thread, &attr, worker, NULL))
+			break;
+		pool_workers++;
+	}
+	pthread_attr_destroy(&attr);
+}
+
+void v4lconvert_parallel_for(unsigned int count, void (*fn)(void* arg, unsigned int index, unsigned int count), void* arg) {
+	struct parallel_job job = { fn, arg, count, 0, 0, NULL };
+	if (count == 0)
+		return;
+	if (count == 1) {
+		fn(arg, 0, 1);
+		return;
+	}
+
+	pthread_mutex_lock(&pool_lock);
+	add_workers(count - 1);
+	struct parallel_job** tail = &pool_jobs;
+	while (*tail)
+		tail = &(*tail)->next_job;
+	*tail = &job;
+	pthread_cond_broadcast(&pool_work);
+
+	//Take part instead of idling, then wait for the workers
+	while (job.next < job.count)
+		run_next(&job);
+	while (job.done < job.count)
+		pthread_cond_wait(&pool_done, &pool_lock);
+	pthread_mutex_unlock(&pool_lock);
+}
+
+unsigned int v4lconvert_parallel_workers(void) {
+	pthread_mutex_lock(&pool_lock);
+	unsigned int workers = pool_workers;
+	pthread_mutex_unlock(&pool_lock);
+	return workers;
+}
+
+struct band_job {
+	const u8* src;
+	u32 src_line;
+	u8* dst;
+	u32 dst_line;
+	u32 height;
+	v4lconvert_band_fn fn;
+	void* arg;
+};
+
+static void convert_band(void* arg, unsigned int index, unsigned int count) {
+	const struct band_job* job = arg;
+	//Spread the leftover rows evenly between the bands
+	u32 first = (u32) (((uint64_t) job->height * index) / count);
+	u32 end = (u32) (((uint64_t) job->height * (index + 1)) / count);
+	job->fn(job->arg, job->src + (size_t) first * job->src_line, job->dst + (size_t) first * job->dst_line, end - first);
+}
+
+unsigned int v4lconvert_convert_bands(const u8* src, u32 src_line, u8* dst, u32 dst_line, u32 height, unsigned int bands, v4lconvert_band_fn fn, void* arg) {
+	struct band_job job = { src, src_line, dst, dst_line, height, fn, arg };
+	if (bands > height / V4LCONVERT_MIN_BAND_ROWS)
+		bands = height / V4LCONVERT_MIN_BAND_ROWS;
+	if (bands > V4LCONVERT_MAX_WORKERS + 1)
+		bands = V4LCONVERT_MAX_WORKERS + 1;
+	if (bands <= 1) {
+		fn(arg, src, dst, height);
+		return 1;
+	}
+	v4lconvert_parallel_for(bands, convert_band, &job);
+	return bands;
+}
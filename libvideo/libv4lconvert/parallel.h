@@ -0,0 +1,70 @@
+/*
+ * Worker pool splitting conversions into horizontal bands converted on
+ * several cores at once
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __LIBV4LCONVERT_PARALLEL_H
+#define __LIBV4LCONVERT_PARALLEL_H
+
+#include <stdbool.h>
+#include "types.h"
+
+/**
+ * Maximum number of threads in the shared worker pool
+ */
+#define V4LCONVERT_MAX_WORKERS 64
+
+/**
+ * Minimum number of rows in a band. Smaller bands cost more to hand over to
+ * a worker than to convert.
+ */
+#define V4LCONVERT_MIN_BAND_ROWS 16
+
+/**
+ * Converts a band of rows
+ * @param arg Argument given to v4lconvert_convert_bands()
+ * @param src Pointer to the first row of the band in the source buffer
+ * @param dst Pointer to the first row of the band in the output buffer
+ * @param rows Number of rows in the band
+ */
+typedef void (*v4lconvert_band_fn)(void* arg, const u8* src, u8* dst, u32 rows);
+
+/**
+ * Calls <code>fn(arg, i, count)</code> for every i in [0, count), on the
+ * calling thread and on up to count - 1 threads of a worker pool shared by
+ * the whole process, and waits for all the calls to return. The pool starts
+ * empty, and grows as needed, up to V4LCONVERT_MAX_WORKERS threads. Several
+ * threads may call this function at once.
+ * @param count Number of calls
+ * @param fn Function to call
+ * @param arg Argument given to fn
+ */
+extern void v4lconvert_parallel_for(unsigned int count, void (*fn)(void* arg, unsigned int index, unsigned int count), void* arg);
+
+/**
+ * Get the number of threads currently in the shared worker pool
+ */
+extern unsigned int v4lconvert_parallel_workers(void);
+
+/**
+ * Splits a frame whose rows can be converted independently of each other
+ * into bands of consecutive rows, and converts them in parallel with
+ * v4lconvert_parallel_for().
+ * @param src Pointer to source buffer
+ * @param src_line Length of a source row, in bytes
+ * @param dst Pointer to output buffer
+ * @param dst_line Length of an output row, in bytes
+ * @param height Number of rows in the frame
+ * @param bands Maximum number of bands. Fewer are used if that would make
+ * 		bands shorter than V4LCONVERT_MIN_BAND_ROWS rows.
+ * @param fn Function converting a band
+ * @param arg Argument given to fn
+ * @return The number of bands used
+ */
+extern unsigned int v4lconvert_convert_bands(const u8* src, u32 src_line, u8* dst, u32 dst_line, u32 height, unsigned int bands, v4lconvert_band_fn fn, void* arg);
+
+#endif
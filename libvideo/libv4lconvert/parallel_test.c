@@ -0,0 +1,153 @@
+/*
+ * Checks that converting a frame in parallel bands gives the same output as
+ * converting it in one go, and reports how the conversion time scales with
+ * the number of threads. Run with -b to benchmark, optionally followed by the
+ * maximum number of threads to try.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "libv4lconvert-priv.h"
+#include "parallel.h"
+
+#define BENCHMARK_ROUNDS 50
+
+#define ARRAY_SIZE(x) (sizeof(x) / sizeof((x)[0]))
+
+struct frame {
+	u32 width;
+	u32 height;
+};
+
+static void yuyv_to_rgb24_band(void* arg, const u8* src, u8* dst, u32 rows) {
+	const struct frame* frame = arg;
+	v4lconvert_yuyv_to_rgb24(src, dst, frame->width, rows);
+}
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+static int check(u32 width, u32 height, unsigned int bands) {
+	struct frame frame = { width, height };
+	size_t src_size = (size_t) width * height * 2;
+	size_t dst_size = (size_t) width * height * 3;
+	u8* src = malloc(src_size);
+	u8* expected = malloc(dst_size);
+	u8* actual = malloc(dst_size);
+	int failures = 0;
+
+	fill_source(src, src_size);
+	v4lconvert_yuyv_to_rgb24(src, expected, width, height);
+	memset(actual, 0xA5, dst_size);
+	unsigned int used = v4lconvert_convert_bands(src, width * 2, actual, width * 3, height, bands, yuyv_to_rgb24_band, &frame);
+	if (memcmp(actual, expected, dst_size)) {
+		fprintf(stderr, "FAIL %ux%u in %u bands: output differs\n", width, height, used);
+		failures++;
+	}
+	if (used > bands || (used > 1 && height / used < V4LCONVERT_MIN_BAND_ROWS)) {
+		fprintf(stderr, "FAIL %ux%u: %u bands used for %u requested\n", width, height, used, bands);
+		failures++;
+	}
+
+	free(src);
+	free(expected);
+	free(actual);
+	return failures;
+}
+
+static void count_call(void* arg, unsigned int index, unsigned int count) {
+	unsigned int* calls = arg;
+	(void) count;
+	__atomic_add_fetch(&calls[index], 1, __ATOMIC_RELAXED);
+}
+
+/*
+ * Every index must be run exactly once
+ */
+static int check_indices(unsigned int count) {
+	unsigned int* calls = calloc(count, sizeof(unsigned int));
+	int failures = 0;
+	v4lconvert_parallel_for(count, count_call, calls);
+	for (unsigned int i = 0; i < count; i++) {
+		if (calls[i] != 1) {
+			fprintf(stderr, "FAIL index %u of %u was run %u times\n", i, count, calls[i]);
+			failures++;
+			break;
+		}
+	}
+	free(calls);
+	return failures;
+}
+
+static double benchmark(u32 width, u32 height, unsigned int bands) {
+	struct frame frame = { width, height };
+	size_t src_size = (size_t) width * height * 2;
+	u8* src = malloc(src_size);
+	u8* dst = malloc((size_t) width * height * 3);
+	struct timespec start, end;
+
+	fill_source(src, src_size);
+	//Warm up, which also starts the worker threads
+	v4lconvert_convert_bands(src, width * 2, dst, width * 3, height, bands, yuyv_to_rgb24_band, &frame);
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+		v4lconvert_convert_bands(src, width * 2, dst, width * 3, height, bands, yuyv_to_rgb24_band, &frame);
+	clock_gettime(CLOCK_MONOTONIC, &end);
+
+	free(src);
+	free(dst);
+	return ((double) (end.tv_sec - start.tv_sec) * 1e3 + (double) (end.tv_nsec - start.tv_nsec) / 1e6) / BENCHMARK_ROUNDS;
+}
+
+int main(int argc, char** argv) {
+	static const u32 heights[] = { 1, 15, 16, 17, 33, 100, 479, 480 };
+	static const unsigned int bands[] = { 1, 2, 3, 4, 7, 8, 65, 100 };
+	static const struct frame sizes[] = { { 1920, 1080 }, { 3840, 2160 } };
+	bool run_benchmark = argc > 1 && !strcmp(argv[1], "-b");
+	//Benchmark up to as many threads as cores, unless told otherwise
+	long cores = argc > 2 ? atol(argv[2]) : sysconf(_SC_NPROCESSORS_ONLN);
+	int failures = 0;
+
+	for (unsigned int h = 0; h < ARRAY_SIZE(heights); h++)
+		for (unsigned int b = 0; b < ARRAY_SIZE(bands); b++)
+			failures += check(64, heights[h], bands[b]);
+	for (unsigned int count = 0; count < 100; count += 7)
+		failures += check_indices(count);
+	if (v4lconvert_parallel_workers() > V4LCONVERT_MAX_WORKERS) {
+		fprintf(stderr, "FAIL %u workers started\n", v4lconvert_parallel_workers());
+		failures++;
+	}
+
+	if (run_benchmark) {
+		printf("YUYV -> RGB24, %ld cores online\n", sysconf(_SC_NPROCESSORS_ONLN));
+		printf("%-8s", "threads");
+		for (unsigned int s = 0; s < ARRAY_SIZE(sizes); s++)
+			printf("  %4ux%-4u ms speedup", sizes[s].width, sizes[s].height);
+		printf("\n");
+		double single[ARRAY_SIZE(sizes)];
+		for (unsigned int threads = 1; threads <= (unsigned int) cores && threads <= V4LCONVERT_MAX_WORKERS + 1; threads++) {
+			printf("%-8u", threads);
+			for (unsigned int s = 0; s < ARRAY_SIZE(sizes); s++) {
+				double ms = benchmark(sizes[s].width, sizes[s].height, threads);
+				if (threads == 1)
+					single[s] = ms;
+				printf("  %12.2f %6.2fx", ms, single[s] / ms);
+			}
+			printf("\n");
+		}
+	}
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -33,6 +33,10 @@
 #pragma message "NEON sez nope!"
 #endif
 
+#ifdef CONVERT_X86_SIMD
+#include "x86/rgbyuv_x86.h"
+#endif
+
 void v4lconvert_rgb24_to_yuv420(const u8 *src, u8 *dest, const struct v4l2_format *src_fmt, bool bgr, bool yvu) {
 	/* Y */
 	for (unsigned int y = 0; y < src_fmt->fmt.pix.height; y++) {
@@ -100,6 +104,10 @@ void v4lconvert_yuv420_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height,
 }
 
 __attribute__((inline)) void v4lconvert_cvt_yuv420_to_bgr24(const u8 *ysrc, const u8* usrc, const u8* vsrc, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_yuv420_to_rgb24(ysrc, usrc, vsrc, dest, width, height, true))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y = FIX_Y(*ysrc++);
@@ -139,6 +147,11 @@ void v4lconvert_yuv420_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height,
 		vsrc = usrc + (width * height) / 4;
 	}
 
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_yuv420_to_rgb24(ysrc, usrc, vsrc, dest, width, height, false))
+		return;
+#endif
+
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y = FIX_Y(*ysrc++);
@@ -166,7 +179,63 @@ void v4lconvert_yuv420_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height,
 	}
 }
 
+/**
+ * Converts NV12 (Y plane followed by interleaved U and V samples) or NV21 (V
+ * before U) to RGB24 or BGR24.
+ * @param src source buffer
+ * @param dest output buffer
+ * @param width width of frame
+ * @param height height of frame
+ * @param vu whether the source is NV21 rather than NV12
+ * @param bgr whether to output BGR24 rather than RGB24
+ */
+static void v4lconvert_nv12_to_rgb(const u8 *src, u8 *dest, u32 width, u32 height, bool vu, bool bgr) {
+	const u8 *ysrc = src;
+	const u8 *uvsrc = src + width * height;
+
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_nv12_to_rgb24(ysrc, uvsrc, dest, width, height, vu, bgr))
+		return;
+#endif
+
+	for (unsigned int i = 0; i < height; i++) {
+		const u8 *uv = uvsrc + (i / 2) * width;
+		for (unsigned int j = 0; j < width; j += 2) {
+			int u = uv[j + vu] - 128;
+			int v = uv[j + !vu] - 128;
+			
+			int u1 = UV2U1(u, v);
+			int rg = UV2RG(u, v);
+			int v1 = UV2V1(u, v);
+			int first = bgr ? u1 : v1;
+			int last = bgr ? v1 : u1;
+
+			int y = FIX_Y(*ysrc++);
+			*dest++ = CLIP_RGB(y + first);
+			*dest++ = CLIP_RGB(y - rg);
+			*dest++ = CLIP_RGB(y + last);
+
+			y = FIX_Y(*ysrc++);
+			*dest++ = CLIP_RGB(y + first);
+			*dest++ = CLIP_RGB(y - rg);
+			*dest++ = CLIP_RGB(y + last);
+		}
+	}
+}
+
+void v4lconvert_nv12_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height, bool vu) {
+	v4lconvert_nv12_to_rgb(src, dest, width, height, vu, false);
+}
+
+void v4lconvert_nv12_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height, bool vu) {
+	v4lconvert_nv12_to_rgb(src, dest, width, height, vu, true);
+}
+
 void v4lconvert_yuyv_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_YUYV, true))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y1 = FIX_Y(*src++);
@@ -194,6 +263,10 @@ void v4lconvert_yuyv_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
 	//TODO handle overflow
 	v4lconvert_neon_yuyv_to_rgb24(src, dest, height * (width / 2));
 #else
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_YUYV, false))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y1 = FIX_Y(*src++);
@@ -258,7 +331,23 @@ void v4lconvert_yuyv_to_yuv420(const u8 *src, u8 *dest, u32 width, u32 height, b
 	}
 }
 
+void v4lconvert_packed422_to_yuv422p(const u8 *src, u8 *dest, u32 width, u32 height, unsigned int y_offset, unsigned int u_offset, unsigned int v_offset) {
+	u8 *udest = dest + width * height;
+	u8 *vdest = udest + width * height / 2;
+	for (size_t i = 0; i < (size_t) width * height / 2; i++) {
+		*dest++ = src[y_offset];
+		*dest++ = src[y_offset + 2];
+		*udest++ = src[u_offset];
+		*vdest++ = src[v_offset];
+		src += 4;
+	}
+}
+
 void v4lconvert_yvyu_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_YVYU, true))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y1 = FIX_Y(*src++);
@@ -282,6 +371,10 @@ void v4lconvert_yvyu_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
 }
 
 void v4lconvert_yvyu_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_YVYU, false))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int y1 = FIX_Y(*src++);
@@ -305,6 +398,10 @@ void v4lconvert_yvyu_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
 }
 
 void v4lconvert_uyvy_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_UYVY, true))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int u = *src++ - 128;
@@ -328,6 +425,10 @@ void v4lconvert_uyvy_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
 }
 
 void v4lconvert_uyvy_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+#ifdef CONVERT_X86_SIMD
+	if (v4lconvert_x86_packed_to_rgb24(src, dest, width, height, V4LCONVERT_X86_UYVY, false))
+		return;
+#endif
 	for (unsigned int i = 0; i < height; i++) {
 		for (unsigned int j = 0; j < width; j += 2) {
 			int u = *src++ - 128;
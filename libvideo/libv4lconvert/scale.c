@@ -0,0 +1,317 @@
+/*
+ * Downscaling and upscaling of frames, optionally fused with the conversion
+ * from YUV to RGB so that full resolution RGB frames are never written out
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdint.h>
+#include <stdlib.h>
+#include "scale.h"
+#include "rgbyuv.h"
+
+/*
+ * Source samples an output sample is made of, along one axis. The box filter
+ * averages the samples in [first, last); the bilinear filter weighs first by
+ * 256 - weight and last by weight.
+ */
+struct tap {
+	u32 first;
+	u32 last;
+	u32 weight;
+};
+
+/*
+ * One 8 bit channel of a frame: sample (x, y) is at data[y * pitch + x * step]
+ */
+struct channel {
+	const u8* data;
+	u32 pitch;
+	u32 step;
+	u32 width;
+	u32 height;
+};
+
+/*
+ * Maps the samples of a channel to those of the scaled channel
+ */
+struct plane_scaler {
+	struct channel src;
+	u32 dst_width;
+	u32 dst_height;
+	struct tap* xtaps;
+	struct tap* ytaps;
+};
+
+static void make_taps(struct tap* taps, u32 src_len, u32 dst_len, enum v4lconvert_scale_filter filter) {
+	for (u32 i = 0; i < dst_len; i++) {
+		struct tap* tap = &taps[i];
+		if (filter == V4LCONVERT_SCALE_BILINEAR) {
+			//Centre of the output sample in the source, in 1/256ths of a sample
+			int64_t pos = (((int64_t) i * 2 + 1) * src_len * 128) / dst_len - 128;
+			if (pos < 0)
+				pos = 0;
+			tap->first = (u32) (pos >> 8);
+			tap->weight = (u32) (pos & 0xFF);
+			if (tap->first >= src_len - 1) {
+				tap->first = src_len - 1;
+				tap->weight = 0;
+			}
+			tap->last = tap->weight ? tap->first + 1 : tap->first;
+		} else {
+			tap->first = (u32) ((uint64_t) i * src_len / dst_len);
+			tap->last = (u32) ((uint64_t) (i + 1) * src_len / dst_len);
+			//Upscaling repeats samples
+			if (tap->last <= tap->first)
+				tap->last = tap->first + 1;
+		}
+	}
+}
+
+static bool plane_init(struct plane_scaler* self, struct channel src, u32 dst_width, u32 dst_height, enum v4lconvert_scale_filter filter) {
+	self->src = src;
+	self->dst_width = dst_width;
+	self->dst_height = dst_height;
+	if (!(self->xtaps = malloc(((size_t) dst_width + dst_height) * sizeof(struct tap))))
+		return false;
+	self->ytaps = self->xtaps + dst_width;
+	make_taps(self->xtaps, src.width, dst_width, filter);
+	make_taps(self->ytaps, src.height, dst_height, filter);
+	return true;
+}
+
+static void plane_release(struct plane_scaler* self) {
+	free(self->xtaps);
+	self->xtaps = NULL;
+	self->ytaps = NULL;
+}
+
+/*
+ * Scales one row of a channel, writing the samples every out_step bytes.
+ * acc must hold at least the width of the channel.
+ */
+static void scale_row(const struct plane_scaler* scaler, const struct channel* src, u32 row, enum v4lconvert_scale_filter filter, u32* acc, u8* out, u32 out_step) {
+	const struct tap* ytap = &scaler->ytaps[row];
+	const struct tap* xtaps = scaler->xtaps;
+	const u32 width = scaler->dst_width;
+	const u32 step = src->step;
+	if (filter == V4LCONVERT_SCALE_BILINEAR) {
+		const u8* row0 = src->data + (size_t) ytap->first * src->pitch;
+		const u8* row1 = src->data + (size_t) ytap->last * src->pitch;
+		const u32 fy = ytap->weight;
+		for (u32 i = 0; i < width; i++, out += out_step) {
+			const u32 x0 = xtaps[i].first * step;
+			const u32 x1 = xtaps[i].last * step;
+			const u32 fx = xtaps[i].weight;
+			u32 top = row0[x0] * (256 - fx) + row0[x1] * fx;
+			u32 bottom = row1[x0] * (256 - fx) + row1[x1] * fx;
+			*out = (u8) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+		}
+		return;
+	}
+
+	//Sum the rows the output row covers, then the columns each output sample covers
+	const u32 rows = ytap->last - ytap->first;
+	const u8* in = src->data + (size_t) ytap->first * src->pitch;
+	for (u32 x = 0; x < src->width; x++)
+		acc[x] = in[x * step];
+	for (u32 y = 1; y < rows; y++) {
+		in += src->pitch;
+		for (u32 x = 0; x < src->width; x++)
+			acc[x] += in[x * step];
+	}
+	for (u32 i = 0; i < width; i++, out += out_step) {
+		u32 sum = 0;
+		for (u32 x = xtaps[i].first; x < xtaps[i].last; x++)
+			sum += acc[x];
+		const u32 count = rows * (xtaps[i].last - xtaps[i].first);
+		*out = (u8) ((sum + count / 2) / count);
+	}
+}
+
+/*
+ * Scales a whole plane into dst, whose rows are dst_pitch bytes apart
+ */
+static void scale_plane(const struct plane_scaler* scaler, enum v4lconvert_scale_filter filter, u32* acc, u8* dst, u32 dst_pitch) {
+	for (u32 y = 0; y < scaler->dst_height; y++)
+		scale_row(scaler, &scaler->src, y, filter, acc, dst + (size_t) y * dst_pitch, 1);
+}
+
+static inline bool valid_sizes(u32 src_width, u32 src_height, u32 dst_width, u32 dst_height) {
+	return src_width && src_height && dst_width && dst_height;
+}
+
+/*
+ * Converts a row of scaled YUV samples to RGB24 or BGR24
+ */
+static void yuv_row_to_rgb24(const u8* luma, const u8* u, const u8* v, u8* dst, u32 width, bool bgr) {
+	for (u32 x = 0; x < width; x++) {
+		int y = FIX_Y(luma[x]);
+		int cu = u[x] - 128;
+		int cv = v[x] - 128;
+		int u1 = UV2U1(cu, cv);
+		int rg = UV2RG(cu, cv);
+		int v1 = UV2V1(cu, cv);
+		*dst++ = CLIP_RGB(y + (bgr ? u1 : v1));
+		*dst++ = CLIP_RGB(y - rg);
+		*dst++ = CLIP_RGB(y + (bgr ? v1 : u1));
+	}
+}
+
+int v4lconvert_scale_packed(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, u32 bpp, enum v4lconvert_scale_filter filter) {
+	if (!bpp || !valid_sizes(src_width, src_height, dst_width, dst_height))
+		return EXIT_FAILURE;
+	struct plane_scaler scaler;
+	struct channel channel = { src, src_width * bpp, bpp, src_width, src_height };
+	u32* acc = malloc(src_width * sizeof(u32));
+	if (!acc || !plane_init(&scaler, channel, dst_width, dst_height, filter)) {
+		free(acc);
+		return EXIT_FAILURE;
+	}
+
+	for (u32 y = 0; y < dst_height; y++) {
+		u8* out = dst + (size_t) y * dst_width * bpp;
+		//The channels share the taps, only their first sample differs
+		for (u32 c = 0; c < bpp; c++) {
+			channel.data = src + c;
+			scale_row(&scaler, &channel, y, filter, acc, out + c, bpp);
+		}
+	}
+
+	plane_release(&scaler);
+	free(acc);
+	return EXIT_SUCCESS;
+}
+
+int v4lconvert_scale_yuyv(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool luma_first, enum v4lconvert_scale_filter filter) {
+	if (!valid_sizes(src_width / 2, src_height, dst_width / 2, dst_height) || (src_width | dst_width) & 1)
+		return EXIT_FAILURE;
+	const u32 luma_offset = luma_first ? 0 : 1;
+	const u32 chroma_offset = 1 - luma_offset;
+	struct plane_scaler luma, chroma;
+	struct channel u = { src + chroma_offset, src_width * 2, 4, src_width / 2, src_height };
+	struct channel v = u;
+	v.data += 2;
+	u32* acc = malloc(src_width * sizeof(u32));
+	if (!acc || !plane_init(&luma, (struct channel) { src + luma_offset, src_width * 2, 2, src_width, src_height }, dst_width, dst_height, filter)) {
+		free(acc);
+		return EXIT_FAILURE;
+	}
+	if (!plane_init(&chroma, u, dst_width / 2, dst_height, filter)) {
+		plane_release(&luma);
+		free(acc);
+		return EXIT_FAILURE;
+	}
+
+	for (u32 y = 0; y < dst_height; y++) {
+		u8* out = dst + (size_t) y * dst_width * 2;
+		scale_row(&luma, &luma.src, y, filter, acc, out + luma_offset, 2);
+		scale_row(&chroma, &u, y, filter, acc, out + chroma_offset, 4);
+		scale_row(&chroma, &v, y, filter, acc, out + chroma_offset + 2, 4);
+	}
+
+	plane_release(&chroma);
+	plane_release(&luma);
+	free(acc);
+	return EXIT_SUCCESS;
+}
+
+int v4lconvert_scale_yuv420(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, enum v4lconvert_scale_filter filter) {
+	if (!valid_sizes(src_width / 2, src_height / 2, dst_width / 2, dst_height / 2) || (src_width | src_height | dst_width | dst_height) & 1)
+		return EXIT_FAILURE;
+	const size_t src_luma = (size_t) src_width * src_height;
+	const size_t dst_luma = (size_t) dst_width * dst_height;
+	struct plane_scaler luma, chroma;
+	u32* acc = malloc(src_width * sizeof(u32));
+	if (!acc || !plane_init(&luma, (struct channel) { src, src_width, 1, src_width, src_height }, dst_width, dst_height, filter)) {
+		free(acc);
+		return EXIT_FAILURE;
+	}
+	if (!plane_init(&chroma, (struct channel) { src + src_luma, src_width / 2, 1, src_width / 2, src_height / 2 }, dst_width / 2, dst_height / 2, filter)) {
+		plane_release(&luma);
+		free(acc);
+		return EXIT_FAILURE;
+	}
+
+	scale_plane(&luma, filter, acc, dst, dst_width);
+	//Both chroma planes have the same geometry
+	scale_plane(&chroma, filter, acc, dst + dst_luma, dst_width / 2);
+	chroma.src.data += src_luma / 4;
+	scale_plane(&chroma, filter, acc, dst + dst_luma + dst_luma / 4, dst_width / 2);
+
+	plane_release(&chroma);
+	plane_release(&luma);
+	free(acc);
+	return EXIT_SUCCESS;
+}
+
+/*
+ * Scales the three channels of a YUV frame, whose chroma channels have the
+ * same geometry, to the full output size and converts them to RGB row by row
+ */
+static int yuv_to_rgb24_scaled(struct channel luma_src, struct channel u, struct channel v, u8* dst, u32 dst_width, u32 dst_height, bool bgr, enum v4lconvert_scale_filter filter) {
+	struct plane_scaler luma, chroma;
+	//Accumulator, then the Y, U and V rows
+	u32* acc = malloc(luma_src.width * sizeof(u32) + (size_t) dst_width * 3);
+	if (!acc || !plane_init(&luma, luma_src, dst_width, dst_height, filter)) {
+		free(acc);
+		return EXIT_FAILURE;
+	}
+	if (!plane_init(&chroma, u, dst_width, dst_height, filter)) {
+		plane_release(&luma);
+		free(acc);
+		return EXIT_FAILURE;
+	}
+	u8* row_y = (u8*) (acc + luma_src.width);
+	u8* row_u = row_y + dst_width;
+	u8* row_v = row_u + dst_width;
+
+	for (u32 y = 0; y < dst_height; y++) {
+		scale_row(&luma, &luma.src, y, filter, acc, row_y, 1);
+		scale_row(&chroma, &u, y, filter, acc, row_u, 1);
+		scale_row(&chroma, &v, y, filter, acc, row_v, 1);
+		yuv_row_to_rgb24(row_y, row_u, row_v, dst + (size_t) y * dst_width * 3, dst_width, bgr);
+	}
+
+	plane_release(&chroma);
+	plane_release(&luma);
+	free(acc);
+	return EXIT_SUCCESS;
+}
+
+static int packed_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool luma_first, bool bgr, enum v4lconvert_scale_filter filter) {
+	if (!valid_sizes(src_width / 2, src_height, dst_width, dst_height) || src_width & 1)
+		return EXIT_FAILURE;
+	const u32 luma_offset = luma_first ? 0 : 1;
+	const u32 chroma_offset = 1 - luma_offset;
+	struct channel luma = { src + luma_offset, src_width * 2, 2, src_width, src_height };
+	struct channel u = { src + chroma_offset, src_width * 2, 4, src_width / 2, src_height };
+	struct channel v = u;
+	v.data += 2;
+	return yuv_to_rgb24_scaled(luma, u, v, dst, dst_width, dst_height, bgr, filter);
+}
+
+int v4lconvert_yuyv_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, enum v4lconvert_scale_filter filter) {
+	return packed_to_rgb24_scaled(src, src_width, src_height, dst, dst_width, dst_height, true, bgr, filter);
+}
+
+int v4lconvert_uyvy_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, enum v4lconvert_scale_filter filter) {
+	return packed_to_rgb24_scaled(src, src_width, src_height, dst, dst_width, dst_height, false, bgr, filter);
+}
+
+int v4lconvert_yuv420_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, bool yvu, enum v4lconvert_scale_filter filter) {
+	if (!valid_sizes(src_width / 2, src_height / 2, dst_width, dst_height) || (src_width | src_height) & 1)
+		return EXIT_FAILURE;
+	const size_t src_luma = (size_t) src_width * src_height;
+	struct channel luma = { src, src_width, 1, src_width, src_height };
+	struct channel u = { src + src_luma, src_width / 2, 1, src_width / 2, src_height / 2 };
+	struct channel v = u;
+	if (yvu)
+		u.data += src_luma / 4;
+	else
+		v.data += src_luma / 4;
+	return yuv_to_rgb24_scaled(luma, u, v, dst, dst_width, dst_height, bgr, filter);
+}
@@ -0,0 +1,70 @@
+/*
+ * Downscaling and upscaling of frames, optionally fused with the conversion
+ * from YUV to RGB so that full resolution RGB frames are never written out
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __LIBV4LCONVERT_SCALE_H
+#define __LIBV4LCONVERT_SCALE_H
+
+#include <stdbool.h>
+#include "types.h"
+
+enum v4lconvert_scale_filter {
+	/**
+	 * Each output pixel is the average of the source pixels it covers. Best
+	 * for downscaling; upscales by repeating pixels.
+	 */
+	V4LCONVERT_SCALE_BOX = 0,
+	/**
+	 * Each output pixel is interpolated from the 2x2 source pixels closest to
+	 * its centre. Smooth when upscaling, but aliases when downscaling by more
+	 * than 2.
+	 */
+	V4LCONVERT_SCALE_BILINEAR = 1
+};
+
+/**
+ * Scale a frame whose pixels are made of <code>bpp</code> interleaved 8 bit
+ * channels, such as RGB24, BGR24, RGB32 or GREY
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if a size is 0 or out of memory
+ */
+extern int v4lconvert_scale_packed(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, u32 bpp, enum v4lconvert_scale_filter filter);
+
+/**
+ * Scale a packed 4:2:2 frame. Widths must be even.
+ * @param luma_first true for YUYV and YVYU, false for UYVY and VYUY
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if a size is invalid or out of memory
+ */
+extern int v4lconvert_scale_yuyv(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool luma_first, enum v4lconvert_scale_filter filter);
+
+/**
+ * Scale a planar 4:2:0 frame (YUV420 or YVU420). Sizes must be even.
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if a size is invalid or out of memory
+ */
+extern int v4lconvert_scale_yuv420(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, enum v4lconvert_scale_filter filter);
+
+/**
+ * Scale a YUYV frame and convert it to RGB24 or BGR24 in one pass. Only the
+ * rows of the source the filter needs are read, and only the scaled frame is
+ * written. The source width must be even.
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if a size is invalid or out of memory
+ */
+extern int v4lconvert_yuyv_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, enum v4lconvert_scale_filter filter);
+
+/**
+ * Same as v4lconvert_yuyv_to_rgb24_scaled(), from UYVY
+ */
+extern int v4lconvert_uyvy_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, enum v4lconvert_scale_filter filter);
+
+/**
+ * Scale a YUV420 (or YVU420, if <code>yvu</code>) frame and convert it to
+ * RGB24 or BGR24 in one pass. Source sizes must be even.
+ * @return EXIT_SUCCESS, or EXIT_FAILURE if a size is invalid or out of memory
+ */
+extern int v4lconvert_yuv420_to_rgb24_scaled(const u8* src, u32 src_width, u32 src_height, u8* dst, u32 dst_width, u32 dst_height, bool bgr, bool yvu, enum v4lconvert_scale_filter filter);
+
+#endif
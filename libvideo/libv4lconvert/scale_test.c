@@ -0,0 +1,198 @@
+/*
+ * Checks the scalers against straightforward reference results, and the
+ * fused YUV to RGB scalers against the plain converters. Run with -b to
+ * compare converting then scaling with the fused converters.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "libv4lconvert-priv.h"
+#include "scale.h"
+
+#define BENCHMARK_ROUNDS 50
+
+#define ARRAY_SIZE(x) (sizeof(x) / sizeof((x)[0]))
+
+static const enum v4lconvert_scale_filter filters[] = { V4LCONVERT_SCALE_BOX, V4LCONVERT_SCALE_BILINEAR };
+static const char* const filter_names[] = { "box", "bilinear" };
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+/*
+ * Scaling to the same size must not change anything
+ */
+static int check_identity(u32 width, u32 height) {
+	size_t size = (size_t) width * height * 3;
+	u8* src = malloc(size);
+	u8* dst = malloc(size);
+	int failures = 0;
+	fill_source(src, size);
+	for (unsigned int f = 0; f < ARRAY_SIZE(filters); f++) {
+		if (v4lconvert_scale_packed(src, width, height, dst, width, height, 3, filters[f]) || memcmp(src, dst, size)) {
+			fprintf(stderr, "FAIL %s RGB24 %ux%u to the same size\n", filter_names[f], width, height);
+			failures++;
+		}
+		if (v4lconvert_scale_yuyv(src, width, height, dst, width, height, true, filters[f]) || memcmp(src, dst, (size_t) width * height * 2)) {
+			fprintf(stderr, "FAIL %s YUYV %ux%u to the same size\n", filter_names[f], width, height);
+			failures++;
+		}
+		if (v4lconvert_scale_yuv420(src, width, height, dst, width, height, filters[f]) || memcmp(src, dst, (size_t) width * height * 3 / 2)) {
+			fprintf(stderr, "FAIL %s YUV420 %ux%u to the same size\n", filter_names[f], width, height);
+			failures++;
+		}
+	}
+	free(src);
+	free(dst);
+	return failures;
+}
+
+/*
+ * Halving with the box filter averages each 2x2 block
+ */
+static int check_halve(u32 width, u32 height) {
+	size_t size = (size_t) width * height * 3;
+	u8* src = malloc(size);
+	u8* dst = malloc(size / 4);
+	int failures = 0;
+	fill_source(src, size);
+	v4lconvert_scale_packed(src, width, height, dst, width / 2, height / 2, 3, V4LCONVERT_SCALE_BOX);
+	for (u32 y = 0; y < height / 2 && !failures; y++) {
+		for (u32 x = 0; x < width / 2 * 3; x++) {
+			const u8* in = src + (size_t) y * 2 * width * 3 + (x / 3) * 6 + x % 3;
+			u32 expected = (u32) (in[0] + in[3] + in[width * 3] + in[width * 3 + 3] + 2) / 4;
+			if (dst[(size_t) y * width / 2 * 3 + x] != expected) {
+				fprintf(stderr, "FAIL halving %ux%u: byte %u of row %u is %u, expected %u\n", width, height, x, y, dst[(size_t) y * width / 2 * 3 + x], expected);
+				failures++;
+				break;
+			}
+		}
+	}
+	free(src);
+	free(dst);
+	return failures;
+}
+
+/*
+ * A flat frame stays flat whatever the sizes and filter
+ */
+static int check_flat(u32 src_width, u32 src_height, u32 dst_width, u32 dst_height) {
+	u8* src = malloc((size_t) src_width * src_height * 3);
+	u8* dst = malloc((size_t) dst_width * dst_height * 3);
+	int failures = 0;
+	for (u32 i = 0; i < src_width * src_height * 3; i++)
+		src[i] = (u8) (i % 3 * 50 + 60);
+	for (unsigned int f = 0; f < ARRAY_SIZE(filters); f++) {
+		v4lconvert_scale_packed(src, src_width, src_height, dst, dst_width, dst_height, 3, filters[f]);
+		for (u32 i = 0; i < dst_width * dst_height * 3; i++) {
+			if (dst[i] != i % 3 * 50 + 60) {
+				fprintf(stderr, "FAIL %s %ux%u to %ux%u: flat frame changed at byte %u\n", filter_names[f], src_width, src_height, dst_width, dst_height, i);
+				failures++;
+				break;
+			}
+		}
+	}
+	free(src);
+	free(dst);
+	return failures;
+}
+
+/*
+ * The fused converters must match the plain converters when not scaling
+ */
+static int check_fused(u32 width, u32 height) {
+	size_t size = (size_t) width * height * 3;
+	u8* src = malloc(size);
+	u8* expected = malloc(size);
+	u8* actual = malloc(size);
+	int failures = 0;
+	fill_source(src, size);
+
+	v4lconvert_yuyv_to_rgb24(src, expected, width, height);
+	v4lconvert_yuyv_to_rgb24_scaled(src, width, height, actual, width, height, false, V4LCONVERT_SCALE_BOX);
+	if (memcmp(expected, actual, size)) {
+		fprintf(stderr, "FAIL YUYV to RGB24 %ux%u differs from unscaled conversion\n", width, height);
+		failures++;
+	}
+	v4lconvert_yuv420_to_rgb24(src, expected, width, height, false);
+	v4lconvert_yuv420_to_rgb24_scaled(src, width, height, actual, width, height, false, false, V4LCONVERT_SCALE_BOX);
+	if (memcmp(expected, actual, size)) {
+		fprintf(stderr, "FAIL YUV420 to RGB24 %ux%u differs from unscaled conversion\n", width, height);
+		failures++;
+	}
+
+	free(src);
+	free(expected);
+	free(actual);
+	return failures;
+}
+
+static double elapsed_ms(const struct timespec* start, const struct timespec* end) {
+	return ((double) (end->tv_sec - start->tv_sec) * 1e3 + (double) (end->tv_nsec - start->tv_nsec) / 1e6) / BENCHMARK_ROUNDS;
+}
+
+static void benchmark(u32 src_width, u32 src_height, u32 dst_width, u32 dst_height) {
+	u8* src = malloc((size_t) src_width * src_height * 2);
+	u8* rgb = malloc((size_t) src_width * src_height * 3);
+	u8* dst = malloc((size_t) dst_width * dst_height * 3);
+	struct timespec start, end;
+	fill_source(src, (size_t) src_width * src_height * 2);
+
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+		v4lconvert_yuyv_to_rgb24(src, rgb, src_width, src_height);
+		v4lconvert_scale_packed(rgb, src_width, src_height, dst, dst_width, dst_height, 3, V4LCONVERT_SCALE_BOX);
+	}
+	clock_gettime(CLOCK_MONOTONIC, &end);
+	printf("YUYV %ux%u -> RGB24 %ux%u: convert then scale %.2f ms", src_width, src_height, dst_width, dst_height, elapsed_ms(&start, &end));
+	for (unsigned int f = 0; f < ARRAY_SIZE(filters); f++) {
+		clock_gettime(CLOCK_MONOTONIC, &start);
+		for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+			v4lconvert_yuyv_to_rgb24_scaled(src, src_width, src_height, dst, dst_width, dst_height, false, filters[f]);
+		clock_gettime(CLOCK_MONOTONIC, &end);
+		printf(", fused %s %.2f ms", filter_names[f], elapsed_ms(&start, &end));
+	}
+	printf("\n");
+
+	free(src);
+	free(rgb);
+	free(dst);
+}
+
+int main(int argc, char** argv) {
+	int failures = 0;
+
+	failures += check_identity(64, 48);
+	failures += check_identity(2, 2);
+	failures += check_halve(64, 48);
+	failures += check_halve(1920, 1080);
+	failures += check_flat(1920, 1080, 640, 360);
+	failures += check_flat(640, 480, 1001, 701);
+	failures += check_flat(3, 3, 1, 1);
+	failures += check_flat(1, 1, 7, 5);
+	failures += check_fused(64, 48);
+	failures += check_fused(640, 480);
+	if (v4lconvert_scale_yuyv(NULL, 3, 2, NULL, 2, 2, true, V4LCONVERT_SCALE_BOX) != EXIT_FAILURE
+			|| v4lconvert_scale_packed(NULL, 0, 2, NULL, 2, 2, 3, V4LCONVERT_SCALE_BOX) != EXIT_FAILURE) {
+		fprintf(stderr, "FAIL invalid sizes accepted\n");
+		failures++;
+	}
+
+	if (argc > 1 && !strcmp(argv[1], "-b")) {
+		benchmark(1920, 1080, 640, 360);
+		benchmark(1280, 720, 320, 240);
+	}
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,210 @@
+/*
+ * Checks encoder series: that a series converts frames as the converters it
+ * is made of would, that the intermediate buffers it asks for are large
+ * enough, and that computed conversions respect their maximum length
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "libv4lconvert-flat.h"
+
+#define WIDTH 64
+#define HEIGHT 48
+
+static void fill_source(u8* src, size_t size) {
+	srand(1);
+	for (size_t i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+static int check_output(const u8* dst, const u8* expected, u32 len, u32 expected_len, const char* what) {
+	if (len != expected_len) {
+		fprintf(stderr, "FAIL %s wrote %u bytes (expected %u)\n", what, len, expected_len);
+		return 1;
+	}
+	if (memcmp(dst, expected, len)) {
+		fprintf(stderr, "FAIL %s differs from converting directly\n", what);
+		return 1;
+	}
+	return 0;
+}
+
+/* Converts a frame with a series, in buffers sized as the series asks */
+static u32 convert(struct v4lconvert_encoder_series* series, const u8* src, u32 src_len, u8** out) {
+	struct v4lconvert_buffer buffer;
+	struct v4lconvert_buffer* buffers[] = { &buffer };
+	memset(&buffer, 0, sizeof(buffer));
+	if (v4lconvert_encoder_series_createBuffers(series, 1, buffers, 1) != EXIT_SUCCESS)
+		return 0;
+	buffer.buf0 = (u8*) src;
+	buffer.buf0_len = src_len;
+	u32 len = series->convert(series, &buffer);
+	//buf0 is the caller's
+	buffer.buf0 = NULL;
+	*out = malloc(buffer.buf1_cap);
+	memcpy(*out, buffer.buf1, buffer.buf1_cap);
+	v4lconvert_buffer_release(&buffer);
+	return len;
+}
+
+static int check_single(void) {
+	const u32 src_len = WIDTH * HEIGHT * 2, dst_len = WIDTH * HEIGHT * 3;
+	u8* src = malloc(src_len);
+	u8* expected = malloc(dst_len);
+	u8* dst = NULL;
+	int failures = 0;
+	fill_source(src, src_len);
+	v4lconvert_yuyv_to_rgb24(src, expected, WIDTH, HEIGHT);
+
+	struct v4lconvert_encoder encoder;
+	struct v4lconvert_encoder* encoders[] = { &encoder };
+	struct v4lconvert_encoder_series series;
+	memset(&encoder, 0, sizeof(encoder));
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_initForIMF(&encoder, YUYV, RGB24, WIDTH, HEIGHT) != EXIT_SUCCESS
+			|| v4lconvert_encoder_series_initWithEncoders(&series, 1, encoders) != EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL could not create a YUYV to RGB24 series\n");
+		failures++;
+	} else {
+		u32 buf1_len, buf2_len;
+		v4lconvert_encoder_series_getBufferSizes(&series, &buf1_len, &buf2_len);
+		if (buf1_len < dst_len || buf2_len != 0) {
+			fprintf(stderr, "FAIL single stage series asks for buffers of %u and %u bytes\n", buf1_len, buf2_len);
+			failures++;
+		}
+		u32 len = convert(&series, src, src_len, &dst);
+		failures += check_output(dst, expected, len, dst_len, "YUYV to RGB24 series");
+		series.release(&series);
+	}
+	if (encoder.release)
+		encoder.release(&encoder);
+	free(dst);
+	free(expected);
+	free(src);
+	return failures;
+}
+
+static int check_chained(void) {
+	const u32 src_len = WIDTH * HEIGHT * 2, mid_len = WIDTH * HEIGHT * 3 / 2, dst_len = WIDTH * HEIGHT * 3;
+	u8* src = malloc(src_len);
+	u8* mid = malloc(mid_len);
+	u8* expected = malloc(dst_len);
+	u8* dst = NULL;
+	int failures = 0;
+	fill_source(src, src_len);
+	v4lconvert_yuyv_to_yuv420(src, mid, WIDTH, HEIGHT, false);
+	v4lconvert_yuv420_to_rgb24(mid, expected, WIDTH, HEIGHT, false);
+
+	struct v4lconvert_encoder first, second;
+	struct v4lconvert_encoder* encoders[] = { &first, &second };
+	struct v4lconvert_encoder_series series;
+	memset(&first, 0, sizeof(first));
+	memset(&second, 0, sizeof(second));
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_initForIMF(&first, YUYV, YUV420, WIDTH, HEIGHT) != EXIT_SUCCESS
+			|| v4lconvert_encoder_initForIMF(&second, YUV420, RGB24, WIDTH, HEIGHT) != EXIT_SUCCESS
+			|| v4lconvert_encoder_series_initWithEncoders(&series, 2, encoders) != EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL could not create a YUYV to YUV420 to RGB24 series\n");
+		failures++;
+	} else {
+		//The first stage writes the intermediate buffer, the last one the output buffer
+		u32 buf1_len, buf2_len;
+		v4lconvert_encoder_series_getBufferSizes(&series, &buf1_len, &buf2_len);
+		if (buf1_len < dst_len || buf2_len < mid_len) {
+			fprintf(stderr, "FAIL two stage series asks for buffers of %u and %u bytes\n", buf1_len, buf2_len);
+			failures++;
+		}
+		u32 len = convert(&series, src, src_len, &dst);
+		failures += check_output(dst, expected, len, dst_len, "YUYV to YUV420 to RGB24 series");
+		series.release(&series);
+	}
+
+	//Stages whose formats don't follow each other can't be chained
+	struct v4lconvert_encoder* swapped[] = { &second, &first };
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_series_initWithEncoders(&series, 2, swapped) == EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL chained YUV420 to RGB24 with YUYV to YUV420\n");
+		series.release(&series);
+		failures++;
+	}
+	if (first.release)
+		first.release(&first);
+	if (second.release)
+		second.release(&second);
+	free(dst);
+	free(expected);
+	free(mid);
+	free(src);
+	return failures;
+}
+
+static int check_computed(void) {
+	struct v4lconvert_encoder_series series;
+	int failures = 0;
+
+	//There is no direct GREY to BGR24 converter
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_series_computeConversion(&series, WIDTH, HEIGHT, GREY, BGR24, 1) == EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL computed a GREY to BGR24 conversion of a single converter\n");
+		series.release(&series);
+		failures++;
+	}
+
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_series_computeConversion(&series, WIDTH, HEIGHT, GREY, BGR24, 4) != EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL could not compute a GREY to BGR24 conversion\n");
+		return failures + 1;
+	}
+	if (series.num_encoders != 2 || series.src_fmt != GREY || series.dst_fmt != BGR24) {
+		fprintf(stderr, "FAIL computed GREY to BGR24 conversion of %zu converters, from %u to %u\n", series.num_encoders, series.src_fmt, series.dst_fmt);
+		failures++;
+	}
+
+	//Grey frames have the same value in all three channels, whichever way they are converted
+	const u32 src_len = WIDTH * HEIGHT, dst_len = WIDTH * HEIGHT * 3;
+	u8* src = malloc(src_len);
+	u8* dst = NULL;
+	memset(src, 0x80, src_len);
+	u32 len = convert(&series, src, src_len, &dst);
+	if (len != dst_len) {
+		fprintf(stderr, "FAIL GREY to BGR24 series wrote %u bytes (expected %u)\n", len, dst_len);
+		failures++;
+	} else {
+		for (u32 i = 0; i < len; i += 3) {
+			if (dst[i] != dst[i + 1] || dst[i] != dst[i + 2]) {
+				fprintf(stderr, "FAIL GREY to BGR24 series gave a coloured pixel at %u\n", i / 3);
+				failures++;
+				break;
+			}
+		}
+	}
+	series.release(&series);
+	free(dst);
+	free(src);
+
+	//Converting to the same format isn't a conversion
+	memset(&series, 0, sizeof(series));
+	if (v4lconvert_encoder_series_computeConversion(&series, WIDTH, HEIGHT, RGB24, RGB24, 4) == EXIT_SUCCESS) {
+		fprintf(stderr, "FAIL computed a conversion from RGB24 to itself\n");
+		series.release(&series);
+		failures++;
+	}
+	return failures;
+}
+
+int main(void) {
+	int failures = 0;
+
+	failures += check_single();
+	failures += check_chained();
+	failures += check_computed();
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,463 @@
+/*
+ * YUV -> RGB conversion routines, optimized for x86 SSSE3 and AVX2
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Each routine is compiled for its own instruction set with the target
+ * attribute, so this file builds without -mssse3/-mavx2, and the one to use
+ * is picked at runtime from the CPU features.
+ *
+ * The routines compute exactly what the scalar ones in rgbyuv.c do: the
+ * chroma terms use the same single precision operations in the same order
+ * (see UV2U1, UV2RG and UV2V1), are truncated the same way, and the final
+ * clipping is done by the saturating pack instructions. They are only
+ * enabled with the default CONVERSION_QUALITY of 3.
+ */
+
+#include <immintrin.h>
+#include "rgbyuv_x86.h"
+#include "../rgbyuv.h" //For UV2U1, UV2RG, UV2V1, CLIP_RGB, FIX_Y macros
+
+#define TARGET_SSSE3 __attribute__((target("ssse3")))
+#define TARGET_AVX2 __attribute__((target("avx2")))
+
+#define V4LCONVERT_X86_UNKNOWN -1
+
+static int v4lconvert_x86_level = V4LCONVERT_X86_UNKNOWN;
+
+/*
+ * pshufb masks interleaving three registers of 16 samples (one per channel)
+ * into 48 bytes of RGB24: rgb24_shuffle[o][c] places the samples of channel c
+ * in output register o. 0x80 clears the byte.
+ */
+#define Z 0x80
+static const u8 rgb24_shuffle[3][3][16] __attribute__((aligned(16))) = {
+	{
+		{ 0, Z, Z, 1, Z, Z, 2, Z, Z, 3, Z, Z, 4, Z, Z, 5 },
+		{ Z, 0, Z, Z, 1, Z, Z, 2, Z, Z, 3, Z, Z, 4, Z, Z },
+		{ Z, Z, 0, Z, Z, 1, Z, Z, 2, Z, Z, 3, Z, Z, 4, Z },
+	}, {
+		{ Z, Z, 6, Z, Z, 7, Z, Z, 8, Z, Z, 9, Z, Z, 10, Z },
+		{ 5, Z, Z, 6, Z, Z, 7, Z, Z, 8, Z, Z, 9, Z, Z, 10 },
+		{ Z, 5, Z, Z, 6, Z, Z, 7, Z, Z, 8, Z, Z, 9, Z, Z },
+	}, {
+		{ Z, 11, Z, Z, 12, Z, Z, 13, Z, Z, 14, Z, Z, 15, Z, Z },
+		{ Z, Z, 11, Z, Z, 12, Z, Z, 13, Z, Z, 14, Z, Z, 15, Z },
+		{ 10, Z, Z, 11, Z, Z, 12, Z, Z, 13, Z, Z, 14, Z, Z, 15 },
+	}
+};
+#undef Z
+
+static enum v4lconvert_x86_level v4lconvert_x86_detect_level(void) {
+#if CONVERSION_QUALITY == 3
+	__builtin_cpu_init();
+	if (__builtin_cpu_supports("avx2"))
+		return V4LCONVERT_X86_AVX2;
+	if (__builtin_cpu_supports("ssse3"))
+		return V4LCONVERT_X86_SSSE3;
+#endif
+	return V4LCONVERT_X86_SCALAR;
+}
+
+enum v4lconvert_x86_level v4lconvert_x86_get_level(void) {
+	int level = __atomic_load_n(&v4lconvert_x86_level, __ATOMIC_RELAXED);
+	if (level == V4LCONVERT_X86_UNKNOWN) {
+		//Racing threads all detect the same value
+		level = v4lconvert_x86_detect_level();
+		__atomic_store_n(&v4lconvert_x86_level, level, __ATOMIC_RELAXED);
+	}
+	return (enum v4lconvert_x86_level) level;
+}
+
+enum v4lconvert_x86_level v4lconvert_x86_set_level(enum v4lconvert_x86_level level) {
+	enum v4lconvert_x86_level supported = v4lconvert_x86_detect_level();
+	if (level > supported)
+		level = supported;
+	__atomic_store_n(&v4lconvert_x86_level, level, __ATOMIC_RELAXED);
+	return level;
+}
+
+/*
+ * Scalar conversion of one pixel pair, for the columns left over by the
+ * vector loops. Same formulas as rgbyuv.c.
+ */
+static inline void v4lconvert_x86_convert_pair(u8* dest, int y1, int y2, int u, int v, bool bgr) {
+	u -= 128;
+	v -= 128;
+	int u1 = UV2U1(u, v);
+	int rg = UV2RG(u, v);
+	int v1 = UV2V1(u, v);
+	int first = bgr ? u1 : v1;
+	int last = bgr ? v1 : u1;
+
+	y1 = FIX_Y(y1);
+	y2 = FIX_Y(y2);
+	dest[0] = CLIP_RGB(y1 + first);
+	dest[1] = CLIP_RGB(y1 - rg);
+	dest[2] = CLIP_RGB(y1 + last);
+	dest[3] = CLIP_RGB(y2 + first);
+	dest[4] = CLIP_RGB(y2 - rg);
+	dest[5] = CLIP_RGB(y2 + last);
+}
+
+/* SSSE3: 16 pixels per iteration */
+
+/*
+ * Computes the chroma terms of 8 pixel pairs. ua/va hold the U and V samples
+ * of the first 4 pairs as 32-bit integers, ub/vb those of the next 4. The
+ * terms are returned as 16-bit integers, one per pair.
+ */
+static inline TARGET_SSSE3 void v4lconvert_x86_chroma_ssse3(__m128i ua, __m128i va, __m128i ub, __m128i vb, __m128i* u1, __m128i* rg, __m128i* v1) {
+	const __m128i bias = _mm_set1_epi32(128);
+	const __m128 half = _mm_set1_ps(0.5f);
+	const __m128 u1_u = _mm_set1_ps(2.03211f);
+	const __m128 rg_u = _mm_set1_ps(0.39465f);
+	const __m128 rg_v = _mm_set1_ps(0.58060f);
+	const __m128 v1_v = _mm_set1_ps(1.13983f);
+
+	__m128 fua = _mm_cvtepi32_ps(_mm_sub_epi32(ua, bias));
+	__m128 fva = _mm_cvtepi32_ps(_mm_sub_epi32(va, bias));
+	__m128 fub = _mm_cvtepi32_ps(_mm_sub_epi32(ub, bias));
+	__m128 fvb = _mm_cvtepi32_ps(_mm_sub_epi32(vb, bias));
+
+	//The 0.00000f terms of the scalar formulas add a signed zero: no-op
+	*u1 = _mm_packs_epi32(_mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(fua, u1_u), half)),
+			_mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(fub, u1_u), half)));
+	*rg = _mm_packs_epi32(_mm_cvttps_epi32(_mm_sub_ps(_mm_add_ps(_mm_mul_ps(fua, rg_u), _mm_mul_ps(fva, rg_v)), half)),
+			_mm_cvttps_epi32(_mm_sub_ps(_mm_add_ps(_mm_mul_ps(fub, rg_u), _mm_mul_ps(fvb, rg_v)), half)));
+	*v1 = _mm_packs_epi32(_mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(fva, v1_v), half)),
+			_mm_cvttps_epi32(_mm_add_ps(_mm_mul_ps(fvb, v1_v), half)));
+}
+
+/*
+ * Interleaves 16 samples of each channel into 48 bytes of RGB24
+ */
+static inline TARGET_SSSE3 void v4lconvert_x86_store_ssse3(u8* dest, __m128i c0, __m128i c1, __m128i c2) {
+	for (int o = 0; o < 3; o++) {
+		__m128i out = _mm_or_si128(
+				_mm_or_si128(_mm_shuffle_epi8(c0, _mm_load_si128((const __m128i*) rgb24_shuffle[o][0])),
+						_mm_shuffle_epi8(c1, _mm_load_si128((const __m128i*) rgb24_shuffle[o][1]))),
+				_mm_shuffle_epi8(c2, _mm_load_si128((const __m128i*) rgb24_shuffle[o][2])));
+		_mm_storeu_si128((__m128i*) (dest + 16 * o), out);
+	}
+}
+
+/*
+ * Converts 16 pixels, whose luma is held in ylo (first 8) and yhi (last 8) as
+ * 16-bit integers, and chroma as described in v4lconvert_x86_chroma_ssse3().
+ */
+static inline TARGET_SSSE3 void v4lconvert_x86_convert_ssse3(u8* dest, __m128i ylo, __m128i yhi, __m128i ua, __m128i va, __m128i ub, __m128i vb, bool bgr) {
+	__m128i u1, rg, v1;
+	v4lconvert_x86_chroma_ssse3(ua, va, ub, vb, &u1, &rg, &v1);
+
+	//Each pair's terms apply to both of its pixels
+	__m128i r = _mm_packus_epi16(_mm_add_epi16(ylo, _mm_unpacklo_epi16(v1, v1)), _mm_add_epi16(yhi, _mm_unpackhi_epi16(v1, v1)));
+	__m128i g = _mm_packus_epi16(_mm_sub_epi16(ylo, _mm_unpacklo_epi16(rg, rg)), _mm_sub_epi16(yhi, _mm_unpackhi_epi16(rg, rg)));
+	__m128i b = _mm_packus_epi16(_mm_add_epi16(ylo, _mm_unpacklo_epi16(u1, u1)), _mm_add_epi16(yhi, _mm_unpackhi_epi16(u1, u1)));
+
+	if (bgr)
+		v4lconvert_x86_store_ssse3(dest, b, g, r);
+	else
+		v4lconvert_x86_store_ssse3(dest, r, g, b);
+}
+
+static TARGET_SSSE3 void v4lconvert_x86_packed_ssse3(const u8* src, u8* dest, u32 width, u32 height, enum v4lconvert_x86_packed_layout layout, bool bgr) {
+	const __m128i low_bytes = _mm_set1_epi16(0x00FF);
+	const __m128i low_words = _mm_set1_epi32(0xFFFF);
+	const u32 vector_width = width & ~15u;
+	const int y_offset = layout == V4LCONVERT_X86_UYVY ? 1 : 0;
+	const int u_offset = layout == V4LCONVERT_X86_YUYV ? 1 : layout == V4LCONVERT_X86_YVYU ? 3 : 0;
+
+	for (u32 i = 0; i < height; i++) {
+		u32 j = 0;
+		for (; j < vector_width; j += 16) {
+			__m128i a = _mm_loadu_si128((const __m128i*) src);
+			__m128i b = _mm_loadu_si128((const __m128i*) (src + 16));
+			__m128i ya, yb, ca, cb;
+			if (y_offset) {
+				ya = _mm_srli_epi16(a, 8);
+				yb = _mm_srli_epi16(b, 8);
+				ca = _mm_and_si128(a, low_bytes);
+				cb = _mm_and_si128(b, low_bytes);
+			} else {
+				ya = _mm_and_si128(a, low_bytes);
+				yb = _mm_and_si128(b, low_bytes);
+				ca = _mm_srli_epi16(a, 8);
+				cb = _mm_srli_epi16(b, 8);
+			}
+			//ca and cb hold the two chroma samples of each pair in 32 bits
+			__m128i first_a = _mm_and_si128(ca, low_words), second_a = _mm_srli_epi32(ca, 16);
+			__m128i first_b = _mm_and_si128(cb, low_words), second_b = _mm_srli_epi32(cb, 16);
+			if (layout == V4LCONVERT_X86_YVYU)
+				v4lconvert_x86_convert_ssse3(dest, ya, yb, second_a, first_a, second_b, first_b, bgr);
+			else
+				v4lconvert_x86_convert_ssse3(dest, ya, yb, first_a, second_a, first_b, second_b, bgr);
+			src += 32;
+			dest += 48;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, src[y_offset], src[y_offset + 2], src[u_offset], src[u_offset ^ 2], bgr);
+			src += 4;
+			dest += 6;
+		}
+	}
+}
+
+static TARGET_SSSE3 void v4lconvert_x86_yuv420_ssse3(const u8* ysrc, const u8* usrc, const u8* vsrc, u8* dest, u32 width, u32 height, bool bgr) {
+	const __m128i zero = _mm_setzero_si128();
+	const u32 vector_width = width & ~15u;
+
+	for (u32 i = 0; i < height; i++) {
+		const u8* y = ysrc + i * width;
+		const u8* u = usrc + (i / 2) * (width / 2);
+		const u8* v = vsrc + (i / 2) * (width / 2);
+		u32 j = 0;
+		for (; j < vector_width; j += 16) {
+			__m128i yv = _mm_loadu_si128((const __m128i*) (y + j));
+			__m128i uv = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*) (u + j / 2)), zero);
+			__m128i vv = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i*) (v + j / 2)), zero);
+			v4lconvert_x86_convert_ssse3(dest, _mm_unpacklo_epi8(yv, zero), _mm_unpackhi_epi8(yv, zero),
+					_mm_unpacklo_epi16(uv, zero), _mm_unpacklo_epi16(vv, zero),
+					_mm_unpackhi_epi16(uv, zero), _mm_unpackhi_epi16(vv, zero), bgr);
+			dest += 48;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, y[j], y[j + 1], u[j / 2], v[j / 2], bgr);
+			dest += 6;
+		}
+	}
+}
+
+static TARGET_SSSE3 void v4lconvert_x86_nv12_ssse3(const u8* ysrc, const u8* uvsrc, u8* dest, u32 width, u32 height, bool vu, bool bgr) {
+	const __m128i zero = _mm_setzero_si128();
+	const __m128i low_bytes = _mm_set1_epi16(0x00FF);
+	const u32 vector_width = width & ~15u;
+
+	for (u32 i = 0; i < height; i++) {
+		const u8* y = ysrc + i * width;
+		const u8* c = uvsrc + (i / 2) * width;
+		u32 j = 0;
+		for (; j < vector_width; j += 16) {
+			__m128i yv = _mm_loadu_si128((const __m128i*) (y + j));
+			__m128i cv = _mm_loadu_si128((const __m128i*) (c + j));
+			__m128i first = _mm_and_si128(cv, low_bytes), second = _mm_srli_epi16(cv, 8);
+			__m128i uv = vu ? second : first;
+			__m128i vv = vu ? first : second;
+			v4lconvert_x86_convert_ssse3(dest, _mm_unpacklo_epi8(yv, zero), _mm_unpackhi_epi8(yv, zero),
+					_mm_unpacklo_epi16(uv, zero), _mm_unpacklo_epi16(vv, zero),
+					_mm_unpackhi_epi16(uv, zero), _mm_unpackhi_epi16(vv, zero), bgr);
+			dest += 48;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, y[j], y[j + 1], c[j + vu], c[j + !vu], bgr);
+			dest += 6;
+		}
+	}
+}
+
+/*
+ * AVX2: 32 pixels per iteration. Most AVX2 instructions work on two
+ * independent 128-bit lanes, so data is laid out as two SSSE3 iterations
+ * side by side, and only brought back in order before being stored.
+ */
+
+static inline TARGET_AVX2 void v4lconvert_x86_chroma_avx2(__m256i ua, __m256i va, __m256i ub, __m256i vb, __m256i* u1, __m256i* rg, __m256i* v1) {
+	const __m256i bias = _mm256_set1_epi32(128);
+	const __m256 half = _mm256_set1_ps(0.5f);
+	const __m256 u1_u = _mm256_set1_ps(2.03211f);
+	const __m256 rg_u = _mm256_set1_ps(0.39465f);
+	const __m256 rg_v = _mm256_set1_ps(0.58060f);
+	const __m256 v1_v = _mm256_set1_ps(1.13983f);
+
+	__m256 fua = _mm256_cvtepi32_ps(_mm256_sub_epi32(ua, bias));
+	__m256 fva = _mm256_cvtepi32_ps(_mm256_sub_epi32(va, bias));
+	__m256 fub = _mm256_cvtepi32_ps(_mm256_sub_epi32(ub, bias));
+	__m256 fvb = _mm256_cvtepi32_ps(_mm256_sub_epi32(vb, bias));
+
+	//No FMA: a fused multiply-add rounds differently from the scalar code
+	*u1 = _mm256_packs_epi32(_mm256_cvttps_epi32(_mm256_add_ps(_mm256_mul_ps(fua, u1_u), half)),
+			_mm256_cvttps_epi32(_mm256_add_ps(_mm256_mul_ps(fub, u1_u), half)));
+	*rg = _mm256_packs_epi32(_mm256_cvttps_epi32(_mm256_sub_ps(_mm256_add_ps(_mm256_mul_ps(fua, rg_u), _mm256_mul_ps(fva, rg_v)), half)),
+			_mm256_cvttps_epi32(_mm256_sub_ps(_mm256_add_ps(_mm256_mul_ps(fub, rg_u), _mm256_mul_ps(fvb, rg_v)), half)));
+	*v1 = _mm256_packs_epi32(_mm256_cvttps_epi32(_mm256_add_ps(_mm256_mul_ps(fva, v1_v), half)),
+			_mm256_cvttps_epi32(_mm256_add_ps(_mm256_mul_ps(fvb, v1_v), half)));
+}
+
+/*
+ * Interleaves 32 samples of each channel into 96 bytes of RGB24. The low
+ * lane of each register holds the first 16 samples.
+ */
+static inline TARGET_AVX2 void v4lconvert_x86_store_avx2(u8* dest, __m256i c0, __m256i c1, __m256i c2) {
+	__m256i out[3];
+	for (int o = 0; o < 3; o++)
+		out[o] = _mm256_or_si256(
+				_mm256_or_si256(_mm256_shuffle_epi8(c0, _mm256_broadcastsi128_si256(_mm_load_si128((const __m128i*) rgb24_shuffle[o][0]))),
+						_mm256_shuffle_epi8(c1, _mm256_broadcastsi128_si256(_mm_load_si128((const __m128i*) rgb24_shuffle[o][1])))),
+				_mm256_shuffle_epi8(c2, _mm256_broadcastsi128_si256(_mm_load_si128((const __m128i*) rgb24_shuffle[o][2]))));
+	//The low lanes hold the first 48 bytes, the high lanes the next 48
+	_mm256_storeu_si256((__m256i*) dest, _mm256_permute2x128_si256(out[0], out[1], 0x20));
+	_mm256_storeu_si256((__m256i*) (dest + 32), _mm256_permute2x128_si256(out[2], out[0], 0x30));
+	_mm256_storeu_si256((__m256i*) (dest + 64), _mm256_permute2x128_si256(out[1], out[2], 0x31));
+}
+
+/*
+ * Converts 32 pixels. ya holds the luma of pixels 0-7 | 8-15 (low | high
+ * lane) as 16-bit integers, yb that of pixels 16-23 | 24-31. ua/va hold the
+ * chroma of pairs 0-3 | 4-7 as 32-bit integers, ub/vb that of pairs
+ * 8-11 | 12-15.
+ */
+static inline TARGET_AVX2 void v4lconvert_x86_convert_avx2(u8* dest, __m256i ya, __m256i yb, __m256i ua, __m256i va, __m256i ub, __m256i vb, bool bgr) {
+	__m256i u1, rg, v1;
+	//Terms come out as pairs 0-3, 8-11 | 4-7, 12-15
+	v4lconvert_x86_chroma_avx2(ua, va, ub, vb, &u1, &rg, &v1);
+
+	//Channels come out as pixels 0-7, 16-23 | 8-15, 24-31: swap the middle quadwords
+	__m256i r = _mm256_permute4x64_epi64(_mm256_packus_epi16(_mm256_add_epi16(ya, _mm256_unpacklo_epi16(v1, v1)),
+			_mm256_add_epi16(yb, _mm256_unpackhi_epi16(v1, v1))), _MM_SHUFFLE(3, 1, 2, 0));
+	__m256i g = _mm256_permute4x64_epi64(_mm256_packus_epi16(_mm256_sub_epi16(ya, _mm256_unpacklo_epi16(rg, rg)),
+			_mm256_sub_epi16(yb, _mm256_unpackhi_epi16(rg, rg))), _MM_SHUFFLE(3, 1, 2, 0));
+	__m256i b = _mm256_permute4x64_epi64(_mm256_packus_epi16(_mm256_add_epi16(ya, _mm256_unpacklo_epi16(u1, u1)),
+			_mm256_add_epi16(yb, _mm256_unpackhi_epi16(u1, u1))), _MM_SHUFFLE(3, 1, 2, 0));
+
+	if (bgr)
+		v4lconvert_x86_store_avx2(dest, b, g, r);
+	else
+		v4lconvert_x86_store_avx2(dest, r, g, b);
+}
+
+static TARGET_AVX2 void v4lconvert_x86_packed_avx2(const u8* src, u8* dest, u32 width, u32 height, enum v4lconvert_x86_packed_layout layout, bool bgr) {
+	const __m256i low_bytes = _mm256_set1_epi16(0x00FF);
+	const __m256i low_words = _mm256_set1_epi32(0xFFFF);
+	const u32 vector_width = width & ~31u;
+	const int y_offset = layout == V4LCONVERT_X86_UYVY ? 1 : 0;
+	const int u_offset = layout == V4LCONVERT_X86_YUYV ? 1 : layout == V4LCONVERT_X86_YVYU ? 3 : 0;
+
+	for (u32 i = 0; i < height; i++) {
+		u32 j = 0;
+		for (; j < vector_width; j += 32) {
+			__m256i a = _mm256_loadu_si256((const __m256i*) src);
+			__m256i b = _mm256_loadu_si256((const __m256i*) (src + 32));
+			__m256i ya, yb, ca, cb;
+			if (y_offset) {
+				ya = _mm256_srli_epi16(a, 8);
+				yb = _mm256_srli_epi16(b, 8);
+				ca = _mm256_and_si256(a, low_bytes);
+				cb = _mm256_and_si256(b, low_bytes);
+			} else {
+				ya = _mm256_and_si256(a, low_bytes);
+				yb = _mm256_and_si256(b, low_bytes);
+				ca = _mm256_srli_epi16(a, 8);
+				cb = _mm256_srli_epi16(b, 8);
+			}
+			__m256i first_a = _mm256_and_si256(ca, low_words), second_a = _mm256_srli_epi32(ca, 16);
+			__m256i first_b = _mm256_and_si256(cb, low_words), second_b = _mm256_srli_epi32(cb, 16);
+			if (layout == V4LCONVERT_X86_YVYU)
+				v4lconvert_x86_convert_avx2(dest, ya, yb, second_a, first_a, second_b, first_b, bgr);
+			else
+				v4lconvert_x86_convert_avx2(dest, ya, yb, first_a, second_a, first_b, second_b, bgr);
+			src += 64;
+			dest += 96;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, src[y_offset], src[y_offset + 2], src[u_offset], src[u_offset ^ 2], bgr);
+			src += 4;
+			dest += 6;
+		}
+	}
+}
+
+static TARGET_AVX2 void v4lconvert_x86_yuv420_avx2(const u8* ysrc, const u8* usrc, const u8* vsrc, u8* dest, u32 width, u32 height, bool bgr) {
+	const u32 vector_width = width & ~31u;
+
+	for (u32 i = 0; i < height; i++) {
+		const u8* y = ysrc + i * width;
+		const u8* u = usrc + (i / 2) * (width / 2);
+		const u8* v = vsrc + (i / 2) * (width / 2);
+		u32 j = 0;
+		for (; j < vector_width; j += 32) {
+			v4lconvert_x86_convert_avx2(dest,
+					_mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (y + j))),
+					_mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (y + j + 16))),
+					_mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i*) (u + j / 2))),
+					_mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i*) (v + j / 2))),
+					_mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i*) (u + j / 2 + 8))),
+					_mm256_cvtepu8_epi32(_mm_loadl_epi64((const __m128i*) (v + j / 2 + 8))), bgr);
+			dest += 96;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, y[j], y[j + 1], u[j / 2], v[j / 2], bgr);
+			dest += 6;
+		}
+	}
+}
+
+static TARGET_AVX2 void v4lconvert_x86_nv12_avx2(const u8* ysrc, const u8* uvsrc, u8* dest, u32 width, u32 height, bool vu, bool bgr) {
+	const __m256i low_words = _mm256_set1_epi32(0xFFFF);
+	const u32 vector_width = width & ~31u;
+
+	for (u32 i = 0; i < height; i++) {
+		const u8* y = ysrc + i * width;
+		const u8* c = uvsrc + (i / 2) * width;
+		u32 j = 0;
+		for (; j < vector_width; j += 32) {
+			//Widened to 16 bits, each pair's chroma fills 32 bits
+			__m256i ca = _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (c + j)));
+			__m256i cb = _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (c + j + 16)));
+			__m256i first_a = _mm256_and_si256(ca, low_words), second_a = _mm256_srli_epi32(ca, 16);
+			__m256i first_b = _mm256_and_si256(cb, low_words), second_b = _mm256_srli_epi32(cb, 16);
+			__m256i ya = _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (y + j)));
+			__m256i yb = _mm256_cvtepu8_epi16(_mm_loadu_si128((const __m128i*) (y + j + 16)));
+			if (vu)
+				v4lconvert_x86_convert_avx2(dest, ya, yb, second_a, first_a, second_b, first_b, bgr);
+			else
+				v4lconvert_x86_convert_avx2(dest, ya, yb, first_a, second_a, first_b, second_b, bgr);
+			dest += 96;
+		}
+		for (; j < width; j += 2) {
+			v4lconvert_x86_convert_pair(dest, y[j], y[j + 1], c[j + vu], c[j + !vu], bgr);
+			dest += 6;
+		}
+	}
+}
+
+bool v4lconvert_x86_packed_to_rgb24(const u8* src, u8* dest, u32 width, u32 height, enum v4lconvert_x86_packed_layout layout, bool bgr) {
+	switch (v4lconvert_x86_get_level()) {
+		case V4LCONVERT_X86_AVX2:
+			v4lconvert_x86_packed_avx2(src, dest, width, height, layout, bgr);
+			return true;
+		case V4LCONVERT_X86_SSSE3:
+			v4lconvert_x86_packed_ssse3(src, dest, width, height, layout, bgr);
+			return true;
+		default:
+			return false;
+	}
+}
+
+bool v4lconvert_x86_yuv420_to_rgb24(const u8* ysrc, const u8* usrc, const u8* vsrc, u8* dest, u32 width, u32 height, bool bgr) {
+	switch (v4lconvert_x86_get_level()) {
+		case V4LCONVERT_X86_AVX2:
+			v4lconvert_x86_yuv420_avx2(ysrc, usrc, vsrc, dest, width, height, bgr);
+			return true;
+		case V4LCONVERT_X86_SSSE3:
+			v4lconvert_x86_yuv420_ssse3(ysrc, usrc, vsrc, dest, width, height, bgr);
+			return true;
+		default:
+			return false;
+	}
+}
+
+bool v4lconvert_x86_nv12_to_rgb24(const u8* ysrc, const u8* uvsrc, u8* dest, u32 width, u32 height, bool vu, bool bgr) {
+	switch (v4lconvert_x86_get_level()) {
+		case V4LCONVERT_X86_AVX2:
+			v4lconvert_x86_nv12_avx2(ysrc, uvsrc, dest, width, height, vu, bgr);
+			return true;
+		case V4LCONVERT_X86_SSSE3:
+			v4lconvert_x86_nv12_ssse3(ysrc, uvsrc, dest, width, height, vu, bgr);
+			return true;
+		default:
+			return false;
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * YUV -> RGB conversion routines, optimized for x86 SSSE3 and AVX2
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+#ifndef __RGB_YUV_X86_H
+#define __RGB_YUV_X86_H
+
+#include <stdbool.h>
+#include "types.h"
+
+/**
+ * Instruction set used by the routines below, from the slowest to the fastest
+ */
+enum v4lconvert_x86_level {
+	/**
+	 * No SIMD routine: the conversions return false and the caller falls
+	 * back to its scalar code
+	 */
+	V4LCONVERT_X86_SCALAR = 0,
+	V4LCONVERT_X86_SSSE3,
+	V4LCONVERT_X86_AVX2
+};
+
+/**
+ * Byte order of packed 4:2:2 formats
+ */
+enum v4lconvert_x86_packed_layout {
+	V4LCONVERT_X86_YUYV,
+	V4LCONVERT_X86_YVYU,
+	V4LCONVERT_X86_UYVY
+};
+
+/**
+ * Get the instruction set the conversions currently use. It is detected from
+ * the CPU the first time it is needed.
+ */
+extern enum v4lconvert_x86_level v4lconvert_x86_get_level(void);
+
+/**
+ * Restrict the conversions to the given instruction set, or to the best one
+ * the CPU supports if lower. Used to compare the SIMD routines against the
+ * scalar ones.
+ * @return The instruction set actually used from now on
+ */
+extern enum v4lconvert_x86_level v4lconvert_x86_set_level(enum v4lconvert_x86_level level);
+
+/**
+ * Converts a packed 4:2:2 frame (YUYV, YVYU or UYVY) to RGB24 or BGR24. The
+ * output is identical to the one of the scalar routines in rgbyuv.c.
+ * @param src Pointer to source buffer
+ * @param dest Pointer to output buffer
+ * @param width Width of the frame, in pixels. Must be even.
+ * @param height Height of the frame
+ * @param layout Byte order of the source
+ * @param bgr Whether to output BGR24 rather than RGB24
+ * @return false if no SIMD routine is available, in which case nothing was
+ * 		converted
+ */
+extern bool v4lconvert_x86_packed_to_rgb24(const u8* src, u8* dest, u32 width, u32 height, enum v4lconvert_x86_packed_layout layout, bool bgr);
+
+/**
+ * Converts a planar 4:2:0 frame (YUV420 or YVU420) to RGB24 or BGR24. The
+ * output is identical to the one of the scalar routines in rgbyuv.c.
+ * @param ysrc Pointer to the Y plane
+ * @param usrc Pointer to the U plane
+ * @param vsrc Pointer to the V plane
+ * @param dest Pointer to output buffer
+ * @param width Width of the frame, in pixels. Must be even.
+ * @param height Height of the frame
+ * @param bgr Whether to output BGR24 rather than RGB24
+ * @return false if no SIMD routine is available, in which case nothing was
+ * 		converted
+ */
+extern bool v4lconvert_x86_yuv420_to_rgb24(const u8* ysrc, const u8* usrc, const u8* vsrc, u8* dest, u32 width, u32 height, bool bgr);
+
+/**
+ * Converts a semi-planar 4:2:0 frame (NV12 or NV21) to RGB24 or BGR24. The
+ * output is identical to the one of the scalar routines in rgbyuv.c.
+ * @param ysrc Pointer to the Y plane
+ * @param uvsrc Pointer to the interleaved chroma plane
+ * @param dest Pointer to output buffer
+ * @param width Width of the frame, in pixels. Must be even.
+ * @param height Height of the frame
+ * @param vu Whether the chroma plane holds V before U (NV21)
+ * @param bgr Whether to output BGR24 rather than RGB24
+ * @return false if no SIMD routine is available, in which case nothing was
+ * 		converted
+ */
+extern bool v4lconvert_x86_nv12_to_rgb24(const u8* ysrc, const u8* uvsrc, u8* dest, u32 width, u32 height, bool vu, bool bgr);
+
+#endif
@@ -0,0 +1,220 @@
+/*
+ * Checks that the x86 SIMD conversion routines produce exactly the same output
+ * as the scalar ones in rgbyuv.c, for every instruction set the CPU supports,
+ * and reports how long each takes on a 1080p frame.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "../libv4lconvert-priv.h"
+#include "rgbyuv_x86.h"
+
+#define BENCHMARK_WIDTH 1920
+#define BENCHMARK_HEIGHT 1080
+#define BENCHMARK_ROUNDS 50
+
+#define ARRAY_SIZE(x) (sizeof(x) / sizeof((x)[0]))
+
+typedef void (*converter)(const u8 *src, u8 *dest, u32 width, u32 height);
+
+static void yuv420_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_yuv420_to_rgb24(src, dest, width, height, false);
+}
+
+static void yvu420_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_yuv420_to_rgb24(src, dest, width, height, true);
+}
+
+static void yuv420_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_yuv420_to_bgr24(src, dest, width, height, false);
+}
+
+static void nv12_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_nv12_to_rgb24(src, dest, width, height, false);
+}
+
+static void nv21_to_rgb24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_nv12_to_rgb24(src, dest, width, height, true);
+}
+
+static void nv12_to_bgr24(const u8 *src, u8 *dest, u32 width, u32 height) {
+	v4lconvert_nv12_to_bgr24(src, dest, width, height, false);
+}
+
+static const struct {
+	const char *name;
+	converter convert;
+	/* source bytes per 2 pixels */
+	u32 pair_size;
+} converters[] = {
+	{ "YUYV -> RGB24", v4lconvert_yuyv_to_rgb24, 4 },
+	{ "YUYV -> BGR24", v4lconvert_yuyv_to_bgr24, 4 },
+	{ "YVYU -> RGB24", v4lconvert_yvyu_to_rgb24, 4 },
+	{ "YVYU -> BGR24", v4lconvert_yvyu_to_bgr24, 4 },
+	{ "UYVY -> RGB24", v4lconvert_uyvy_to_rgb24, 4 },
+	{ "UYVY -> BGR24", v4lconvert_uyvy_to_bgr24, 4 },
+	{ "YUV420 -> RGB24", yuv420_to_rgb24, 3 },
+	{ "YVU420 -> RGB24", yvu420_to_rgb24, 3 },
+	{ "YUV420 -> BGR24", yuv420_to_bgr24, 3 },
+	{ "NV12 -> RGB24", nv12_to_rgb24, 3 },
+	{ "NV21 -> RGB24", nv21_to_rgb24, 3 },
+	{ "NV12 -> BGR24", nv12_to_bgr24, 3 },
+};
+
+static const char *level_names[] = { "scalar", "SSSE3", "AVX2" };
+
+static u32 source_size(u32 pair_size, u32 width, u32 height) {
+	//4:2:0 formats hold 3 bytes per 2 pixels on average, rounded up for odd heights
+	if (pair_size == 3)
+		return width * height + width * ((height + 1) / 2);
+	return width * height * 2;
+}
+
+/*
+ * Fills the source with random samples
+ */
+static void fill_source(u8 *src, u32 size, unsigned int seed) {
+	srand(seed);
+	for (u32 i = 0; i < size; i++)
+		src[i] = (u8) (rand() & 0xFF);
+}
+
+static int check(unsigned int index, u32 width, u32 height, enum v4lconvert_x86_level best) {
+	u32 src_size = source_size(converters[index].pair_size, width, height);
+	u32 dst_size = width * height * 3;
+	u8 *src = malloc(src_size);
+	u8 *expected = malloc(dst_size);
+	u8 *actual = malloc(dst_size);
+	int failures = 0;
+
+	//Extreme values first, then random ones
+	for (unsigned int round = 0; round < 4; round++) {
+		if (round < 2)
+			memset(src, round ? 0xFF : 0x00, src_size);
+		else
+			fill_source(src, src_size, round);
+
+		v4lconvert_x86_set_level(V4LCONVERT_X86_SCALAR);
+		converters[index].convert(src, expected, width, height);
+
+		for (int level = V4LCONVERT_X86_SSSE3; level <= (int) best; level++) {
+			v4lconvert_x86_set_level((enum v4lconvert_x86_level) level);
+			memset(actual, 0xA5, dst_size);
+			converters[index].convert(src, actual, width, height);
+			for (u32 i = 0; i < dst_size; i++) {
+				if (actual[i] != expected[i]) {
+					fprintf(stderr, "FAIL %s (%s) %ux%u: byte %u (pixel %u, %u) is %u, expected %u\n",
+							converters[index].name, level_names[level], width, height, i,
+							(i / 3) % width, (i / 3) / width, actual[i], expected[i]);
+					failures++;
+					break;
+				}
+			}
+		}
+	}
+
+	free(src);
+	free(expected);
+	free(actual);
+	return failures;
+}
+
+/*
+ * Builds a YUYV frame holding every (U, V) combination, and checks it
+ */
+static int check_all_chroma(enum v4lconvert_x86_level best) {
+	const u32 width = 512, height = 256;
+	u8 *src = malloc(width * height * 2);
+	u8 *expected = malloc(width * height * 3);
+	u8 *actual = malloc(width * height * 3);
+	int failures = 0;
+
+	srand(42);
+	for (u32 i = 0; i < height; i++) {
+		for (u32 j = 0; j < width / 2; j++) {
+			u8 *pair = src + (i * width + j * 2) * 2;
+			pair[0] = (u8) (rand() & 0xFF);
+			pair[1] = (u8) i;
+			pair[2] = (u8) (rand() & 0xFF);
+			pair[3] = (u8) j;
+		}
+	}
+
+	v4lconvert_x86_set_level(V4LCONVERT_X86_SCALAR);
+	v4lconvert_yuyv_to_rgb24(src, expected, width, height);
+	for (int level = V4LCONVERT_X86_SSSE3; level <= (int) best; level++) {
+		v4lconvert_x86_set_level((enum v4lconvert_x86_level) level);
+		v4lconvert_yuyv_to_rgb24(src, actual, width, height);
+		if (memcmp(actual, expected, width * height * 3)) {
+			fprintf(stderr, "FAIL YUYV -> RGB24 (%s): not bit-exact over all chroma values\n", level_names[level]);
+			failures++;
+		}
+	}
+
+	free(src);
+	free(expected);
+	free(actual);
+	return failures;
+}
+
+static double benchmark(unsigned int index, enum v4lconvert_x86_level level) {
+	u32 width = BENCHMARK_WIDTH, height = BENCHMARK_HEIGHT;
+	u8 *src = malloc(source_size(converters[index].pair_size, width, height));
+	u8 *dest = malloc(width * height * 3);
+	struct timespec start, end;
+
+	fill_source(src, source_size(converters[index].pair_size, width, height), 1);
+	v4lconvert_x86_set_level(level);
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	for (int i = 0; i < BENCHMARK_ROUNDS; i++)
+		converters[index].convert(src, dest, width, height);
+	clock_gettime(CLOCK_MONOTONIC, &end);
+
+	free(src);
+	free(dest);
+	return ((double) (end.tv_sec - start.tv_sec) * 1e3 + (double) (end.tv_nsec - start.tv_nsec) / 1e6) / BENCHMARK_ROUNDS;
+}
+
+int main(int argc, char **argv) {
+	//Widths exercising the vector loops, their leftover columns, and both
+	static const u32 widths[] = { 2, 14, 16, 30, 32, 46, 64, 176, 322, 640 };
+	static const u32 heights[] = { 1, 2, 3, 7, 24 };
+	bool run_benchmark = argc > 1 && !strcmp(argv[1], "-b");
+	enum v4lconvert_x86_level best = v4lconvert_x86_set_level(V4LCONVERT_X86_AVX2);
+	int failures = 0;
+
+	printf("Best instruction set: %s\n", level_names[best]);
+	if (best == V4LCONVERT_X86_SCALAR) {
+		printf("No SIMD routine to check\n");
+		return EXIT_SUCCESS;
+	}
+
+	for (unsigned int c = 0; c < ARRAY_SIZE(converters); c++)
+		for (unsigned int w = 0; w < ARRAY_SIZE(widths); w++)
+			for (unsigned int h = 0; h < ARRAY_SIZE(heights); h++)
+				failures += check(c, widths[w], heights[h], best);
+	failures += check_all_chroma(best);
+
+	if (run_benchmark) {
+		printf("%-16s", "ms per 1080p");
+		for (int level = 0; level <= (int) best; level++)
+			printf("%10s", level_names[level]);
+		printf("\n");
+		for (unsigned int c = 0; c < ARRAY_SIZE(converters); c++) {
+			printf("%-16s", converters[c].name);
+			for (int level = 0; level <= (int) best; level++)
+				printf("%10.2f", benchmark(c, (enum v4lconvert_x86_level) level));
+			printf("\n");
+		}
+	}
+
+	printf("%s\n", failures ? "FAILED" : "OK");
+	return failures ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -91,5 +91,8 @@
 //tuner action in use (libvideo.c)
 #define LIBVIDEO_ERR_TUNER_IN_USE			-20
 
+//user-supplied capture buffer too small for a frame (init_capture_v4l2)
+#define LIBVIDEO_ERR_BUF_SIZE				-21
+
 #endif
 
@@ -159,8 +159,11 @@ static void setup_capture_actions(struct video_device *vdev) {
 		c->actions->get_video_input_std = get_video_input_std_v4l1;
 		c->actions->start_capture = start_capture_v4l1;
 		c->actions->dequeue_buffer = dequeue_buffer_v4l1;
+		c->actions->dequeue_buffers = NULL;
+		c->actions->wait_for_buffer = NULL;
 		c->actions->convert_buffer = NULL;
 		c->actions->enqueue_buffer = enqueue_buffer_v4l1;
+		c->actions->export_buffer = NULL;
 		c->actions->stop_capture = stop_capture_v4l1;
 		c->actions->free_capture = free_capture_v4l1;
 		c->actions->list_cap = list_cap_v4l1;
@@ -173,8 +176,11 @@ static void setup_capture_actions(struct video_device *vdev) {
 		c->actions->get_video_input_std = get_video_input_std_v4l2;
 		c->actions->start_capture = start_capture_v4l2;
 		c->actions->dequeue_buffer = dequeue_buffer_v4l2;
+		c->actions->dequeue_buffers = dequeue_buffers_v4l2;
+		c->actions->wait_for_buffer = wait_for_buffer_v4l2;
 		c->actions->convert_buffer = convert_buffer_v4l2;
 		c->actions->enqueue_buffer = enqueue_buffer_v4l2;
+		c->actions->export_buffer = export_buffer_v4l2;
 		c->actions->stop_capture = stop_capture_v4l2;
 		c->actions->free_capture = free_capture_v4l2;
 		c->actions->list_cap = list_cap_v4l2;
@@ -194,6 +200,7 @@ struct capture_device *init_capture_device(struct video_device *vdev, unsigned i
 
 	//fill in cdev struct
 	vdev->capture->mmap->req_buffer_nr = nb_buf;
+	vdev->capture->mmap->memory = V4L2_MEMORY_MMAP;
 	vdev->capture->width = width;
 	vdev->capture->height = height;
 	vdev->capture->channel = channel;
@@ -209,6 +216,28 @@ struct capture_device *init_capture_device(struct video_device *vdev, unsigned i
 	return vdev->capture;
 }
 
+int set_capture_user_buffers(struct video_device *vdev, void **buffers, unsigned int *lengths, unsigned int nb_buf) {
+	struct mmap *m = vdev->capture->mmap;
+
+	if(vdev->v4l_version != V4L2_VERSION)
+		return LIBVIDEO_ERR_WRONG_VERSION;
+
+	if(nb_buf == 0 || buffers == NULL || lengths == NULL)
+		return LIBVIDEO_ERR_INVALID_BUF_NB;
+
+	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: Using %u user-supplied buffers\n", nb_buf);
+	XMALLOC(m->buffers, struct mmap_buffer *, nb_buf * sizeof(struct mmap_buffer));
+	for(unsigned int i = 0; i < nb_buf; i++) {
+		m->buffers[i].start = buffers[i];
+		m->buffers[i].length = lengths[i];
+		m->buffers[i].dmabuf_fd = -1;
+	}
+
+	m->req_buffer_nr = nb_buf;
+	m->memory = V4L2_MEMORY_USERPTR;
+	return LIBVIDEO_ERR_SUCCESS;
+}
+
 //counterpart of init_capture_device, must be called if
 //init_capture_device was successful
 void free_capture_device(struct video_device *vdev) {
@@ -219,6 +248,11 @@ void free_capture_device(struct video_device *vdev) {
 		XFREE(vdev->capture->convert);
 	}
 
+	// user-supplied buffers are registered before init_capture, so they have
+	// to be freed here if init_capture failed
+	if(vdev->capture->mmap->memory == V4L2_MEMORY_USERPTR && vdev->capture->mmap->buffers != NULL)
+		XFREE(vdev->capture->mmap->buffers);
+
 	XFREE(vdev->capture->actions);	
 	XFREE(vdev->capture->mmap);
 	XFREE(vdev->capture);
@@ -43,6 +43,28 @@
  * C A P TU R E   I N T E R F A C E   S T R U C T S
  *
  */
+/**
+ * Describes a buffer dequeued by dequeue_buffers()
+ */
+struct dequeued_buffer {
+	/**
+	 * Index of the buffer
+	 */
+	unsigned int index;
+	/**
+	 * Length of the frame in the buffer
+	 */
+	unsigned int length;
+	/**
+	 * Frame sequence number
+	 */
+	unsigned long long sequence;
+	/**
+	 * Capture time (see gettimeofday)
+	 */
+	struct timeval capture_time;
+};
+
 struct mmap_buffer {
 	/**
 	 * Start of mmaped buffer
@@ -54,6 +76,11 @@ struct mmap_buffer {
 	 * use struct capture_device->imagesize instead
 	 */
 	unsigned int length;
+	/**
+	 * DMABUF file descriptor exported for this buffer,
+	 * or -1 if it has not been exported (yet)
+	 */
+	int dmabuf_fd;
 };
 
 struct mmap {
@@ -79,6 +106,12 @@ struct mmap {
 	 * Used by v4l1 only, to store the overall mmap size
 	 */
 	int v4l1_mmap_size;
+	/**
+	 * Used by v4l2 only: how capture buffers are allocated, either
+	 * V4L2_MEMORY_MMAP (by the driver, then mmap'ed) or V4L2_MEMORY_USERPTR
+	 * (by the application, see set_capture_user_buffers())
+	 */
+	unsigned int memory;
 };
 
 
@@ -592,6 +625,18 @@ int close_device(struct video_device *vdev)  __attribute__ ((nonnull (1)));
  */
 struct capture_device *init_capture_device(struct video_device *vdev, unsigned int width, unsigned int height, unsigned int channel, unsigned int standard, unsigned int nb_buf) __attribute__ ((nonnull (1)));
 
+/**
+ * set_capture_user_buffers makes the capture use the given application-owned
+ * buffers (V4L2_MEMORY_USERPTR) instead of buffers allocated by the driver and
+ * mmap'ed. It must be called after init_capture_device and before init_capture.
+ * The driver fills the buffers directly, so they must remain valid until
+ * free_capture is called, and each must be able to hold a whole frame.
+ * Some drivers also require buffers to be page-aligned.
+ * Returns 0 if ok, LIBVIDEO_ERR_WRONG_VERSION for V4L1 devices, or
+ * LIBVIDEO_ERR_INVALID_BUF_NB if no buffers are given
+ */
+int set_capture_user_buffers(struct video_device *vdev, void **buffers, unsigned int *lengths, unsigned int nb_buf) __attribute__ ((nonnull (1)));
+
 
 /*
  * functions pointed to by the members of this structure should be used
@@ -680,6 +725,25 @@ struct capture_actions {
 	 * 		argument receives the capture frame sequence number (for v4l2 devices only)
 	 */
 	void* (*dequeue_buffer)(struct video_device *device, unsigned int *length, unsigned int *index, struct timeval *capture_time, unsigned long long *sequence) __attribute__ ((nonnull (1,2,3)));
+	/**
+	 * Dequeue several buffers at once: wait up to <code>timeout_ms</code>
+	 * milliseconds (forever if negative) for a buffer to be filled, then
+	 * dequeue it along with any other filled buffer, without waiting, up to
+	 * <code>count</code> buffers. Each buffer dequeued must be enqueued again
+	 * when done with, as with dequeue_buffer.
+	 * This member is NULL for V4L1 devices.
+	 * @return the number of buffers dequeued, which is 0 if no buffer was
+	 * filled in time, or LIBVIDEO_ERR_IOCTL if the first buffer could not be
+	 * dequeued
+	 */
+	int (*dequeue_buffers)(struct video_device *device, struct dequeued_buffer *buffers, unsigned int count, int timeout_ms) __attribute__ ((nonnull (1,2)));
+	/**
+	 * Wait up to <code>timeout_ms</code> milliseconds (forever if negative)
+	 * for a buffer to be filled, without dequeuing it.
+	 * @return 1 if a buffer is ready to be dequeued, 0 if none was filled in
+	 * time, or LIBVIDEO_ERR_IOCTL on error
+	 */
+	int (*wait_for_buffer)(struct video_device *device, int timeout_ms) __attribute__ ((nonnull (1)));
 	/**
 	 * Convert the previously dequed dequeued buffer at the given index. Call me
 	 * only if the conversion is needed (if the requested format is not native)
@@ -689,6 +753,15 @@ struct capture_actions {
 	 * Enqueue the buffer (given its index) when done using the frame
 	 */
 	void (*enqueue_buffer)(struct video_device *device, unsigned int index) __attribute__ ((nonnull (1)));
+	/**
+	 * Export the buffer (given its index) as a DMABUF file descriptor, which
+	 * other processes can mmap to access the captured frames without a copy.
+	 * The buffer is exported only once, and the file descriptor remains valid
+	 * until free_capture is called. This member is NULL for V4L1 devices.
+	 * @return the DMABUF file descriptor, or LIBVIDEO_ERR_IOCTL if the driver
+	 * cannot export its buffers
+	 */
+	int (*export_buffer)(struct video_device *device, unsigned int index) __attribute__ ((nonnull (1)));
 
 
 /*
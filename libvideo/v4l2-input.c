@@ -27,6 +27,9 @@
 #include <sys/mman.h>		//for mmap
 #include <sys/time.h>		//for struct timeval
 #include <errno.h>			//for errno
+#include <fcntl.h>			//for O_CLOEXEC
+#include <unistd.h>			//for close
+#include <poll.h>			//for poll
 #include <string.h>			//for memcpy
 #include <stdio.h>			// for perror
 #include <stdbool.h>
@@ -516,6 +519,23 @@ fail:
 	return ret;
 }
 
+/*
+ * Fills in a v4l2_buffer struct to queue the capture buffer at the given index,
+ * for the memory type used by the capture
+ */
+static void init_v4l2_buffer(struct video_device *vdev, struct v4l2_buffer *b, unsigned int index) {
+	struct mmap *m = vdev->capture->mmap;
+
+	CLEAR(*b);
+	b->type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
+	b->memory = m->memory;
+	b->index = index;
+	if (m->memory == V4L2_MEMORY_USERPTR) {
+		b->m.userptr = (unsigned long) m->buffers[index].start;
+		b->length = m->buffers[index].length;
+	}
+}
+
 int init_capture_v4l2(struct video_device *vdev) {
 	struct capture_device *c = vdev->capture;
 	struct v4l2_requestbuffers req;
@@ -526,7 +546,7 @@ int init_capture_v4l2(struct video_device *vdev) {
 	//allocates v4l2 buffers
 	req.count = c->mmap->req_buffer_nr;
 	req.type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
-	req.memory = V4L2_MEMORY_MMAP;
+	req.memory = c->mmap->memory;
 
 	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: Asking for %d V4L2 buffers\n", req.count);
 
@@ -536,6 +556,27 @@ int init_capture_v4l2(struct video_device *vdev) {
 	}
 
 	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: Driver said %d V4L2 buffers\n", req.count);
+
+	if (c->mmap->memory == V4L2_MEMORY_USERPTR) {
+		// the buffers were supplied by the application: the driver can use
+		// fewer of them, but not more
+		if (req.count == 0 || req.count > c->mmap->req_buffer_nr) {
+			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Driver needs %d buffers, %d were supplied\n", req.count, c->mmap->req_buffer_nr);
+			return LIBVIDEO_ERR_INVALID_BUF_NB;
+		}
+		c->mmap->buffer_nr = req.count;
+
+		for(unsigned int i = 0; i < c->mmap->buffer_nr; i++) {
+			if (c->mmap->buffers[i].length < c->imagesize) {
+				dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: User buffer %d is too small (%u bytes, %u needed)\n", i, c->mmap->buffers[i].length, c->imagesize);
+				return LIBVIDEO_ERR_BUF_SIZE;
+			}
+			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: using user buffer of %d bytes at %p\n", c->mmap->buffers[i].length, c->mmap->buffers[i].start);
+		}
+
+		return 0;
+	}
+
 	c->mmap->buffer_nr = req.count;
 	XMALLOC( c->mmap->buffers, struct mmap_buffer *, (c->mmap->buffer_nr * sizeof(struct mmap_buffer)) );
 
@@ -552,6 +593,7 @@ int init_capture_v4l2(struct video_device *vdev) {
 		}
 
 		c->mmap->buffers[i].length = buf.length;
+		c->mmap->buffers[i].dmabuf_fd = -1;
 		c->mmap->buffers[i].start = mmap(NULL,
 				buf.length,
 				PROT_READ | PROT_WRITE,
@@ -575,11 +617,8 @@ int start_capture_v4l2(struct video_device *vdev) {
 
 	//Enqueue all buffers
 	for(unsigned int i = 0; i < vdev->capture->mmap->buffer_nr; i++) {
-		struct v4l2_buffer b = {
-			.type = V4L2_BUF_TYPE_VIDEO_CAPTURE,
-			.memory = V4L2_MEMORY_MMAP,
-			.index = i
-		};
+		struct v4l2_buffer b;
+		init_v4l2_buffer(vdev, &b, i);
 		if(ioctl(vdev->fd, VIDIOC_QBUF, &b) == -1) {
 			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Can't enqueue initial buffers\n");
 			return LIBVIDEO_ERR_IOCTL;
@@ -620,7 +659,7 @@ void *dequeue_buffer_v4l2(struct video_device *vdev, unsigned int *len, unsigned
 	struct v4l2_buffer b;
 	CLEAR(b);
 	b.type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
-	b.memory = V4L2_MEMORY_MMAP;
+	b.memory = vdev->capture->mmap->memory;
 	if (ioctl(vdev->fd, VIDIOC_DQBUF, &b) == -1) {
 		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Error dequeuing buffer\n");
 		return NULL;
@@ -640,19 +679,101 @@ void *dequeue_buffer_v4l2(struct video_device *vdev, unsigned int *len, unsigned
 	return vdev->capture->mmap->buffers[b.index].start;
 }
 
+int wait_for_buffer_v4l2(struct video_device *vdev, int timeout_ms) {
+	struct pollfd pfd;
+	pfd.fd = vdev->fd;
+	pfd.events = POLLIN;
+	pfd.revents = 0;
+
+	int ret;
+	do {
+		ret = poll(&pfd, 1, timeout_ms);
+	} while (ret < 0 && errno == EINTR && timeout_ms < 0);
+
+	if (ret < 0) {
+		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Error waiting for a buffer\n");
+		return LIBVIDEO_ERR_IOCTL;
+	}
+	// the driver reports errors (capture stopped, ...) with POLLERR
+	if (ret > 0 && (pfd.revents & POLLERR) && !(pfd.revents & POLLIN))
+		return LIBVIDEO_ERR_IOCTL;
+	return ret > 0 ? 1 : 0;
+}
+
+int dequeue_buffers_v4l2(struct video_device *vdev, struct dequeued_buffer *buffers, unsigned int count, int timeout_ms) {
+	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG2, "CAP: Dequeuing up to %u buffers on device %s.\n", count, vdev->file);
+
+	int i;
+	for (i = 0; i < (int) count; i++) {
+		// only the first buffer may be waited for (a blocking DQBUF does the
+		// waiting when there is no timeout). Others are only dequeued if the
+		// driver has filled them already.
+		if (i > 0 || timeout_ms >= 0) {
+			int ready = wait_for_buffer_v4l2(vdev, i > 0 ? 0 : timeout_ms);
+			if (ready < 0 && i == 0)
+				return ready;
+			if (ready <= 0)
+				break;
+		}
+
+		struct v4l2_buffer b;
+		CLEAR(b);
+		b.type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
+		b.memory = vdev->capture->mmap->memory;
+		if (ioctl(vdev->fd, VIDIOC_DQBUF, &b) == -1) {
+			if (i > 0)
+				break;
+			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Error dequeuing buffer\n");
+			return LIBVIDEO_ERR_IOCTL;
+		}
+
+		buffers[i].index = b.index;
+		buffers[i].length = b.bytesused;
+		buffers[i].sequence = b.sequence;
+		buffers[i].capture_time = b.timestamp;
+	}
+
+	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG2, "CAP: dequeued %d buffers\n", i);
+	return i;
+}
+
 void enqueue_buffer_v4l2(struct video_device *vdev, unsigned int index) {
 	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG2, "CAP: queuing buffer %d on device %s.\n", index, vdev->file);
 	
-	struct v4l2_buffer b = {
-		.type = V4L2_BUF_TYPE_VIDEO_CAPTURE,
-		.memory = V4L2_MEMORY_MMAP,
-		.index = index
-	};
+	struct v4l2_buffer b;
+	init_v4l2_buffer(vdev, &b, index);
 	
 	if (ioctl(vdev->fd, VIDIOC_QBUF, &b) == -1)
 		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: error queuing buffer\n");
 }
 
+int export_buffer_v4l2(struct video_device *vdev, unsigned int index) {
+	struct mmap_buffer *buffer = &vdev->capture->mmap->buffers[index];
+	if (buffer->dmabuf_fd >= 0)
+		return buffer->dmabuf_fd;
+
+	// only buffers allocated by the driver can be exported
+	if (vdev->capture->mmap->memory != V4L2_MEMORY_MMAP)
+		return LIBVIDEO_ERR_IOCTL;
+
+	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: exporting buffer %d on device %s.\n", index, vdev->file);
+
+	struct v4l2_exportbuffer e;
+	CLEAR(e);
+	e.type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
+	e.index = index;
+	e.plane = 0;
+	e.flags = O_CLOEXEC | O_RDONLY;
+
+	if (ioctl(vdev->fd, VIDIOC_EXPBUF, &e) == -1) {
+		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: error exporting buffer %d\n", index);
+		return LIBVIDEO_ERR_IOCTL;
+	}
+
+	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: buffer %d exported as fd %d\n", index, e.fd);
+	buffer->dmabuf_fd = e.fd;
+	return e.fd;
+}
 
 int stop_capture_v4l2(struct video_device *vdev) {
 	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: stopping capture on device %s.\n", vdev->file);
@@ -671,14 +792,18 @@ void free_capture_v4l2(struct video_device *vdev) {
 
 	dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: freeing capture structure on device %s.\n", vdev->file);
 
-	// unmmap v4l2 buffers
-	for(unsigned int i=0; i < vdev->capture->mmap->buffer_nr; i++){
+	// unmmap v4l2 buffers (user-supplied buffers belong to the application)
+	for(unsigned int i=0; i < vdev->capture->mmap->buffer_nr && vdev->capture->mmap->memory == V4L2_MEMORY_MMAP; i++){
 		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_DEBUG, "CAP: unmmap %u bytes at %p\n",
 				vdev->capture->mmap->buffers[i].length,
 				vdev->capture->mmap->buffers[i].start);
 
 		if (munmap(vdev->capture->mmap->buffers[i].start, (size_t) vdev->capture->mmap->buffers[i].length) == -1)
 			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: error unmapping buffer %d\n", i);
+
+		// close exported DMABUF fds, if any
+		if (vdev->capture->mmap->buffers[i].dmabuf_fd >= 0 && close(vdev->capture->mmap->buffers[i].dmabuf_fd) == -1)
+			dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: error closing exported buffer %d\n", i);
 	}
 
 	// free buffers struct
@@ -700,7 +825,7 @@ void free_capture_v4l2(struct video_device *vdev) {
 	//allocates v4l2 buffers
 	req.count = 0;
 	req.type = V4L2_BUF_TYPE_VIDEO_CAPTURE;
-	req.memory = V4L2_MEMORY_MMAP;
+	req.memory = vdev->capture->mmap->memory;
 
 	if (ioctl(vdev->fd, VIDIOC_REQBUFS, &req) == -1)
 		dprint(LIBVIDEO_SOURCE_CAP, LIBVIDEO_LOG_ERR, "CAP: Error releasing v4l2 buffers\n");
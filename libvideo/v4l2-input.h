@@ -75,9 +75,18 @@ void *dequeue_buffer_v4l2(struct video_device *, unsigned int *len, unsigned int
 unsigned int convert_buffer_v4l2(struct video_device *, int , unsigned int , void *);
 
 
+//dequeue all filled buffers, up to the given number
+int dequeue_buffers_v4l2(struct video_device *, struct dequeued_buffer *, unsigned int, int);
+
+//wait for a buffer to be filled
+int wait_for_buffer_v4l2(struct video_device *, int);
+
 //enqueue the buffer when done using the frame
 void enqueue_buffer_v4l2(struct video_device *, unsigned int);
 
+//export the buffer as a DMABUF file descriptor
+int export_buffer_v4l2(struct video_device *, unsigned int);
+
 
 /*
  * Freeing resources
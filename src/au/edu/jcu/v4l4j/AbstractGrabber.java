@@ -26,8 +26,7 @@ package au.edu.jcu.v4l4j;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -38,6 +37,7 @@ import au.edu.jcu.v4l4j.exceptions.InitialisationException;
 import au.edu.jcu.v4l4j.exceptions.InvalidValueException;
 import au.edu.jcu.v4l4j.exceptions.NoTunerException;
 import au.edu.jcu.v4l4j.exceptions.StateException;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
 import au.edu.jcu.v4l4j.exceptions.V4L4JException;
 import au.edu.jcu.v4l4j.exceptions.VideoStandardException;
 
@@ -67,7 +67,7 @@ abstract class AbstractGrabber implements FrameGrabber {
 	private int standard;
 	protected int nbV4LBuffers;
 	protected List<BaseVideoFrame> videoFrames;
-	private BlockingQueue<BaseVideoFrame> availableVideoFrames;
+	private FramePool<BaseVideoFrame> availableVideoFrames;
 	protected State state;
 	protected int format;
 	private Tuner tuner;
@@ -83,11 +83,49 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 * </ol>
 	 */
 	private int type;
-	private long lastCapturedFrameSequence; // update v4l4j_FrameGrabber.c if
-	private long lastCapturedFrameTimeuSec; // these three names are changed
-	private int lastCapturedFrameBufferIndex;//
+	/**
+	 * Layout of the entries of {@link #frameMetadata}, one per dequeued
+	 * buffer. Update v4l4j_FrameGrabber.c if this changes.
+	 */
+	static final int METADATA_INDEX = 0;
+	static final int METADATA_LENGTH = 1;
+	static final int METADATA_SEQUENCE = 2;
+	static final int METADATA_TIME_US = 3;
+	static final int METADATA_DEQUEUE_NS = 4;
+	static final int METADATA_CONVERSION_NS = 5;
+	static final int METADATA_SIZE = 6;
+	/**
+	 * Metadata of the buffers dequeued by the last native call, filled in by
+	 * the JNI code so it does not have to set several fields per frame. In
+	 * zero-copy mode, {@link #dequeueBuffers(long, long[], boolean)} fills in
+	 * one entry per buffer it dequeued at once; {@link #batchPosition} is the
+	 * next one to deliver and {@link #batchSize} the number of entries. These
+	 * three members are guarded by {@link #batchLock}.
+	 */
+	private long[] frameMetadata;
+	private int batchPosition;
+	private int batchSize;
+	private final Object batchLock = new Object();
+	private final CaptureMetrics metrics;
 	private PushSource pushSource;
+	/**
+	 * Whether the capture was started with {@link #startPullCapture()}, in
+	 * which case frames are retrieved by the application rather than
+	 * delivered by {@link #pushSource}
+	 */
+	private volatile boolean pullMode;
 	private ThreadFactory threadFactory;
+	/**
+	 * Whether video frames wrap the driver's mmap'ed buffers directly instead
+	 * of holding a copy of them. In this mode, each entry in
+	 * {@link #videoFrames} is bound to the V4L2 buffer of the same index.
+	 */
+	protected final boolean zeroCopy;
+	/**
+	 * Application-owned direct buffers the driver captures into, or
+	 * <code>null</code> if capture buffers are allocated by the driver.
+	 */
+	private ByteBuffer[] userBuffers;
 
 	/*
 	 * JNI returns a long (which is really a pointer) when a device is allocated
@@ -109,10 +147,11 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 * @param std Standard
 	 * @param requestedFormat Input format
 	 * @param output Output format
+	 * @param userBuffers Direct buffers to capture into, or null to use mmap'ed driver buffers
 	 * @return Number of framebuffers created
 	 * @throws V4L4JException If there is a problem initializing the FrameGrabber
 	 */
-	private native int doInit(long o, int numBuffers, int width, int height, int channel, int std, int requestedFormat, int output) throws V4L4JException;
+	private native int doInit(long o, int numBuffers, int width, int height, int channel, int std, int requestedFormat, int output, ByteBuffer[] userBuffers) throws V4L4JException;
 
 	/**
 	 * Start capturing frames
@@ -133,6 +172,19 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 */
 	protected static native void setQuality(long o, int i);
 
+	/**
+	 * This method sets the number of stripes the JPEG compressor splits
+	 * frames into
+	 * 
+	 * @param o
+	 *            the struct v4l4_device
+	 * @param n
+	 *            the number of stripes (1...64), 1 to compress frames whole
+	 * @throws IllegalArgumentException
+	 *             if frames can't be split into that many stripes
+	 */
+	protected static native void setStripes(long o, int n);
+
 	/**
 	 * Get the size of a frame buffer
 	 * @param o The object pointer
@@ -148,7 +200,73 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 */
 	private static native int enqueueBuffer(long o, int index);
 
-	private native int fillBuffer(long o, ByteBuffer output) throws V4L4JException;
+	/**
+	 * Dequeue the next V4L2 buffer, copy and convert it into the given buffer
+	 * and enqueue it again.
+	 * @param o Object pointer
+	 * @param output The buffer receiving the frame
+	 * @param metadata Array receiving the frame metadata in its first entry
+	 * @param timeoutMs How long to wait for a buffer to be filled, in
+	 * 		milliseconds, or -1 to wait for as long as it takes
+	 * @return Number of bytes written to <code>output</code>, -1 if no buffer
+	 * 		was filled within <code>timeoutMs</code>
+	 * @throws V4L4JException If there is an error dequeuing the buffer
+	 */
+	private native int fillBuffer(long o, ByteBuffer output, long[] metadata, int timeoutMs) throws V4L4JException;
+
+	/**
+	 * Dequeue all filled V4L2 buffers, without copying or converting them, in
+	 * one call. The buffers stay owned by the caller until each is given back
+	 * with {@link #enqueueBuffer(long, int)}.
+	 * @param o Object pointer
+	 * @param metadata Array receiving one entry of {@link #METADATA_SIZE}
+	 * 		values per dequeued buffer. Its length sets the maximum number of
+	 * 		buffers dequeued.
+	 * @param timeoutMs How long to wait for a buffer to be filled if there is
+	 * 		none, in milliseconds, or -1 to wait for as long as it takes
+	 * @return Number of buffers dequeued, 0 if none was filled within
+	 * 		<code>timeoutMs</code>
+	 * @throws V4L4JException If there is an error dequeuing the buffers
+	 */
+	private native int dequeueBuffers(long o, long[] metadata, int timeoutMs) throws V4L4JException;
+
+	/**
+	 * Get the file descriptor of the video device, which becomes readable when
+	 * a buffer has been filled.
+	 * @param o Object pointer
+	 * @return The file descriptor, or -1 if the device cannot be polled
+	 */
+	private static native int getDeviceFd(long o);
+
+	/**
+	 * Get a direct ByteBuffer wrapping the memory of the given mmap'ed V4L2
+	 * buffer. The returned buffer is only valid until {@link #doRelease(long)}
+	 * is called.
+	 * @param o Object pointer
+	 * @param index Buffer index
+	 * @return a direct ByteBuffer over the driver buffer
+	 * @throws V4L4JException If the driver buffers cannot be handed out as is
+	 */
+	protected static native ByteBuffer getDriverBuffer(long o, int index) throws V4L4JException;
+
+	/**
+	 * Export the given V4L2 buffer as a DMABUF file descriptor. The buffer is
+	 * only exported once, and the descriptor is closed by
+	 * {@link #doRelease(long)}.
+	 * @param o Object pointer
+	 * @param index Buffer index
+	 * @return the DMABUF file descriptor
+	 * @throws UnsupportedMethod If the buffer cannot be exported
+	 */
+	private static native int exportBuffer(long o, int index) throws UnsupportedMethod;
+
+	/**
+	 * Get the size of the given V4L2 buffer, as allocated by the driver
+	 * @param o Object pointer
+	 * @param index Buffer index
+	 * @return Size of the driver buffer (in bytes)
+	 */
+	private static native int getDriverBufferLength(long o, int index);
 
 	/**
 	 * Stop capturing frames. Should not throw any exceptions, even in case of failure
@@ -217,6 +335,24 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 */
 	protected AbstractGrabber(DeviceInfo dInfo, long o, int width, int height, int channel, int std, Tuner tuner, ImageFormat imf,
 			int type, ThreadFactory factory) throws ImageFormatException {
+		this(dInfo, o, width, height, channel, std, tuner, imf, type, factory, false);
+	}
+
+	/**
+	 * This constructor builds a FrameGrabber object used to capture frames from
+	 * a video source, optionally handing out the driver's buffers without
+	 * copying them.
+	 * 
+	 * @param zeroCopy
+	 *            whether video frames should wrap the driver's mmap'ed buffers
+	 *            instead of a copy of them. Subclasses enabling this mode must
+	 *            populate {@link #videoFrames} so the frame at index
+	 *            <code>i</code> wraps V4L2 buffer <code>i</code>.
+	 * @see #AbstractGrabber(DeviceInfo, long, int, int, int, int, Tuner,
+	 *      ImageFormat, int, ThreadFactory)
+	 */
+	protected AbstractGrabber(DeviceInfo dInfo, long o, int width, int height, int channel, int std, Tuner tuner, ImageFormat imf,
+			int type, ThreadFactory factory, boolean zeroCopy) throws ImageFormatException {
 		if (imf == null)
 			throw new ImageFormatException("The image format can not be null");
 		this.state = new State();
@@ -233,9 +369,11 @@ abstract class AbstractGrabber implements FrameGrabber {
 		// 4.
 		nbV4LBuffers = Integer.getInteger("v4l4j.num_driver_buffers", 4);
 		videoFrames = new ArrayList<BaseVideoFrame>(nbV4LBuffers);
-		availableVideoFrames = new ArrayBlockingQueue<BaseVideoFrame>(nbV4LBuffers);
+		availableVideoFrames = new FramePool<BaseVideoFrame>(nbV4LBuffers);
 		pushSource = null;
 		threadFactory = factory;
+		this.zeroCopy = zeroCopy;
+		this.metrics = new CaptureMetrics(dInfo == null ? "unknown" : dInfo.getDeviceFile());
 	}
 
 	/**
@@ -266,15 +404,34 @@ abstract class AbstractGrabber implements FrameGrabber {
 
 		// Initialize libvideo and setup capture parameters
 		// Return value is the number of buffers mmaped into the driver's memory
-		this.nbV4LBuffers = doInit(object, nbV4LBuffers, width, height, channel, standard, format, type);
+		if (userBuffers != null)
+			nbV4LBuffers = userBuffers.length;
+		this.nbV4LBuffers = doInit(object, nbV4LBuffers, width, height, channel, standard, format, type, userBuffers);
 		int bufferSize = getBufferSize(object);
 
+		// The driver may not have used the requested number of buffers
+		if (availableVideoFrames.capacity() < nbV4LBuffers)
+			availableVideoFrames = new FramePool<BaseVideoFrame>(nbV4LBuffers);
+		frameMetadata = new long[METADATA_SIZE * nbV4LBuffers];
+
 		// Create the V4L4J data buffer objects
 		createBuffers(bufferSize);
 
 		state.commit();
 	}
 
+	/**
+	 * This method sets the application-owned buffers the driver should capture
+	 * into. It must be called before {@link #init()}.
+	 * 
+	 * @param buffers
+	 *            direct buffers, one per driver buffer, or <code>null</code> to
+	 *            capture into driver-allocated buffers
+	 */
+	void setUserBuffers(ByteBuffer[] buffers) {
+		userBuffers = buffers;
+	}
+
 	/**
 	 * This abstract method is called when {@link #init()} succeeds and is
 	 * responsible for populating the {@link #videoFrames} member (vector of
@@ -282,8 +439,10 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 * 
 	 * @param bufferSize
 	 *            the size of each buffer
+	 * @throws V4L4JException
+	 *             if the buffers cannot be created
 	 */
-	protected abstract void createBuffers(int bufferSize);
+	protected abstract void createBuffers(int bufferSize) throws V4L4JException;
 
 	/*
 	 * (non-Javadoc)
@@ -302,9 +461,24 @@ abstract class AbstractGrabber implements FrameGrabber {
 	 */
 	@Override
 	public int getNumberOfRecycledVideoFrames() {
-		synchronized (availableVideoFrames) {
-			return availableVideoFrames.size();
+		if (zeroCopy) {
+			int recycled = 0;
+			for (BaseVideoFrame frame : videoFrames)
+				if (frame.isRecycled())
+					recycled++;
+			return recycled;
 		}
+		return availableVideoFrames.size();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#getCaptureMetrics()
+	 */
+	@Override
+	public final CaptureMetrics getCaptureMetrics() {
+		return metrics;
 	}
 
 	/*
@@ -405,6 +579,56 @@ abstract class AbstractGrabber implements FrameGrabber {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#setCaptureCallback(au.edu.jcu.v4l4j.CaptureCallback, java.util.concurrent.Executor, boolean)
+	 */
+	@Override
+	public final void setCaptureCallback(CaptureCallback callback, Executor executor, boolean ordered) {
+		setCaptureCallback(callback, executor, ordered, DeliveryPolicy.BLOCK);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#setCaptureCallback(au.edu.jcu.v4l4j.CaptureCallback, au.edu.jcu.v4l4j.DeliveryPolicy)
+	 */
+	@Override
+	public final void setCaptureCallback(CaptureCallback callback, DeliveryPolicy policy) {
+		if ((callback == null) || (policy == null))
+			throw new NullPointerException("The callback and policy objects cannot be null");
+
+		synchronized (state) {
+			// make sure we are in the right state.
+			if (state.isStarted())
+				throw new StateException("This frame grabber is already started");
+
+			// create the push source object
+			pushSource = new PushSource(this, callback, threadFactory, null, false, policy);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#setCaptureCallback(au.edu.jcu.v4l4j.CaptureCallback, java.util.concurrent.Executor, boolean, au.edu.jcu.v4l4j.DeliveryPolicy)
+	 */
+	@Override
+	public final void setCaptureCallback(CaptureCallback callback, Executor executor, boolean ordered, DeliveryPolicy policy) {
+		if ((callback == null) || (executor == null) || (policy == null))
+			throw new NullPointerException("The callback, executor and policy objects cannot be null");
+
+		synchronized (state) {
+			// make sure we are in the right state.
+			if (state.isStarted())
+				throw new StateException("This frame grabber is already started");
+
+			// create the push source object
+			pushSource = new PushSource(this, callback, threadFactory, executor, ordered, policy);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -419,6 +643,9 @@ abstract class AbstractGrabber implements FrameGrabber {
 			state.rollback();
 			throw new V4L4JException("setCaptureCallback() must be called with a valid callback object before startCapture()");
 		}
+		metrics.captureStarted();
+
+		pullMode = false;
 
 		// start the push source and wait until it's blocked on getVideoFrame()
 		pushSource.startCapture();
@@ -443,14 +670,130 @@ abstract class AbstractGrabber implements FrameGrabber {
 		// change state to STARTED
 		state.commit();
 
-		// put all frames into the available queue and wake up push source
-		// thread
-		synchronized (availableVideoFrames) {
+		// in zero-copy mode, frames are bound to the driver buffers which were
+		// all just enqueued, so there is no available queue to fill
+		if (zeroCopy)
+			return;
+
+		// put all frames into the available pool, which wakes up the push
+		// source thread
+		availableVideoFrames.addAll(videoFrames);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#startPullCapture()
+	 */
+	@Override
+	public final void startPullCapture() throws V4L4JException {
+		state.start();
+		metrics.captureStarted();
+
+		try {
+			// start video capture and enqueue all buffers
+			start(object);
+		} catch (V4L4JException e) {
+			state.rollback();
+			throw e;
+		}
+
+		pullMode = true;
+		state.commit();
+
+		if (!zeroCopy)
 			availableVideoFrames.addAll(videoFrames);
-			availableVideoFrames.notifyAll();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#tryNextFrame()
+	 */
+	@Override
+	public final VideoFrame tryNextFrame() throws V4L4JException {
+		checkPullMode();
+		return getNextVideoFrame(0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#nextFrame(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public final VideoFrame nextFrame(long timeout, TimeUnit unit) throws V4L4JException {
+		checkPullMode();
+		return getNextVideoFrame(toTimeoutMs(timeout, unit));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#nextFrames(au.edu.jcu.v4l4j.VideoFrame[], long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public final int nextFrames(VideoFrame[] frames, long timeout, TimeUnit unit) throws V4L4JException {
+		checkPullMode();
+		if (frames.length == 0)
+			return 0;
+
+		VideoFrame frame = getNextVideoFrame(toTimeoutMs(timeout, unit));
+		int count = 0;
+		while (frame != null) {
+			frames[count++] = frame;
+			// in zero-copy mode, the frames after the first one come from the
+			// same batch, without going back to the driver
+			frame = count < frames.length ? getNextVideoFrame(0) : null;
+		}
+		return count;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see au.edu.jcu.v4l4j.FrameGrabber#getReadinessFd()
+	 */
+	@Override
+	public final int getReadinessFd() throws UnsupportedMethod {
+		synchronized (state) {
+			state.checkReleased();
+			int fd = getDeviceFd(object);
+			if (fd < 0)
+				throw new UnsupportedMethod("This video device cannot be polled for captured frames");
+			return fd;
 		}
 	}
 
+	/**
+	 * This method makes sure the capture was started with
+	 * {@link #startPullCapture()}.
+	 * 
+	 * @throws StateException
+	 *             if the capture is not started, or was started in push mode
+	 */
+	private void checkPullMode() throws StateException {
+		synchronized (state) {
+			if (!state.isStarted())
+				throw new StateException("The capture is not started");
+		}
+		if (!pullMode)
+			throw new StateException("Frames are delivered to the capture callback: the capture must be started with startPullCapture()");
+	}
+
+	/**
+	 * This method converts a timeout to milliseconds, rounding up so short
+	 * timeouts do not become non-blocking calls.
+	 */
+	private static int toTimeoutMs(long timeout, TimeUnit unit) {
+		if (timeout <= 0)
+			return 0;
+		long timeoutMs = unit.toMillis(timeout);
+		if (unit.convert(timeoutMs, TimeUnit.MILLISECONDS) < timeout)
+			timeoutMs++;
+		return (int) Math.min(timeoutMs, Integer.MAX_VALUE);
+	}
+
 	/**
 	 * This method is called as part of {@link #getVideoFrame()}. It retrieves a
 	 * video frame marked as available (recycled). if no frame is available,
@@ -474,6 +817,14 @@ abstract class AbstractGrabber implements FrameGrabber {
 					System.err.printf("BLOCK: waiting for frame (%.3fs so far)\n", time);
 				}
 			} else {
+				if (V4L4JConstants.TRACK_FRAME_LEAKS) {
+					// all frames held for a while: report the ones held for
+					// too long, once
+					BaseVideoFrame result = availableVideoFrames.poll(1, TimeUnit.SECONDS);
+					if (result != null)
+						return result;
+					reportLeakedVideoFrames(TimeUnit.MILLISECONDS.toNanos(V4L4JConstants.FRAME_LEAK_THRESHOLD_MS));
+				}
 				return availableVideoFrames.take();
 			}
 		} catch (InterruptedException e) {
@@ -481,24 +832,121 @@ abstract class AbstractGrabber implements FrameGrabber {
 		}
 	}
 
+	/**
+	 * This method prints a report for each video frame which has been handed
+	 * out for longer than the given time and not released since.
+	 * 
+	 * @param thresholdNs
+	 *            how long a frame must have been held for to be reported, in
+	 *            nanoseconds
+	 * @return the number of frames reported
+	 */
+	private int reportLeakedVideoFrames(long thresholdNs) {
+		int leaked = 0;
+		for (BaseVideoFrame frame : videoFrames) {
+			if (!frame.isRecycled() && frame.getHeldTime() >= thresholdNs) {
+				frame.reportLeak();
+				leaked++;
+			}
+		}
+		return leaked;
+	}
+
 	final VideoFrame getNextVideoFrame() throws V4L4JException {
+		return getNextVideoFrame(-1);
+	}
+
+	/**
+	 * This method returns the next captured frame, waiting up to the given
+	 * time for the driver to fill a buffer. If <code>timeoutMs</code> is not
+	 * negative, it does not wait for the application to recycle a frame:
+	 * <code>null</code> is returned straight away if all frames are held.
+	 * 
+	 * @param timeoutMs
+	 *            how long to wait for a frame, in milliseconds, or -1 to wait
+	 *            for as long as it takes
+	 * @return the next captured frame, or <code>null</code> if none was
+	 *         captured within <code>timeoutMs</code>
+	 * @throws V4L4JException
+	 *             if there is an error capturing the frame
+	 */
+	private VideoFrame getNextVideoFrame(int timeoutMs) throws V4L4JException {
 		state.get();
 
 		try {
+			if (zeroCopy)
+				return getNextBatchedVideoFrame(timeoutMs);
+
 			// get next available video frame object
-			BaseVideoFrame nextFrame = getAvailableVideoFrame();
+			BaseVideoFrame nextFrame = timeoutMs < 0 ? getAvailableVideoFrame() : availableVideoFrames.poll();
+			if (nextFrame == null)
+				return null;
 
 			// get the latest frame and store it in the video frame
-			int frameSize = fillBuffer(object, nextFrame.getRawBuffer());
-
-			// mark the video frame as available for use
-			nextFrame.prepareForDelivery(frameSize, lastCapturedFrameBufferIndex, lastCapturedFrameSequence, lastCapturedFrameTimeuSec);
+			synchronized (batchLock) {
+				int frameSize = fillBuffer(object, nextFrame.getRawBuffer(), frameMetadata, timeoutMs);
+				if (frameSize < 0) {
+					// nothing captured in time, the frame is still available.
+					// This should *never* fail, as the pool can hold all frames
+					if (!availableVideoFrames.offer(nextFrame))
+						throw new StateException("Error while returning unused video frame: frame pool is full");
+					return null;
+				}
+				deliverFrame(nextFrame, frameSize, 0);
+			}
 			return nextFrame;
 		} finally {
 			state.put();
 		}
 	}
 
+	/**
+	 * In zero-copy mode, this method returns the next frame dequeued by the
+	 * last call to {@link #dequeueBuffers(long, long[], int)}. If they
+	 * have all been returned already, it dequeues all filled buffers at once,
+	 * waiting up to the given time for one if need be.
+	 * 
+	 * @param timeoutMs
+	 *            how long to wait for a frame, in milliseconds, or -1 to wait
+	 *            for as long as it takes
+	 * @return the next captured frame, or <code>null</code> if none was
+	 *         captured within <code>timeoutMs</code>
+	 * @throws V4L4JException
+	 *             if there is an error dequeuing the buffers
+	 */
+	private BaseVideoFrame getNextBatchedVideoFrame(int timeoutMs) throws V4L4JException {
+		synchronized (batchLock) {
+			if (batchPosition == batchSize) {
+				batchPosition = 0;
+				batchSize = 0;
+				// the driver reports an error rather than waiting when no
+				// buffer is enqueued, ie when the application holds them all
+				if (timeoutMs >= 0 && getNumberOfRecycledVideoFrames() == 0)
+					return null;
+				batchSize = dequeueBuffers(object, frameMetadata, timeoutMs);
+				if (batchSize == 0)
+					return null;
+			}
+
+			int entry = METADATA_SIZE * batchPosition++;
+			BaseVideoFrame nextFrame = videoFrames.get((int) frameMetadata[entry + METADATA_INDEX]);
+			deliverFrame(nextFrame, (int) frameMetadata[entry + METADATA_LENGTH], entry);
+			return nextFrame;
+		}
+	}
+
+	/**
+	 * This method records the metrics of a captured frame and marks it as
+	 * ready to be delivered, from its entry in {@link #frameMetadata}. It must
+	 * be called with {@link #batchLock} held.
+	 */
+	private void deliverFrame(BaseVideoFrame frame, int frameSize, int entry) {
+		int index = (int) frameMetadata[entry + METADATA_INDEX];
+		long sequence = frameMetadata[entry + METADATA_SEQUENCE];
+		metrics.frameCaptured(sequence, frameMetadata[entry + METADATA_DEQUEUE_NS], frameMetadata[entry + METADATA_CONVERSION_NS]);
+		frame.prepareForDelivery(frameSize, index, sequence, frameMetadata[entry + METADATA_TIME_US]);
+	}
+
 	synchronized static void Log(String s) {
 		System.out.println(Thread.currentThread().getName() + ": " + s);
 		System.out.flush();
@@ -513,18 +961,51 @@ abstract class AbstractGrabber implements FrameGrabber {
 	final void recycleVideoBuffer(BaseVideoFrame frame) {
 		// Make sure we are in started state
 		if (state.isStarted()) {
+			metrics.frameRecycled(frame.getHeldTime());
 			enqueueBuffer(object, frame.getBufferIndex());
-			try {
-				availableVideoFrames.put(frame);
-			} catch (InterruptedException e) {
-				//This should *never* happen, because the queue should never be full
-				throw new StateException("Error while recycling video frame", e);
-			}
+			// driver buffers are their own availability queue in zero-copy mode
+			if (zeroCopy)
+				return;
+			//This should *never* fail, because the pool can hold all frames
+			if (!availableVideoFrames.offer(frame))
+				throw new StateException("Error while recycling video frame: frame pool is full");
 		} else {
 			throw new StateException("Could not recycle frame: invalid state " + state.state + "(" + state.temp + ")");
 		}
 	}
 
+	/**
+	 * This method is called by a video frame to get a DMABUF file descriptor
+	 * for the V4L2 buffer it was captured in.
+	 * 
+	 * @param bufferIndex
+	 *            the V4L2 buffer index
+	 * @return the DMABUF file descriptor
+	 * @throws UnsupportedMethod
+	 *             if the buffer cannot be exported
+	 */
+	final int exportVideoBuffer(int bufferIndex) throws UnsupportedMethod {
+		synchronized (state) {
+			state.checkReleased();
+			return exportBuffer(object, bufferIndex);
+		}
+	}
+
+	/**
+	 * This method is called by a video frame to get the size of the V4L2
+	 * buffer it was captured in.
+	 * 
+	 * @param bufferIndex
+	 *            the V4L2 buffer index
+	 * @return the size of the V4L2 buffer
+	 */
+	final int getVideoBufferLength(int bufferIndex) {
+		synchronized (state) {
+			state.checkReleased();
+			return getDriverBufferLength(object, bufferIndex);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -548,8 +1029,10 @@ abstract class AbstractGrabber implements FrameGrabber {
 		// capture which will wake up the push thread blocked in fillBuffer()
 		// with an error.
 
-		// unblock thread in 1): stop the push source
-		pushSource.stopCapture();
+		// unblock thread in 1): stop the push source. In pull mode,
+		// application threads never wait for a recycled frame
+		if (!pullMode)
+			pushSource.stopCapture();
 
 		// unblock thread in 2): tell libvideo to stop capture
 		AbstractGrabber.stop(this.object);
@@ -561,18 +1044,22 @@ abstract class AbstractGrabber implements FrameGrabber {
 		// anymore,
 		// and further calls to it will throw a StateException.
 
-		// Make sure all video frames are recycled
-		for (VideoFrame frame : videoFrames) {
-			try {
-				frame.recycle();
-			} catch (StateException e) {
-				//The frame was already recycled
-			}
-		}
+		// Make sure all video frames are recycled. Frames still held at this
+		// stage are taken back, and reported if leak tracking is enabled
+		if (V4L4JConstants.TRACK_FRAME_LEAKS)
+			reportLeakedVideoFrames(0);
+		for (BaseVideoFrame frame : videoFrames)
+			frame.forceRecycle();
 
 		// remove all frames from available queue
 		availableVideoFrames.clear();
 
+		// buffers dequeued but not delivered yet were returned by STREAMOFF
+		synchronized (batchLock) {
+			batchPosition = 0;
+			batchSize = 0;
+		}
+
 		// commit new state
 		state.commit();
 	}
@@ -593,6 +1080,7 @@ abstract class AbstractGrabber implements FrameGrabber {
 
 		state.release();
 		doRelease(object);
+		metrics.unregister();
 		state.commit();
 	}
 
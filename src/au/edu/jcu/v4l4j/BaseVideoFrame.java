@@ -21,6 +21,9 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import au.edu.jcu.v4l4j.exceptions.StateException;
@@ -42,7 +45,19 @@ public class BaseVideoFrame implements VideoFrame {
 	protected long sequenceNumber;
 	protected long captureTime;
 	protected int bufferIndex;
-	protected boolean recycled;
+	/**
+	 * The number of holders of this frame, 0 when it is recycled
+	 */
+	protected final AtomicInteger refCount = new AtomicInteger(0);
+	/**
+	 * When this frame was last handed out, in {@link System#nanoTime()} units
+	 */
+	protected volatile long deliveryTime;
+	/**
+	 * Where this frame was handed out and retained from, if
+	 * {@link V4L4JConstants#TRACK_FRAME_LEAKS} is set
+	 */
+	private final List<Throwable> holderTraces;
 
 	protected final V4L4JDataBuffer dataBuffer;
 	protected final V4L4JRaster raster;
@@ -63,20 +78,44 @@ public class BaseVideoFrame implements VideoFrame {
 		this.frameGrabber = grabber;
 		this.buffer = ByteBuffer.allocateDirect(bufferSize);
 		this.dataBuffer = new V4L4JDataBuffer(this.buffer);
+		this.holderTraces = V4L4JConstants.TRACK_FRAME_LEAKS ? new ArrayList<Throwable>() : null;
 		this.raster = null;
 		this.bufferedImage = null;
 		this.bufferIndex = 0;
-		this.recycled = true;
 	}
 	
 	protected BaseVideoFrame(AbstractGrabber grabber, int bufferSize, Function<BaseVideoFrame, V4L4JRaster> rasterGenerator, Function<BaseVideoFrame, BufferedImage> imageGenerator) {
 		this.frameGrabber = grabber;
 		this.buffer = ByteBuffer.allocateDirect(bufferSize);
 		this.dataBuffer = new V4L4JDataBuffer(this.buffer);
+		this.holderTraces = V4L4JConstants.TRACK_FRAME_LEAKS ? new ArrayList<Throwable>() : null;
 		this.raster = rasterGenerator.apply(this);
 		this.bufferedImage = imageGenerator.apply(this);
 		this.bufferIndex = 0;
-		this.recycled = true;
+	}
+	
+	/**
+	 * This method creates a video frame around an existing buffer, rather than
+	 * allocating its own. It is used in zero-copy mode, where the buffer is
+	 * the driver's mmap'ed V4L2 buffer of index <code>bufferIndex</code>, and
+	 * is only valid until the owning frame grabber is released.
+	 * 
+	 * @param grabber
+	 *            the frame grabber to which this frame must be returned to when
+	 *            recycled.
+	 * @param buffer
+	 *            the direct buffer holding the frame data
+	 * @param bufferIndex
+	 *            the index of the V4L2 buffer wrapped by this frame
+	 */
+	protected BaseVideoFrame(AbstractGrabber grabber, ByteBuffer buffer, int bufferIndex) {
+		this.frameGrabber = grabber;
+		this.buffer = buffer;
+		this.dataBuffer = new V4L4JDataBuffer(this.buffer);
+		this.holderTraces = V4L4JConstants.TRACK_FRAME_LEAKS ? new ArrayList<Throwable>() : null;
+		this.raster = null;
+		this.bufferedImage = null;
+		this.bufferIndex = bufferIndex;
 	}
 	
 	/**
@@ -91,27 +130,79 @@ public class BaseVideoFrame implements VideoFrame {
 	 *            this frame capture timestamp in elapsed microseconds since
 	 *            startup
 	 */
-	protected synchronized void prepareForDelivery(int length, int index, long sequence, long timeUs) {
+	protected void prepareForDelivery(int length, int index, long sequence, long timeUs) {
 		this.buffer.position(0);
 		this.buffer.limit(length);
 		this.dataBuffer.setNewFrameSize(length);
 		this.sequenceNumber = sequence;
 		this.captureTime = timeUs;
 		this.bufferIndex = index;
-		this.recycled = false;
+		this.deliveryTime = System.nanoTime();
+		if (holderTraces != null) {
+			synchronized (holderTraces) {
+				holderTraces.clear();
+				holderTraces.add(new Throwable("Frame " + sequence + " delivered"));
+			}
+		}
+		// publish the fields above to the thread the frame is handed out to
+		this.refCount.set(1);
+	}
+	
+	/**
+	 * This method is used by the owning frame grabber to find out whether this
+	 * frame is currently handed out to the user.
+	 * 
+	 * @return whether this frame has been recycled
+	 */
+	final boolean isRecycled() {
+		return refCount.get() == 0;
+	}
+
+	/**
+	 * This method is used by the owning frame grabber to find out how many
+	 * holders this frame currently has.
+	 * 
+	 * @return the number of holders of this frame, 0 if it is recycled
+	 */
+	final int getRefCount() {
+		return refCount.get();
+	}
+
+	/**
+	 * This method is used by the owning frame grabber to find out for how long
+	 * this frame has been handed out.
+	 * 
+	 * @return the number of nanoseconds since this frame was handed out
+	 */
+	final long getHeldTime() {
+		return System.nanoTime() - deliveryTime;
 	}
 
 	/**
-	 * This method is used by the owning frame grabber so it can wait until this
-	 * frame is recycled.
+	 * This method is used by the owning frame grabber to report a frame which
+	 * has not been released. It prints this frame's holder count, and where it
+	 * was handed out and retained from if {@link V4L4JConstants#TRACK_FRAME_LEAKS}
+	 * is set.
+	 */
+	final void reportLeak() {
+		System.err.printf("LEAK: frame %d (buffer %d) held by %d holder(s) for %.3fs\n", sequenceNumber, bufferIndex, refCount.get(), getHeldTime() / 1e9);
+		if (holderTraces == null)
+			return;
+		synchronized (holderTraces) {
+			for (Throwable trace : holderTraces)
+				trace.printStackTrace();
+		}
+	}
+
+	/**
+	 * This method is used by the owning frame grabber when capture stops, to
+	 * mark this frame as recycled regardless of its holders. Its buffer is not
+	 * handed back, as the driver has dropped all buffers already.
 	 * 
-	 * @throws InterruptedException
-	 *             if we were interrupted while waiting for the frame to be
-	 *             recycled.
+	 * @return the number of holders this frame had
 	 */
-	final synchronized void waitTillRecycled() throws InterruptedException {
-		while (!recycled)
-			wait();
+	final int forceRecycle() {
+		return refCount.getAndSet(0);
 	}
 	
 	/**
@@ -175,14 +266,14 @@ public class BaseVideoFrame implements VideoFrame {
 	}
 
 	/**
-	 * This method must be called with this video frame lock held, and throws a
-	 * {@link StateException} if it is recycled.
+	 * This method throws a {@link StateException} if this video frame is
+	 * recycled.
 	 * 
 	 * @throws StateException
 	 *             if this video frame is recycled.
 	 */
 	private final void checkIfRecycled() throws StateException {
-		if (recycled)
+		if (refCount.get() == 0)
 			throw new StateException("This video frame has been recycled");
 	}
 
@@ -197,55 +288,107 @@ public class BaseVideoFrame implements VideoFrame {
 	}
 
 	@Override
-	public final synchronized int getFrameLength() {
+	public final int getFrameLength() {
 		checkIfRecycled();
 		return buffer.remaining();
 	}
 
 	@Override
-	public final synchronized byte[] getBytes() {
+	public final byte[] getBytes() {
 		checkIfRecycled();
 		return VideoFrame.super.getBytes();
 	}
 
 	@Override
-	public final synchronized DataBuffer getDataBuffer() {
+	public final DataBuffer getDataBuffer() {
 		checkIfRecycled();
 		return dataBuffer;
 	}
 
 	@Override
-	public final synchronized WritableRaster getRaster() {
+	public final WritableRaster getRaster() {
 		checkIfRecycled();
 		return refreshRaster();
 	}
 
 	@Override
-	public final synchronized BufferedImage getBufferedImage() {
+	public final BufferedImage getBufferedImage() {
 		checkIfRecycled();
 		return refreshBufferedImage();
 	}
 
 	@Override
-	public final synchronized long getSequenceNumber() {
+	public final long getSequenceNumber() {
 		checkIfRecycled();
 		return sequenceNumber;
 	}
 
 	@Override
-	public final synchronized long getCaptureTime() {
+	public final long getCaptureTime() {
 		checkIfRecycled();
 		return captureTime;
 	}
 
 	@Override
-	public final synchronized void recycle() {
-		if (!recycled) {
+	public final int getDmaBufFd() {
+		checkIfRecycled();
+		return frameGrabber.exportVideoBuffer(bufferIndex);
+	}
+
+	@Override
+	public final int getDmaBufOffset() {
+		checkIfRecycled();
+		// export the buffer first, so unsupported exports are reported here too
+		frameGrabber.exportVideoBuffer(bufferIndex);
+		return 0;
+	}
+
+	@Override
+	public final int getDmaBufLength() {
+		checkIfRecycled();
+		frameGrabber.exportVideoBuffer(bufferIndex);
+		return frameGrabber.getVideoBufferLength(bufferIndex);
+	}
+
+	@Override
+	public final VideoFrame retain() {
+		int count;
+		do {
+			count = refCount.get();
+			if (count == 0)
+				throw new StateException("Cannot retain recycled frame");
+		} while (!refCount.compareAndSet(count, count + 1));
+
+		if (holderTraces != null) {
+			synchronized (holderTraces) {
+				holderTraces.add(new Throwable("Frame " + sequenceNumber + " retained"));
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public final void release() {
+		int count;
+		do {
+			count = refCount.get();
+			if (count == 0)
+				throw new StateException("Cannot recycle recycled frame");
+		} while (!refCount.compareAndSet(count, count - 1));
+
+		// only the last holder hands the buffer back
+		if (count > 1)
+			return;
+		try {
 			frameGrabber.recycleVideoBuffer(this);
-			recycled = true;
-			this.notifyAll();
-		} else {
-			throw new StateException("Cannot recycle recycled frame");
+		} catch (RuntimeException e) {
+			refCount.set(1);
+			throw e;
 		}
 	}
+
+	@Override
+	public final void recycle() {
+		release();
+	}
 }
@@ -0,0 +1,180 @@
+package au.edu.jcu.v4l4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class holds metrics about the capture pipeline of a
+ * {@link FrameGrabber}: how long frames take to be dequeued, converted, handed
+ * to the capture callback and recycled, and how many frames were lost or
+ * dropped on the way. Metrics are always collected, as recording them only
+ * costs a few atomic operations per frame. They can be read through
+ * {@link FrameGrabber#getCaptureMetrics()}, or published over JMX by calling
+ * {@link #register()}.
+ */
+public final class CaptureMetrics implements CaptureMetricsMXBean {
+	private final String deviceFile;
+	private final LatencyHistogram dequeueTime = new LatencyHistogram();
+	private final LatencyHistogram conversionTime = new LatencyHistogram();
+	private final LatencyHistogram callbackTime = new LatencyHistogram();
+	private final LatencyHistogram heldTime = new LatencyHistogram();
+	private final AtomicLong framesCaptured = new AtomicLong();
+	private final AtomicLong framesLost = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	/**
+	 * The sequence number of the last captured frame, or -1 before the first
+	 */
+	private final AtomicLong lastSequence = new AtomicLong(-1);
+	private ObjectName name;
+
+	CaptureMetrics(String deviceFile) {
+		this.deviceFile = deviceFile;
+	}
+
+	/**
+	 * This method records a frame dequeued from the driver.
+	 *
+	 * @param sequence
+	 *            the frame's sequence number
+	 * @param dequeueNs
+	 *            the time spent dequeuing the frame
+	 * @param conversionNs
+	 *            the time spent converting the frame, or a negative value if
+	 *            it was not converted (in zero-copy mode)
+	 */
+	void frameCaptured(long sequence, long dequeueNs, long conversionNs) {
+		framesCaptured.incrementAndGet();
+		dequeueTime.record(dequeueNs);
+		if (conversionNs >= 0)
+			conversionTime.record(conversionNs);
+
+		long previous = lastSequence.getAndSet(sequence);
+		if ((previous >= 0) && (sequence > previous + 1))
+			framesLost.addAndGet(sequence - previous - 1);
+	}
+
+	/**
+	 * This method records the time a capture callback took to process a frame.
+	 */
+	void callbackReturned(long callbackNs) {
+		callbackTime.record(callbackNs);
+	}
+
+	/**
+	 * This method records the time a frame was held before being recycled.
+	 */
+	void frameRecycled(long heldNs) {
+		heldTime.record(heldNs);
+	}
+
+	/**
+	 * This method records a frame recycled without being delivered.
+	 */
+	void frameDropped() {
+		framesDropped.incrementAndGet();
+	}
+
+	/**
+	 * This method is called when the capture restarts, as sequence numbers
+	 * start over.
+	 */
+	void captureStarted() {
+		lastSequence.set(-1);
+	}
+
+	@Override
+	public long getFramesCaptured() {
+		return framesCaptured.get();
+	}
+
+	@Override
+	public long getFramesLost() {
+		return framesLost.get();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	@Override
+	public LatencySnapshot getDequeueTime() {
+		return dequeueTime.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getConversionTime() {
+		return conversionTime.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getCallbackTime() {
+		return callbackTime.snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getHeldTime() {
+		return heldTime.snapshot();
+	}
+
+	@Override
+	public void reset() {
+		dequeueTime.reset();
+		conversionTime.reset();
+		callbackTime.reset();
+		heldTime.reset();
+		framesCaptured.set(0);
+		framesLost.set(0);
+		framesDropped.set(0);
+	}
+
+	/**
+	 * This method registers these metrics with the platform MBean server,
+	 * under the name
+	 * <code>au.edu.jcu.v4l4j:type=CaptureMetrics,device="/dev/videoX"</code>.
+	 * They are unregistered when the frame grabber is released, or by calling
+	 * {@link #unregister()}.
+	 *
+	 * @return the name these metrics were registered under
+	 * @throws JMException
+	 *             if the metrics could not be registered, for instance
+	 *             because metrics for another frame grabber on the same device
+	 *             are registered already
+	 */
+	public synchronized ObjectName register() throws JMException {
+		if (name != null)
+			return name;
+		ObjectName objectName = new ObjectName("au.edu.jcu.v4l4j:type=CaptureMetrics,device=" + ObjectName.quote(deviceFile));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		name = objectName;
+		return name;
+	}
+
+	/**
+	 * This method unregisters these metrics from the platform MBean server, if
+	 * they were registered.
+	 */
+	public synchronized void unregister() {
+		if (name == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			// someone else unregistered them already
+		}
+		name = null;
+	}
+
+	@Override
+	public String toString() {
+		return "captured=" + getFramesCaptured() + " lost=" + getFramesLost() + " dropped=" + getFramesDropped()
+				+ "\n dequeue: " + getDequeueTime() + "\n conversion: " + getConversionTime()
+				+ "\n callback: " + getCallbackTime() + "\n held: " + getHeldTime();
+	}
+}
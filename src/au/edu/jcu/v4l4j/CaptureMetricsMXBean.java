@@ -0,0 +1,54 @@
+package au.edu.jcu.v4l4j;
+
+/**
+ * This interface is the management interface of {@link CaptureMetrics}, ie
+ * what is visible in JMX clients once a frame grabber's metrics have been
+ * registered with {@link CaptureMetrics#register()}.
+ */
+public interface CaptureMetricsMXBean {
+	/**
+	 * @return the number of frames dequeued from the driver
+	 */
+	long getFramesCaptured();
+
+	/**
+	 * @return the number of frames the driver dropped, as worked out from gaps
+	 *         in frame sequence numbers
+	 */
+	long getFramesLost();
+
+	/**
+	 * @return the number of frames recycled without being delivered to the
+	 *         capture callback, as per its {@link DeliveryPolicy}
+	 */
+	long getFramesDropped();
+
+	/**
+	 * @return the time spent waiting for the driver to hand over a frame
+	 *         (<code>VIDIOC_DQBUF</code>)
+	 */
+	LatencySnapshot getDequeueTime();
+
+	/**
+	 * @return the time spent copying and converting frames (libv4lconvert,
+	 *         JPEG compression, ...) once dequeued. Frames captured in
+	 *         zero-copy mode are neither, and are not counted.
+	 */
+	LatencySnapshot getConversionTime();
+
+	/**
+	 * @return the time spent in {@link CaptureCallback#nextFrame(VideoFrame)}
+	 */
+	LatencySnapshot getCallbackTime();
+
+	/**
+	 * @return the time between a frame being delivered and its last holder
+	 *         recycling it
+	 */
+	LatencySnapshot getHeldTime();
+
+	/**
+	 * This method clears all metrics.
+	 */
+	void reset();
+}
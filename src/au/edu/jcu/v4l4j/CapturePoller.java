@@ -0,0 +1,206 @@
+package au.edu.jcu.v4l4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import au.edu.jcu.v4l4j.exceptions.StateException;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
+import au.edu.jcu.v4l4j.exceptions.V4L4JException;
+
+/**
+ * This class lets a single thread wait for frames from many
+ * {@link FrameGrabber}s at once, instead of running one capture thread per
+ * video device. Frame grabbers must be started with
+ * {@link FrameGrabber#startPullCapture()} and added with {@link #add(FrameGrabber)}.
+ * {@link #select(long, TimeUnit)} then waits until at least one of them has a
+ * frame ready, which can be retrieved without blocking using
+ * {@link FrameGrabber#tryNextFrame()}:
+ * <code><br><br>
+ * CapturePoller poller = new CapturePoller();<br>
+ * for (FrameGrabber grabber : grabbers) {<br>
+ * &nbsp;&nbsp;grabber.startPullCapture();<br>
+ * &nbsp;&nbsp;poller.add(grabber);<br>
+ * }<br>
+ * while (running) {<br>
+ * &nbsp;&nbsp;for (FrameGrabber grabber : poller.select(1, TimeUnit.SECONDS)) {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;VideoFrame frame;<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;while ((frame = grabber.tryNextFrame()) != null) {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;process(frame);<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;frame.recycle();<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;}<br>
+ * &nbsp;&nbsp;}<br>
+ * }<br>
+ * poller.close();<br>
+ * </code><br>
+ * Frame grabbers must be removed from the poller before their capture is
+ * stopped. Applications with their own event loop can use
+ * {@link FrameGrabber#getReadinessFd()} instead.
+ */
+public final class CapturePoller implements Closeable {
+
+	static {
+		V4L4JUtils.loadLibrary();
+	}
+
+	/**
+	 * Create the file descriptor used to wake up {@link #select(long, TimeUnit)}
+	 * @return The file descriptor
+	 * @throws V4L4JException If it cannot be created
+	 */
+	private static native int doOpen() throws V4L4JException;
+
+	/**
+	 * Make the given wake-up file descriptor readable
+	 * @param wakeupFd The wake-up file descriptor
+	 */
+	private static native void doWakeup(int wakeupFd);
+
+	/**
+	 * Close the given wake-up file descriptor
+	 * @param wakeupFd The wake-up file descriptor
+	 */
+	private static native void doClose(int wakeupFd);
+
+	/**
+	 * Wait until one of the given file descriptors is readable, or until
+	 * {@link #doWakeup(int)} is called.
+	 * @param wakeupFd The wake-up file descriptor, which is drained if readable
+	 * @param fds The file descriptors to watch
+	 * @param ready Array receiving whether each file descriptor is readable
+	 * @param timeoutMs How long to wait, in milliseconds, or -1 to wait for as
+	 * 		long as it takes
+	 * @return The number of readable file descriptors in <code>fds</code>
+	 * @throws V4L4JException If there is an error waiting
+	 */
+	private static native int doPoll(int wakeupFd, int[] fds, boolean[] ready, int timeoutMs) throws V4L4JException;
+
+	private final int wakeupFd;
+	private final List<FrameGrabber> grabbers = new ArrayList<FrameGrabber>();
+	private int[] fds = new int[0];
+	private boolean closed;
+
+	/**
+	 * This method builds a new poller, watching no frame grabber.
+	 *
+	 * @throws V4L4JException
+	 *             if the poller cannot be created
+	 */
+	public CapturePoller() throws V4L4JException {
+		wakeupFd = doOpen();
+	}
+
+	/**
+	 * This method adds a frame grabber to the ones watched by this poller.
+	 * It takes effect at the next call to {@link #select(long, TimeUnit)}.
+	 *
+	 * @param grabber
+	 *            the frame grabber to watch
+	 * @throws UnsupportedMethod
+	 *             if the frame grabber's device cannot be polled
+	 * @throws StateException
+	 *             if this poller is closed, or the frame grabber has been
+	 *             released
+	 */
+	public synchronized void add(FrameGrabber grabber) throws UnsupportedMethod {
+		checkClosed();
+		int fd = grabber.getReadinessFd();
+		if (grabbers.contains(grabber))
+			return;
+		grabbers.add(grabber);
+		int[] newFds = new int[fds.length + 1];
+		System.arraycopy(fds, 0, newFds, 0, fds.length);
+		newFds[fds.length] = fd;
+		fds = newFds;
+		doWakeup(wakeupFd);
+	}
+
+	/**
+	 * This method stops watching the given frame grabber. It takes effect at
+	 * the next call to {@link #select(long, TimeUnit)}, which is woken up if
+	 * it is currently waiting.
+	 *
+	 * @param grabber
+	 *            the frame grabber to stop watching
+	 * @return whether the frame grabber was watched by this poller
+	 */
+	public synchronized boolean remove(FrameGrabber grabber) {
+		int index = grabbers.indexOf(grabber);
+		if (index < 0)
+			return false;
+		grabbers.remove(index);
+		int[] newFds = new int[fds.length - 1];
+		System.arraycopy(fds, 0, newFds, 0, index);
+		System.arraycopy(fds, index + 1, newFds, index, newFds.length - index);
+		fds = newFds;
+		if (!closed)
+			doWakeup(wakeupFd);
+		return true;
+	}
+
+	/**
+	 * This method waits until at least one of the watched frame grabbers has
+	 * a frame ready, until the given time has elapsed, or until
+	 * {@link #wakeup()} is called or a frame grabber is added or removed.
+	 *
+	 * @param timeout
+	 *            how long to wait, or a negative value to wait for as long as
+	 *            it takes
+	 * @param unit
+	 *            the unit of <code>timeout</code>
+	 * @return the frame grabbers with a frame ready, empty if none is ready
+	 * @throws V4L4JException
+	 *             if there is an error waiting
+	 * @throws StateException
+	 *             if this poller is closed
+	 */
+	public List<FrameGrabber> select(long timeout, TimeUnit unit) throws V4L4JException {
+		List<FrameGrabber> watched;
+		int[] watchedFds;
+		synchronized (this) {
+			checkClosed();
+			watched = new ArrayList<FrameGrabber>(grabbers);
+			watchedFds = fds;
+		}
+
+		int timeoutMs = timeout < 0 ? -1 : (int) Math.min(unit.toMillis(timeout), Integer.MAX_VALUE);
+		boolean[] ready = new boolean[watchedFds.length];
+		int count = doPoll(wakeupFd, watchedFds, ready, timeoutMs);
+
+		List<FrameGrabber> result = new ArrayList<FrameGrabber>(count);
+		for (int i = 0; i < ready.length && result.size() < count; i++)
+			if (ready[i])
+				result.add(watched.get(i));
+		return result;
+	}
+
+	/**
+	 * This method makes the current or next call to
+	 * {@link #select(long, TimeUnit)} return straight away.
+	 */
+	public synchronized void wakeup() {
+		if (!closed)
+			doWakeup(wakeupFd);
+	}
+
+	/**
+	 * This method releases the resources used by this poller. The watched
+	 * frame grabbers are left untouched. It must not be called while another
+	 * thread is in {@link #select(long, TimeUnit)}.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		grabbers.clear();
+		fds = new int[0];
+		doClose(wakeupFd);
+	}
+
+	private void checkClosed() throws StateException {
+		if (closed)
+			throw new StateException("This CapturePoller has been closed");
+	}
+}
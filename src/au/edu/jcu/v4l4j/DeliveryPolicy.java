@@ -0,0 +1,29 @@
+package au.edu.jcu.v4l4j;
+
+/**
+ * This enumeration lists what a {@link FrameGrabber} does with a newly
+ * captured frame when its {@link CaptureCallback} is still busy with previous
+ * ones.
+ *
+ * @see FrameGrabber#setCaptureCallback(CaptureCallback, DeliveryPolicy)
+ */
+public enum DeliveryPolicy {
+	/**
+	 * Wait for the callback before capturing the next frame. No frame is
+	 * dropped by v4l4j, but captured frames wait in the driver queue, so the
+	 * latency grows up to {@link FrameGrabber#getNumberOfVideoFrames()} frame
+	 * periods with a slow callback. This is the default policy.
+	 */
+	BLOCK,
+	/**
+	 * Keep capturing, and recycle frames captured while the callback is busy.
+	 * The callback gets the first frame captured after it becomes available.
+	 */
+	DROP_NEWEST,
+	/**
+	 * Keep capturing, and hold on to the latest frame captured while the
+	 * callback is busy, recycling the one it replaces. The callback always
+	 * gets the freshest frame available, at the cost of skipping frames.
+	 */
+	DROP_OLDEST;
+}
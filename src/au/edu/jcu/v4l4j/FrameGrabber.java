@@ -24,6 +24,8 @@
 
 package au.edu.jcu.v4l4j;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import au.edu.jcu.v4l4j.FrameInterval.DiscreteInterval;
@@ -52,6 +54,10 @@ import au.edu.jcu.v4l4j.exceptions.VideoStandardException;
  * thread factory by calling
  * {@link VideoDevice#setThreadFactory(java.util.concurrent.ThreadFactory factory)}
  * <b>prior to creating a <code>FrameGrabber</code> object</b>.<br>
+ * Alternatively, frame grabbers can operate in pull mode, started with
+ * {@link #startPullCapture()}, where the application retrieves frames itself
+ * with {@link #tryNextFrame()} or {@link #nextFrame(long, TimeUnit)}, and
+ * can watch many devices from one thread with a {@link CapturePoller}.<br>
  * A typical <code>FrameGrabber</code> use case is as follows: <br>
  * Create the video device and frame grabber: <code><br><br>
  * //create a new video device<br>
@@ -164,6 +170,18 @@ public interface FrameGrabber {
 	 */
 	int getNumberOfRecycledVideoFrames();
 
+	/**
+	 * This method returns the metrics collected by this frame grabber about
+	 * its capture pipeline: time spent dequeuing frames from the driver,
+	 * converting them, in the {@link CaptureCallback} and until they are
+	 * recycled, as well as the number of frames lost by the driver or dropped
+	 * by the {@link DeliveryPolicy}. The metrics can also be published over
+	 * JMX with {@link CaptureMetrics#register()}.
+	 * 
+	 * @return this frame grabber's capture metrics
+	 */
+	CaptureMetrics getCaptureMetrics();
+
 	/**
 	 * This method sets the frame interval used for capture. The frame interval
 	 * defined the lapse of time (in second) between two captured frames and is
@@ -269,6 +287,93 @@ public interface FrameGrabber {
 	 */
 	void setCaptureCallback(CaptureCallback callback) throws StateException;
 
+	/**
+	 * This method sets the {@link CaptureCallback} object which will be
+	 * notified by this grabber as soon as new frames become available, like
+	 * {@link #setCaptureCallback(CaptureCallback)}. However, the capture thread
+	 * only retrieves frames, and hands each of them to the given executor
+	 * which calls the callback. This way, a slow callback does not delay the
+	 * capture, and several frames can be processed at once on different
+	 * threads. The callback must therefore be thread-safe.<br>
+	 * At most {@link #getNumberOfVideoFrames()} frames can be waiting in, or
+	 * being processed by, the executor. Once this number is reached, the
+	 * capture thread waits until a callback returns.<br>
+	 * If <code>ordered</code> is true, callbacks are started in the order
+	 * frames were captured. Only their start is ordered: callbacks still run
+	 * concurrently, so one can complete before the previous one, and anything
+	 * they publish at the end, such as results, may come out of order. In this
+	 * case, the executor must either run tasks in the order they are
+	 * submitted, or be able to run {@link #getNumberOfVideoFrames()} tasks at
+	 * once.<br>
+	 * Exceptions are delivered to
+	 * {@link CaptureCallback#exceptionReceived(V4L4JException)} from the
+	 * capture thread. {@link #stopCapture()} waits for the callbacks running in
+	 * the executor to return, unless it is called from one of them.
+	 * 
+	 * @param callback
+	 *            an object implementing the {@link CaptureCallback} interface
+	 *            which will receive new frames and capture exceptions.
+	 * @param executor
+	 *            the executor running the callbacks
+	 * @param ordered
+	 *            whether callbacks must be started in capture order (they
+	 *            may still complete out of order)
+	 * @throws StateException
+	 *             if this method is invoked while capture is active, i.e. after
+	 *             a call to {@link #startCapture()} and prior a call to
+	 *             {@link #stopCapture()}.
+	 */
+	void setCaptureCallback(CaptureCallback callback, Executor executor, boolean ordered) throws StateException;
+
+	/**
+	 * This method sets the {@link CaptureCallback} object which will be
+	 * notified by this grabber as soon as new frames become available, like
+	 * {@link #setCaptureCallback(CaptureCallback)}, and chooses what happens
+	 * to frames captured while the callback is still busy with a previous one.
+	 * With {@link DeliveryPolicy#DROP_NEWEST} or
+	 * {@link DeliveryPolicy#DROP_OLDEST}, capture carries on while the
+	 * callback runs, so the callback is called from a thread dedicated to it,
+	 * and dropped frames are recycled straight away.
+	 * 
+	 * @param callback
+	 *            an object implementing the {@link CaptureCallback} interface
+	 *            which will receive new frames and capture exceptions.
+	 * @param policy
+	 *            what to do with frames captured while the callback is busy
+	 * @throws StateException
+	 *             if this method is invoked while capture is active, i.e. after
+	 *             a call to {@link #startCapture()} and prior a call to
+	 *             {@link #stopCapture()}.
+	 */
+	void setCaptureCallback(CaptureCallback callback, DeliveryPolicy policy) throws StateException;
+
+	/**
+	 * This method combines {@link #setCaptureCallback(CaptureCallback, Executor, boolean)}
+	 * and {@link #setCaptureCallback(CaptureCallback, DeliveryPolicy)}: frames
+	 * are handed to the given executor, and frames captured while the
+	 * executor is busy are handled as per the given policy. With a drop
+	 * policy, up to {@link #getNumberOfVideoFrames()} - 1
+	 * ({@link DeliveryPolicy#DROP_NEWEST}) or - 2
+	 * ({@link DeliveryPolicy#DROP_OLDEST}) frames can be processed at once, so
+	 * the driver always has a buffer to capture into.
+	 * 
+	 * @param callback
+	 *            an object implementing the {@link CaptureCallback} interface
+	 *            which will receive new frames and capture exceptions.
+	 * @param executor
+	 *            the executor running the callbacks
+	 * @param ordered
+	 *            whether callbacks must be started in capture order (they
+	 *            may still complete out of order)
+	 * @param policy
+	 *            what to do with frames captured while the executor is busy
+	 * @throws StateException
+	 *             if this method is invoked while capture is active, i.e. after
+	 *             a call to {@link #startCapture()} and prior a call to
+	 *             {@link #stopCapture()}.
+	 */
+	void setCaptureCallback(CaptureCallback callback, Executor executor, boolean ordered, DeliveryPolicy policy) throws StateException;
+
 	/**
 	 * A way to use {@link #setCaptureCallback(CaptureCallback)} with support for Java 8 lambas, or to
 	 * break up the two callbacks.
@@ -307,6 +412,103 @@ public interface FrameGrabber {
 	 */
 	void startCapture() throws V4L4JException;
 
+	/**
+	 * This method starts the capture in pull mode: instead of being delivered
+	 * to a {@link CaptureCallback} by a dedicated thread, frames are retrieved
+	 * by the application with {@link #tryNextFrame()},
+	 * {@link #nextFrame(long, TimeUnit)} or
+	 * {@link #nextFrames(VideoFrame[], long, TimeUnit)}. Together with
+	 * {@link #getReadinessFd()} or a {@link CapturePoller}, this lets a single
+	 * thread capture from many video devices. Frames must be recycled as
+	 * usual. The capture is stopped with {@link #stopCapture()}.
+	 * 
+	 * @throws V4L4JException
+	 *             if the capture cannot be started
+	 * @throws StateException
+	 *             if the capture is already started, or if this
+	 *             <code>FrameGrabber</code> has been already released, and
+	 *             therefore must not be used anymore
+	 */
+	void startPullCapture() throws V4L4JException;
+
+	/**
+	 * This method returns the next captured frame if one is ready, without
+	 * waiting. The capture must have been started with
+	 * {@link #startPullCapture()}.
+	 * 
+	 * @return the next frame, or <code>null</code> if the driver has not
+	 *         captured one yet, or if all frames are held by the application
+	 * @throws V4L4JException
+	 *             if there is an error capturing the frame
+	 * @throws StateException
+	 *             if the capture was not started with
+	 *             {@link #startPullCapture()}, or has been stopped
+	 */
+	VideoFrame tryNextFrame() throws V4L4JException;
+
+	/**
+	 * This method returns the next captured frame, waiting up to the given
+	 * time for the driver to capture one. It does not wait for frames held by
+	 * the application to be recycled. The capture must have been started with
+	 * {@link #startPullCapture()}.
+	 * 
+	 * @param timeout
+	 *            how long to wait for a frame
+	 * @param unit
+	 *            the unit of <code>timeout</code>
+	 * @return the next frame, or <code>null</code> if none was captured in
+	 *         time, or if all frames are held by the application
+	 * @throws V4L4JException
+	 *             if there is an error capturing the frame
+	 * @throws StateException
+	 *             if the capture was not started with
+	 *             {@link #startPullCapture()}, or is stopped while waiting
+	 */
+	VideoFrame nextFrame(long timeout, TimeUnit unit) throws V4L4JException;
+
+	/**
+	 * This method stores all frames captured so far in the given array, up to
+	 * its length, waiting up to the given time for the first one. In
+	 * zero-copy mode, all ready frames are dequeued from the driver in a
+	 * single call. The capture must have been started with
+	 * {@link #startPullCapture()}.
+	 * 
+	 * @param frames
+	 *            the array receiving the frames
+	 * @param timeout
+	 *            how long to wait for the first frame
+	 * @param unit
+	 *            the unit of <code>timeout</code>
+	 * @return the number of frames stored in <code>frames</code>, 0 if none
+	 *         was captured in time
+	 * @throws V4L4JException
+	 *             if there is an error capturing the frames
+	 * @throws StateException
+	 *             if the capture was not started with
+	 *             {@link #startPullCapture()}, or is stopped while waiting
+	 */
+	int nextFrames(VideoFrame[] frames, long timeout, TimeUnit unit) throws V4L4JException;
+
+	/**
+	 * This method returns the file descriptor of the video device, which is
+	 * readable (<code>POLLIN</code>/<code>EPOLLIN</code>) whenever a frame is
+	 * ready to be retrieved with {@link #tryNextFrame()}. It can be added to
+	 * an event loop (epoll, or any library exposing raw file descriptors)
+	 * watching many devices; {@link CapturePoller} does this for frame grabbers
+	 * only. The descriptor is owned by v4l4j: it must not be read from or
+	 * closed, and becomes invalid once the video device is released.
+	 * Readiness is level-triggered: call {@link #tryNextFrame()} until it
+	 * returns <code>null</code> to drain it.
+	 * 
+	 * @return the file descriptor of the video device
+	 * @throws UnsupportedMethod
+	 *             if the device cannot be polled (V4L1 devices)
+	 * @throws StateException
+	 *             if this <code>FrameGrabber</code> has been already released,
+	 *             and therefore must not be used anymore
+	 */
+	int getReadinessFd() throws UnsupportedMethod;
+
 	/**
 	 * This method stops the capture, and recycles all {@link VideoFrame}s.
 	 * 
@@ -0,0 +1,273 @@
+package au.edu.jcu.v4l4j;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class holds the video frames available to a frame grabber, ie frames
+ * which have been recycled and can be filled with a new image. It is a bounded
+ * ring buffer which can be fed by any number of recycling threads and drained
+ * by any number of capture threads, without taking any lock.<br>
+ * Each slot carries a sequence number telling whether it is ready to be
+ * written (sequence == position) or read (sequence == position + 1), so
+ * producers only contend on the tail counter, consumers only contend on the
+ * head counter, and producers never contend with consumers. A consumer
+ * waiting for a frame parks until a producer unparks it. There is usually a
+ * single capture thread, so only one consumer is unparked this way; others
+ * waiting at the same time check back periodically.
+ *
+ * @param <T>
+ *            the type of frames held in this pool
+ */
+final class FramePool<T> {
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	/**
+	 * Position of the next slot to write, shared by producers
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Position of the next slot to read, shared by consumers
+	 */
+	private final AtomicLong head = new AtomicLong();
+	/**
+	 * The consumer thread parked waiting for a frame, if any
+	 */
+	private final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+	/**
+	 * How long consumers which are not the registered waiter park for before
+	 * checking the pool again
+	 */
+	private static final long SECONDARY_WAITER_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * This constructor builds a pool able to hold at least the given number of
+	 * frames.
+	 *
+	 * @param capacity
+	 *            the minimum number of frames the pool can hold
+	 */
+	FramePool(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive");
+
+		// round up to a power of two so positions can be masked into indices
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.slots = new AtomicReferenceArray<T>(size);
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * This method returns the maximum number of frames this pool can hold.
+	 *
+	 * @return the capacity of this pool
+	 */
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * This method adds a frame to this pool, and wakes up the consumer if it
+	 * is waiting for one. It can be called by any thread.
+	 *
+	 * @param frame
+	 *            the frame to add
+	 * @return whether the frame was added, ie false if the pool is full
+	 */
+	boolean offer(T frame) {
+		if (frame == null)
+			throw new NullPointerException("Cannot add a null frame");
+
+		long position;
+		int index;
+		while (true) {
+			position = tail.get();
+			index = (int) (position & mask);
+			long delta = sequences.get(index) - position;
+			if (delta == 0) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (delta < 0) {
+				// the frame a lap behind is still in this slot: the pool is
+				// full, unless a consumer has claimed that frame but not
+				// handed the slot back yet
+				if (position - head.get() >= capacity())
+					return false;
+				Thread.yield();
+			}
+			// else another producer claimed this slot, try the next one
+		}
+
+		slots.lazySet(index, frame);
+		// publish the frame to the consumer
+		sequences.set(index, position + 1);
+
+		Thread w = waiter.get();
+		if (w != null)
+			LockSupport.unpark(w);
+		return true;
+	}
+
+	/**
+	 * This method adds all the given frames to this pool.
+	 *
+	 * @param frames
+	 *            the frames to add
+	 * @throws IllegalStateException
+	 *             if there is no room left for one of the frames
+	 */
+	void addAll(Collection<? extends T> frames) {
+		for (T frame : frames)
+			if (!offer(frame))
+				throw new IllegalStateException("The frame pool is full");
+	}
+
+	/**
+	 * This method takes a frame out of this pool, if one is available. It can
+	 * be called by any thread.
+	 *
+	 * @return a frame, or <code>null</code> if the pool is empty
+	 */
+	T poll() {
+		long position;
+		int index;
+		while (true) {
+			position = head.get();
+			index = (int) (position & mask);
+			long delta = sequences.get(index) - (position + 1);
+			if (delta == 0) {
+				if (head.compareAndSet(position, position + 1))
+					break;
+			} else if (delta < 0) {
+				// no producer has published a frame in this slot yet
+				return null;
+			}
+			// else another consumer took the frame in this slot, try the next
+		}
+
+		T frame = slots.get(index);
+		slots.lazySet(index, null);
+		// hand the slot back to producers, for their next lap
+		sequences.set(index, position + mask + 1);
+		return frame;
+	}
+
+	/**
+	 * This method parks the calling thread until a frame may be available, or
+	 * the given time has elapsed.
+	 *
+	 * @param registered
+	 *            whether the calling thread is the registered waiter
+	 * @param nanos
+	 *            the maximum time to park for, or a negative value to park
+	 *            until unparked
+	 */
+	private void park(boolean registered, long nanos) {
+		if (!registered)
+			LockSupport.parkNanos(this, nanos < 0 ? SECONDARY_WAITER_PARK_NS : Math.min(nanos, SECONDARY_WAITER_PARK_NS));
+		else if (nanos < 0)
+			LockSupport.park(this);
+		else
+			LockSupport.parkNanos(this, nanos);
+	}
+
+	/**
+	 * This method takes a frame out of this pool, waiting up to the given time
+	 * for one to become available.
+	 *
+	 * @param timeout
+	 *            how long to wait for a frame
+	 * @param unit
+	 *            the unit of the timeout
+	 * @return a frame, or <code>null</code> if none became available in time
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		T frame = poll();
+		if (frame != null)
+			return frame;
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		// register as waiter before checking again, so a producer either
+		// sees us waiting or we see its frame
+		Thread current = Thread.currentThread();
+		boolean registered = waiter.compareAndSet(null, current);
+		try {
+			while ((frame = poll()) == null) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					return null;
+				park(registered, remaining);
+			}
+			return frame;
+		} finally {
+			if (registered)
+				waiter.set(null);
+		}
+	}
+
+	/**
+	 * This method takes a frame out of this pool, waiting for one to become
+	 * available if needed.
+	 *
+	 * @return a frame
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	T take() throws InterruptedException {
+		T frame = poll();
+		if (frame != null)
+			return frame;
+
+		Thread current = Thread.currentThread();
+		boolean registered = waiter.compareAndSet(null, current);
+		try {
+			while ((frame = poll()) == null) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				park(registered, -1);
+			}
+			return frame;
+		} finally {
+			if (registered)
+				waiter.set(null);
+		}
+	}
+
+	/**
+	 * This method returns the number of frames in this pool. The value is only
+	 * a snapshot if frames are being added or taken concurrently.
+	 *
+	 * @return the number of frames in this pool
+	 */
+	int size() {
+		// read head first, so the difference can not be negative
+		long h = head.get();
+		long size = tail.get() - h;
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	/**
+	 * This method removes all frames from this pool.
+	 */
+	void clear() {
+		while (poll() != null)
+			;
+	}
+}
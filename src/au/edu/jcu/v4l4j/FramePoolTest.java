@@ -0,0 +1,318 @@
+package au.edu.jcu.v4l4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FramePool}. This class can also be run as a program, to
+ * compare the throughput of the pool against the {@link ArrayBlockingQueue}
+ * it replaced, with 1, 4 and 16 threads taking and recycling frames.
+ */
+public class FramePoolTest {
+
+	@Test
+	public void testCapacityIsRoundedUp() {
+		assertEquals(1, new FramePool<Object>(1).capacity());
+		assertEquals(4, new FramePool<Object>(3).capacity());
+		assertEquals(4, new FramePool<Object>(4).capacity());
+		assertEquals(8, new FramePool<Object>(5).capacity());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroCapacity() {
+		new FramePool<Object>(0);
+	}
+
+	@Test
+	public void testOfferPollOrder() {
+		FramePool<Integer> pool = new FramePool<Integer>(4);
+		assertNull(pool.poll());
+
+		// go round the ring a few times
+		for (int lap = 0; lap < 3; lap++) {
+			for (int i = 0; i < 4; i++)
+				assertTrue(pool.offer(i));
+			assertFalse(pool.offer(4));
+			assertEquals(4, pool.size());
+
+			for (int i = 0; i < 4; i++)
+				assertEquals(Integer.valueOf(i), pool.poll());
+			assertNull(pool.poll());
+			assertEquals(0, pool.size());
+		}
+	}
+
+	@Test
+	public void testAddAllAndClear() {
+		FramePool<Integer> pool = new FramePool<Integer>(4);
+		pool.addAll(Arrays.asList(1, 2, 3));
+		assertEquals(3, pool.size());
+		pool.clear();
+		assertEquals(0, pool.size());
+		assertNull(pool.poll());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddAllOverflow() {
+		new FramePool<Integer>(2).addAll(Arrays.asList(1, 2, 3));
+	}
+
+	@Test
+	public void testPollTimeout() throws InterruptedException {
+		FramePool<Integer> pool = new FramePool<Integer>(2);
+		long start = System.nanoTime();
+		assertNull(pool.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test(timeout = 5000)
+	public void testTakeIsWokenUp() throws InterruptedException {
+		final FramePool<Integer> pool = new FramePool<Integer>(2);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				pool.offer(42);
+			}
+		};
+		producer.start();
+		assertEquals(Integer.valueOf(42), pool.take());
+		producer.join();
+	}
+
+	@Test(timeout = 5000, expected = InterruptedException.class)
+	public void testTakeInterrupted() throws InterruptedException {
+		final Thread consumer = Thread.currentThread();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				consumer.interrupt();
+			}
+		}.start();
+		new FramePool<Integer>(2).take();
+	}
+
+	/**
+	 * A consumer claims a slot by moving the head, then hands it back to
+	 * producers. A producer reaching the slot in between must wait for it
+	 * rather than find the pool full.
+	 */
+	@Test(timeout = 5000)
+	public void testOfferWaitsForClaimedSlot() throws Exception {
+		final FramePool<Integer> pool = new FramePool<Integer>(2);
+		assertTrue(pool.offer(0));
+		assertTrue(pool.offer(1));
+		assertFalse(pool.offer(2));
+
+		// claim slot 0 as poll() does, without handing it back yet
+		Field headField = FramePool.class.getDeclaredField("head");
+		Field sequencesField = FramePool.class.getDeclaredField("sequences");
+		headField.setAccessible(true);
+		sequencesField.setAccessible(true);
+		AtomicLong head = (AtomicLong) headField.get(pool);
+		AtomicLongArray sequences = (AtomicLongArray) sequencesField.get(pool);
+		assertTrue(head.compareAndSet(0, 1));
+
+		final AtomicBoolean offered = new AtomicBoolean();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				offered.set(pool.offer(2));
+			}
+		};
+		producer.start();
+		producer.join(100);
+		assertTrue("Producer gave up on a claimed slot", producer.isAlive());
+
+		// hand the slot back, for the producers' next lap
+		sequences.set(0, 2);
+		producer.join();
+		assertTrue(offered.get());
+		assertEquals(Integer.valueOf(1), pool.poll());
+		assertEquals(Integer.valueOf(2), pool.poll());
+		assertNull(pool.poll());
+	}
+
+	/**
+	 * Circulates a fixed set of frames between two consumers and several
+	 * recycling threads, and checks no frame is lost or duplicated, and no
+	 * frame is refused by the pool.
+	 */
+	@Test(timeout = 30000)
+	public void testConcurrentRecycling() throws InterruptedException {
+		final int nbFrames = 8;
+		final int nbRounds = 20000;
+		final FramePool<Integer> pool = new FramePool<Integer>(nbFrames);
+		final BlockingQueue<Integer> delivered = new ArrayBlockingQueue<Integer>(nbFrames);
+		for (int i = 0; i < nbFrames; i++)
+			pool.offer(i);
+
+		final AtomicInteger remaining = new AtomicInteger(nbRounds);
+		final CountDownLatch recycled = new CountDownLatch(nbRounds);
+		final AtomicInteger refused = new AtomicInteger();
+		for (int c = 0; c < 2; c++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (remaining.getAndDecrement() > 0)
+							delivered.put(pool.take());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}.start();
+		}
+		Thread[] recyclers = new Thread[4];
+		for (int r = 0; r < recyclers.length; r++) {
+			recyclers[r] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							if (!pool.offer(delivered.take()))
+								refused.incrementAndGet();
+							recycled.countDown();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			};
+			recyclers[r].start();
+		}
+
+		// every frame taken has been offered back
+		recycled.await();
+		for (Thread r : recyclers) {
+			r.interrupt();
+			r.join();
+		}
+
+		assertEquals(0, refused.get());
+		assertEquals(nbFrames, pool.size());
+		Set<Integer> frames = new HashSet<Integer>();
+		Integer frame;
+		while ((frame = pool.poll()) != null)
+			assertTrue("Duplicate frame " + frame, frames.add(frame));
+		assertEquals(nbFrames, frames.size());
+	}
+
+	@Test
+	public void testSameInstanceReturned() {
+		FramePool<Object> pool = new FramePool<Object>(1);
+		Object frame = new Object();
+		pool.offer(frame);
+		assertSame(frame, pool.poll());
+	}
+
+	/**
+	 * The operations benchmarked: threads take frames and recycle them right
+	 * away, so that nothing but the pool is measured.
+	 */
+	private interface Pool {
+		Object take() throws InterruptedException;
+
+		void recycle(Object frame) throws InterruptedException;
+	}
+
+	private static long benchmark(final Pool pool, int nbThreads) throws InterruptedException {
+		final int iterations = 2000000 / nbThreads;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>(nbThreads);
+		for (int t = 0; t < nbThreads; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < iterations; i++)
+							pool.recycle(pool.take());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - begin;
+		return elapsed / ((long) iterations * nbThreads);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final int nbFrames = 4;
+		for (int nbThreads : new int[] { 1, 4, 16 }) {
+			// run each a few times so the JIT has warmed up for the last run
+			for (int run = 0; run < 3; run++) {
+				final FramePool<Object> framePool = new FramePool<Object>(nbFrames);
+				final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(nbFrames);
+				for (int i = 0; i < nbFrames; i++) {
+					framePool.offer(new Object());
+					queue.add(new Object());
+				}
+
+				long poolNs = benchmark(new Pool() {
+					@Override
+					public Object take() throws InterruptedException {
+						return framePool.take();
+					}
+
+					@Override
+					public void recycle(Object frame) {
+						if (!framePool.offer(frame))
+							throw new IllegalStateException("The frame pool is full");
+					}
+				}, nbThreads);
+				long queueNs = benchmark(new Pool() {
+					@Override
+					public Object take() throws InterruptedException {
+						return queue.take();
+					}
+
+					@Override
+					public void recycle(Object frame) throws InterruptedException {
+						queue.put(frame);
+					}
+				}, nbThreads);
+
+				if (run == 2)
+					System.out.printf("%2d threads: FramePool %d ns/frame, ArrayBlockingQueue %d ns/frame\n", nbThreads, poolNs, queueNs);
+			}
+		}
+	}
+}
@@ -55,6 +55,8 @@ public class JPEGFrameGrabber extends AbstractGrabber {
 
 	private int quality;
 
+	private int stripes = 1;
+
 	/**
 	 * This constructor builds a FrameGrabber object used to capture JPEG frames
 	 * from a video source
@@ -117,6 +119,8 @@ public class JPEGFrameGrabber extends AbstractGrabber {
 		try {
 			super.init();
 			setJPGQuality(quality);
+			if (stripes > 1)
+				setStripes(object, stripes);
 		} catch (ImageFormatException ife) {
 			if (format == -1) {
 				String msg = "v4l4j was unable to find image format supported by"
@@ -166,6 +170,51 @@ public class JPEGFrameGrabber extends AbstractGrabber {
 		return quality;
 	}
 
+	/**
+	 * This method makes each frame be compressed as several horizontal
+	 * stripes at the same time, each on its own core, joined with restart
+	 * markers into a single baseline JPEG image. This cuts the time taken to
+	 * encode each frame of large captures, at the cost of a few bytes per
+	 * stripe. It can only be called while the capture is stopped.
+	 * <p>
+	 * Stripes are a whole number of 8 or 16 row MCU rows high, so short frames
+	 * may use fewer stripes than asked for. Only frames captured in RGB24,
+	 * YUV420, YUYV, YVYU or UYVY can be split, and YUV frames must be a
+	 * multiple of 16 pixels wide.
+	 * 
+	 * @param n
+	 *            the number of stripes, between 1 (to compress frames whole)
+	 *            and 64
+	 * @throws IllegalArgumentException
+	 *             if frames can't be split into that many stripes
+	 * @throws StateException
+	 *             if this <code>FrameGrabber</code> has been already released,
+	 *             or the capture is started
+	 */
+	public void setJPGStripes(int n) {
+		synchronized (state) {
+			state.checkReleased();
+			if (state.isStarted())
+				throw new StateException("This frame grabber is already started");
+			setStripes(object, n);
+			stripes = n;
+		}
+	}
+
+	/**
+	 * This method returns the number of stripes frames are compressed as, as
+	 * set by {@link #setJPGStripes(int)}.
+	 * 
+	 * @return the number of stripes, 1 if frames are compressed whole
+	 * @throws StateException
+	 *             if this <code>FrameGrabber</code> has been already released,
+	 *             and therefore must not be used anymore.
+	 */
+	public int getJPGStripes() {
+		state.checkReleased();
+		return stripes;
+	}
+
 	/**
 	 * This method returns the native image format used by this FrameGrabber.
 	 * The returned format specifies the image format the capture uses, ie the
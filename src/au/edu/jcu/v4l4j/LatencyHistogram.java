@@ -0,0 +1,107 @@
+package au.edu.jcu.v4l4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records durations into buckets, so their distribution can be
+ * reported without keeping every sample. Buckets are spaced logarithmically,
+ * with {@value #SUB_BUCKETS} buckets per power of two, so percentiles are
+ * accurate to within 12.5%. Recording a duration is a handful of atomic
+ * increments, and can be done by any number of threads at once.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * This method returns the index of the bucket holding the given value.
+	 * Values below {@link #SUB_BUCKETS} each get their own bucket, then each
+	 * power of two is split into {@link #SUB_BUCKETS} buckets.
+	 */
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * This method returns the largest value held by the given bucket.
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long base = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+		return base + (1L << shift) - 1;
+	}
+
+	/**
+	 * This method records the given duration.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds. Negative values are recorded as
+	 *            0.
+	 */
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos))
+			;
+	}
+
+	/**
+	 * This method clears all recorded durations.
+	 */
+	void reset() {
+		for (int i = 0; i < buckets.length(); i++)
+			buckets.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * This method returns a summary of the durations recorded so far. Durations
+	 * recorded while the summary is computed may or may not be included.
+	 *
+	 * @return a summary of the recorded durations
+	 */
+	LatencySnapshot snapshot() {
+		long[] counts = new long[buckets.length()];
+		long samples = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+			samples += counts[i];
+		}
+
+		long sum = total.get();
+		return new LatencySnapshot(samples, samples == 0 ? 0 : sum / samples,
+				percentile(counts, samples, 0.5), percentile(counts, samples, 0.9),
+				percentile(counts, samples, 0.99), max.get());
+	}
+
+	private static long percentile(long[] counts, long samples, double fraction) {
+		if (samples == 0)
+			return 0;
+		long rank = (long) Math.ceil(samples * fraction);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return highestValueOf(i);
+		}
+		return highestValueOf(counts.length - 1);
+	}
+}
@@ -0,0 +1,104 @@
+package au.edu.jcu.v4l4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram} and {@link CaptureMetrics}.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		// every value must fall in a bucket whose bounds hold it
+		long previousHighest = -1;
+		for (int bucket = 0; bucket < 400; bucket++) {
+			long highest = LatencyHistogram.highestValueOf(bucket);
+			assertTrue(highest > previousHighest);
+			assertEquals(bucket, LatencyHistogram.bucketOf(previousHighest + 1));
+			assertEquals(bucket, LatencyHistogram.bucketOf(highest));
+			// buckets are at most 12.5% wide
+			assertTrue(highest - previousHighest <= Math.max(1, (previousHighest + 1) / LatencyHistogram.SUB_BUCKETS));
+			previousHighest = highest;
+		}
+		// the largest values still have a bucket
+		LatencyHistogram.bucketOf(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testSnapshot() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getMedian());
+
+		for (int i = 1; i <= 1000; i++)
+			histogram.record(i * 1000L);
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500500, snapshot.getMean());
+		assertEquals(1000000, snapshot.getMax());
+		assertBetween(500000, snapshot.getMedian());
+		assertBetween(900000, snapshot.getPercentile90());
+		assertBetween(990000, snapshot.getPercentile99());
+
+		histogram.reset();
+		assertEquals(0, histogram.snapshot().getCount());
+		assertEquals(0, histogram.snapshot().getMax());
+	}
+
+	private static void assertBetween(long expected, long actual) {
+		assertTrue(actual + " < " + expected, actual >= expected);
+		assertTrue(actual + " > " + expected + " + 12.5%", actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+	}
+
+	@Test
+	public void testLostFrames() {
+		CaptureMetrics metrics = new CaptureMetrics("/dev/null");
+		metrics.frameCaptured(0, 1000, 10);
+		metrics.frameCaptured(1, 1000, 10);
+		metrics.frameCaptured(4, 1000, 10);
+		assertEquals(3, metrics.getFramesCaptured());
+		assertEquals(2, metrics.getFramesLost());
+
+		// sequence numbers start over with a new capture
+		metrics.captureStarted();
+		metrics.frameCaptured(0, 1000, 10);
+		assertEquals(2, metrics.getFramesLost());
+	}
+
+	@Test
+	public void testUnconvertedFrames() {
+		CaptureMetrics metrics = new CaptureMetrics("/dev/null");
+		metrics.frameCaptured(0, 1000, 10);
+		// zero-copy frames are not converted
+		metrics.frameCaptured(1, 1000, -1);
+		assertEquals(2, metrics.getFramesCaptured());
+		assertEquals(2, metrics.getDequeueTime().getCount());
+		assertEquals(1, metrics.getConversionTime().getCount());
+	}
+
+	@Test
+	public void testJmxRegistration() throws Exception {
+		CaptureMetrics metrics = new CaptureMetrics("/dev/null");
+		metrics.frameCaptured(0, 2000, 10);
+		ObjectName name = metrics.register();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(1L, server.getAttribute(name, "FramesCaptured"));
+			CompositeData dequeue = (CompositeData) server.getAttribute(name, "DequeueTime");
+			assertEquals(1L, dequeue.get("count"));
+			assertEquals(2000L, dequeue.get("max"));
+		} finally {
+			metrics.unregister();
+		}
+		assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+}
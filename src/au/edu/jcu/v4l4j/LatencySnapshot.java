@@ -0,0 +1,76 @@
+package au.edu.jcu.v4l4j;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * This class summarises the durations recorded for one stage of the capture
+ * pipeline, as returned by {@link CaptureMetrics}. All durations are in
+ * nanoseconds. Percentiles are approximate: they are rounded up to the
+ * boundary of the bucket they fall in, which is at most 12.5% above the
+ * actual value.
+ */
+public final class LatencySnapshot {
+	private final long count;
+	private final long mean;
+	private final long median;
+	private final long percentile90;
+	private final long percentile99;
+	private final long max;
+
+	@ConstructorProperties({ "count", "mean", "median", "percentile90", "percentile99", "max" })
+	public LatencySnapshot(long count, long mean, long median, long percentile90, long percentile99, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.median = median;
+		this.percentile90 = percentile90;
+		this.percentile99 = percentile99;
+		this.max = max;
+	}
+
+	/**
+	 * @return the number of durations recorded
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the mean duration
+	 */
+	public long getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the median duration
+	 */
+	public long getMedian() {
+		return median;
+	}
+
+	/**
+	 * @return the duration 90% of recorded durations are shorter than
+	 */
+	public long getPercentile90() {
+		return percentile90;
+	}
+
+	/**
+	 * @return the duration 99% of recorded durations are shorter than
+	 */
+	public long getPercentile99() {
+		return percentile99;
+	}
+
+	/**
+	 * @return the longest duration recorded
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms", count, mean / 1e6, median / 1e6, percentile90 / 1e6, percentile99 / 1e6, max / 1e6);
+	}
+}
@@ -17,6 +17,11 @@
 */
 package au.edu.jcu.v4l4j;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 
 import au.edu.jcu.v4l4j.exceptions.StateException;
@@ -25,7 +30,17 @@ import au.edu.jcu.v4l4j.exceptions.V4L4JException;
 /**
  * PushSource instances create their own thread which polls a frame grabber and
  * notify the {@link CaptureCallback} object given in the constructor each time
- * a new frame is available.
+ * a new frame is available.<br>
+ * If given an {@link Executor}, the push thread only retrieves frames and
+ * hands each of them to the executor, which calls the callback. At most
+ * {@link FrameGrabber#getNumberOfVideoFrames()} frames can be handed to the
+ * executor and not yet processed by the callback, after which the push thread
+ * waits. Optionally, callbacks can be started in the order frames were
+ * captured.<br>
+ * With a {@link DeliveryPolicy} other than {@link DeliveryPolicy#BLOCK}, the
+ * push thread never waits for callbacks: frames captured while the window is
+ * full are dropped as per the policy. Without an executor, callbacks are then
+ * run one at a time by a dedicated thread.
  * 
  * @author gilles
  *
@@ -35,6 +50,53 @@ class PushSource implements Runnable {
 	private AbstractGrabber frameGrabber;
 	private Thread thread;
 	private ThreadFactory threadFactory;
+	/**
+	 * The executor running callbacks, or <code>null</code> to run them in the
+	 * push thread
+	 */
+	private Executor executor;
+	/**
+	 * The executor given at construction time, if any
+	 */
+	private final Executor userExecutor;
+	/**
+	 * The executor created by this push source for a drop policy without a user
+	 * executor
+	 */
+	private ExecutorService ownExecutor;
+	/**
+	 * What to do with frames captured while the window is full
+	 */
+	private final DeliveryPolicy policy;
+	/**
+	 * In {@link DeliveryPolicy#DROP_OLDEST} mode, the latest frame captured
+	 * while the window was full
+	 */
+	private VideoFrame pending;
+	/**
+	 * Whether callbacks run by the executor must be started in capture order
+	 */
+	private final boolean ordered;
+	/**
+	 * The number of frames which can still be handed to the executor
+	 */
+	private Semaphore inFlight;
+	private int inFlightWindow;
+	/**
+	 * The ticket of the next frame handed to the executor. It and
+	 * {@link #pending} are guarded by {@link #dispatchLock}.
+	 */
+	private long nextTicket;
+	private final Object dispatchLock = new Object();
+	/**
+	 * The ticket of the next frame whose callback may start, in ordered mode
+	 */
+	private long nextTicketToStart;
+	private final Object orderLock = new Object();
+	/**
+	 * Set in executor threads while they run the callback
+	 */
+	private final ThreadLocal<Boolean> delivering = new ThreadLocal<Boolean>();
 
 	private int state;
 	private static final int STATE_STOPPED = 0;
@@ -56,12 +118,42 @@ class PushSource implements Runnable {
 	 * @param factory 
 	 */
 	public PushSource(AbstractGrabber grabber, CaptureCallback callback, ThreadFactory factory) {
-		if ((grabber == null) || (callback == null))
-			throw new NullPointerException("the frame grabber and callback cannot be null");
+		this(grabber, callback, factory, null, false, DeliveryPolicy.BLOCK);
+	}
+
+	/**
+	 * This method builds a new <code>PushSource</code> instance which will
+	 * obtain frames from the given frame grabber and pass them to the given
+	 * callback object, through the given executor.
+	 * 
+	 * @param grabber
+	 *            the {@link FrameGrabber} instance on which this push source
+	 *            will repeatedly call {@link AbstractGrabber#getNextVideoFrame()}.
+	 * @param callback
+	 *            an object implementing the {@link CaptureCallback} interface
+	 *            to which the frames will be delivered through the
+	 *            {@link CaptureCallback#nextFrame(VideoFrame)}.
+	 * @param factory
+	 *            the thread factory used to create the push thread
+	 * @param executor
+	 *            the executor running the callbacks, or <code>null</code> to
+	 *            run them in the push thread
+	 * @param ordered
+	 *            whether callbacks must be started in capture order (they
+	 *            may still complete out of order)
+	 * @param policy
+	 *            what to do with frames captured while callbacks are busy
+	 */
+	public PushSource(AbstractGrabber grabber, CaptureCallback callback, ThreadFactory factory, Executor executor, boolean ordered, DeliveryPolicy policy) {
+		if ((grabber == null) || (callback == null) || (policy == null))
+			throw new NullPointerException("the frame grabber, callback and policy cannot be null");
 
 		this.callback = callback;
 		frameGrabber = grabber;
 		threadFactory = factory;
+		this.userExecutor = executor;
+		this.ordered = ordered;
+		this.policy = policy;
 		state = STATE_STOPPED;
 	}
 
@@ -78,6 +170,26 @@ class PushSource implements Runnable {
 		if (state != STATE_STOPPED)
 			throw new StateException("The capture has already been started");
 
+		// the window is sized once the grabber knows how many buffers the
+		// driver uses. Drop policies leave buffers to the driver (and to the
+		// pending frame) so capture never stops.
+		int nbFrames = frameGrabber.getNumberOfVideoFrames();
+		executor = userExecutor;
+		if (policy == DeliveryPolicy.BLOCK)
+			inFlightWindow = nbFrames;
+		else if (userExecutor == null)
+			inFlightWindow = 1;
+		else if (policy == DeliveryPolicy.DROP_NEWEST)
+			inFlightWindow = Math.max(1, nbFrames - 1);
+		else
+			inFlightWindow = Math.max(1, nbFrames - 2);
+		if ((policy != DeliveryPolicy.BLOCK) && (userExecutor == null))
+			executor = ownExecutor = Executors.newSingleThreadExecutor(threadFactory);
+		inFlight = new Semaphore(inFlightWindow);
+		nextTicket = 0;
+		nextTicketToStart = 0;
+		pending = null;
+
 		// Update our state and start the thread
 		state = STATE_RUNNING;
 		thread = threadFactory.newThread(this);
@@ -129,6 +241,196 @@ class PushSource implements Runnable {
 			}
 
 		}
+
+		// wait for callbacks still running in the executor, unless we are
+		// called from one of them
+		if ((executor != null) && (delivering.get() == null)) {
+			inFlight.acquireUninterruptibly(inFlightWindow);
+			inFlight.release(inFlightWindow);
+		}
+
+		synchronized (dispatchLock) {
+			if (pending != null) {
+				recycleQuietly(pending);
+				pending = null;
+			}
+		}
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+			ownExecutor = null;
+		}
+	}
+
+	/**
+	 * This method hands the given frame to the executor, waiting if too many
+	 * frames are being processed already.
+	 * 
+	 * @param frame
+	 *            the frame to deliver
+	 */
+	private void dispatch(VideoFrame frame) {
+		if (policy != DeliveryPolicy.BLOCK) {
+			dispatchOrDrop(frame);
+			return;
+		}
+
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			// we are being stopped, the frame will never be delivered
+			recycleQuietly(frame);
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		long ticket;
+		synchronized (dispatchLock) {
+			ticket = nextTicket++;
+		}
+		submit(frame, ticket);
+	}
+
+	/**
+	 * This method hands the given frame to the executor if the window is not
+	 * full, or drops a frame as per the delivery policy otherwise.
+	 * 
+	 * @param frame
+	 *            the frame just captured
+	 */
+	private void dispatchOrDrop(VideoFrame frame) {
+		VideoFrame dropped;
+		long ticket = 0;
+		synchronized (dispatchLock) {
+			if (inFlight.tryAcquire()) {
+				// the pending frame, if any, is older than this one
+				dropped = pending;
+				pending = null;
+				ticket = nextTicket++;
+			} else if (policy == DeliveryPolicy.DROP_NEWEST) {
+				dropped = frame;
+				frame = null;
+			} else {
+				dropped = pending;
+				pending = frame;
+				frame = null;
+			}
+		}
+
+		// give stale buffers back to the driver straight away
+		if (dropped != null) {
+			frameGrabber.getCaptureMetrics().frameDropped();
+			recycleQuietly(dropped);
+		}
+		if (frame != null)
+			submit(frame, ticket);
+	}
+
+	/**
+	 * In {@link DeliveryPolicy#DROP_OLDEST} mode, this method is called when a
+	 * callback returns, to hand the pending frame to the executor. The permit
+	 * of the callback that returned goes to the pending frame, so that
+	 * {@link #stopCapture()} can't take it back, and recycle the frame, in
+	 * between.
+	 * 
+	 * @return whether a frame was dispatched with the permit, which must be
+	 *         released otherwise
+	 */
+	private boolean dispatchPending() {
+		VideoFrame frame;
+		long ticket;
+		synchronized (dispatchLock) {
+			if (pending == null)
+				return false;
+			frame = pending;
+			pending = null;
+			ticket = nextTicket++;
+		}
+		submit(frame, ticket);
+		return true;
+	}
+
+	/**
+	 * This method hands the given frame to the executor. A permit must have
+	 * been acquired for it.
+	 * 
+	 * @param frame
+	 *            the frame to deliver
+	 * @param ticket
+	 *            the position of this frame in capture order
+	 */
+	private void submit(final VideoFrame frame, final long ticket) {
+		try {
+			executor.execute(() -> deliver(frame, ticket));
+		} catch (RejectedExecutionException e) {
+			// let the callbacks of later frames start
+			waitForTurn(ticket);
+			inFlight.release();
+			recycleQuietly(frame);
+			// an executor shut down along with the capture is expected to
+			// reject frames
+			if (frameGrabber.isStarted())
+				callback.exceptionReceived(new V4L4JException("The executor rejected a video frame", e));
+		}
+	}
+
+	/**
+	 * This method is run by the executor to deliver a frame to the callback.
+	 * 
+	 * @param frame
+	 *            the frame to deliver
+	 * @param ticket
+	 *            the position of this frame in capture order
+	 */
+	private void deliver(VideoFrame frame, long ticket) {
+		delivering.set(Boolean.TRUE);
+		try {
+			waitForTurn(ticket);
+			long start = System.nanoTime();
+			callback.nextFrame(frame);
+			frameGrabber.getCaptureMetrics().callbackReturned(System.nanoTime() - start);
+		} catch (Exception t) {
+			// ignore any exception thrown by the callback
+		} finally {
+			delivering.remove();
+			if ((policy != DeliveryPolicy.DROP_OLDEST) || !dispatchPending())
+				inFlight.release();
+		}
+	}
+
+	/**
+	 * In ordered mode, this method waits until the callbacks of all frames
+	 * captured before the one with the given ticket have been started.
+	 * 
+	 * @param ticket
+	 *            the position of the frame in capture order
+	 */
+	private void waitForTurn(long ticket) {
+		if (!ordered)
+			return;
+
+		boolean interrupted = false;
+		synchronized (orderLock) {
+			while (nextTicketToStart != ticket) {
+				try {
+					orderLock.wait();
+				} catch (InterruptedException e) {
+					// the previous frames' callbacks are bound to start
+					interrupted = true;
+				}
+			}
+			nextTicketToStart++;
+			orderLock.notifyAll();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static void recycleQuietly(VideoFrame frame) {
+		try {
+			frame.recycle();
+		} catch (StateException e) {
+			// the capture is being stopped, frames are taken back anyway
+		}
 	}
 
 	@Override
@@ -141,8 +443,14 @@ class PushSource implements Runnable {
 				frame = frameGrabber.getNextVideoFrame();
 
 				// and deliver it to the callback object
+				if (executor != null) {
+					dispatch(frame);
+					continue;
+				}
 				try {
+					long start = System.nanoTime();
 					callback.nextFrame(frame);
+					frameGrabber.getCaptureMetrics().callbackReturned(System.nanoTime() - start);
 				} catch (Exception t) {
 				} // ignore any exception thrown by the callback
 			} catch (Throwable t) {
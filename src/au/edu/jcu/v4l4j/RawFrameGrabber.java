@@ -24,10 +24,12 @@
 
 package au.edu.jcu.v4l4j;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadFactory;
 
 import au.edu.jcu.v4l4j.exceptions.ImageFormatException;
 import au.edu.jcu.v4l4j.exceptions.StateException;
+import au.edu.jcu.v4l4j.exceptions.V4L4JException;
 
 /**
  * This class provides methods to capture raw frames from a {@link VideoDevice}.
@@ -74,13 +76,29 @@ public class RawFrameGrabber extends AbstractGrabber {
 	 *            the image format frames should be captured in
 	 * @param factory
 	 *            the thread factory to sue when creating the push source
+	 * @param zeroCopy
+	 *            whether video frames should wrap the driver's buffers instead
+	 *            of a copy of them
 	 * @throws ImageFormatException
 	 *             if the image format is null and a RAW frame grabber is to be
 	 *             created
 	 */
 	RawFrameGrabber(DeviceInfo di, long o, int w, int h, int ch, int std, Tuner t, ImageFormat imf,
-			ThreadFactory factory) throws ImageFormatException {
-		super(di, o, w, h, ch, std, t, imf, RAW_GRABBER, factory);
+			ThreadFactory factory, boolean zeroCopy) throws ImageFormatException {
+		super(di, o, w, h, ch, std, t, imf, RAW_GRABBER, factory, zeroCopy);
+	}
+
+	/**
+	 * This method returns whether this frame grabber hands out the driver's
+	 * mmap'ed buffers directly. When it does, the {@link ByteBuffer} returned
+	 * by {@link VideoFrame#getBuffer()} points straight into driver memory: it
+	 * must not be used once the frame has been recycled, as the driver will
+	 * overwrite it with a later frame.
+	 * 
+	 * @return whether this frame grabber is in zero-copy mode
+	 */
+	public boolean isZeroCopy() {
+		return zeroCopy;
 	}
 
 	/**
@@ -99,7 +117,14 @@ public class RawFrameGrabber extends AbstractGrabber {
 	}
 
 	@Override
-	protected void createBuffers(int bufferSize) {
+	protected void createBuffers(int bufferSize) throws V4L4JException {
+		if (zeroCopy) {
+			// frame i wraps V4L2 buffer i
+			for (int i = 0; i < nbV4LBuffers; i++)
+				videoFrames.add(new BaseVideoFrame(this, getDriverBuffer(object, i), i));
+			return;
+		}
+
 		int numberOfBuffers = nbV4LBuffers;
 
 		while (numberOfBuffers-- > 0)
@@ -30,6 +30,20 @@ public class V4L4JConstants {
 	 * they should.
 	 */
 	public static final boolean LOG_LONG_BLOCKING_OPS = true;
+	/**
+	 * If true, video frames record where they were handed out and retained
+	 * from, and print these locations when reported as leaked (ie, when capture
+	 * stops or runs out of frames while they are still held). Enabled by
+	 * setting the <code>v4l4j.trackFrameLeaks</code> system property to
+	 * <code>true</code>, as it is costly.
+	 */
+	public static final boolean TRACK_FRAME_LEAKS = Boolean.getBoolean("v4l4j.trackFrameLeaks");
+	/**
+	 * Video frames held for longer than this many milliseconds are reported as
+	 * leaked when capture has run out of frames for a second, if
+	 * {@link #TRACK_FRAME_LEAKS} is set.
+	 */
+	public static final long FRAME_LEAK_THRESHOLD_MS = 1000;
 	/**
 	 * Input from a tuner
 	 */
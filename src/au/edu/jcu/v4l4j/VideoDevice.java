@@ -25,6 +25,7 @@
 package au.edu.jcu.v4l4j;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Set;
@@ -294,6 +295,13 @@ public class VideoDevice {
 	 */
 	private ThreadFactory threadFactory;
 
+	/**
+	 * Application-owned buffers that will be passed on to each new
+	 * FrameGrabber to capture into, or <code>null</code> to capture into
+	 * driver-allocated buffers.
+	 */
+	private ByteBuffer[] captureBuffers;
+
 	/**
 	 * This constructor builds a <code>VideoDevice</code> using the full path to
 	 * its device file. When finished, resources must be released by calling
@@ -679,6 +687,7 @@ public class VideoDevice {
 				state.get();
 				fg = new JPEGFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, quality, findTuner(input),
 						imf, threadFactory);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -844,6 +853,7 @@ public class VideoDevice {
 				state.get();
 				fg = new RGBFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, findTuner(input), imf,
 						threadFactory);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -1003,6 +1013,7 @@ public class VideoDevice {
 				state.get();
 				fg = new BGRFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, findTuner(input), imf,
 						threadFactory);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -1162,6 +1173,7 @@ public class VideoDevice {
 				state.get();
 				fg = new YUVFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, findTuner(input), imf,
 						threadFactory);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -1322,6 +1334,7 @@ public class VideoDevice {
 				state.get();
 				fg = new YVUFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, findTuner(input), imf,
 						threadFactory);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -1450,14 +1463,62 @@ public class VideoDevice {
 	 */
 	public RawFrameGrabber getRawFrameGrabber(int width, int height, int input, int std, ImageFormat format)
 			throws V4L4JException {
+		return getRawFrameGrabber(width, height, input, std, format, false);
+	}
+
+	/**
+	 * This method returns a {@link RawFrameGrabber} associated with this video
+	 * device, optionally in zero-copy mode. In zero-copy mode, captured frames
+	 * are not copied out of the driver: the {@link ByteBuffer} returned by
+	 * {@link VideoFrame#getBuffer()} wraps the driver's mmap'ed buffer itself,
+	 * and recycling the frame hands that buffer straight back to the driver.
+	 * Consequently, this buffer (and any buffer derived from it) must not be
+	 * accessed after the frame has been recycled, or after the frame grabber
+	 * has been released. Zero-copy mode is only available when frames are
+	 * captured in a format natively supported by the driver.
+	 * 
+	 * @param width
+	 *            the desired frame width. This value may be adjusted to the
+	 *            closest supported by hardware.
+	 * @param height
+	 *            the desired frame height. This value may be adjusted to the
+	 *            closest supported by hardware.
+	 * @param input
+	 *            the input index, as returned by {@link InputInfo#getIndex()}.
+	 * @param std
+	 *            the video standard, as returned by
+	 *            {@link InputInfo#getSupportedStandards()} (see
+	 *            {@link V4L4JConstants})
+	 * @param format
+	 *            the desired image format. If this argument is
+	 *            <code>null</code>, an {@link ImageFormatException} is thrown.
+	 * @param zeroCopy
+	 *            whether frames should wrap the driver's buffers rather than a
+	 *            copy of them
+	 * @return the <code>FrameGrabber</code> associated with this video device
+	 * @throws ImageFormatException
+	 *             If the image format argument is <code>null</code>
+	 * @throws V4L4JException
+	 *             if there is an error applying capture parameters, or if
+	 *             zero-copy mode was requested but the driver buffers cannot
+	 *             be handed out as is
+	 * @throws StateException
+	 *             if a {@link FrameGrabber} already exists or if the
+	 *             <code>VideoDevice</code> has been released.
+	 * @see #getRawFrameGrabber(int, int, int, int, ImageFormat)
+	 */
+	public RawFrameGrabber getRawFrameGrabber(int width, int height, int input, int std, ImageFormat format,
+			boolean zeroCopy) throws V4L4JException {
 		if (format == null)
 			throw ImageFormatException.notNull();
 
 		synchronized (this) {
 			if (fg == null) {
 				state.get();
+				// frames captured in user buffers are never copied by raw grabbers
 				fg = new RawFrameGrabber(deviceInfo, v4l4jObject, width, height, input, std, findTuner(input), format,
-						threadFactory);
+						threadFactory, zeroCopy || captureBuffers != null);
+				fg.setUserBuffers(captureBuffers);
 				try {
 					fg.init();
 				} catch (V4L4JException ve) {
@@ -1607,6 +1668,48 @@ public class VideoDevice {
 		threadFactory = factory;
 	}
 
+	/**
+	 * This method sets the buffers frame grabbers created from now on will
+	 * capture into. By default, capture buffers are allocated by the driver,
+	 * and frames are copied (or converted) from there. When buffers are given
+	 * with this method, the driver writes frames straight into them instead
+	 * (using V4L2 user pointer I/O), so they can come from the application's
+	 * own processing pipeline and be aligned or backed as it sees fit. One
+	 * buffer is used per driver buffer, in the order given: the number of
+	 * buffers given replaces the <code>v4l4j.num_driver_buffers</code>
+	 * property, although the driver may use fewer of them.<br>
+	 * Each buffer must be a direct {@link ByteBuffer} large enough to hold a
+	 * whole frame in the capture format, and it must not be used by the
+	 * application while the frame grabber may capture into it: its contents
+	 * belong to the driver until the {@link VideoFrame} captured in it is
+	 * recycled. Some drivers also require buffers to be page-aligned.
+	 * {@link RawFrameGrabber}s hand out frames which wrap these buffers
+	 * directly, without any copy (see
+	 * {@link #getRawFrameGrabber(int, int, int, int, ImageFormat, boolean)}).
+	 * 
+	 * @param buffers
+	 *            the direct buffers to capture into, or <code>null</code> to
+	 *            go back to driver-allocated buffers.
+	 * @throws IllegalArgumentException
+	 *             if no buffers are given, or if one of them is
+	 *             <code>null</code> or not direct.
+	 */
+	public synchronized void setCaptureBuffers(ByteBuffer... buffers) {
+		if (buffers == null) {
+			captureBuffers = null;
+			return;
+		}
+		
+		if (buffers.length == 0)
+			throw new IllegalArgumentException("At least one capture buffer must be given");
+		
+		for (ByteBuffer buffer : buffers)
+			if (buffer == null || !buffer.isDirect())
+				throw new IllegalArgumentException("Capture buffers must be direct ByteBuffers");
+		
+		captureBuffers = buffers.clone();
+	}
+
 	private static class State {
 
 		private int state;
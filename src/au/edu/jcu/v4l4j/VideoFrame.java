@@ -165,11 +165,97 @@ public interface VideoFrame {
 	 */
 	BufferedImage getBufferedImage() throws UnsupportedMethod;
 	
+	/**
+	 * This method returns a DMABUF file descriptor referring to the driver
+	 * buffer this video frame was captured in. The descriptor can be passed on
+	 * to another process (over a Unix socket for instance) which can then
+	 * <code>mmap()</code> {@link #getDmaBufLength()} bytes from it and read
+	 * the frame starting at {@link #getDmaBufOffset()}, without any copy. The
+	 * frame itself is {@link #getFrameLength()} bytes long.<br>
+	 * The descriptor is owned by v4l4j: it must not be closed, and remains
+	 * valid until the frame grabber is released. The contents of the buffer
+	 * are only guaranteed to hold this frame until it is recycled. DMABUF
+	 * export is only available when frames are handed out in a format native
+	 * to the driver, on drivers supporting it.
+	 * 
+	 * @return a DMABUF file descriptor for the buffer holding this frame
+	 * @throws UnsupportedMethod
+	 *             if this video frame cannot be exported
+	 * @throws StateException
+	 *             if this video frame has been recycled already.
+	 */
+	default int getDmaBufFd() throws UnsupportedMethod {
+		throw new UnsupportedMethod("This video frame cannot be exported as a DMABUF");
+	}
+	
+	/**
+	 * This method returns the offset of this frame's data in the buffer
+	 * referred to by {@link #getDmaBufFd()}.
+	 * 
+	 * @return the offset of the frame in the exported buffer
+	 * @throws UnsupportedMethod
+	 *             if this video frame cannot be exported
+	 * @throws StateException
+	 *             if this video frame has been recycled already.
+	 */
+	default int getDmaBufOffset() throws UnsupportedMethod {
+		throw new UnsupportedMethod("This video frame cannot be exported as a DMABUF");
+	}
+	
+	/**
+	 * This method returns the size of the buffer referred to by
+	 * {@link #getDmaBufFd()}, ie the length to map. It can be greater than
+	 * {@link #getFrameLength()}.
+	 * 
+	 * @return the size of the exported buffer
+	 * @throws UnsupportedMethod
+	 *             if this video frame cannot be exported
+	 * @throws StateException
+	 *             if this video frame has been recycled already.
+	 */
+	default int getDmaBufLength() throws UnsupportedMethod {
+		throw new UnsupportedMethod("This video frame cannot be exported as a DMABUF");
+	}
+	
+	/**
+	 * This method adds a holder to this video frame, so it can be handed to
+	 * several consumers (a streamer, a recorder, ...) without copying it. A
+	 * video frame starts with a single holder when it is delivered, and is
+	 * only reused by v4l4j once every holder has called {@link #release()}
+	 * (or {@link #recycle()}). Each call to this method must therefore be
+	 * matched by one call to {@link #release()}.
+	 * 
+	 * @return this video frame
+	 * @throws UnsupportedMethod
+	 *             if this video frame cannot be shared
+	 * @throws StateException
+	 *             if this video frame has been recycled already.
+	 */
+	default VideoFrame retain() throws UnsupportedMethod {
+		throw new UnsupportedMethod("This video frame cannot be shared");
+	}
+	
+	/**
+	 * This method removes a holder from this video frame. When the last holder
+	 * releases it, the video frame is recycled. After calling this method, the
+	 * caller must not use either this object or any of the objects obtained
+	 * through it, as for {@link #recycle()}.
+	 * 
+	 * @throws StateException
+	 *             if this video frame has been recycled already.
+	 */
+	default void release() {
+		recycle();
+	}
+	
 	/**
 	 * This method marks this video frame as being no longer used, and ready to
 	 * be reused by v4l4j. After calling this method, do not use either this
 	 * object or any of the objects obtained through it (byte array, data
 	 * buffer, raster, buffered image, ...) <b> or bad things WILL happen</b>.
+	 * If this video frame was {@link #retain() retained}, this method behaves
+	 * like {@link #release()}: the frame is only reused once all other holders
+	 * have released it.
 	 */
 	void recycle();
 }
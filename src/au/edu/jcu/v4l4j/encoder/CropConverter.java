@@ -0,0 +1,79 @@
+package au.edu.jcu.v4l4j.encoder;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+
+/**
+ * Copies a region of interest out of each frame, reading none of the pixels
+ * outside of it. Chained before an {@link ImageFormatConverter} or a
+ * {@link JPEGEncoder} in a {@link VideoFrameEncoderSeries}, only the region
+ * is then converted or encoded.
+ * <p>
+ * The region keeps the size it was created with, so that the encoders after
+ * it don't need to be reallocated, but can be moved between frames with
+ * {@link #setOffset(int, int)}.
+ */
+public class CropConverter extends ImageFormatConverter {
+	
+	/**
+	 * Create a native encoder cropping frames
+	 * @return Pointer to the encoder
+	 */
+	protected static native long initCrop(int format, int frameWidth, int frameHeight, int left, int top, int width, int height);
+	
+	protected CropConverter(long ptr) {
+		super(ptr);
+	}
+	
+	/**
+	 * Create a converter copying a region of frames. Formats sharing chroma
+	 * between pixels (YUYV, YVYU, UYVY, VYUY, YUV420 and YVU420) need even
+	 * widths, and YUV420 and YVU420 even heights too.
+	 * 
+	 * @param format
+	 *            format of the frames, which is kept
+	 * @param frameWidth
+	 *            width of the source frames
+	 * @param frameHeight
+	 *            height of the source frames
+	 * @param left
+	 *            offset of the region from the left edge of the frame
+	 * @param top
+	 *            offset of the region from the top edge of the frame
+	 * @param width
+	 *            width of the region
+	 * @param height
+	 *            height of the region
+	 * @throws au.edu.jcu.v4l4j.exceptions.InitialisationException
+	 *             if the format is not supported, or the region does not fit
+	 *             in the frame
+	 */
+	public CropConverter(ImagePalette format, int frameWidth, int frameHeight, int left, int top, int width, int height) {
+		this(initCrop(format.getIndex(), frameWidth, frameHeight, left, top, width, height));
+	}
+	
+	/**
+	 * Move the region. Frames converted from then on are cut from the new
+	 * position. Offsets that would split chroma samples are rounded down to
+	 * the previous even column (or row).
+	 * 
+	 * @param left
+	 *            offset of the region from the left edge of the frame
+	 * @param top
+	 *            offset of the region from the top edge of the frame
+	 * @throws IllegalArgumentException
+	 *             if the region would not fit in the frame
+	 */
+	public native void setOffset(int left, int top) throws IllegalArgumentException;
+	
+	/**
+	 * Get the offset of the region from the left edge of the frame
+	 * @return offset, in pixels
+	 */
+	public native int getLeft();
+	
+	/**
+	 * Get the offset of the region from the top edge of the frame
+	 * @return offset, in pixels
+	 */
+	public native int getTop();
+}
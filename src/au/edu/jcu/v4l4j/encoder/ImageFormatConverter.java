@@ -13,6 +13,23 @@ public class ImageFormatConverter implements VideoFrameConverter {
 		V4L4JUtils.loadLibrary();
 	}
 	
+	/**
+	 * How frames are resampled when scaling them
+	 */
+	public static enum ScaleFilter {
+		/**
+		 * Each output pixel is the average of the pixels it covers. Best when
+		 * downscaling; upscales by repeating pixels.
+		 */
+		BOX,
+		/**
+		 * Each output pixel is interpolated from the 2x2 pixels closest to
+		 * its centre. Faster than {@link #BOX}, and smooth when upscaling,
+		 * but aliases when downscaling by more than 2.
+		 */
+		BILINEAR;
+	}
+	
 	/**
 	 * Pointer to native object
 	 */
@@ -53,6 +70,10 @@ public class ImageFormatConverter implements VideoFrameConverter {
 	 * Estimated (upper bound) output buffer size
 	 */
 	protected final int estimatedDstLen;
+	/**
+	 * Maximum number of bands each frame is split into
+	 */
+	protected volatile int parallelism = 1;
 	
 	/**
 	 * Lookup a <code>v4lconvert_converter_t</code>'s id for a given transformation
@@ -65,6 +86,12 @@ public class ImageFormatConverter implements VideoFrameConverter {
 		return lookupConverterByConversion(src.getIndex(), dst.getIndex());
 	}
 	protected static native long initWithConverter(int converterId, int width, int height);
+	/**
+	 * Create a native encoder scaling frames
+	 * @param filter Ordinal of the {@link ScaleFilter} to use
+	 * @return Pointer to the encoder
+	 */
+	protected static native long initScaler(int srcFmt, int dstFmt, int srcWidth, int srcHeight, int dstWidth, int dstHeight, int filter);
 	/**
 	 * Returns an array of properties that can be accessed on the native struct. The array will contain the following values:
 	 * <ol start=0>
@@ -83,6 +110,15 @@ public class ImageFormatConverter implements VideoFrameConverter {
 	 */
 	private static native int[] getData(long ptr);
 	
+	/**
+	 * Convert the frame in <code>src</code> into <code>dst</code>
+	 * @param src Direct buffer holding the frame to convert
+	 * @param dst Direct buffer receiving the converted frame
+	 * @param slices Maximum number of bands to split the frame into
+	 * @return Number of bytes written to <code>dst</code>
+	 */
+	private native int doApply(ByteBuffer src, ByteBuffer dst, int slices);
+	
 	protected ImageFormatConverter(long ptr) {
 		this.object = ptr;
 		int[] data = getData(ptr);
@@ -118,6 +154,41 @@ public class ImageFormatConverter implements VideoFrameConverter {
 	public ImageFormatConverter(ImagePalette src, ImagePalette dst, int width, int height) {
 		this(lookupConverterByConversion(src, dst), width, height);
 	}
+	
+	/**
+	 * Create an ImageFormatConverter scaling frames to another size. The
+	 * format is kept, except that {@link ImagePalette#YUYV},
+	 * {@link ImagePalette#UYVY}, {@link ImagePalette#YUV420} and
+	 * {@link ImagePalette#YVU420} frames can also be converted to
+	 * {@link ImagePalette#RGB24} or {@link ImagePalette#BGR24}. Converting
+	 * and scaling are then done in a single pass, which is much cheaper than
+	 * converting the full size frame and scaling it afterwards.
+	 * <p>
+	 * Scaling converters have no converter ID, so {@link #getConverterId()}
+	 * returns -1.
+	 * 
+	 * @param src
+	 *            format of the source frames: RGB24, BGR24, RGB32, BGR32,
+	 *            GREY, YUYV, YVYU, UYVY, VYUY, YUV420 or YVU420
+	 * @param dst
+	 *            format of the scaled frames
+	 * @param srcWidth
+	 *            width of the source frames
+	 * @param srcHeight
+	 *            height of the source frames
+	 * @param dstWidth
+	 *            width of the scaled frames
+	 * @param dstHeight
+	 *            height of the scaled frames
+	 * @param filter
+	 *            how pixels are resampled
+	 * @throws au.edu.jcu.v4l4j.exceptions.InitialisationException
+	 *             if the formats or sizes are not supported; widths must be
+	 *             even for YUV formats, and heights too for YUV420
+	 */
+	public ImageFormatConverter(ImagePalette src, ImagePalette dst, int srcWidth, int srcHeight, int dstWidth, int dstHeight, ScaleFilter filter) {
+		this(initScaler(src.getIndex(), dst.getIndex(), srcWidth, srcHeight, dstWidth, dstHeight, filter.ordinal()));
+	}
 
 	@Override
 	public int getConverterId() {
@@ -154,9 +225,46 @@ public class ImageFormatConverter implements VideoFrameConverter {
 		return this.outFormat;
 	}
 
+	/**
+	 * Set how many threads frames are converted on. Frames are then split
+	 * into as many horizontal bands, converted at the same time by the calling
+	 * thread and by a worker pool shared with all the other converters, which
+	 * grows as needed up to 64 threads. Bands are at least 16 rows high, so
+	 * small frames may use fewer threads.
+	 * <p>
+	 * Only conversions between packed formats whose rows can be converted
+	 * independently of each other, such as {@link ImagePalette#YUYV} to
+	 * {@link ImagePalette#RGB24}, are split; other conversions ignore this
+	 * setting.
+	 * 
+	 * @param threads
+	 *            the number of threads, from 1 (the default, converting frames
+	 *            on the calling thread only) to
+	 *            <code>Runtime.getRuntime().availableProcessors()</code> for
+	 *            the lowest latency
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is lower than 1
+	 */
+	public void setParallelism(int threads) throws IllegalArgumentException {
+		if (threads < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1 (was " + threads + ")");
+		this.parallelism = threads;
+	}
+	
+	/**
+	 * Get how many threads frames are converted on
+	 * @return the number of threads
+	 * @see #setParallelism(int)
+	 */
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
 	@Override
-	public native int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException,
-			BufferOverflowException, IllegalArgumentException;
+	public int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException,
+			BufferOverflowException, IllegalArgumentException {
+		return doApply(src, dst, this.parallelism);
+	}
 
 	@Override
 	public int estimateSourceLength() {
@@ -1,13 +1,83 @@
 package au.edu.jcu.v4l4j.encoder;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 import au.edu.jcu.v4l4j.ImagePalette;
 
+/**
+ * Encodes frames to JPEG. Each encoder holds its own libjpeg state, so it
+ * encodes one frame at a time; concurrent calls are serialized. To encode
+ * frames on several threads at once, use a {@link JPEGEncoderPool}.
+ */
 public class JPEGEncoder extends ImageFormatConverter {
 	
+	/**
+	 * Library used to compress frames
+	 */
+	public static enum Backend {
+		/**
+		 * The libjpeg API, fed one scanline or MCU row at a time
+		 */
+		LIBJPEG,
+		/**
+		 * The TurboJPEG API of libjpeg-turbo, compressing whole frames in one
+		 * call. Only available if libturbojpeg is installed.
+		 */
+		TURBOJPEG;
+	}
+	
+	private static native boolean isTurboJPEGLoaded();
+	
+	private static native int getBackendId();
+	
+	private static native int setBackendId(int backend);
+	
+	/**
+	 * Whether libturbojpeg is installed, so {@link Backend#TURBOJPEG} can be
+	 * used
+	 */
+	public static boolean isTurboJPEGAvailable() {
+		return isTurboJPEGLoaded();
+	}
+	
+	/**
+	 * Get the library encoders, and {@link au.edu.jcu.v4l4j.JPEGFrameGrabber
+	 * JPEGFrameGrabber}s, are created with from now on. Defaults to
+	 * TurboJPEG if available, unless the <code>V4L4J_JPEG_BACKEND</code>
+	 * environment variable is set to <code>libjpeg</code>.
+	 * @return the backend
+	 */
+	public static Backend getBackend() {
+		return Backend.values()[getBackendId()];
+	}
+	
+	/**
+	 * Set the library encoders, and {@link au.edu.jcu.v4l4j.JPEGFrameGrabber
+	 * JPEGFrameGrabber}s, are created with from now on. Those already
+	 * created keep theirs.
+	 * @param backend the backend to use
+	 * @return the backend actually used, which is {@link Backend#LIBJPEG} if
+	 *         TurboJPEG was asked for but is not available
+	 */
+	public static Backend setBackend(Backend backend) {
+		return Backend.values()[setBackendId(backend.ordinal())];
+	}
+	
 	public static JPEGEncoder from(int width, int height, ImagePalette from) {
 		return new JPEGEncoder(width, height, from);
 	}
 	
+	/**
+	 * Create a pool of encoders, to encode frames on up to
+	 * <code>maxEncoders</code> threads at the same time
+	 * @see JPEGEncoderPool#JPEGEncoderPool(int, int, ImagePalette, int)
+	 */
+	public static JPEGEncoderPool pool(int width, int height, ImagePalette from, int maxEncoders) {
+		return new JPEGEncoderPool(width, height, from, maxEncoders);
+	}
+	
 	protected JPEGEncoder(long ptr) {
 		super(ptr);
 	}
@@ -16,14 +86,72 @@ public class JPEGEncoder extends ImageFormatConverter {
 		super(ImageFormatConverter.lookupConverterByConversion(from, ImagePalette.JPEG), width, height);
 	}
 	
+	@Override
+	public synchronized int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException,
+			BufferOverflowException, IllegalArgumentException {
+		return super.apply(src, dst);
+	}
+	
+	/**
+	 * Encode a frame at the given quality. The quality is only used for
+	 * this frame; following calls to {@link #apply(ByteBuffer, ByteBuffer)}
+	 * use the quality set by {@link #setQuality(int)}.
+	 * @param src the frame
+	 * @param dst the buffer to write the JPEG image to
+	 * @param quality JPEG quality, between 0 and 100
+	 * @return the length of the JPEG image
+	 */
+	public synchronized int apply(ByteBuffer src, ByteBuffer dst, int quality) throws BufferUnderflowException,
+			BufferOverflowException, IllegalArgumentException {
+		int previous = getQuality();
+		if (previous == quality)
+			return super.apply(src, dst);
+		setQuality(quality);
+		try {
+			return super.apply(src, dst);
+		} finally {
+			setQuality(previous);
+		}
+	}
+	
 	/**
 	 * Set encoded JPEG quality
 	 * @param quality
 	 */
-	public native void setQuality(int quality);
+	public synchronized native void setQuality(int quality);
 	/**
 	 * Get encoded JPEG quality
 	 * @return
 	 */
-	public native int getQuality();
+	public synchronized native int getQuality();
+	
+	/**
+	 * Compress each frame as several horizontal stripes at the same time,
+	 * each on its own core, joined with restart markers into a single
+	 * baseline JPEG image that any decoder reads. This cuts the time taken to
+	 * encode a large frame, when frames come one at a time; to encode more
+	 * frames at once, use a {@link JPEGEncoderPool} instead.
+	 * <p>
+	 * Stripes are a whole number of 8 or 16 row MCU rows high, so short frames
+	 * may use fewer stripes than asked for (see {@link #getStripes()}). Only
+	 * GREY, RGB24, YUV420, YUYV, YVYU, UYVY and VYUY frames can be split, and
+	 * YUV frames must be a multiple of 16 pixels wide.
+	 * @param stripes the number of stripes, between 1 (to compress frames
+	 *        whole) and 64
+	 * @throws IllegalArgumentException if frames can't be split into that
+	 *         many stripes
+	 */
+	public synchronized void setStripes(int stripes) throws IllegalArgumentException {
+		//Not while a frame is being compressed with the stripes replaced
+		doSetStripes(stripes);
+	}
+	
+	private native void doSetStripes(int stripes);
+	
+	/**
+	 * Get the number of stripes each frame is compressed as
+	 * @return the number of stripes, 1 if frames are compressed whole
+	 * @see #setStripes(int)
+	 */
+	public synchronized native int getStripes();
 }
@@ -0,0 +1,221 @@
+package au.edu.jcu.v4l4j.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+import au.edu.jcu.v4l4j.exceptions.BufferOverflowException;
+import au.edu.jcu.v4l4j.exceptions.BufferUnderflowException;
+
+/**
+ * A set of {@link JPEGEncoder}s of the same geometry, so that several threads
+ * can encode frames at the same time. Each encoder holds its own libjpeg
+ * state, and is only ever used by one thread at a time: a thread calling
+ * {@link #encode(ByteBuffer, ByteBuffer, int)} borrows an idle encoder, or
+ * creates one if fewer than the maximum exist, or else waits for one to be
+ * returned.
+ * <p>
+ * Encoders are created on demand, so a pool sized for the number of cores
+ * costs nothing more than a single encoder when frames come one at a time.
+ */
+public class JPEGEncoderPool implements AutoCloseable {
+	protected final int width;
+	protected final int height;
+	protected final ImagePalette format;
+	/**
+	 * Encoders not currently in use. The most recently returned encoder is
+	 * borrowed first, as its buffers are most likely still cached.
+	 */
+	protected final LinkedBlockingDeque<JPEGEncoder> idle = new LinkedBlockingDeque<>();
+	/**
+	 * Permits to use an encoder, one for each encoder the pool may hold
+	 */
+	protected final Semaphore available;
+	protected final int maxEncoders;
+	/**
+	 * Number of encoders created, and not yet closed
+	 */
+	protected int created = 0;
+	protected volatile int quality = 100;
+	protected volatile boolean closed = false;
+
+	/**
+	 * Create a pool of encoders
+	 *
+	 * @param width
+	 *            width of frames to encode
+	 * @param height
+	 *            height of frames to encode
+	 * @param format
+	 *            format of frames to encode
+	 * @param maxEncoders
+	 *            the maximum number of frames encoded at the same time
+	 * @throws IllegalArgumentException
+	 *             if <code>maxEncoders</code> is lower than 1
+	 */
+	public JPEGEncoderPool(int width, int height, ImagePalette format, int maxEncoders) throws IllegalArgumentException {
+		if (maxEncoders < 1)
+			throw new IllegalArgumentException("A pool needs at least one encoder (was " + maxEncoders + ")");
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.maxEncoders = maxEncoders;
+		this.available = new Semaphore(maxEncoders);
+		//Create an encoder now, so that unsupported formats are reported here
+		this.idle.push(this.create());
+	}
+
+	/**
+	 * Create a pool of as many encoders as there are processors
+	 *
+	 * @see #JPEGEncoderPool(int, int, ImagePalette, int)
+	 */
+	public JPEGEncoderPool(int width, int height, ImagePalette format) {
+		this(width, height, format, Runtime.getRuntime().availableProcessors());
+	}
+
+	protected synchronized JPEGEncoder create() {
+		if (this.closed)
+			throw new IllegalStateException("Pool closed");
+		JPEGEncoder encoder = JPEGEncoder.from(this.width, this.height, this.format);
+		this.created++;
+		return encoder;
+	}
+
+	/**
+	 * Borrow an encoder, waiting until one is available. The encoder must be
+	 * returned with {@link #release(JPEGEncoder)} once done with, and not be
+	 * used after.
+	 *
+	 * @return an encoder used by no other thread
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for an encoder
+	 */
+	public JPEGEncoder acquire() throws InterruptedException {
+		if (this.closed)
+			throw new IllegalStateException("Pool closed");
+		this.available.acquire();
+		JPEGEncoder encoder = this.idle.pollFirst();
+		if (encoder != null)
+			return encoder;
+		try {
+			return this.create();
+		} catch (RuntimeException e) {
+			this.available.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return an encoder borrowed with {@link #acquire()}
+	 *
+	 * @param encoder
+	 *            the encoder
+	 */
+	public void release(JPEGEncoder encoder) {
+		if (this.closed) {
+			this.destroy(encoder);
+		} else {
+			this.idle.offerFirst(encoder);
+			//Check again, in case the pool was closed before the encoder was put back
+			if (this.closed && this.idle.remove(encoder))
+				this.destroy(encoder);
+		}
+		this.available.release();
+	}
+
+	protected synchronized void destroy(JPEGEncoder encoder) {
+		try {
+			encoder.close();
+		} catch (Exception e) {
+			//Nothing we can do about it
+		}
+		this.created--;
+	}
+
+	/**
+	 * Encode a frame at the pool's default quality
+	 *
+	 * @see #encode(ByteBuffer, ByteBuffer, int)
+	 */
+	public int encode(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException, BufferOverflowException, InterruptedException {
+		return this.encode(src, dst, this.quality);
+	}
+
+	/**
+	 * Encode a frame. Can be called by several threads at the same time,
+	 * up to the pool's maximum number of encoders; further threads wait for
+	 * one of those to finish.
+	 *
+	 * @param src
+	 *            the frame
+	 * @param dst
+	 *            the buffer to write the JPEG image to
+	 * @param quality
+	 *            the JPEG quality, between 0 and 100
+	 * @return the length of the JPEG image
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for an encoder
+	 */
+	public int encode(ByteBuffer src, ByteBuffer dst, int quality) throws BufferUnderflowException, BufferOverflowException, InterruptedException {
+		JPEGEncoder encoder = this.acquire();
+		try {
+			return encoder.apply(src, dst, quality);
+		} finally {
+			this.release(encoder);
+		}
+	}
+
+	/**
+	 * Set the quality used by {@link #encode(ByteBuffer, ByteBuffer)}
+	 *
+	 * @param quality
+	 *            the JPEG quality, between 0 and 100
+	 */
+	public void setQuality(int quality) {
+		if (quality < 0 || quality > 100)
+			throw new IllegalArgumentException("Illegal quality (" + quality + "; expected between 0 and 100)");
+		this.quality = quality;
+	}
+
+	public int getQuality() {
+		return this.quality;
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	public ImagePalette getFormat() {
+		return this.format;
+	}
+
+	public int getMaxEncoders() {
+		return this.maxEncoders;
+	}
+
+	/**
+	 * Get the number of encoders created so far
+	 * @return number of encoders
+	 */
+	public synchronized int getSize() {
+		return this.created;
+	}
+
+	/**
+	 * Close the idle encoders. Encoders in use are closed as they are
+	 * returned.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		JPEGEncoder encoder;
+		while ((encoder = this.idle.pollFirst()) != null)
+			this.destroy(encoder);
+	}
+}
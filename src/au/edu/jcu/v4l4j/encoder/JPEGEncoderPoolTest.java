@@ -0,0 +1,137 @@
+package au.edu.jcu.v4l4j.encoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+
+public class JPEGEncoderPoolTest {
+	private static final int WIDTH = 64;
+	private static final int HEIGHT = 48;
+	private static final int LOW_QUALITY = 10;
+	private static final int HIGH_QUALITY = 90;
+
+	private JPEGEncoderPool pool;
+	private ByteBuffer frame;
+	private int lowLength;
+	private int highLength;
+
+	@Before
+	public void setUp() throws Exception {
+		this.pool = new JPEGEncoderPool(WIDTH, HEIGHT, ImagePalette.RGB24, 4);
+		this.frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3);
+		//Noise, so that the quality changes the length of the image
+		Random random = new Random(42);
+		while (this.frame.hasRemaining())
+			this.frame.put((byte) random.nextInt());
+		this.frame.flip();
+		this.lowLength = encode(LOW_QUALITY);
+		this.highLength = encode(HIGH_QUALITY);
+		assertTrue(this.lowLength < this.highLength);
+	}
+
+	@After
+	public void tearDown() {
+		this.pool.close();
+	}
+
+	private int encode(int quality) throws Exception {
+		return this.pool.encode(this.frame.duplicate(), ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3), quality);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoEncoder() {
+		new JPEGEncoderPool(WIDTH, HEIGHT, ImagePalette.RGB24, 0);
+	}
+
+	@Test
+	public void testConcurrentEncoding() throws Exception {
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			final int quality = (i % 2 == 0) ? LOW_QUALITY : HIGH_QUALITY;
+			final int expected = (i % 2 == 0) ? this.lowLength : this.highLength;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int j = 0; j < 20; j++)
+						assertEquals("Length at quality " + quality, expected, encode(quality));
+				} catch (Throwable t) {
+					error.compareAndSet(null, t);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError("Encoding failed", error.get());
+		//Encoders are reused
+		assertTrue(this.pool.getSize() <= this.pool.getMaxEncoders());
+	}
+
+	@Test
+	public void testQualityWhileEncoding() throws Exception {
+		final JPEGEncoder encoder = this.pool.acquire();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread setter = new Thread(() -> {
+			while (!done.get())
+				encoder.setQuality(HIGH_QUALITY);
+		});
+		setter.start();
+		try {
+			ByteBuffer dst = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3);
+			for (int i = 0; i < 200; i++) {
+				dst.clear();
+				assertEquals(this.lowLength, encoder.apply(this.frame.duplicate(), dst, LOW_QUALITY));
+			}
+		} finally {
+			done.set(true);
+			setter.join();
+		}
+		//Not overwritten by the quality used for a single frame
+		assertEquals(HIGH_QUALITY, encoder.getQuality());
+		this.pool.release(encoder);
+	}
+
+	@Test
+	public void testDefaultQuality() throws Exception {
+		this.pool.setQuality(LOW_QUALITY);
+		assertEquals(LOW_QUALITY, this.pool.getQuality());
+		assertEquals(this.lowLength, this.pool.encode(this.frame.duplicate(), ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3)));
+		try {
+			this.pool.setQuality(101);
+			fail("Took a quality above 100");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		JPEGEncoder encoder = this.pool.acquire();
+		this.pool.close();
+		//The idle encoder is closed straight away, the other one once returned
+		assertEquals(1, this.pool.getSize());
+		this.pool.release(encoder);
+		assertEquals(0, this.pool.getSize());
+		try {
+			encode(LOW_QUALITY);
+			fail("Encoded a frame with a closed pool");
+		} catch (IllegalStateException e) {
+			//Expected
+		}
+	}
+}
@@ -1,13 +1,20 @@
 package au.edu.jcu.v4l4j.encoder;
 
+import au.edu.jcu.v4l4j.ImagePalette;
+
 public interface VideoFrameConverter extends VideoFrameTransformer {
 	/**
 	 * Wrap a pointer in a Java object
-	 * @param ptr
-	 * @return
+	 * @param ptr Pointer to a native <code>v4lconvert_encoder</code>, which
+	 * 		remains owned by whatever created it
+	 * @return a converter applying the native encoder
 	 */
 	public static VideoFrameConverter wrap(long ptr) {
-		//TODO finish
-		return null;
+		if (ptr == 0)
+			throw new NullPointerException("Cannot wrap null pointer");
+		ImageFormatConverter converter = new ImageFormatConverter(ptr);
+		if (converter.getDestinationFormat() == ImagePalette.JPEG)
+			return new JPEGEncoder(ptr);
+		return converter;
 	}
 }
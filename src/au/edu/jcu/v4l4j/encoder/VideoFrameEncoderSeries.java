@@ -1,5 +1,6 @@
 package au.edu.jcu.v4l4j.encoder;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import au.edu.jcu.v4l4j.ImagePalette;
@@ -7,6 +8,7 @@ import au.edu.jcu.v4l4j.V4L4JUtils;
 import au.edu.jcu.v4l4j.exceptions.BufferOverflowException;
 import au.edu.jcu.v4l4j.exceptions.BufferUnderflowException;
 import au.edu.jcu.v4l4j.exceptions.JNIException;
+import au.edu.jcu.v4l4j.exceptions.StateException;
 
 /**
  * A wrapper for the <code>libv4lconvert</code> library.
@@ -19,12 +21,32 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 		V4L4JUtils.loadLibrary();
 	}
 	
+	/**
+	 * Maximum number of conversions in a series built by
+	 * {@link #plan(ImagePalette, ImagePalette, int, int)}
+	 */
+	public static final int DEFAULT_MAX_CONVERSIONS = 4;
+	
 	protected VideoFrameTransformer[] encoders;
 	/**
 	 * A pointer to the native <code>struct v4lconvert_encoder_series</code> in
 	 * memory.
 	 */
 	protected long object;
+	/**
+	 * Capacities of the source, output and intermediate buffers needed to
+	 * apply this series
+	 */
+	protected final int[] bufferSizes;
+	/**
+	 * Buffer holding the output of intermediate stages when applying this
+	 * series to ByteBuffers. Allocated on first use.
+	 */
+	private ByteBuffer intermediate;
+	/**
+	 * Maximum number of bands each frame is split into
+	 */
+	protected volatile int parallelism = 1;
 	
 	private static native long initWithEncoders(long[] encoders);
 	/**
@@ -38,20 +60,49 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 	 *            the frame width
 	 * @param height
 	 *            the frame height
+	 * @param maxConversions
+	 *            maximum number of conversions in the series
 	 * @return a pointer to the allocated struct
 	 * @throws JNIException
 	 *             if there was a problem with allocation or something
 	 */
-	private static native long doInit(int from, int to, int width, int height) throws JNIException;
+	private static native long doInit(int from, int to, int width, int height, int maxConversions) throws JNIException;
 	
 	/**
 	 * Apply series to buffer
 	 * @param seriesPtr Pointer to native <code>v4lconvert_encoder_series</code> object
 	 * @param bufPtr Pointer to native <code>v4lconvert_buffer</code> object
+	 * @param slices Maximum number of bands to split each frame into
 	 * @return Number of bytes written to output buffer
 	 * @throws NullPointerException if the seriesPtr or bufPtr point to an invalid target
 	 */
-	private static native int doApply(long seriesPtr, long bufPtr);
+	private static native int doApply(long seriesPtr, long bufPtr, int slices);
+	
+	/**
+	 * Apply series to direct buffers
+	 * @param seriesPtr Pointer to native <code>v4lconvert_encoder_series</code> object
+	 * @param src Buffer holding the frame to convert, up to its limit
+	 * @param dst Buffer receiving the converted frame. Its limit is set to the
+	 * 		number of bytes written.
+	 * @param imed Buffer holding the output of intermediate stages. May be
+	 * 		null if the series has a single stage.
+	 * @param slices Maximum number of bands to split each frame into
+	 * @return Number of bytes written to output buffer
+	 */
+	private static native int doApplyBuffers(long seriesPtr, ByteBuffer src, ByteBuffer dst, ByteBuffer imed, int slices);
+	
+	/**
+	 * Get the capacities of the buffers needed by a series
+	 * @param seriesPtr Pointer to native <code>v4lconvert_encoder_series</code> object
+	 * @return the capacities of the source, output and intermediate buffers
+	 */
+	private static native int[] getBufferSizes(long seriesPtr);
+	
+	/**
+	 * Release a series. Encoders created along with it are released too.
+	 * @param seriesPtr Pointer to native <code>v4lconvert_encoder_series</code> object
+	 */
+	private static native void doRelease(long seriesPtr);
 	
 	/**
 	 * Get the pointers to the encoders for
@@ -61,17 +112,137 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 	 */
 	private static native long[] getEncoderPointers(long seriesObject) throws JNIException;
 	
+	/**
+	 * Get the predicted time to apply a series
+	 * @param seriesPtr Pointer to native <code>v4lconvert_encoder_series</code> object
+	 * @return predicted time per frame, in nanoseconds
+	 */
+	private static native long getPredictedCost(long seriesPtr);
+	
+	private static native int calibrate(int width, int height, int rounds) throws IllegalArgumentException;
+	
+	private static native int loadCosts(String path) throws IOException;
+	
+	private static native int saveCosts(String path) throws IOException;
+	
+	private static native void clearCosts();
+	
+	/**
+	 * Plan the cheapest series of at most {@link #DEFAULT_MAX_CONVERSIONS}
+	 * conversions between two formats. Each conversion is weighed by its
+	 * measured cost (see {@link #calibrateCosts(int, int, int)}), or estimated
+	 * from the number of bytes it reads and writes if it was never measured.
+	 * 
+	 * @param from
+	 *            image type to convert from
+	 * @param to
+	 *            image type to convert to
+	 * @param width
+	 *            the frame width
+	 * @param height
+	 *            the frame height
+	 * @return the series, which must be closed by the caller
+	 * @throws JNIException
+	 *             if no conversion between the two formats exists
+	 */
+	public static VideoFrameEncoderSeries plan(ImagePalette from, ImagePalette to, int width, int height) throws JNIException {
+		return plan(from, to, width, height, DEFAULT_MAX_CONVERSIONS);
+	}
+	
+	/**
+	 * Plan the cheapest series of conversions between two formats, as
+	 * {@link #plan(ImagePalette, ImagePalette, int, int)} does, allowing
+	 * longer (or only shorter) series
+	 * 
+	 * @param from
+	 *            image type to convert from
+	 * @param to
+	 *            image type to convert to
+	 * @param width
+	 *            the frame width
+	 * @param height
+	 *            the frame height
+	 * @param maxConversions
+	 *            maximum number of conversions in the series
+	 * @return the series, which must be closed by the caller
+	 * @throws IllegalArgumentException
+	 *             if <code>maxConversions</code> is lower than 1
+	 * @throws JNIException
+	 *             if no conversion between the two formats exists within
+	 *             <code>maxConversions</code> conversions
+	 */
+	public static VideoFrameEncoderSeries plan(ImagePalette from, ImagePalette to, int width, int height, int maxConversions) throws IllegalArgumentException, JNIException {
+		if (maxConversions < 1)
+			throw new IllegalArgumentException("A series needs at least one conversion (was " + maxConversions + ")");
+		return new VideoFrameEncoderSeries(width, height, from, to, maxConversions);
+	}
+	
+	/**
+	 * Time every converter on this host at the given frame size, so that
+	 * {@link #plan(ImagePalette, ImagePalette, int, int) planning} picks the
+	 * conversions that are fastest here rather than the ones that move the
+	 * fewest bytes. Measurements at other sizes are scaled by the number of
+	 * pixels. This takes a while, so it should be done once and its results
+	 * kept with {@link #writeCosts(String)}.
+	 * 
+	 * @param width
+	 *            frame width to measure at
+	 * @param height
+	 *            frame height to measure at
+	 * @param rounds
+	 *            number of frames converted with each converter
+	 * @return the number of converters measured
+	 */
+	public static int calibrateCosts(int width, int height, int rounds) throws IllegalArgumentException {
+		return calibrate(width, height, rounds);
+	}
+	
+	/**
+	 * Add the conversion costs saved by {@link #writeCosts(String)} to the
+	 * ones used for planning
+	 * 
+	 * @param path
+	 *            file to read
+	 * @return the number of costs read
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a cost table
+	 */
+	public static int readCosts(String path) throws IOException {
+		return loadCosts(path);
+	}
+	
+	/**
+	 * Save the conversion costs measured so far
+	 * 
+	 * @param path
+	 *            file to write
+	 * @return the number of costs written
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static int writeCosts(String path) throws IOException {
+		return saveCosts(path);
+	}
+	
+	/**
+	 * Forget all measured conversion costs, so that planning falls back to
+	 * estimates
+	 */
+	public static void resetCosts() {
+		clearCosts();
+	}
+	
 	public VideoFrameEncoderSeries(VideoFrameTransformer...encoders) {
 		if (encoders == null || encoders.length < 1)
 			throw new NullPointerException();
 		//validate encoders
 		VideoFrameTransformer encoder0 = encoders[0];
 		int lastWidth = encoder0.getSourceWidth();
-		int lastHeight = encoder0.getSourceHeight();;
+		int lastHeight = encoder0.getSourceHeight();
 		ImagePalette lastFmt = encoder0.getSourceFormat();
 		long[] ptrs = new long[encoders.length];
 		for (int i = 0; i < encoders.length; i++) {
-			VideoFrameTransformer encoder = this.encoders[i];
+			VideoFrameTransformer encoder = encoders[i];
 			if (encoder == null)
 				throw new NullPointerException("Cannot apply null encoder (#" + i + ")");
 			if (lastWidth != encoder.getSourceWidth() || lastHeight != encoder.getSourceHeight() || lastFmt != encoder.getSourceFormat())
@@ -86,20 +257,36 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 		//Copy the array, so changes to the argument array don't affect the state of the series
 		this.encoders = new VideoFrameTransformer[encoders.length];
 		System.arraycopy(encoders, 0, this.encoders, 0, encoders.length);
+		this.bufferSizes = getBufferSizes(this.object);
 	}
 	
 	protected VideoFrameEncoderSeries(int width, int height, ImagePalette from, ImagePalette to) {
-		this.object = doInit(from.getIndex(), to.getIndex(), width, height);
+		this(width, height, from, to, DEFAULT_MAX_CONVERSIONS);
+	}
+	
+	protected VideoFrameEncoderSeries(int width, int height, ImagePalette from, ImagePalette to, int maxConversions) {
+		this.object = doInit(from.getIndex(), to.getIndex(), width, height, maxConversions);
 		
 		long[] converters = VideoFrameEncoderSeries.getEncoderPointers(this.object);
 		this.encoders = new VideoFrameTransformer[converters.length];
 		for (int i = 0; i < converters.length; i++)
 			this.encoders[i] = VideoFrameConverter.wrap(converters[i]);
-		System.out.println("Built encoder from " + from + " to " + to + '.');
+		this.bufferSizes = getBufferSizes(this.object);
 	}
 	
+	/**
+	 * Releases the native series. Encoders given to
+	 * {@link #VideoFrameEncoderSeries(VideoFrameTransformer...)} are left
+	 * open, and must be closed by the caller once the series is closed.
+	 */
 	@Override
-	public native void close() throws Exception;
+	public synchronized void close() {
+		if (this.object == 0)
+			return;
+		doRelease(this.object);
+		this.object = 0;
+		this.intermediate = null;
+	}
 	
 	@Override
 	public int getConverterId() {
@@ -115,7 +302,28 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 	}
 	
 	/**
-	 * Get converter by index
+	 * Get the IDs of the converters applied, in order
+	 * @return converter IDs
+	 */
+	public int[] getPlan() {
+		int[] plan = new int[this.encoders.length];
+		for (int i = 0; i < plan.length; i++)
+			plan[i] = this.encoders[i].getConverterId();
+		return plan;
+	}
+	
+	/**
+	 * Get the predicted time to apply this series to a frame, from the
+	 * measured or estimated cost of each of its conversions
+	 * @return time, in nanoseconds
+	 */
+	public long getPredictedCost() {
+		return getPredictedCost(this.object);
+	}
+	
+	/**
+	 * Get converter by index. Converters the series built itself are released
+	 * along with it, and must not be closed.
 	 * @param index
 	 * @return converter
 	 */
@@ -164,20 +372,89 @@ public class VideoFrameEncoderSeries implements VideoFrameTransformer {
 	}
 	
 	
+	/**
+	 * Set how many threads each step of the series converts frames on. See
+	 * {@link ImageFormatConverter#setParallelism(int)}.
+	 * 
+	 * @param threads
+	 *            the number of threads, 1 by default
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is lower than 1
+	 */
+	public void setParallelism(int threads) throws IllegalArgumentException {
+		if (threads < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1 (was " + threads + ")");
+		this.parallelism = threads;
+	}
+	
+	/**
+	 * Get how many threads each step of the series converts frames on
+	 * @return the number of threads
+	 */
+	public int getParallelism() {
+		return this.parallelism;
+	}
+	
+	/**
+	 * Get the capacity the intermediate buffer of a {@link V4lconvertBuffer}
+	 * must have to apply this series
+	 * @return capacity, in bytes, or 0 if this series has a single stage
+	 */
+	public int estimateIntermediateLength() {
+		return this.bufferSizes[2];
+	}
+	
+	/**
+	 * Convert the frame in the source buffer of <code>buf</code> into its
+	 * output buffer. All the stages run in native code, alternating between
+	 * the output and intermediate buffers, so there is a single JNI call per
+	 * frame whatever the length of the series. The series must not be closed
+	 * while frames are being converted.
+	 * 
+	 * @throws StateException
+	 *             if this series is closed
+	 */
 	@Override
-	public int apply(V4lconvertBuffer buf) {
-		return VideoFrameEncoderSeries.doApply(this.object, buf.getPointer());
+	public int apply(V4lconvertBuffer buf) throws StateException {
+		final long object = this.object;
+		if (object == 0)
+			throw new StateException("This series is closed");
+		buf.push();
+		int result = VideoFrameEncoderSeries.doApply(object, buf.getPointer(), this.parallelism);
+		buf.pull();
+		return result;
 	}
 	
+	/**
+	 * Create a buffer large enough to apply this series
+	 * @return buffer, which must be released by the caller
+	 */
 	public V4lconvertBuffer createBuffer() {
-		//TODO finish
-		return null;
+		return new V4lconvertBuffer(this.bufferSizes[0], this.bufferSizes[1], this.bufferSizes[2]);
 	}
 	
+	/**
+	 * Convert the frame in <code>src</code>, up to its limit, into
+	 * <code>dst</code>, whose limit is set to the number of bytes written.
+	 * Both buffers must be direct. The output of intermediate stages is kept
+	 * in a buffer owned by this series, so concurrent calls are serialized;
+	 * use {@link #apply(V4lconvertBuffer)} with one buffer per thread to
+	 * convert frames concurrently.
+	 * 
+	 * @throws StateException
+	 *             if this series is closed
+	 */
 	@Override
-	public int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException, BufferOverflowException, IllegalArgumentException {
-		//Only supporting V4lconvertBuffer's
-		throw new UnsupportedOperationException();
+	public int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException, BufferOverflowException, IllegalArgumentException, StateException {
+		if (!src.isDirect() || !dst.isDirect())
+			throw new IllegalArgumentException("Buffers must be direct");
+		synchronized (this) {
+			if (this.object == 0)
+				throw new StateException("This series is closed");
+			if (this.intermediate == null && this.bufferSizes[2] > 0)
+				this.intermediate = ByteBuffer.allocateDirect(this.bufferSizes[2]);
+			return VideoFrameEncoderSeries.doApplyBuffers(this.object, src, dst, this.intermediate, this.parallelism);
+		}
 	}
 	
 	@Override
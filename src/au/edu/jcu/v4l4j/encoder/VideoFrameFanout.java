@@ -0,0 +1,218 @@
+package au.edu.jcu.v4l4j.encoder;
+
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.ImagePalette;
+import au.edu.jcu.v4l4j.V4L4JUtils;
+import au.edu.jcu.v4l4j.exceptions.BufferOverflowException;
+import au.edu.jcu.v4l4j.exceptions.BufferUnderflowException;
+
+/**
+ * Converts each frame into several outputs, of different sizes or formats,
+ * reading the frame once. The encoders form a tree: each one converts either
+ * the frame or the output of an encoder before it, so work common to several
+ * outputs is only done once. For instance, from a 1920x1080 YUYV frame:
+ *
+ * <pre>
+ * VideoFrameTransformer[] encoders = {
+ * 	new ImageFormatConverter(ImagePalette.YUYV, ImagePalette.RGB24, 1920, 1080),                  // 0: from the frame
+ * 	JPEGEncoder.from(1920, 1080, ImagePalette.RGB24),                                             // 1: from 0, archived
+ * 	new ImageFormatConverter(ImagePalette.RGB24, ImagePalette.RGB24, 1920, 1080, 640, 360, BOX),  // 2: from 0
+ * 	JPEGEncoder.from(640, 360, ImagePalette.RGB24),                                               // 3: from 2, previewed
+ * 	new ImageFormatConverter(ImagePalette.RGB24, ImagePalette.RGB24, 640, 360, 224, 224, BOX),    // 4: from 2, analysed
+ * };
+ * VideoFrameFanout fanout = new VideoFrameFanout(encoders, new int[] {-1, 0, 0, 2, 2});
+ * </pre>
+ *
+ * converts the frame to RGB once, and makes the 224x224 thumbnail from the
+ * 640x360 preview rather than from the full frame.
+ * <p>
+ * Encoders are kept open when the fanout is closed, and must be closed by
+ * the caller afterwards.
+ */
+public class VideoFrameFanout implements AutoCloseable {
+
+	static {
+		V4L4JUtils.loadLibrary();
+	}
+
+	/**
+	 * A pointer to the native <code>struct v4lconvert_encoder_fanout</code>
+	 * in memory.
+	 */
+	protected long object;
+	protected final VideoFrameTransformer[] encoders;
+	protected final int[] parents;
+	/**
+	 * Maximum number of threads each frame is converted on
+	 */
+	protected volatile int parallelism = 1;
+
+	/**
+	 * Create the native struct
+	 * @param encoders Pointers to the native encoders
+	 * @param parents Index of the encoder each encoder converts the output of
+	 * @return a pointer to the allocated struct
+	 */
+	private static native long doInit(long[] encoders, int[] parents);
+
+	/**
+	 * Apply a fanout
+	 * @param ptr Pointer to the native fanout
+	 * @param src Buffer holding the frame, up to its limit
+	 * @param dsts Output buffer for each encoder, or null
+	 * @param parallelism Maximum number of threads to convert on
+	 */
+	private static native void doApply(long ptr, ByteBuffer src, ByteBuffer[] dsts, int parallelism);
+
+	private static native void doRelease(long ptr);
+
+	/**
+	 * Arrange encoders in a tree
+	 *
+	 * @param encoders
+	 *            the encoders. They are not copied, so they must stay open
+	 *            as long as the fanout is.
+	 * @param parents
+	 *            for each encoder, the index of the encoder whose output it
+	 *            converts, which must be lower than its own, or -1 to convert
+	 *            the frame itself
+	 * @throws IllegalArgumentException
+	 *             if an encoder cannot convert the output of its parent, or
+	 *             encoders converting the frame expect different frames
+	 */
+	public VideoFrameFanout(VideoFrameTransformer[] encoders, int[] parents) throws IllegalArgumentException {
+		if (encoders == null || parents == null || encoders.length < 1)
+			throw new NullPointerException();
+		if (encoders.length != parents.length)
+			throw new IllegalArgumentException("Expected a parent for each of the " + encoders.length + " encoders (got " + parents.length + ")");
+		long[] ptrs = new long[encoders.length];
+		for (int i = 0; i < encoders.length; i++) {
+			VideoFrameTransformer encoder = encoders[i];
+			if (encoder == null)
+				throw new NullPointerException("Cannot apply null encoder (#" + i + ")");
+			if (parents[i] < -1 || parents[i] >= i)
+				throw new IllegalArgumentException("Encoder #" + i + " must come after its parent (#" + parents[i] + ")");
+			VideoFrameTransformer parent = encoders[parents[i] < 0 ? 0 : parents[i]];
+			ImagePalette fmt = parents[i] < 0 ? parent.getSourceFormat() : parent.getDestinationFormat();
+			int width = parents[i] < 0 ? parent.getSourceWidth() : parent.getDestinationWidth();
+			int height = parents[i] < 0 ? parent.getSourceHeight() : parent.getDestinationHeight();
+			if (fmt != encoder.getSourceFormat() || width != encoder.getSourceWidth() || height != encoder.getSourceHeight())
+				throw new IllegalArgumentException(String.format("Encoder #%d cannot convert the output of #%d (%S @ %dx%d => %S @ %dx%d)", i, parents[i], fmt, width, height, encoder.getSourceFormat(), encoder.getSourceWidth(), encoder.getSourceHeight()));
+			if ((ptrs[i] = encoder.getPointer()) == 0)
+				throw new IllegalArgumentException("No pointer available for encoder #" + i + ": " + encoder);
+		}
+		this.object = doInit(ptrs, parents);
+		//Copy the arrays, so changes to the arguments don't affect the state of the fanout
+		this.encoders = encoders.clone();
+		this.parents = parents.clone();
+	}
+
+	/**
+	 * Get the number of encoders, and so of outputs
+	 * @return number of encoders
+	 */
+	public int getLength() {
+		return this.encoders.length;
+	}
+
+	/**
+	 * Get encoder by index
+	 * @param index
+	 * @return encoder
+	 */
+	public VideoFrameTransformer getEncoder(int index) {
+		return this.encoders[index];
+	}
+
+	/**
+	 * Get the index of the encoder whose output the given encoder converts
+	 * @param index
+	 * @return index of the parent, or -1 if it converts the frame itself
+	 */
+	public int getParent(int index) {
+		return this.parents[index];
+	}
+
+	/**
+	 * Set how many threads frames are converted on. Encoders at the same
+	 * depth of the tree, such as the JPEG encoder and the scaler converting
+	 * the RGB frame in the example above, are then run at the same time;
+	 * encoders alone at their depth split the frame into bands (see
+	 * {@link ImageFormatConverter#setParallelism(int)}).
+	 *
+	 * @param threads
+	 *            the number of threads, 1 by default
+	 * @throws IllegalArgumentException
+	 *             if <code>threads</code> is lower than 1
+	 */
+	public void setParallelism(int threads) throws IllegalArgumentException {
+		if (threads < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1 (was " + threads + ")");
+		this.parallelism = threads;
+	}
+
+	/**
+	 * Get how many threads frames are converted on
+	 * @return the number of threads
+	 */
+	public int getParallelism() {
+		return this.parallelism;
+	}
+
+	/**
+	 * Convert the frame in <code>src</code>, up to its limit, into the
+	 * outputs wanted. Each encoder writes to the buffer of the same index in
+	 * <code>dsts</code>, whose limit is set to the number of bytes written,
+	 * and whose capacity must be at least the encoder's
+	 * {@link VideoFrameTransformer#estimateDestinationLength() estimated
+	 * output length}. Encoders whose buffer is null and that no wanted
+	 * output depends on are not run at all.
+	 * <p>
+	 * All buffers must be direct. Concurrent calls are serialized.
+	 *
+	 * @param src
+	 *            the frame
+	 * @param dsts
+	 *            output buffer of each encoder, or null if its output is not
+	 *            wanted
+	 * @throws BufferOverflowException
+	 *             if an output buffer is too small
+	 * @throws BufferUnderflowException
+	 *             if a conversion failed, such as when the frame is too short
+	 */
+	public synchronized void apply(ByteBuffer src, ByteBuffer...dsts) throws BufferOverflowException, BufferUnderflowException, IllegalArgumentException {
+		if (this.object == 0)
+			throw new IllegalStateException("Fanout closed");
+		if (dsts.length != this.encoders.length)
+			throw new IllegalArgumentException("Expected " + this.encoders.length + " output buffers (got " + dsts.length + ")");
+		if (!src.isDirect())
+			throw new IllegalArgumentException("Buffers must be direct");
+		for (ByteBuffer dst : dsts)
+			if (dst != null && !dst.isDirect())
+				throw new IllegalArgumentException("Buffers must be direct");
+		doApply(this.object, src, dsts, this.parallelism);
+	}
+
+	/**
+	 * Allocate an output buffer for each encoder
+	 * @return direct buffers, large enough for the output of each encoder
+	 */
+	public ByteBuffer[] createOutputs() {
+		ByteBuffer[] outputs = new ByteBuffer[this.encoders.length];
+		for (int i = 0; i < outputs.length; i++)
+			outputs[i] = ByteBuffer.allocateDirect(this.encoders[i].estimateDestinationLength());
+		return outputs;
+	}
+
+	/**
+	 * Releases the native fanout. The encoders are left open.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.object == 0)
+			return;
+		doRelease(this.object);
+		this.object = 0;
+	}
+}
@@ -0,0 +1,339 @@
+package au.edu.jcu.v4l4j.encoder.h264;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.StateException;
+
+/**
+ * Encodes captured frames to H.264 on a thread of its own, so that capture
+ * and encoding run on separate cores. Frames are {@link #submit(VideoFrame)
+ * submitted} from the capture thread, read by x264 in place through an
+ * {@link H264FramePicture}, and recycled as soon as x264 has copied them.
+ * <p>
+ * x264 holds frames back, in its lookahead and in its frame threads
+ * ({@link H264Parameters#setThreads(int)}), so the access unit of a frame
+ * comes out while later frames are encoded, and is handed to the
+ * {@link AccessUnitCallback} with that frame's own sequence number and
+ * capture time. {@link #flush()} gets the frames still held back out at the
+ * end of a stream:
+ *
+ * <pre>
+ * try (H264Parameters params = new H264Parameters()) {
+ * 	params.initWithPreset(X264.Preset.VERY_FAST, X264.Tune.FILM);
+ * 	params.setCsp(X264.CSP_I420);
+ * 	params.setInputDimension(width, height);
+ * 	params.setThreads(4);
+ * 	params.setAnnexb(true);
+ * 	params.setRepeatHeaders(true);
+ * 	encoder = new H264AsyncEncoder(params, 2, callback);
+ * }
+ * grabber.setCaptureCallback(new CaptureCallback() {
+ * 	public void nextFrame(VideoFrame frame) {
+ * 		if (!encoder.submit(frame))
+ * 			frame.recycle();
+ * 	}
+ * 	...
+ * });
+ * </pre>
+ *
+ * Frames wait in a queue for the encoder thread, holding on to their capture
+ * buffers, so the queue should be shorter than the frame grabber's
+ * {@link au.edu.jcu.v4l4j.FrameGrabber#getNumberOfVideoFrames() number of
+ * buffers}.
+ */
+public class H264AsyncEncoder implements AutoCloseable {
+	/**
+	 * Queued by {@link #close()} to stop the encoder thread
+	 */
+	private static final Object STOP = new Object();
+
+	/**
+	 * Receives the access units of an {@link H264AsyncEncoder}, on its
+	 * encoder thread
+	 */
+	public static interface AccessUnitCallback {
+		/**
+		 * Called with the access unit of each frame, in decoding order
+		 *
+		 * @param accessUnit
+		 *            the frame's NALs (Annex B, if set in the parameters),
+		 *            between its position and limit. The buffer is reused
+		 *            for the next access unit once this method returns.
+		 * @param sequenceNumber
+		 *            the sequence number of the captured frame
+		 * @param captureTime
+		 *            the capture time of the captured frame
+		 * @param keyframe
+		 *            whether decoding can start at this access unit
+		 */
+		void accessUnitReceived(ByteBuffer accessUnit, long sequenceNumber, long captureTime, boolean keyframe);
+
+		/**
+		 * Called if a frame could not be encoded, or the callback threw an
+		 * exception. Encoding carries on with the next frame.
+		 *
+		 * @param e
+		 *            the exception
+		 */
+		void exceptionReceived(Exception e);
+	}
+
+	protected final H264Encoder encoder;
+	protected final H264FramePicture picture;
+	protected final AccessUnitCallback callback;
+	/**
+	 * Frames waiting for the encoder thread, and the latches of
+	 * {@link #flush()} calls after them
+	 */
+	protected final BlockingQueue<Object> queue;
+	protected final Thread thread;
+	protected final ByteBuffer output;
+	/**
+	 * PTS and keyframe flag of the last access unit out of x264
+	 */
+	private final long[] info = new long[2];
+	/**
+	 * Sequence number and capture time of the frames x264 holds back, by PTS.
+	 * Only used by the encoder thread.
+	 */
+	private final Map<Long, long[]> delayed = new HashMap<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong encoded = new AtomicLong();
+	/**
+	 * Whether frames are still taken, until {@link #flush()} or
+	 * {@link #close()}
+	 */
+	protected volatile boolean accepting = true;
+	/**
+	 * Whether the stream has been flushed. Only used by the encoder thread.
+	 */
+	private boolean flushed = false;
+	private boolean closed = false;
+
+	/**
+	 * Create an encoder, and start its thread
+	 *
+	 * @param params
+	 *            x264 parameters, which may be closed once this returns. The
+	 *            colorspace must be one {@link H264FramePicture} reads in
+	 *            place.
+	 * @param queueSize
+	 *            number of frames that may wait for the encoder thread
+	 * @param callback
+	 *            receives the access units
+	 * @throws IllegalArgumentException
+	 *             if <code>queueSize</code> is lower than 1, or the
+	 *             colorspace can't be read in place
+	 */
+	public H264AsyncEncoder(H264Parameters params, int queueSize, AccessUnitCallback callback) throws IllegalArgumentException {
+		if (queueSize < 1)
+			throw new IllegalArgumentException("Queue must hold at least one frame (was " + queueSize + ")");
+		this.callback = callback;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.encoder = new H264Encoder(params);
+		try {
+			this.picture = new H264FramePicture(this.encoder.getSourceWidth(), this.encoder.getSourceHeight(), this.encoder.csp);
+		} catch (RuntimeException e) {
+			this.encoder.close();
+			throw e;
+		}
+		this.output = ByteBuffer.allocateDirect(this.encoder.buffer.capacity());
+		this.thread = new Thread(this::run, "v4l4j H.264 encoder");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue a frame for encoding. If it is queued, the encoder recycles it once
+	 * x264 has copied it, or fails to: the caller must not recycle it.
+	 *
+	 * @param frame
+	 *            frame of the size and colorspace of the parameters
+	 * @return true if the frame was queued, false if the queue is full or the
+	 *         encoder is flushed or closed, in which case the frame is still
+	 *         the caller's
+	 */
+	public boolean submit(VideoFrame frame) {
+		if (this.accepting && this.queue.offer(frame))
+			return true;
+		this.dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Encode the frames queued, then get every frame x264 holds back out, and
+	 * wait until their access units have been handed to the callback. This
+	 * ends the stream: no frames are taken afterwards.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws StateException
+	 *             if the encoder is closed. If it is closed while this method
+	 *             waits, this method returns without the frames being
+	 *             encoded.
+	 */
+	public void flush() throws InterruptedException {
+		if (!this.thread.isAlive())
+			throw new StateException("This encoder is closed");
+		this.accepting = false;
+		CountDownLatch flushed = new CountDownLatch(1);
+		this.queue.put(flushed);
+		synchronized (this) {
+			//close() may have stopped the thread before the latch was queued
+			if (this.closed)
+				dropQueued();
+		}
+		flushed.await();
+	}
+
+	/**
+	 * Get the number of frames waiting for the encoder thread
+	 *
+	 * @return the number of frames
+	 */
+	public int getQueued() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Get the number of frames refused by {@link #submit(VideoFrame)}
+	 *
+	 * @return the number of frames
+	 */
+	public long getDroppedFrames() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Get the number of access units handed to the callback
+	 *
+	 * @return the number of access units
+	 */
+	public long getEncodedFrames() {
+		return this.encoded.get();
+	}
+
+	private void run() {
+		while (true) {
+			Object next;
+			try {
+				next = this.queue.take();
+			} catch (InterruptedException e) {
+				//Only close() stops this thread
+				continue;
+			}
+			if (next == STOP)
+				return;
+			if (next instanceof CountDownLatch) {
+				if (!this.flushed)
+					drain();
+				this.flushed = true;
+				((CountDownLatch) next).countDown();
+			} else if (this.flushed) {
+				//Submitted while the flush was being queued
+				((VideoFrame) next).recycle();
+			} else {
+				encode((VideoFrame) next);
+			}
+		}
+	}
+
+	private void encode(VideoFrame frame) {
+		final long pts = this.encoder.getNextPts();
+		try {
+			this.picture.setFrame(frame);
+		} catch (RuntimeException e) {
+			//The picture didn't take the frame
+			frame.recycle();
+			this.callback.exceptionReceived(e);
+			return;
+		}
+		this.delayed.put(pts, new long[] { this.picture.getSequenceNumber(), this.picture.getCaptureTime() });
+		int size;
+		try {
+			size = this.encoder.encodeFrame(this.picture, this.output, this.info);
+		} catch (RuntimeException e) {
+			this.delayed.remove(pts);
+			this.callback.exceptionReceived(e);
+			return;
+		}
+		deliver(size);
+	}
+
+	/**
+	 * Get the frames x264 holds back out
+	 */
+	private void drain() {
+		try {
+			while (this.encoder.getDelayedFrames() > 0)
+				deliver(this.encoder.encodeFrame(null, this.output, this.info));
+		} catch (RuntimeException e) {
+			this.callback.exceptionReceived(e);
+		}
+		this.delayed.clear();
+	}
+
+	private void deliver(int size) {
+		if (size <= 0)
+			return;
+		long[] frame = this.delayed.remove(this.info[0]);
+		this.output.clear().limit(size);
+		this.encoded.incrementAndGet();
+		try {
+			this.callback.accessUnitReceived(this.output.asReadOnlyBuffer(), frame == null ? -1 : frame[0], frame == null ? -1 : frame[1], this.info[1] != 0);
+		} catch (RuntimeException e) {
+			this.callback.exceptionReceived(e);
+		}
+	}
+
+	/**
+	 * Recycle the frames queued, and release the latches of pending flushes
+	 */
+	private void dropQueued() {
+		Object next;
+		while ((next = this.queue.poll()) != null) {
+			if (next instanceof CountDownLatch)
+				((CountDownLatch) next).countDown();
+			else if (next != STOP)
+				((VideoFrame) next).recycle();
+		}
+	}
+
+	/**
+	 * Stop the encoder thread, dropping the frames queued and those x264
+	 * holds back, and release x264. Call {@link #flush()} first to encode
+	 * them. Must not be called from the callback.
+	 */
+	@Override
+	public synchronized void close() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		this.accepting = false;
+		//The frame being encoded, if any, is the only one left
+		dropQueued();
+		while (!this.queue.offer(STOP))
+			dropQueued();
+		boolean interrupted = false;
+		while (this.thread.isAlive()) {
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		//Submitted after the first drop
+		dropQueued();
+		this.picture.close();
+		this.encoder.close();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
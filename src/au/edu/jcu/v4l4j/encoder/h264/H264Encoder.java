@@ -4,14 +4,40 @@ import java.nio.ByteBuffer;
 
 import au.edu.jcu.v4l4j.ImagePalette;
 import au.edu.jcu.v4l4j.V4L4JUtils;
+import au.edu.jcu.v4l4j.encoder.VideoFrameEncoderSeries;
 import au.edu.jcu.v4l4j.encoder.VideoFrameTransformer;
 import au.edu.jcu.v4l4j.exceptions.BufferOverflowException;
 import au.edu.jcu.v4l4j.exceptions.BufferUnderflowException;
+import au.edu.jcu.v4l4j.exceptions.StateException;
 
+/**
+ * Encodes pictures to H.264 with x264.
+ * <p>
+ * Pictures are either copied into an {@link H264Picture} and passed to
+ * {@link #encode(H264Picture, ByteBuffer)}, or, for the colorspaces a frame
+ * can be read in as is (I420, YV12, I422, NV12, NV21 and NV16), read straight
+ * from a direct buffer by {@link #apply(ByteBuffer, ByteBuffer)}. The latter
+ * also makes this encoder the last stage of a {@link VideoFrameEncoderSeries},
+ * so that, for instance, a YUYV capture is converted to NV12 then encoded
+ * without leaving native code.
+ * <p>
+ * {@link #apply(ByteBuffer, ByteBuffer)} writes a frame's NALs as soon as it
+ * is encoded, so the encoder must not hold frames back: use
+ * {@link X264.Tune#ZERO_LATENCY}, as {@link #H264Encoder(int, int, int)} does.
+ * Both ways of encoding number pictures independently, so don't mix them on
+ * the same encoder.
+ */
 public class H264Encoder implements VideoFrameTransformer {
 	
 	protected final long object;
-	protected final long csp;
+	protected final int csp;
+	protected final int width;
+	protected final int height;
+	/**
+	 * Pointer to the v4lconvert_encoder wrapping {@link #object}, or 0 if
+	 * {@link #csp} can't be read from a frame buffer
+	 */
+	protected final long stage;
 	protected int frameNum = 0;
 	
 	static {
@@ -28,8 +54,30 @@ public class H264Encoder implements VideoFrameTransformer {
 	protected static native long doGetParams(long object);
 	protected static native void doSetParams(long object, long pointer);
 	
-	@Override
-	public native void close() throws Exception;
+	private static native void doClose(long object);
+	/**
+	 * Wrap an encoder as a v4lconvert_encoder
+	 * @param object Pointer to x264_t
+	 * @return pointer to the v4lconvert_encoder, or 0 if pictures of this
+	 * colorspace can't be read from a frame buffer
+	 */
+	private static native long doInitStage(long object, int csp, int width, int height);
+	/**
+	 * Encode a picture read from <code>src</code>, from 0 to its limit, and
+	 * write its NALs to <code>dst</code> from 0, setting its limit after them
+	 * @return Output frame size
+	 */
+	private static native int doApply(long stage, ByteBuffer src, ByteBuffer dst);
+	private static native void doReleaseStage(long stage);
+	/**
+	 * Encode a picture, or get a delayed frame out if <code>picInObject</code>
+	 * is 0, writing its NALs to <code>output</code> from 0
+	 * @param info Set to the PTS of the picture that came out, and whether it
+	 * is a keyframe (1) or not (0)
+	 * @return Output frame size, or 0 if no frame came out
+	 */
+	private static native int doEncodeFrame(long object, long picInObject, ByteBuffer output, long[] info);
+	private static native int doGetDelayedFrames(long object);
 	/**
 	 * Encode 
 	 * @param object Pointer to x264_t
@@ -52,16 +100,29 @@ public class H264Encoder implements VideoFrameTransformer {
 			
 			this.object = doInit(params.object);
 		}
+		this.width = width;
+		this.height = height;
+		this.stage = initStage(this.object, csp, width, height);
 		this.buffer = ByteBuffer.allocate(width * height * 3);
 	}
 	
 	public H264Encoder(H264Parameters params) {
 		this.csp = params.getCsp();
 		this.object = doInit(params.object);
-		int width = params.getWidth();
-		int height = params.getHeight();
+		this.width = params.getWidth();
+		this.height = params.getHeight();
+		this.stage = initStage(this.object, this.csp, this.width, this.height);
 		this.buffer = ByteBuffer.allocateDirect(width * height * 3);//TODO better buffer size
 	}
+	
+	private static long initStage(long object, int csp, int width, int height) {
+		try {
+			return doInitStage(object, csp, width, height);
+		} catch (RuntimeException e) {
+			doClose(object);
+			throw e;
+		}
+	}
 
 	/**
 	 * Get a copy of the parameters
@@ -77,22 +138,115 @@ public class H264Encoder implements VideoFrameTransformer {
 	
 	@Override
 	public int getSourceWidth() {
-		return this.getParameters().getWidth();
+		return this.width;
 	}
 	
 	@Override
 	public int getSourceHeight() {
-		return this.getParameters().getHeight();
+		return this.height;
 	}
 	
+	/**
+	 * Encode a picture, and write the NALs of any frame that comes out to
+	 * <code>out</code>. x264 copies the picture before this method returns,
+	 * so the frame of an {@link H264FramePicture} is recycled then, whether
+	 * it was encoded or not.
+	 * 
+	 * @param in
+	 *            picture to encode
+	 * @param out
+	 *            buffer to write NALs to
+	 * @return the size of the NALs written
+	 * @throws StateException
+	 *             if <code>in</code> is an {@link H264FramePicture} without a
+	 *             frame
+	 */
 	public int encode(H264Picture in, ByteBuffer out) {
-		in.setPts(this.frameNum++);
-		return doEncode(this.object, in.object, out);
+		try {
+			if (in instanceof H264FramePicture && !((H264FramePicture) in).hasFrame())
+				throw new StateException("No frame to encode");
+			in.setPts(this.frameNum++);
+			return doEncode(this.object, in.object, out);
+		} finally {
+			in.encoded();
+		}
+	}
+	
+	/**
+	 * Encode a picture without waiting for its frame: whichever frame x264
+	 * outputs, if any, may be that of an earlier picture, held back in the
+	 * lookahead or by frame threads. Pictures are numbered by the PTS they are
+	 * given, from {@link #getNextPts()}.
+	 * 
+	 * @param in
+	 *            picture to encode, or null to get a delayed frame out once
+	 *            all pictures have been passed in
+	 * @param out
+	 *            direct buffer the frame's NALs are written to, from 0
+	 * @param info
+	 *            set to the PTS of the picture whose frame came out, and 1 if
+	 *            it is a keyframe or 0 if not
+	 * @return the size of the frame, or 0 if none came out
+	 */
+	int encodeFrame(H264Picture in, ByteBuffer out, long[] info) {
+		if (in == null)
+			return doEncodeFrame(this.object, 0, out, info);
+		try {
+			if (in instanceof H264FramePicture && !((H264FramePicture) in).hasFrame())
+				throw new StateException("No frame to encode");
+			in.setPts(this.frameNum++);
+			return doEncodeFrame(this.object, in.object, out, info);
+		} finally {
+			in.encoded();
+		}
+	}
+	
+	/**
+	 * Get the PTS the next picture encoded will be given
+	 * 
+	 * @return the PTS
+	 */
+	int getNextPts() {
+		return this.frameNum;
 	}
+	
+	/**
+	 * Get the number of pictures passed in whose frames have not come out yet
+	 * 
+	 * @return the number of delayed frames
+	 */
+	public int getDelayedFrames() {
+		return doGetDelayedFrames(this.object);
+	}
+	
+	/**
+	 * Encode a picture of this encoder's colorspace, its planes packed one
+	 * after the other without padding
+	 * 
+	 * @param src
+	 *            direct buffer holding the picture, from 0 to its limit
+	 * @param dst
+	 *            direct buffer the frame's NALs (Annex B) are written to, from
+	 *            0. Its limit is set after the last one.
+	 * @return the size of the frame
+	 * @throws BufferUnderflowException
+	 *             if <code>src</code> is smaller than
+	 *             {@link #estimateSourceLength()}
+	 * @throws H264EncodeFailedException
+	 *             if the picture could not be encoded, or was held back by the
+	 *             encoder, or its NALs don't fit in <code>dst</code>
+	 * @throws IllegalArgumentException
+	 *             if either buffer is not direct
+	 * @throws UnsupportedOperationException
+	 *             if this encoder's colorspace can't be read from a buffer
+	 */
 	@Override
 	public int apply(ByteBuffer src, ByteBuffer dst) throws BufferUnderflowException, BufferOverflowException, IllegalArgumentException {
-		// TODO Auto-generated method stub
-		return 0;
+		if (this.stage == 0)
+			throw new UnsupportedOperationException("Colorspace " + this.csp + " must be encoded from an H264Picture");
+		if (!src.isDirect() || !dst.isDirect())
+			throw new IllegalArgumentException("Buffers must be direct");
+		return doApply(this.stage, src, dst);
 	}
 	
 	@Override
@@ -101,15 +255,26 @@ public class H264Encoder implements VideoFrameTransformer {
 		return -1;
 	}
 	
+	/**
+	 * Get the palette of the pictures {@link #apply(ByteBuffer, ByteBuffer)}
+	 * reads
+	 * 
+	 * @return the palette, or null if this encoder's colorspace can't be read
+	 *         from a buffer
+	 */
 	@Override
 	public ImagePalette getSourceFormat() {
-		return null;
+		return this.stage == 0 ? null : X264.unmapPalette(this.csp);
 	}
 	
 	@Override
 	public int estimateSourceLength() {
-		// TODO Auto-generated method stub
-		return -1;
+		if (this.stage == 0)
+			return -1;
+		//Chroma is subsampled horizontally, and vertically too unless 4:2:2
+		if (this.csp == X264.CSP_I422 || this.csp == X264.CSP_NV16)
+			return this.width * this.height * 2;
+		return this.width * this.height * 3 / 2;
 	}
 	
 	@Override
@@ -127,15 +292,24 @@ public class H264Encoder implements VideoFrameTransformer {
 		return getSourceHeight();
 	}
 	
+	/**
+	 * Get the size of a buffer large enough for most frames: twice that of a
+	 * picture, as an intra frame of noise can be larger than the picture
+	 */
 	@Override
 	public int estimateDestinationLength() {
-		// TODO Auto-generated method stub
-		return -1;
+		return this.stage == 0 ? this.buffer.capacity() : 2 * estimateSourceLength();
 	}
 	
 	@Override
 	public long getPointer() {
-		//Even though we have a pointer, it's not to a v4lconvert_encoder
-		return 0;
+		return this.stage;
+	}
+	
+	@Override
+	public void close() {
+		if (this.stage != 0)
+			doReleaseStage(this.stage);
+		doClose(this.object);
 	}
 }
@@ -0,0 +1,176 @@
+package au.edu.jcu.v4l4j.encoder.h264;
+
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.FrameGrabber;
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.exceptions.StateException;
+
+/**
+ * An {@link H264Picture} whose planes are those of a captured frame, which
+ * x264 reads in place instead of from a copy. For instance, pictures from a
+ * {@link au.edu.jcu.v4l4j.YUVFrameGrabber YUVFrameGrabber} are encoded with:
+ *
+ * <pre>
+ * try (H264FramePicture picture = new H264FramePicture(width, height, X264.CSP_I420)) {
+ * 	//in the frame grabber's callback
+ * 	picture.setFrame(frame);
+ * 	encoder.encode(picture, out);
+ * 	//frame has been recycled
+ * }
+ * </pre>
+ *
+ * The picture holds on to the frame it was given, which must not be recycled
+ * until x264 has copied it into its own lookahead:
+ * {@link H264Encoder#encode(H264Picture, ByteBuffer)} recycles it as soon as
+ * <code>x264_encoder_encode()</code> returns, and the picture is then ready
+ * for the next frame. A frame that is not encoded after all is given back
+ * with {@link #recycle()}.
+ * <p>
+ * Planes are expected one after the other without padding, as V4L2 lays them
+ * out, in one of the colorspaces I420, YV12, I422, YV16, NV12, NV21, NV16,
+ * BGR, BGRA or RGB.
+ */
+public class H264FramePicture extends H264Picture {
+	private static native long doWrap(int csp, int width, int height);
+
+	/**
+	 * Point the planes of a picture at a buffer, from its position, or at
+	 * nothing if <code>buffer</code> is null
+	 */
+	private static native void doSetPlanes(long ptr, int width, int height, ByteBuffer buffer);
+
+	private static native void doRelease(long ptr);
+
+	/**
+	 * Frame the planes belong to, if it is to be recycled once encoded
+	 */
+	protected VideoFrame frame;
+	/**
+	 * Buffer the planes point at, kept so that it isn't collected while x264
+	 * may read it
+	 */
+	protected ByteBuffer buffer;
+	protected long sequenceNumber = 0;
+	protected long captureTime = 0;
+
+	/**
+	 * Create a picture without planes
+	 *
+	 * @param width
+	 *            width of the frames
+	 * @param height
+	 *            height of the frames
+	 * @param csp
+	 *            colorspace of the frames
+	 * @throws IllegalArgumentException
+	 *             if frames of this colorspace can't be read in place
+	 */
+	public H264FramePicture(int width, int height, int csp) {
+		super(doWrap(csp, width, height), width, height, csp);
+	}
+
+	/**
+	 * Point this picture's planes at a frame, which is recycled once encoded.
+	 * The frame's sequence number and capture time are kept until the next
+	 * one.
+	 *
+	 * @param frame
+	 *            frame of this picture's size and colorspace
+	 * @throws StateException
+	 *             if this picture still holds the last frame
+	 * @throws au.edu.jcu.v4l4j.exceptions.BufferUnderflowException
+	 *             if the frame is too small
+	 */
+	public void setFrame(VideoFrame frame) {
+		setBuffer(frame.getBuffer());
+		this.frame = frame;
+		this.sequenceNumber = frame.getSequenceNumber();
+		this.captureTime = frame.getCaptureTime();
+	}
+
+	/**
+	 * Point this picture's planes at a buffer, from its position. The buffer
+	 * is not recycled, but must not change until the picture has been
+	 * encoded.
+	 *
+	 * @param buffer
+	 *            direct buffer holding a frame of this picture's size and
+	 *            colorspace
+	 * @throws StateException
+	 *             if this picture still holds the last frame
+	 * @throws au.edu.jcu.v4l4j.exceptions.BufferUnderflowException
+	 *             if the buffer is too small
+	 * @throws IllegalArgumentException
+	 *             if the buffer is not direct
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		if (this.buffer != null)
+			throw new StateException("The last frame has not been encoded or recycled");
+		doSetPlanes(this.object, this.width, this.height, buffer);
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Whether this picture's planes point at a frame
+	 *
+	 * @return whether there is a frame to encode
+	 */
+	public boolean hasFrame() {
+		return this.buffer != null;
+	}
+
+	@Override
+	void encoded() {
+		recycle();
+	}
+
+	/**
+	 * Detach this picture from its frame, and recycle the frame if it was set
+	 * with {@link #setFrame(VideoFrame)}. Called by
+	 * {@link H264Encoder#encode(H264Picture, ByteBuffer)} once x264 is done
+	 * with the frame.
+	 */
+	@Override
+	public void recycle() {
+		if (this.buffer == null)
+			return;
+		doSetPlanes(this.object, this.width, this.height, null);
+		this.buffer = null;
+		VideoFrame frame = this.frame;
+		this.frame = null;
+		if (frame != null)
+			frame.recycle();
+	}
+
+	@Override
+	public FrameGrabber getFrameGrabber() {
+		return this.frame == null ? null : this.frame.getFrameGrabber();
+	}
+
+	@Override
+	public int getFrameLength() {
+		return this.buffer == null ? 0 : this.buffer.remaining();
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		return this.buffer == null ? null : this.buffer.asReadOnlyBuffer();
+	}
+
+	@Override
+	public long getSequenceNumber() {
+		return this.sequenceNumber;
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return this.captureTime;
+	}
+
+	@Override
+	public void close() {
+		recycle();
+		doRelease(this.object);
+	}
+}
@@ -124,6 +124,13 @@ public class H264Picture implements Closeable, VideoFrame {
 			throw new IllegalArgumentException("PTS must be positive (was " + pts + ")");
 		doSetAndGetPts(this.object, pts);
 	}
+	
+	/**
+	 * Called once x264 has copied this picture, or failed to
+	 */
+	void encoded() {
+		//Nothing to give back, as the planes are ours
+	}
 
 	@Override
 	public FrameGrabber getFrameGrabber() {
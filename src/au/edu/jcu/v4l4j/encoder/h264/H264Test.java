@@ -1,14 +1,92 @@
 package au.edu.jcu.v4l4j.encoder.h264;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
 import au.edu.jcu.v4l4j.ImageFormat;
+import au.edu.jcu.v4l4j.FrameGrabber;
 import au.edu.jcu.v4l4j.ImagePalette;
 import au.edu.jcu.v4l4j.VideoDevice;
+import au.edu.jcu.v4l4j.VideoFrame;
+import au.edu.jcu.v4l4j.encoder.ImageFormatConverter;
+import au.edu.jcu.v4l4j.encoder.VideoFrameEncoderSeries;
+import au.edu.jcu.v4l4j.exceptions.BufferUnderflowException;
+import au.edu.jcu.v4l4j.exceptions.StateException;
 
 public class H264Test {
+	
+	/**
+	 * A grey frame, as a capture would hand out
+	 */
+	private static class TestFrame implements VideoFrame {
+		final ByteBuffer buffer;
+		final long sequenceNumber;
+		volatile boolean recycled = false;
+		
+		TestFrame(int size, long sequenceNumber) {
+			this.buffer = ByteBuffer.allocateDirect(size);
+			while (this.buffer.hasRemaining())
+				this.buffer.put((byte) 0x80);
+			this.buffer.flip();
+			this.sequenceNumber = sequenceNumber;
+		}
+		
+		@Override
+		public FrameGrabber getFrameGrabber() {
+			return null;
+		}
+		
+		@Override
+		public int getFrameLength() {
+			return this.buffer.remaining();
+		}
+		
+		@Override
+		public long getSequenceNumber() {
+			return this.sequenceNumber;
+		}
+		
+		@Override
+		public long getCaptureTime() {
+			return this.sequenceNumber * 40000;
+		}
+		
+		@Override
+		public ByteBuffer getBuffer() {
+			return this.buffer.asReadOnlyBuffer();
+		}
+		
+		@Override
+		public DataBuffer getDataBuffer() {
+			return null;
+		}
+		
+		@Override
+		public Raster getRaster() {
+			return null;
+		}
+		
+		@Override
+		public BufferedImage getBufferedImage() {
+			return null;
+		}
+		
+		@Override
+		public void recycle() {
+			this.recycled = true;
+		}
+	}
 
 	@Test
 	public void testPicture() {
@@ -62,4 +140,168 @@ public class H264Test {
 			device.release(false);
 		}
 	}
+	
+	@Test
+	public void testSeries() throws Exception {
+		int width = 320;
+		int height = 240;
+		try (H264Encoder encoder = new H264Encoder(width, height, X264.CSP_NV12);
+				ImageFormatConverter converter = new ImageFormatConverter(ImagePalette.YUYV, ImagePalette.NV12, width, height);
+				VideoFrameEncoderSeries series = new VideoFrameEncoderSeries(converter, encoder)) {
+			assertEquals(ImagePalette.NV12, encoder.getSourceFormat());
+			assertEquals(width * height * 3 / 2, encoder.estimateSourceLength());
+			assertTrue(encoder.getPointer() != 0);
+			
+			//Grey YUYV frames
+			ByteBuffer src = ByteBuffer.allocateDirect(width * height * 2);
+			while (src.hasRemaining())
+				src.put((byte) 0x80);
+			src.flip();
+			ByteBuffer dst = ByteBuffer.allocateDirect(series.estimateDestinationLength());
+			for (int i = 0; i < 3; i++) {
+				int length = series.apply(src, dst);
+				assertTrue(length > 0);
+				assertEquals(length, dst.limit());
+				//Annex B, starting with the repeated SPS
+				assertEquals(0, dst.get(0));
+				assertEquals(0, dst.get(1));
+				assertEquals(0, dst.get(2));
+				assertEquals(1, dst.get(3));
+				if (i == 0)
+					assertEquals(7, dst.get(4) & 0x1F);
+			}
+		}
+	}
+	
+	@Test
+	public void testFramePicture() throws Exception {
+		int width = 320;
+		int height = 240;
+		try (H264Encoder encoder = new H264Encoder(width, height, X264.CSP_I420);
+				H264FramePicture picture = new H264FramePicture(width, height, X264.CSP_I420)) {
+			ByteBuffer frame = ByteBuffer.allocateDirect(width * height * 3 / 2);
+			while (frame.hasRemaining())
+				frame.put((byte) 0x80);
+			frame.flip();
+			ByteBuffer out = ByteBuffer.allocateDirect(encoder.estimateDestinationLength());
+			
+			try {
+				encoder.encode(picture, out);
+				fail("Encoded a picture without a frame");
+			} catch (StateException e) {
+				//Expected
+			}
+			try {
+				picture.setBuffer((ByteBuffer) frame.duplicate().limit(frame.limit() - 1));
+				fail("Took a frame that was too small");
+			} catch (BufferUnderflowException e) {
+				assertFalse(picture.hasFrame());
+			}
+			
+			picture.setBuffer(frame);
+			assertTrue(picture.hasFrame());
+			try {
+				picture.setBuffer(frame);
+				fail("Replaced a frame that was not encoded");
+			} catch (StateException e) {
+				//Expected
+			}
+			assertTrue(encoder.encode(picture, out) > 0);
+			//Ready for the next frame
+			assertFalse(picture.hasFrame());
+			picture.setBuffer(frame);
+			assertTrue(encoder.encode(picture, out) > 0);
+		}
+	}
+	
+	@Test
+	public void testAsyncEncoder() throws Exception {
+		int width = 320;
+		int height = 240;
+		final List<long[]> received = new ArrayList<>();
+		final List<Exception> exceptions = new ArrayList<>();
+		H264AsyncEncoder.AccessUnitCallback callback = new H264AsyncEncoder.AccessUnitCallback() {
+			@Override
+			public void accessUnitReceived(ByteBuffer accessUnit, long sequenceNumber, long captureTime, boolean keyframe) {
+				assertTrue(accessUnit.remaining() > 0);
+				received.add(new long[] { sequenceNumber, captureTime, keyframe ? 1 : 0 });
+			}
+			
+			@Override
+			public void exceptionReceived(Exception e) {
+				exceptions.add(e);
+			}
+		};
+		
+		H264AsyncEncoder encoder;
+		try (H264Parameters params = new H264Parameters()) {
+			//Lookahead and frame threads, so that frames come out late
+			params.initWithPreset(X264.Preset.VERY_FAST, X264.Tune.FILM);
+			params.setCsp(X264.CSP_I420);
+			params.setInputDimension(width, height);
+			params.setThreads(2);
+			params.setAnnexb(true);
+			params.setRepeatHeaders(true);
+			encoder = new H264AsyncEncoder(params, 16, callback);
+		}
+		List<TestFrame> frames = new ArrayList<>();
+		try {
+			for (int i = 0; i < 10; i++) {
+				TestFrame frame = new TestFrame(width * height * 3 / 2, 100 + i);
+				frames.add(frame);
+				assertTrue(encoder.submit(frame));
+			}
+			encoder.flush();
+			assertFalse("Took a frame after a flush", encoder.submit(new TestFrame(1, 0)));
+		} finally {
+			encoder.close();
+		}
+		
+		assertTrue(exceptions.isEmpty());
+		assertEquals(frames.size(), encoder.getEncodedFrames());
+		assertEquals(frames.size(), received.size());
+		assertEquals(1, received.get(0)[2]);
+		//Each frame once, with its own capture time
+		boolean[] seen = new boolean[frames.size()];
+		for (long[] accessUnit : received) {
+			int index = (int) (accessUnit[0] - 100);
+			assertFalse(seen[index]);
+			seen[index] = true;
+			assertEquals(accessUnit[0] * 40000, accessUnit[1]);
+		}
+		for (TestFrame frame : frames)
+			assertTrue(frame.recycled);
+	}
+	
+	@Test(timeout = 60000)
+	public void testAsyncFlushWhileClosing() throws Exception {
+		H264AsyncEncoder.AccessUnitCallback callback = new H264AsyncEncoder.AccessUnitCallback() {
+			@Override
+			public void accessUnitReceived(ByteBuffer accessUnit, long sequenceNumber, long captureTime, boolean keyframe) {
+			}
+			
+			@Override
+			public void exceptionReceived(Exception e) {
+			}
+		};
+		for (int i = 0; i < 50; i++) {
+			final H264AsyncEncoder encoder;
+			try (H264Parameters params = new H264Parameters()) {
+				params.initWithPreset(X264.Preset.ULTRA_FAST, X264.Tune.ZERO_LATENCY);
+				params.setCsp(X264.CSP_I420);
+				params.setInputDimension(32, 32);
+				encoder = new H264AsyncEncoder(params, 1, callback);
+			}
+			Thread closer = new Thread(encoder::close);
+			closer.start();
+			try {
+				//Returns, whether the latch is queued before or after close()
+				encoder.flush();
+			} catch (StateException e) {
+				//Closed first
+			}
+			closer.join();
+		}
+	}
 }
+
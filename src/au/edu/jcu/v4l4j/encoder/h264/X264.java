@@ -63,6 +63,12 @@ public class X264 {
 	public static final int CSP_MAX = 0x000e;
 	public static int mapPalette(ImagePalette palette) {
 		switch (palette) {
+			case YUV420:
+				return CSP_I420;
+			case YVU420:
+				return CSP_YV12;
+			case YUV422P:
+				return CSP_I422;
 			case NV12:
 				return CSP_NV12;
 			case NV21:
@@ -81,6 +87,12 @@ public class X264 {
 	}
 	public static ImagePalette unmapPalette(int csp) {
 		switch (csp) {
+			case CSP_I420:
+				return ImagePalette.YUV420;
+			case CSP_YV12:
+				return ImagePalette.YVU420;
+			case CSP_I422:
+				return ImagePalette.YUV422P;
 			case CSP_NV12:
 				return ImagePalette.NV12;
 			case CSP_NV21:
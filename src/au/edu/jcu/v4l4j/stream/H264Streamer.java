@@ -1,94 +1,457 @@
 package au.edu.jcu.v4l4j.stream;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import au.edu.jcu.v4l4j.exceptions.BufferOverflowException;
+import au.edu.jcu.v4l4j.exceptions.StateException;
 
-public class H264Streamer implements Runnable {
+/**
+ * Streams H.264 video over RTP, as described by RFC 6184, to any number of
+ * unicast or multicast destinations.
+ * <p>
+ * Access units written by an
+ * {@link au.edu.jcu.v4l4j.encoder.h264.H264Encoder H264Encoder} (with
+ * <code>annexb</code> set) are passed to {@link #sendFrame(ByteBuffer)}, which
+ * splits them into packets with an {@link RTPPacketizer}, and sends each one
+ * to every destination from a single preallocated buffer. Where the native
+ * library is available, the packets of a frame are queued in a
+ * {@link UDPBatchSender} and sent to all destinations with a few
+ * <code>sendmmsg()</code> calls, instead of one system call per packet and
+ * destination.
+ * <p>
+ * Once {@link #start() started}, RTCP sender reports are sent every
+ * {@value #RTCP_INTERVAL_MS} ms to the port after each destination's RTP port,
+ * so receivers can synchronise the stream to wall clock time.
+ * <p>
+ * Frames must be sent from one thread at a time. Destinations can be added
+ * and removed from any thread, at any time.
+ */
+public class H264Streamer implements AutoCloseable {
 	public static final short RTP_PORT = 18888;
 	public static final short RTPC_PORT = RTP_PORT + 1;
 	public static final short ttl = 255;
+	/**
+	 * Time between two RTCP sender reports, the minimum RFC 3550 recommends
+	 */
+	public static final int RTCP_INTERVAL_MS = 5000;
+	/**
+	 * Largest number of packets sent to each destination in one batch
+	 */
+	public static final int BATCH_PACKETS = 128;
 
-	String url;
-	int port;
-	ExecutorService executor = Executors.newCachedThreadPool();
-	ByteBuffer imageBuffer = ByteBuffer.allocateDirect(1 * 1024 * 1024);
+	/**
+	 * Sends RTP packets one at a time, if they are not sent in batches
+	 */
+	protected final DatagramChannel rtpChannel;
+	/**
+	 * Sends RTP packets in batches, if the native library is available
+	 */
+	protected final UDPBatchSender batchSender;
+	protected final DatagramChannel rtcpChannel;
+	protected final RTPPacketizer packetizer;
+	protected final RTCPInstance rtcp;
+	/**
+	 * RTP destinations, replaced rather than modified so that sending a packet
+	 * can go through them without locking or allocating
+	 */
+	protected volatile InetSocketAddress[] destinations = new InetSocketAddress[0];
+	private final RTPPacketizer.PacketSink sink;
+	/**
+	 * RTP timestamp of the first frame, random as RFC 3550 requires
+	 */
+	private final int timestampOffset;
+	private final long startNanos = System.nanoTime();
+	/**
+	 * RTP timestamp of the last frame sent and when it was sent, for sender
+	 * reports
+	 */
+	private int lastTimestamp;
+	private long lastTimestampNanos = startNanos;
+	private final Object timestampLock = new Object();
+	/**
+	 * Held while a frame is sent, and while the RTP socket is closed, so that
+	 * {@link #close()} does not free the batch sender under a frame
+	 */
+	private final Object sendLock = new Object();
+	private boolean sendClosed = false;
+	private ScheduledExecutorService rtcpExecutor;
+	private boolean closed = false;
 
-	public H264Streamer(String url, int port) {
-		this.url = url;
-		this.port = port;
+	/**
+	 * Create a streamer with no destination, sending packets of at most
+	 * {@value RTPPacketizer#DEFAULT_MAX_PACKET_SIZE} bytes with payload type
+	 * {@value RTPPacketizer#DEFAULT_PAYLOAD_TYPE}
+	 *
+	 * @throws IOException
+	 *             if the sockets could not be opened
+	 */
+	public H264Streamer() throws IOException {
+		this(RTPPacketizer.DEFAULT_MAX_PACKET_SIZE, RTPPacketizer.DEFAULT_PAYLOAD_TYPE);
 	}
 
-	public void start() {
+	/**
+	 * Create a streamer sending to a single unicast or multicast destination
+	 *
+	 * @param host
+	 *            name or address of the destination
+	 * @param port
+	 *            RTP port of the destination. RTCP reports are sent to the
+	 *            next port.
+	 * @throws IOException
+	 *             if the sockets could not be opened
+	 */
+	public H264Streamer(String host, int port) throws IOException {
+		this();
+		addDestination(new InetSocketAddress(host, port));
+	}
+
+	/**
+	 * Create a streamer with no destination
+	 *
+	 * @param maxPacketSize
+	 *            maximum size of an RTP packet, header included. This should
+	 *            leave room for IP and UDP headers in the path MTU.
+	 * @param payloadType
+	 *            RTP payload type, between 96 and 127 for the dynamic type
+	 *            announced to receivers
+	 * @throws IOException
+	 *             if the sockets could not be opened
+	 */
+	public H264Streamer(int maxPacketSize, int payloadType) throws IOException {
+		this(maxPacketSize, payloadType, UDPBatchSender.isAvailable());
+	}
+
+	/**
+	 * Create a streamer with no destination
+	 *
+	 * @param maxPacketSize
+	 *            maximum size of an RTP packet, header included. This should
+	 *            leave room for IP and UDP headers in the path MTU.
+	 * @param payloadType
+	 *            RTP payload type, between 96 and 127 for the dynamic type
+	 *            announced to receivers
+	 * @param batched
+	 *            whether to send the packets of each frame in batches with a
+	 *            {@link UDPBatchSender}, rather than one at a time through a
+	 *            {@link DatagramChannel}
+	 * @throws IOException
+	 *             if the sockets could not be opened
+	 * @throws UnsupportedOperationException
+	 *             if <code>batched</code> is true but the native library is not
+	 *             {@link UDPBatchSender#isAvailable() available}
+	 */
+	public H264Streamer(int maxPacketSize, int payloadType, boolean batched) throws IOException {
+		Random random = new SecureRandom();
+		this.packetizer = new RTPPacketizer(random.nextInt(), payloadType, maxPacketSize, random.nextInt(0x10000));
+		this.timestampOffset = random.nextInt();
+		this.lastTimestamp = this.timestampOffset;
+		DatagramChannel rtpChannel = null, rtcpChannel = null;
+		UDPBatchSender batchSender = null;
+		try {
+			if (batched)
+				batchSender = new UDPBatchSender(BATCH_PACKETS, maxPacketSize);
+			else
+				rtpChannel = DatagramChannel.open().bind(null);
+			rtcpChannel = DatagramChannel.open().bind(null);
+		} catch (IOException e) {
+			if (batchSender != null)
+				batchSender.close();
+			if (rtpChannel != null)
+				rtpChannel.close();
+			throw e;
+		}
+		this.rtpChannel = rtpChannel;
+		this.batchSender = batchSender;
+		this.rtcpChannel = rtcpChannel;
+		this.sink = batched ? this::queue : this::sendToAll;
 		try {
-			// TODO add portability
-			Runtime.getRuntime().exec("sudo ip route add 224.0.0.0/4 dev eth0").waitFor();
-		} catch (InterruptedException | IOException e) {
-			e.printStackTrace();
+			setMulticastTTL(ttl);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		this.rtcp = new RTCPInstance(this);
+	}
+
+	/**
+	 * Add a destination to send the stream to
+	 *
+	 * @param destination
+	 *            unicast or multicast address and RTP port of the destination.
+	 *            RTCP reports are sent to the next port.
+	 */
+	public synchronized void addDestination(InetSocketAddress destination) {
+		if (destination.isUnresolved())
+			throw new IllegalArgumentException("Unresolved destination " + destination);
+		InetSocketAddress[] destinations = this.destinations;
+		if (Arrays.asList(destinations).contains(destination))
 			return;
+		destinations = Arrays.copyOf(destinations, destinations.length + 1);
+		destinations[destinations.length - 1] = destination;
+		this.destinations = destinations;
+	}
+
+	/**
+	 * Stop sending the stream to a destination
+	 *
+	 * @param destination
+	 *            destination to remove
+	 * @return whether the destination was removed
+	 */
+	public synchronized boolean removeDestination(InetSocketAddress destination) {
+		InetSocketAddress[] destinations = this.destinations;
+		int index = Arrays.asList(destinations).indexOf(destination);
+		if (index < 0)
+			return false;
+		InetSocketAddress[] result = new InetSocketAddress[destinations.length - 1];
+		System.arraycopy(destinations, 0, result, 0, index);
+		System.arraycopy(destinations, index + 1, result, index, result.length - index);
+		this.destinations = result;
+		return true;
+	}
+
+	/**
+	 * Get the destinations the stream is sent to
+	 *
+	 * @return a copy of the destinations
+	 */
+	public InetSocketAddress[] getDestinations() {
+		return this.destinations.clone();
+	}
+
+	/**
+	 * Set the time to live of packets sent to multicast destinations, which
+	 * is {@value #ttl} by default
+	 *
+	 * @param ttl
+	 *            the time to live, between 0 and 255
+	 * @throws IOException
+	 *             if the option could not be set
+	 */
+	public void setMulticastTTL(int ttl) throws IOException {
+		if (ttl < 0 || ttl > 255)
+			throw new IllegalArgumentException("Illegal TTL (" + ttl + "; expected between 0 and 255)");
+		if (this.batchSender != null)
+			this.batchSender.setMulticastTTL(ttl);
+		else
+			this.rtpChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+		this.rtcpChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+	}
+
+	/**
+	 * Set the network interface packets to multicast destinations are sent
+	 * through, instead of the one the routing table picks
+	 *
+	 * @param networkInterface
+	 *            the interface
+	 * @throws IOException
+	 *             if the option could not be set
+	 */
+	public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+		if (this.batchSender != null)
+			this.batchSender.setMulticastInterface(networkInterface);
+		else
+			this.rtpChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		this.rtcpChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+	}
+
+	/**
+	 * Start sending RTCP sender reports. Frames can be sent before the
+	 * streamer is started, but receivers can then not synchronise them to
+	 * wall clock time.
+	 *
+	 * @throws StateException
+	 *             if the streamer is closed or already started
+	 */
+	public synchronized void start() {
+		if (this.closed)
+			throw new StateException("This streamer is closed");
+		if (this.rtcpExecutor != null)
+			throw new StateException("This streamer is already started");
+		this.rtcpExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = Executors.defaultThreadFactory().newThread(r);
+			thread.setName("RTCP " + Integer.toHexString(this.packetizer.getSsrc()));
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.rtcpExecutor.scheduleAtFixedRate(this.rtcp, 0, RTCP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send an access unit, timestamped with the time elapsed since this
+	 * streamer was created
+	 *
+	 * @param accessUnit
+	 *            the encoded frame, as an Annex B byte stream between its
+	 *            position and limit. Its position is left unchanged.
+	 * @return the number of RTP packets sent to each destination
+	 * @throws IOException
+	 *             if a packet could not be sent
+	 * @throws StateException
+	 *             if the streamer is closed
+	 */
+	public int sendFrame(ByteBuffer accessUnit) throws IOException {
+		long now = System.nanoTime();
+		return sendFrame(accessUnit, this.timestampOffset + toTimestamp(now - this.startNanos), now);
+	}
+
+	/**
+	 * Send an access unit with the given RTP timestamp
+	 *
+	 * @param accessUnit
+	 *            the encoded frame, as an Annex B byte stream between its
+	 *            position and limit. Its position is left unchanged.
+	 * @param timestamp
+	 *            RTP timestamp of the frame, in units of
+	 *            {@value RTPPacketizer#CLOCK_RATE} Hz, which should be the
+	 *            time it was captured
+	 * @return the number of RTP packets sent to each destination
+	 * @throws IOException
+	 *             if a packet could not be sent
+	 * @throws StateException
+	 *             if the streamer is closed
+	 */
+	public int sendFrame(ByteBuffer accessUnit, int timestamp) throws IOException {
+		return sendFrame(accessUnit, timestamp, System.nanoTime());
+	}
+
+	private int sendFrame(ByteBuffer accessUnit, int timestamp, long now) throws IOException {
+		synchronized (this.timestampLock) {
+			this.lastTimestamp = timestamp;
+			this.lastTimestampNanos = now;
 		}
-		executor.submit(this);
-	}
-
-	ImageStartCodeType getH264ImageType(ByteBuffer buffer) {
-		if (buffer.limit() < 5)
-			return ImageStartCodeType.NONE;
-
-		byte[] tmp = new byte[5];
-		buffer.get(tmp, 0, 5);
-
-		if (tmp[0] == 0x00 && tmp[1] == 0x00 && tmp[2] == 0x00 && tmp[3] == 0x01) {
-			switch (tmp[4]) {
-			case 0x27:
-				return ImageStartCodeType.SPS;
-			case 0x28:
-				return ImageStartCodeType.PPS;
-			case 0x25:
-				return ImageStartCodeType.I;
-			case 0x21:
-				return ImageStartCodeType.P;
-			}
+		synchronized (this.sendLock) {
+			if (this.sendClosed)
+				throw new StateException("This streamer is closed");
+			int packets = this.packetizer.packetize(accessUnit, timestamp, this.sink);
+			if (this.batchSender != null)
+				this.batchSender.flush(this.destinations);
+			return packets;
 		}
-		return ImageStartCodeType.NONE;
-	}
-
-	public void feedStreamerAndRecordingManager(ByteBuffer buffer) {
-		final int imageBufferCapacity = imageBuffer.capacity();
-		int imageBufferSize = imageBuffer.limit();
-		if (getH264ImageType(buffer) != ImageStartCodeType.NONE) {
-			// Image start
-			// Image Start
-			if (imageBufferSize > 0) { // New image comes, Send last image
-//				LiveVideoSource.feedStreamer(imageBuffer, imageBufferSize);
-				imageBuffer.limit(imageBufferSize = 0);
-//				CaptureDone();
-//				WaitStreamingDone();
-			}
-		} else {
-			// Image fragment
+	}
+
+	private void queue(ByteBuffer packet) throws IOException {
+		if (!this.batchSender.add(packet)) {
+			this.batchSender.flush(this.destinations);
+			this.batchSender.add(packet);
 		}
+	}
+
+	private void sendToAll(ByteBuffer packet) throws IOException {
+		final int position = packet.position();
+		for (InetSocketAddress destination : this.destinations) {
+			packet.position(position);
+			this.rtpChannel.send(packet, destination);
+		}
+	}
 
-		if (imageBufferCapacity >= imageBufferSize + buffer.limit()) {
-			imageBuffer.put(buffer);
-		} else {
-			throw new BufferOverflowException();
+	static int toTimestamp(long nanos) {
+		return (int) (nanos * (RTPPacketizer.CLOCK_RATE / 1000) / 1000000L);
+	}
+
+	/**
+	 * Get the RTP timestamp of the current time, extrapolated from the last
+	 * frame sent
+	 */
+	int getCurrentTimestamp() {
+		long now = System.nanoTime();
+		synchronized (this.timestampLock) {
+			return this.lastTimestamp + toTimestamp(now - this.lastTimestampNanos);
 		}
 	}
 
+	RTPPacketizer getPacketizer() {
+		return this.packetizer;
+	}
+
+	DatagramChannel getRTCPChannel() {
+		return this.rtcpChannel;
+	}
+
+	/**
+	 * Get the synchronization source identifier of the stream, which
+	 * receivers use to tell it from others
+	 *
+	 * @return the SSRC
+	 */
+	public int getSsrc() {
+		return this.packetizer.getSsrc();
+	}
+
+	/**
+	 * Get the local RTP address packets are sent from
+	 *
+	 * @return the address
+	 * @throws IOException
+	 *             if the streamer is closed
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		if (this.batchSender != null)
+			return new InetSocketAddress(this.batchSender.getLocalPort());
+		return (InetSocketAddress) this.rtpChannel.getLocalAddress();
+	}
+
+	/**
+	 * Whether the packets of each frame are sent in batches
+	 *
+	 * @return whether they are
+	 */
+	public boolean isBatched() {
+		return this.batchSender != null;
+	}
+
+	/**
+	 * Get the number of RTP packets sent so far, to each destination
+	 *
+	 * @return the number of packets
+	 */
+	public long getPacketCount() {
+		return this.packetizer.getPacketCount();
+	}
+
+	/**
+	 * Stop sending RTCP reports, send an RTCP BYE packet to each destination,
+	 * and close the sockets
+	 */
 	@Override
-	public void run() {
-		try (DatagramSocket rtpSocket = new DatagramSocket(RTP_PORT);
-				DatagramSocket rtpcSocket = new DatagramSocket(RTPC_PORT)) {
-			rtpSocket.setSendBufferSize(16 * 1024 * 1024);//16MB
-			InetAddress localhost = InetAddress.getLocalHost();
-			
-		} catch (IOException e) {
-			e.printStackTrace();
+	public synchronized void close() throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.rtcpExecutor != null) {
+			this.rtcpExecutor.shutdownNow();
+			try {
+				this.rtcpExecutor.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (this.rtcp != null)
+				this.rtcp.sendBye();
+		} finally {
+			try {
+				//Waits for the frame being sent, if any
+				synchronized (this.sendLock) {
+					this.sendClosed = true;
+					if (this.batchSender != null)
+						this.batchSender.close();
+					else
+						this.rtpChannel.close();
+				}
+			} finally {
+				this.rtcpChannel.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,379 @@
+package au.edu.jcu.v4l4j.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.edu.jcu.v4l4j.exceptions.StateException;
+
+public class H264StreamerTest {
+	private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+	/**
+	 * Reassembles the Annex B access units of an RTP stream sent in
+	 * non-interleaved mode, checking each packet on the way
+	 */
+	static class Depacketizer {
+		final ByteArrayOutputStream accessUnit = new ByteArrayOutputStream();
+		final List<byte[]> accessUnits = new ArrayList<>();
+		final List<Integer> timestamps = new ArrayList<>();
+		int ssrc;
+		int payloadType = -1;
+		int nextSequence = -1;
+		int timestamp;
+		boolean inFragment = false;
+		int packets = 0;
+
+		void receive(byte[] packet, int length) {
+			assertTrue("Packet too short", length > RTPPacketizer.RTP_HEADER_SIZE);
+			ByteBuffer buffer = ByteBuffer.wrap(packet, 0, length);
+			assertEquals("RTP version", 0x80, buffer.get() & 0xFF);
+			int second = buffer.get() & 0xFF;
+			boolean marker = (second & 0x80) != 0;
+			int sequence = buffer.getShort() & 0xFFFF;
+			int timestamp = buffer.getInt();
+			int ssrc = buffer.getInt();
+			if (this.payloadType < 0) {
+				this.payloadType = second & 0x7F;
+				this.ssrc = ssrc;
+			} else {
+				assertEquals("Payload type", this.payloadType, second & 0x7F);
+				assertEquals("SSRC", this.ssrc, ssrc);
+				assertEquals("Sequence number", this.nextSequence, sequence);
+			}
+			if (this.accessUnit.size() > 0)
+				assertEquals("Timestamp changed within an access unit", this.timestamp, timestamp);
+			this.timestamp = timestamp;
+			this.nextSequence = (sequence + 1) & 0xFFFF;
+			this.packets++;
+
+			int header = buffer.get() & 0xFF;
+			int type = header & RTPPacketizer.NAL_TYPE_MASK;
+			if (type == RTPPacketizer.NAL_STAP_A) {
+				assertFalse(this.inFragment);
+				int nals = 0;
+				while (buffer.hasRemaining()) {
+					int size = buffer.getShort() & 0xFFFF;
+					assertTrue("Empty or truncated STAP-A unit", size > 0 && size <= buffer.remaining());
+					int nalHeader = buffer.get(buffer.position()) & 0xFF;
+					assertTrue("STAP-A NRI lower than a unit's", (header & 0x60) >= (nalHeader & 0x60));
+					this.accessUnit.write(START_CODE, 0, 4);
+					this.accessUnit.write(packet, buffer.position(), size);
+					buffer.position(buffer.position() + size);
+					nals++;
+				}
+				assertTrue("STAP-A with a single unit", nals > 1);
+			} else if (type == RTPPacketizer.NAL_FU_A) {
+				int fuHeader = buffer.get() & 0xFF;
+				boolean start = (fuHeader & 0x80) != 0, end = (fuHeader & 0x40) != 0;
+				assertFalse("Start and end bits both set", start && end);
+				assertEquals("Missing fragment", !start, this.inFragment);
+				if (start) {
+					this.accessUnit.write(START_CODE, 0, 4);
+					this.accessUnit.write((header & 0xE0) | (fuHeader & RTPPacketizer.NAL_TYPE_MASK));
+				}
+				this.accessUnit.write(packet, buffer.position(), buffer.remaining());
+				this.inFragment = !end;
+			} else {
+				assertTrue("Unexpected NAL unit type " + type, type > 0 && type < 24);
+				assertFalse(this.inFragment);
+				this.accessUnit.write(START_CODE, 0, 4);
+				this.accessUnit.write(packet, RTPPacketizer.RTP_HEADER_SIZE, length - RTPPacketizer.RTP_HEADER_SIZE);
+			}
+			if (marker) {
+				assertFalse("Marker in the middle of a NAL unit", this.inFragment);
+				this.accessUnits.add(this.accessUnit.toByteArray());
+				this.timestamps.add(timestamp);
+				this.accessUnit.reset();
+			}
+		}
+	}
+
+	private static byte[] nal(int header, int length, Random random) {
+		byte[] nal = new byte[length];
+		random.nextBytes(nal);
+		nal[0] = (byte) header;
+		for (int i = 1; i < length; i++)
+			//No start code emulation
+			if (nal[i] == 0 || nal[i] == 1)
+				nal[i] = 2;
+		return nal;
+	}
+
+	private static byte[] accessUnit(byte[]... nals) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] nal : nals) {
+			out.write(START_CODE, 0, 4);
+			out.write(nal, 0, nal.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static ByteBuffer direct(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+		return buffer;
+	}
+
+	/**
+	 * Access units of a short stream: an IDR frame with its parameter sets,
+	 * large enough to be fragmented, then P frames of one or several slices
+	 */
+	private static List<byte[]> stream() {
+		Random random = new Random(42);
+		List<byte[]> stream = new ArrayList<>();
+		stream.add(accessUnit(nal(0x67, 12, random), nal(0x68, 4, random), nal(0x65, 20000, random)));
+		stream.add(accessUnit(nal(0x41, 300, random)));
+		stream.add(accessUnit(nal(0x41, 1388, random)));
+		stream.add(accessUnit(nal(0x41, 1389, random), nal(0x01, 50, random), nal(0x01, 3000, random)));
+		stream.add(accessUnit(nal(0x06, 8, random), nal(0x41, 1, random)));
+		return stream;
+	}
+
+	private DatagramSocket rtpReceiver;
+	private DatagramSocket rtcpReceiver;
+	private InetSocketAddress destination;
+
+	@Before
+	public void setUp() throws IOException {
+		//RTCP goes to the port after the RTP one, so find a free pair
+		for (int attempt = 0; this.rtcpReceiver == null; attempt++) {
+			this.rtpReceiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			try {
+				this.rtcpReceiver = new DatagramSocket(this.rtpReceiver.getLocalPort() + 1, InetAddress.getLoopbackAddress());
+			} catch (SocketException e) {
+				this.rtpReceiver.close();
+				if (attempt == 20)
+					throw e;
+			}
+		}
+		this.rtpReceiver.setReceiveBufferSize(4 * 1024 * 1024);
+		this.rtpReceiver.setSoTimeout(2000);
+		this.rtcpReceiver.setSoTimeout(2000);
+		this.destination = new InetSocketAddress(InetAddress.getLoopbackAddress(), this.rtpReceiver.getLocalPort());
+	}
+
+	@After
+	public void tearDown() {
+		this.rtpReceiver.close();
+		this.rtcpReceiver.close();
+	}
+
+	@Test
+	public void testPacketizer() throws IOException {
+		final int maxPacketSize = 1400;
+		RTPPacketizer packetizer = new RTPPacketizer(0x12345678, 97, maxPacketSize, 0xFFFE);
+		Depacketizer depacketizer = new Depacketizer();
+		List<Integer> packetTypes = new ArrayList<>();
+		RTPPacketizer.PacketSink sink = packet -> {
+			assertTrue(packet.remaining() <= maxPacketSize);
+			byte[] copy = new byte[packet.remaining()];
+			packet.get(copy);
+			packetTypes.add(copy[RTPPacketizer.RTP_HEADER_SIZE] & RTPPacketizer.NAL_TYPE_MASK);
+			depacketizer.receive(copy, copy.length);
+		};
+
+		List<byte[]> stream = stream();
+		int packets = 0;
+		for (int i = 0; i < stream.size(); i++) {
+			ByteBuffer accessUnit = direct(stream.get(i));
+			packets += packetizer.packetize(accessUnit, i * 3000, sink);
+			assertEquals("Access unit position moved", 0, accessUnit.position());
+		}
+
+		assertEquals(stream.size(), depacketizer.accessUnits.size());
+		for (int i = 0; i < stream.size(); i++) {
+			assertArrayEquals("Access unit " + i, stream.get(i), depacketizer.accessUnits.get(i));
+			assertEquals(i * 3000, (int) depacketizer.timestamps.get(i));
+		}
+		assertEquals(packets, depacketizer.packets);
+		assertEquals(packets, packetizer.getPacketCount());
+		assertEquals(0x12345678, depacketizer.ssrc);
+		assertEquals(97, depacketizer.payloadType);
+		//Sequence numbers wrapped around
+		assertEquals((0xFFFE + packets) & 0xFFFF, packetizer.getSequence());
+		//SPS and PPS aggregated, then the IDR slice fragmented
+		assertEquals(RTPPacketizer.NAL_STAP_A, (int) packetTypes.get(0));
+		assertEquals(RTPPacketizer.NAL_FU_A, (int) packetTypes.get(1));
+		//A slice that just fits in a packet, and one a byte too large
+		assertTrue(packetTypes.contains(1));
+		assertEquals(RTPPacketizer.NAL_FU_A, (int) packetTypes.get(packetTypes.size() - 8));
+		assertEquals(RTPPacketizer.NAL_FU_A, (int) packetTypes.get(packetTypes.size() - 7));
+		assertEquals(1, (int) packetTypes.get(packetTypes.size() - 6));
+	}
+
+	@Test
+	public void testStartCodes() throws IOException {
+		RTPPacketizer packetizer = new RTPPacketizer(1, 96, 200, 0);
+		Depacketizer depacketizer = new Depacketizer();
+		RTPPacketizer.PacketSink sink = packet -> {
+			byte[] copy = new byte[packet.remaining()];
+			packet.get(copy);
+			depacketizer.receive(copy, copy.length);
+		};
+		//Three byte start codes, trailing zeros, and a buffer with an offset
+		byte[] data = { 9, 9, 0, 0, 1, 0x09, 0x10, 0, 0, 0, 1, 0x41, 5, 6, 7, 0, 0, 1, 0x01, 8, 0, 0 };
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		buffer.position(2);
+		assertEquals(3, packetizer.packetize(buffer, 0, sink));
+		byte[] expected = accessUnit(new byte[] { 0x09, 0x10 }, new byte[] { 0x41, 5, 6, 7 }, new byte[] { 0x01, 8 });
+		assertArrayEquals(expected, depacketizer.accessUnits.get(0));
+		assertEquals(2, buffer.position());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPacketSizeTooSmall() {
+		new RTPPacketizer(1, 96, RTPPacketizer.RTP_HEADER_SIZE + 2, 0);
+	}
+
+	@Test
+	public void testLoopback() throws IOException {
+		final int maxPacketSize = 1000;
+		List<byte[]> stream = stream();
+		Depacketizer depacketizer = new Depacketizer();
+		byte[] buffer = new byte[2048];
+		DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+
+		try (H264Streamer streamer = new H264Streamer(maxPacketSize, RTPPacketizer.DEFAULT_PAYLOAD_TYPE)) {
+			streamer.addDestination(this.destination);
+			streamer.addDestination(this.destination);
+			assertEquals(1, streamer.getDestinations().length);
+
+			int packets = 0;
+			for (byte[] accessUnit : stream)
+				packets += streamer.sendFrame(direct(accessUnit));
+			for (int i = 0; i < packets; i++) {
+				this.rtpReceiver.receive(received);
+				assertTrue(received.getLength() <= maxPacketSize);
+				assertEquals(streamer.getLocalAddress().getPort(), received.getPort());
+				depacketizer.receive(buffer, received.getLength());
+			}
+
+			assertEquals(stream.size(), depacketizer.accessUnits.size());
+			for (int i = 0; i < stream.size(); i++)
+				assertArrayEquals("Access unit " + i, stream.get(i), depacketizer.accessUnits.get(i));
+			assertEquals(streamer.getSsrc(), depacketizer.ssrc);
+			assertEquals(RTPPacketizer.DEFAULT_PAYLOAD_TYPE, depacketizer.payloadType);
+			//Timestamps follow the clock
+			for (int i = 1; i < stream.size(); i++)
+				assertTrue(depacketizer.timestamps.get(i) - depacketizer.timestamps.get(i - 1) >= 0);
+
+			//The first sender report is sent when started
+			streamer.start();
+			this.rtcpReceiver.receive(received);
+			ByteBuffer report = ByteBuffer.wrap(buffer, 0, received.getLength());
+			assertEquals(0x80, report.get() & 0xFF);
+			assertEquals(RTCPInstance.PT_SR, report.get() & 0xFF);
+			assertEquals(6, report.getShort());
+			assertEquals(streamer.getSsrc(), report.getInt());
+			long ntpSeconds = report.getInt() & 0xFFFFFFFFL;
+			long now = System.currentTimeMillis() / 1000 + RTCPInstance.NTP_EPOCH_OFFSET;
+			assertTrue(Math.abs(now - ntpSeconds) <= 2);
+			report.getInt();
+			int timestamp = report.getInt();
+			int last = depacketizer.timestamps.get(stream.size() - 1);
+			assertTrue(timestamp - last >= 0 && timestamp - last < 5 * RTPPacketizer.CLOCK_RATE);
+			assertEquals(packets, report.getInt());
+			int octets = 0;
+			for (byte[] accessUnit : stream)
+				octets += accessUnit.length;
+			//Start codes are not sent, but STAP-A sizes and FU headers are
+			assertTrue(report.getInt() > octets / 2);
+			assertEquals(0x81, report.get() & 0xFF);
+			assertEquals(RTCPInstance.PT_SDES, report.get() & 0xFF);
+			int words = report.getShort();
+			assertEquals(received.getLength(), 28 + 4 * (words + 1));
+			assertEquals(streamer.getSsrc(), report.getInt());
+			assertEquals(RTCPInstance.SDES_CNAME, report.get());
+			byte[] cname = new byte[report.get()];
+			report.get(cname);
+			assertEquals(streamer.rtcp.getCanonicalName(), new String(cname, "US-ASCII"));
+			while (report.hasRemaining())
+				assertEquals(0, report.get());
+
+			//Nothing is sent to removed destinations
+			assertTrue(streamer.removeDestination(this.destination));
+			assertFalse(streamer.removeDestination(this.destination));
+			streamer.sendFrame(direct(stream.get(1)));
+			this.rtpReceiver.setSoTimeout(200);
+			try {
+				this.rtpReceiver.receive(received);
+				throw new AssertionError("Packet sent to a removed destination");
+			} catch (java.net.SocketTimeoutException e) {
+				//Expected
+			}
+			streamer.addDestination(this.destination);
+		}
+
+		//Closing sends a BYE after the sender report and description
+		this.rtcpReceiver.receive(received);
+		ByteBuffer bye = ByteBuffer.wrap(buffer, 0, received.getLength());
+		bye.position(received.getLength() - 8);
+		assertEquals(0x81, bye.get() & 0xFF);
+		assertEquals(RTCPInstance.PT_BYE, bye.get() & 0xFF);
+		assertEquals(1, bye.getShort());
+		assertEquals(depacketizer.ssrc, bye.getInt());
+	}
+
+	@Test
+	public void testDestinations() throws IOException {
+		try (H264Streamer streamer = new H264Streamer()) {
+			InetSocketAddress other = new InetSocketAddress(InetAddress.getLoopbackAddress(), 9);
+			streamer.addDestination(this.destination);
+			streamer.addDestination(other);
+			assertEquals(Arrays.asList(this.destination, other), Arrays.asList(streamer.getDestinations()));
+			streamer.removeDestination(this.destination);
+			assertEquals(Arrays.asList(other), Arrays.asList(streamer.getDestinations()));
+			streamer.setMulticastTTL(1);
+		}
+	}
+
+	@Test
+	public void testCloseWhileSending() throws Exception {
+		final List<byte[]> stream = stream();
+		final H264Streamer streamer = new H264Streamer();
+		streamer.addDestination(this.destination);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch sending = new CountDownLatch(1);
+		Thread sender = new Thread(() -> {
+			try {
+				for (int i = 0;; i++) {
+					streamer.sendFrame(direct(stream.get(i % stream.size())));
+					sending.countDown();
+				}
+			} catch (StateException e) {
+				//Closed between two frames
+			} catch (Throwable t) {
+				error.set(t);
+			}
+		});
+		sender.start();
+		sending.await();
+		streamer.close();
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		if (error.get() != null)
+			throw new AssertionError("Sending failed while closing", error.get());
+	}
+}
+
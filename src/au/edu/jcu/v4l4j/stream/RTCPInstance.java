@@ -1,10 +1,131 @@
 package au.edu.jcu.v4l4j.stream;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * Sends the RTCP packets of an {@link H264Streamer}, as described by RFC
+ * 3550: each report is a compound packet made of a sender report (SR), which
+ * maps the stream's RTP timestamps to wall clock time, and a source
+ * description (SDES) with the stream's canonical name. Reports are sent to the
+ * port after each destination's RTP port.
+ * <p>
+ * {@link #run()} sends a report, and is scheduled by the streamer.
+ */
 public class RTCPInstance implements Runnable {
+	static final int PT_SR = 200;
+	static final int PT_SDES = 202;
+	static final int PT_BYE = 203;
+	static final int SDES_CNAME = 1;
+	/**
+	 * Seconds from the NTP epoch (1900) to the Unix epoch (1970)
+	 */
+	static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+	private final H264Streamer streamer;
+	private final ByteBuffer packet = ByteBuffer.allocateDirect(128);
+	/**
+	 * Canonical name of the stream. This is random, as RFC 7022 recommends,
+	 * rather than the user and host name.
+	 */
+	private final byte[] cname;
+
+	RTCPInstance(H264Streamer streamer) {
+		this.streamer = streamer;
+		byte[] id = new byte[12];
+		new SecureRandom().nextBytes(id);
+		StringBuilder name = new StringBuilder("v4l4j-");
+		for (byte b : id)
+			name.append(String.format("%02x", b & 0xFF));
+		this.cname = name.toString().getBytes(StandardCharsets.US_ASCII);
+	}
 
+	/**
+	 * Send a sender report to every destination of the streamer
+	 */
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
+		try {
+			send(false);
+		} catch (ClosedChannelException e) {
+			//The streamer is being closed
+		} catch (IOException e) {
+			//Reports are only advisory, keep on sending them
+			e.printStackTrace();
+		}
 	}
 
+	/**
+	 * Send a sender report followed by a BYE packet to every destination of
+	 * the streamer, telling receivers that the stream has ended
+	 *
+	 * @throws IOException
+	 *             if the packet could not be sent
+	 */
+	public void sendBye() throws IOException {
+		send(true);
+	}
+
+	private synchronized void send(boolean bye) throws IOException {
+		ByteBuffer packet = this.packet;
+		packet.clear();
+		writeSenderReport(packet);
+		writeSourceDescription(packet);
+		if (bye) {
+			packet.put((byte) 0x81);
+			packet.put((byte) PT_BYE);
+			packet.putShort((short) 1);
+			packet.putInt(this.streamer.getSsrc());
+		}
+		packet.flip();
+		for (InetSocketAddress destination : this.streamer.destinations) {
+			packet.position(0);
+			this.streamer.getRTCPChannel().send(packet, new InetSocketAddress(destination.getAddress(), destination.getPort() + 1));
+		}
+	}
+
+	private void writeSenderReport(ByteBuffer packet) {
+		RTPPacketizer packetizer = this.streamer.getPacketizer();
+		long millis = System.currentTimeMillis();
+		int timestamp = this.streamer.getCurrentTimestamp();
+		//Version 2, no padding, no reception report
+		packet.put((byte) 0x80);
+		packet.put((byte) PT_SR);
+		//Length in 32-bit words, minus one
+		packet.putShort((short) 6);
+		packet.putInt(packetizer.getSsrc());
+		packet.putInt((int) (millis / 1000 + NTP_EPOCH_OFFSET));
+		packet.putInt((int) (((millis % 1000) << 32) / 1000));
+		packet.putInt(timestamp);
+		packet.putInt((int) packetizer.getPacketCount());
+		packet.putInt((int) packetizer.getOctetCount());
+	}
+
+	private void writeSourceDescription(ByteBuffer packet) {
+		//Items are followed by at least one null octet, up to a 32-bit boundary
+		int chunkLength = 4 + 2 + this.cname.length;
+		chunkLength += 4 - chunkLength % 4;
+		packet.put((byte) 0x81);
+		packet.put((byte) PT_SDES);
+		packet.putShort((short) (chunkLength / 4));
+		packet.putInt(this.streamer.getSsrc());
+		packet.put((byte) SDES_CNAME);
+		packet.put((byte) this.cname.length);
+		packet.put(this.cname);
+		for (int i = 4 + 2 + this.cname.length; i < chunkLength; i++)
+			packet.put((byte) 0);
+	}
+
+	/**
+	 * Get the canonical name (CNAME) of the stream
+	 *
+	 * @return the name
+	 */
+	public String getCanonicalName() {
+		return new String(this.cname, StandardCharsets.US_ASCII);
+	}
 }
@@ -0,0 +1,305 @@
+package au.edu.jcu.v4l4j.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits H.264 access units into RTP packets, as described by RFC 6184 in
+ * non-interleaved mode (<code>packetization-mode=1</code>):
+ * <ul>
+ * <li>NAL units that fit in a packet are sent as single NAL unit packets</li>
+ * <li>Larger NAL units are split into FU-A fragments</li>
+ * <li>Consecutive SPS and PPS NAL units are aggregated into a STAP-A
+ * packet</li>
+ * </ul>
+ * The last packet of each access unit has the marker bit set. Packets are
+ * written to a single direct buffer allocated up front, and handed to a
+ * {@link PacketSink} one at a time, so that no memory is allocated per
+ * packet.
+ * <p>
+ * A packetizer is not thread safe: access units must be packetized one at a
+ * time.
+ */
+public class RTPPacketizer {
+	/**
+	 * Default maximum size of an RTP packet, in bytes, leaving room for IP,
+	 * UDP and tunnel headers in a 1500 byte Ethernet MTU
+	 */
+	public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+	/**
+	 * Default payload type, the first dynamic one
+	 */
+	public static final int DEFAULT_PAYLOAD_TYPE = 96;
+	/**
+	 * RTP clock rate of H.264 video, in Hz
+	 */
+	public static final int CLOCK_RATE = 90000;
+	public static final int RTP_HEADER_SIZE = 12;
+
+	static final int NAL_TYPE_MASK = 0x1F;
+	static final int NAL_SPS = 7;
+	static final int NAL_PPS = 8;
+	static final int NAL_STAP_A = 24;
+	static final int NAL_FU_A = 28;
+
+	/**
+	 * Receives packets from a packetizer
+	 */
+	public static interface PacketSink {
+		/**
+		 * Send a packet. The packet is only valid until this method returns,
+		 * as the packetizer reuses the buffer for the next one.
+		 *
+		 * @param packet
+		 *            RTP packet, between its position and limit
+		 * @throws IOException
+		 *             if the packet could not be sent
+		 */
+		void send(ByteBuffer packet) throws IOException;
+	}
+
+	protected final ByteBuffer packet;
+	protected final int maxPacketSize;
+	protected final int payloadType;
+	protected final int ssrc;
+	protected int sequence;
+	/**
+	 * Offsets and lengths of the NAL units of the access unit being
+	 * packetized, grown as needed
+	 */
+	protected int[] nalOffsets = new int[16];
+	protected int[] nalLengths = new int[16];
+	/**
+	 * Number of packets and payload octets sent so far, as reported in RTCP
+	 * sender reports
+	 */
+	protected volatile long packetCount = 0;
+	protected volatile long octetCount = 0;
+
+	/**
+	 * Create a packetizer
+	 *
+	 * @param ssrc
+	 *            synchronization source identifier of the stream
+	 * @param payloadType
+	 *            RTP payload type, between 0 and 127
+	 * @param maxPacketSize
+	 *            maximum size of an RTP packet, header included
+	 * @param initialSequence
+	 *            sequence number of the first packet
+	 */
+	public RTPPacketizer(int ssrc, int payloadType, int maxPacketSize, int initialSequence) {
+		if (payloadType < 0 || payloadType > 127)
+			throw new IllegalArgumentException("Illegal payload type (" + payloadType + "; expected between 0 and 127)");
+		//Room for the RTP header, the FU indicator and header, and some data
+		if (maxPacketSize < RTP_HEADER_SIZE + 3 || maxPacketSize > 65507)
+			throw new IllegalArgumentException("Illegal packet size (" + maxPacketSize + ")");
+		this.ssrc = ssrc;
+		this.payloadType = payloadType;
+		this.maxPacketSize = maxPacketSize;
+		this.sequence = initialSequence & 0xFFFF;
+		this.packet = ByteBuffer.allocateDirect(maxPacketSize);
+	}
+
+	/**
+	 * Send the NAL units of an access unit as RTP packets
+	 *
+	 * @param accessUnit
+	 *            Annex B byte stream of the access unit (NAL units preceded
+	 *            by start codes), between its position and limit, as written
+	 *            by {@link au.edu.jcu.v4l4j.encoder.h264.H264Encoder
+	 *            H264Encoder} with <code>annexb</code> set. Its position is
+	 *            left unchanged.
+	 * @param timestamp
+	 *            RTP timestamp of the access unit, in units of
+	 *            {@link #CLOCK_RATE}
+	 * @param sink
+	 *            where to send packets
+	 * @return the number of packets sent
+	 * @throws IOException
+	 *             if the sink failed to send a packet
+	 */
+	public int packetize(ByteBuffer accessUnit, int timestamp, PacketSink sink) throws IOException {
+		final int numNals = findNals(accessUnit);
+		final int maxPayload = this.maxPacketSize - RTP_HEADER_SIZE;
+		//Payloads are copied in bulk from this view, leaving accessUnit's position alone
+		final ByteBuffer view = accessUnit.duplicate();
+		int sent = 0;
+		for (int i = 0; i < numNals; i++) {
+			final int offset = this.nalOffsets[i];
+			final int length = this.nalLengths[i];
+			final int type = accessUnit.get(offset) & NAL_TYPE_MASK;
+
+			//Aggregate parameter sets that are followed by another
+			if (isParameterSet(type) && i + 1 < numNals && isParameterSet(accessUnit.get(this.nalOffsets[i + 1]) & NAL_TYPE_MASK)
+					&& 1 + 2 + length + 2 + this.nalLengths[i + 1] <= maxPayload) {
+				int last = i + 1;
+				int size = 1 + 2 + length + 2 + this.nalLengths[last];
+				while (last + 1 < numNals && isParameterSet(accessUnit.get(this.nalOffsets[last + 1]) & NAL_TYPE_MASK)
+						&& size + 2 + this.nalLengths[last + 1] <= maxPayload)
+					size += 2 + this.nalLengths[++last];
+
+				startPacket(timestamp, last == numNals - 1);
+				int header = 0;
+				this.packet.put((byte) 0);
+				for (int j = i; j <= last; j++) {
+					int nalHeader = accessUnit.get(this.nalOffsets[j]) & 0xFF;
+					//F bit of any, highest NRI
+					header = (header & 0x80) | (nalHeader & 0x80) | Math.max(header & 0x60, nalHeader & 0x60);
+					this.packet.putShort((short) this.nalLengths[j]);
+					putNal(view, this.nalOffsets[j], this.nalLengths[j]);
+				}
+				this.packet.put(RTP_HEADER_SIZE, (byte) (header | NAL_STAP_A));
+				send(sink);
+				sent++;
+				i = last;
+			} else if (length <= maxPayload) {
+				startPacket(timestamp, i == numNals - 1);
+				putNal(view, offset, length);
+				send(sink);
+				sent++;
+			} else {
+				final int nalHeader = accessUnit.get(offset) & 0xFF;
+				final int fuIndicator = (nalHeader & 0xE0) | NAL_FU_A;
+				final int maxFragment = maxPayload - 2;
+				//The NAL unit header is carried by the FU indicator and header
+				int position = offset + 1;
+				final int end = offset + length;
+				while (position < end) {
+					int fragment = Math.min(maxFragment, end - position);
+					boolean first = position == offset + 1;
+					boolean lastFragment = position + fragment == end;
+					startPacket(timestamp, lastFragment && i == numNals - 1);
+					this.packet.put((byte) fuIndicator);
+					this.packet.put((byte) ((first ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | (nalHeader & NAL_TYPE_MASK)));
+					putNal(view, position, fragment);
+					send(sink);
+					sent++;
+					position += fragment;
+				}
+			}
+		}
+		return sent;
+	}
+
+	private static boolean isParameterSet(int type) {
+		return type == NAL_SPS || type == NAL_PPS;
+	}
+
+	/**
+	 * Find the NAL units of an Annex B byte stream
+	 * @return the number of NAL units, whose offsets and lengths are stored in
+	 *         {@link #nalOffsets} and {@link #nalLengths}
+	 */
+	protected int findNals(ByteBuffer stream) {
+		final int limit = stream.limit();
+		int count = 0;
+		int start = -1;
+		int i = stream.position();
+		while (i + 2 < limit) {
+			//Start codes are 00 00 01, or 00 00 00 01
+			if (stream.get(i + 2) > 1) {
+				i += 3;
+			} else if (stream.get(i) == 0 && stream.get(i + 1) == 0 && stream.get(i + 2) == 1) {
+				if (start >= 0)
+					count = addNal(count, start, trimTrailingZeros(stream, start, i));
+				start = i + 3;
+				i += 3;
+			} else {
+				i++;
+			}
+		}
+		if (start >= 0)
+			count = addNal(count, start, trimTrailingZeros(stream, start, limit));
+		return count;
+	}
+
+	/**
+	 * Find the end of a NAL unit, without the zero bytes before the next start
+	 * code
+	 */
+	private static int trimTrailingZeros(ByteBuffer stream, int start, int end) {
+		while (end > start && stream.get(end - 1) == 0)
+			end--;
+		return end;
+	}
+
+	private int addNal(int count, int start, int end) {
+		if (end <= start)
+			return count;
+		if (count == this.nalOffsets.length) {
+			this.nalOffsets = java.util.Arrays.copyOf(this.nalOffsets, count * 2);
+			this.nalLengths = java.util.Arrays.copyOf(this.nalLengths, count * 2);
+		}
+		this.nalOffsets[count] = start;
+		this.nalLengths[count] = end - start;
+		return count + 1;
+	}
+
+	private void startPacket(int timestamp, boolean marker) {
+		this.packet.clear();
+		//Version 2, no padding, extension or CSRCs
+		this.packet.put((byte) 0x80);
+		this.packet.put((byte) ((marker ? 0x80 : 0) | this.payloadType));
+		this.packet.putShort((short) this.sequence);
+		this.packet.putInt(timestamp);
+		this.packet.putInt(this.ssrc);
+		this.sequence = (this.sequence + 1) & 0xFFFF;
+	}
+
+	/**
+	 * Copy part of a NAL unit into the packet
+	 *
+	 * @param view
+	 *            view of the access unit, whose position and limit are moved
+	 */
+	private void putNal(ByteBuffer view, int offset, int length) {
+		view.limit(offset + length);
+		view.position(offset);
+		this.packet.put(view);
+	}
+
+	private void send(PacketSink sink) throws IOException {
+		this.packet.flip();
+		int length = this.packet.remaining();
+		sink.send(this.packet);
+		this.packetCount++;
+		this.octetCount += length - RTP_HEADER_SIZE;
+	}
+
+	public int getSsrc() {
+		return this.ssrc;
+	}
+
+	public int getPayloadType() {
+		return this.payloadType;
+	}
+
+	public int getMaxPacketSize() {
+		return this.maxPacketSize;
+	}
+
+	/**
+	 * Get the sequence number of the next packet
+	 * @return sequence number, between 0 and 65535
+	 */
+	public int getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * Get the number of packets sent so far
+	 * @return number of packets
+	 */
+	public long getPacketCount() {
+		return this.packetCount;
+	}
+
+	/**
+	 * Get the number of payload octets (excluding RTP headers) sent so far
+	 * @return number of octets
+	 */
+	public long getOctetCount() {
+		return this.octetCount;
+	}
+}
@@ -0,0 +1,274 @@
+package au.edu.jcu.v4l4j.stream;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+
+import au.edu.jcu.v4l4j.V4L4JUtils;
+import au.edu.jcu.v4l4j.exceptions.StateException;
+
+/**
+ * Sends batches of UDP datagrams to several destinations with as few system
+ * calls as possible. Datagrams are queued with {@link #add(ByteBuffer)} into a
+ * direct buffer, then {@link #flush(InetSocketAddress[]) flushed} to every
+ * destination with <code>sendmmsg()</code>. Where the kernel supports UDP
+ * segmentation offload (Linux 4.18 and later), runs of datagrams of the same
+ * size are also handed to the kernel as a single message, which it splits as
+ * late as possible, or the network card does.
+ * <p>
+ * Datagrams are sent from a socket of their own, bound to an ephemeral port
+ * of all local addresses. This class needs the v4l4j native library, on
+ * Linux: check {@link #isAvailable()} before creating one.
+ * <p>
+ * A sender is not thread safe.
+ */
+public class UDPBatchSender implements AutoCloseable {
+	private static final boolean AVAILABLE;
+
+	static {
+		boolean available = false;
+		try {
+			V4L4JUtils.loadLibrary();
+			//Fails if the library predates this class
+			doClose(0);
+			available = true;
+		} catch (UnsatisfiedLinkError e) {
+			//Fall back on DatagramChannel
+		}
+		AVAILABLE = available;
+	}
+
+	/**
+	 * Whether the native library needed to send batches could be loaded
+	 *
+	 * @return whether batch senders can be created
+	 */
+	public static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	private static native long doOpen(int maxPackets) throws IOException;
+
+	private static native int doGetLocalPort(long o) throws IOException;
+
+	private static native boolean doIsSegmentationOffloadSupported(long o);
+
+	private static native boolean doIsSegmentationOffload(long o);
+
+	private static native void doSetSegmentationOffload(long o, boolean enabled);
+
+	private static native void doSetMulticastTTL(long o, int ttl) throws IOException;
+
+	private static native void doSetMulticastInterface(long o, int index) throws IOException;
+
+	private static native int doSend(long o, ByteBuffer batch, int[] lengths, int count, byte[] addresses, int[] ports, int nbDestinations) throws IOException;
+
+	private static native void doClose(long o);
+
+	private long object;
+	private final ByteBuffer batch;
+	private final int[] lengths;
+	private int count = 0;
+	/**
+	 * Destinations last flushed to, and their addresses as 16 byte IPv6
+	 * addresses (IPv4 ones mapped) and ports, kept until the array passed to
+	 * {@link #flush(InetSocketAddress[])} changes
+	 */
+	private InetSocketAddress[] destinations;
+	private byte[] addresses = new byte[0];
+	private int[] ports = new int[0];
+	private long systemCalls = 0;
+
+	/**
+	 * Open a sender
+	 *
+	 * @param maxPackets
+	 *            largest number of datagrams in a batch
+	 * @param maxPacketSize
+	 *            size of the largest datagram
+	 * @throws IOException
+	 *             if the socket could not be opened
+	 * @throws UnsupportedOperationException
+	 *             if the native library is not {@link #isAvailable()
+	 *             available}
+	 */
+	public UDPBatchSender(int maxPackets, int maxPacketSize) throws IOException {
+		if (!AVAILABLE)
+			throw new UnsupportedOperationException("UDP batches need the v4l4j native library");
+		if (maxPackets <= 0 || maxPacketSize <= 0 || maxPacketSize > 65507)
+			throw new IllegalArgumentException("Illegal batch size (" + maxPackets + " packets of " + maxPacketSize + " bytes)");
+		this.batch = ByteBuffer.allocateDirect(maxPackets * maxPacketSize);
+		this.lengths = new int[maxPackets];
+		this.object = doOpen(maxPackets);
+	}
+
+	private void checkOpen() {
+		if (this.object == 0)
+			throw new StateException("This sender is closed");
+	}
+
+	/**
+	 * Queue a copy of a datagram
+	 *
+	 * @param packet
+	 *            datagram, between its position and limit. Its position is
+	 *            left unchanged.
+	 * @return true if the datagram was queued, false if the batch is full and
+	 *         must be flushed first
+	 */
+	public boolean add(ByteBuffer packet) {
+		final int length = packet.remaining();
+		if (this.count == this.lengths.length || length > this.batch.remaining())
+			return false;
+		final int position = packet.position();
+		this.batch.put(packet);
+		packet.position(position);
+		this.lengths[this.count++] = length;
+		return true;
+	}
+
+	/**
+	 * Get the number of datagrams queued
+	 *
+	 * @return the number of datagrams
+	 */
+	public int getQueued() {
+		return this.count;
+	}
+
+	/**
+	 * Send the queued datagrams to each destination, then empty the batch
+	 *
+	 * @param destinations
+	 *            where to send datagrams. Passing the same array again, as
+	 *            {@link H264Streamer} does until its destinations change,
+	 *            saves encoding their addresses.
+	 * @throws IOException
+	 *             if datagrams could not be sent
+	 */
+	public void flush(InetSocketAddress[] destinations) throws IOException {
+		checkOpen();
+		if (destinations != this.destinations)
+			encodeDestinations(destinations);
+		try {
+			if (this.count > 0 && destinations.length > 0)
+				this.systemCalls += doSend(this.object, this.batch, this.lengths, this.count, this.addresses, this.ports, destinations.length);
+		} finally {
+			this.batch.clear();
+			this.count = 0;
+		}
+	}
+
+	private void encodeDestinations(InetSocketAddress[] destinations) {
+		if (this.ports.length != destinations.length) {
+			this.addresses = new byte[16 * destinations.length];
+			this.ports = new int[destinations.length];
+		}
+		for (int i = 0; i < destinations.length; i++) {
+			byte[] address = destinations[i].getAddress().getAddress();
+			if (destinations[i].getAddress() instanceof Inet4Address) {
+				//::ffff:a.b.c.d
+				for (int j = 0; j < 10; j++)
+					this.addresses[16 * i + j] = 0;
+				this.addresses[16 * i + 10] = (byte) 0xFF;
+				this.addresses[16 * i + 11] = (byte) 0xFF;
+				System.arraycopy(address, 0, this.addresses, 16 * i + 12, 4);
+			} else {
+				System.arraycopy(address, 0, this.addresses, 16 * i, 16);
+			}
+			this.ports[i] = destinations[i].getPort();
+		}
+		this.destinations = destinations;
+	}
+
+	/**
+	 * Get the local port datagrams are sent from
+	 *
+	 * @return the port
+	 * @throws IOException
+	 *             if the socket address could not be read
+	 */
+	public int getLocalPort() throws IOException {
+		checkOpen();
+		return doGetLocalPort(this.object);
+	}
+
+	/**
+	 * Whether the kernel supports UDP segmentation offload
+	 *
+	 * @return whether it does
+	 */
+	public boolean isSegmentationOffloadSupported() {
+		checkOpen();
+		return doIsSegmentationOffloadSupported(this.object);
+	}
+
+	/**
+	 * Whether UDP segmentation offload is used. It is turned off for good the
+	 * first time the kernel refuses it, for instance because the network card
+	 * can't compute checksums.
+	 *
+	 * @return whether it is used
+	 */
+	public boolean isSegmentationOffload() {
+		checkOpen();
+		return doIsSegmentationOffload(this.object);
+	}
+
+	/**
+	 * Use UDP segmentation offload, where supported, or not
+	 *
+	 * @param enabled
+	 *            whether to use it
+	 */
+	public void setSegmentationOffload(boolean enabled) {
+		checkOpen();
+		doSetSegmentationOffload(this.object, enabled);
+	}
+
+	/**
+	 * Set the time to live of datagrams sent to multicast destinations
+	 *
+	 * @param ttl
+	 *            the time to live, between 0 and 255
+	 * @throws IOException
+	 *             if the option could not be set
+	 */
+	public void setMulticastTTL(int ttl) throws IOException {
+		checkOpen();
+		doSetMulticastTTL(this.object, ttl);
+	}
+
+	/**
+	 * Set the network interface datagrams to multicast destinations are sent
+	 * through
+	 *
+	 * @param networkInterface
+	 *            the interface
+	 * @throws IOException
+	 *             if the option could not be set
+	 */
+	public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+		checkOpen();
+		doSetMulticastInterface(this.object, networkInterface.getIndex());
+	}
+
+	/**
+	 * Get the number of <code>sendmmsg()</code> calls made so far
+	 *
+	 * @return the number of calls
+	 */
+	public long getSystemCalls() {
+		return this.systemCalls;
+	}
+
+	@Override
+	public void close() {
+		if (this.object == 0)
+			return;
+		doClose(this.object);
+		this.object = 0;
+	}
+}
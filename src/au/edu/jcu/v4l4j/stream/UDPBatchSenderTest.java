@@ -0,0 +1,185 @@
+package au.edu.jcu.v4l4j.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that batches reach every destination intact and in order, with and
+ * without segmentation offload. These tests need the native library, and
+ * pass without checking anything if it can't be loaded.
+ * <p>
+ * Run {@link #main(String[])} for a loopback benchmark of a 8 Mbit/s stream
+ * fanned out to 1, 10 and 50 receivers, sent one packet at a time through a
+ * DatagramChannel, then in batches, then in batches with segmentation
+ * offload.
+ */
+public class UDPBatchSenderTest {
+	/**
+	 * Sizes of a batch's datagrams: runs of full packets, which segmentation
+	 * offload sends together, and shorter ones ending or breaking them
+	 */
+	private static final int[] SIZES = { 1400, 1400, 1400, 1400, 1400, 700, 1400, 1400, 1400, 200, 50, 1400, 1400 };
+
+	private static byte[][] datagrams(int[] sizes) {
+		Random random = new Random(7);
+		byte[][] datagrams = new byte[sizes.length][];
+		for (int i = 0; i < sizes.length; i++) {
+			datagrams[i] = new byte[sizes[i]];
+			random.nextBytes(datagrams[i]);
+		}
+		return datagrams;
+	}
+
+	private static void checkBatch(boolean offload) throws IOException {
+		DatagramSocket[] receivers = new DatagramSocket[3];
+		InetSocketAddress[] destinations = new InetSocketAddress[receivers.length];
+		try (UDPBatchSender sender = new UDPBatchSender(SIZES.length, 1400)) {
+			for (int i = 0; i < receivers.length; i++) {
+				receivers[i] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+				receivers[i].setSoTimeout(2000);
+				destinations[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), receivers[i].getLocalPort());
+			}
+			sender.setSegmentationOffload(offload);
+			assertEquals(offload && sender.isSegmentationOffloadSupported(), sender.isSegmentationOffload());
+
+			byte[][] datagrams = datagrams(SIZES);
+			//Twice, to reuse the batch and the destination addresses
+			for (int round = 0; round < 2; round++) {
+				for (byte[] datagram : datagrams) {
+					ByteBuffer packet = ByteBuffer.allocateDirect(datagram.length);
+					packet.put(datagram).flip();
+					assertTrue(sender.add(packet));
+					assertEquals(0, packet.position());
+				}
+				assertFalse("Datagram added to a full batch", sender.add(ByteBuffer.allocate(1)));
+				assertEquals(SIZES.length, sender.getQueued());
+				sender.flush(destinations);
+				assertEquals(0, sender.getQueued());
+
+				byte[] buffer = new byte[2048];
+				DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+				for (DatagramSocket receiver : receivers) {
+					for (byte[] datagram : datagrams) {
+						receiver.receive(received);
+						assertEquals(sender.getLocalPort(), received.getPort());
+						assertArrayEquals(datagram, Arrays.copyOf(buffer, received.getLength()));
+					}
+				}
+			}
+			//Fewer calls than datagrams, however many destinations
+			assertTrue(sender.getSystemCalls() < 2 * SIZES.length);
+		} finally {
+			for (DatagramSocket receiver : receivers)
+				if (receiver != null)
+					receiver.close();
+		}
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		if (UDPBatchSender.isAvailable())
+			checkBatch(false);
+	}
+
+	@Test
+	public void testSegmentationOffload() throws IOException {
+		if (UDPBatchSender.isAvailable())
+			checkBatch(true);
+	}
+
+	@Test
+	public void testBatchTooLarge() throws IOException {
+		if (!UDPBatchSender.isAvailable())
+			return;
+		try (UDPBatchSender sender = new UDPBatchSender(4, 100)) {
+			assertTrue(sender.add(ByteBuffer.allocate(300)));
+			assertFalse(sender.add(ByteBuffer.allocate(101)));
+			assertTrue(sender.add(ByteBuffer.allocate(100)));
+			//Nowhere to send to
+			sender.flush(new InetSocketAddress[0]);
+			assertEquals(0, sender.getQueued());
+		}
+	}
+
+	/**
+	 * Send a 1080p-like 8 Mbit/s stream to receivers that never read, as fast
+	 * as possible for a couple of seconds
+	 */
+	private static void benchmark(String name, H264Streamer streamer, InetSocketAddress[] destinations) throws IOException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		//30 frames/s: a 33 KB frame, in a slice
+		Random random = new Random(1);
+		byte[] frame = new byte[33336];
+		random.nextBytes(frame);
+		frame[0] = frame[1] = frame[2] = 0;
+		frame[3] = 1;
+		frame[4] = 0x41;
+		for (int i = 5; i < frame.length; i++)
+			if (frame[i] == 0)
+				frame[i] = 1;
+		ByteBuffer accessUnit = ByteBuffer.allocateDirect(frame.length);
+		accessUnit.put(frame).flip();
+		for (InetSocketAddress destination : destinations)
+			streamer.addDestination(destination);
+
+		for (int i = 0; i < 200; i++)
+			streamer.sendFrame(accessUnit);
+		long packets = streamer.getPacketCount();
+		long frames = 0;
+		long cpu = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime(), elapsed;
+		do {
+			streamer.sendFrame(accessUnit);
+			frames++;
+		} while ((elapsed = System.nanoTime() - start) < 2000000000L);
+		cpu = threads.getCurrentThreadCpuTime() - cpu;
+		packets = (streamer.getPacketCount() - packets) * destinations.length;
+
+		double seconds = elapsed / 1e9;
+		double mbits = frames * frame.length * 8.0 * destinations.length / 1e6;
+		System.out.printf("%-24s %3d receivers: %9.0f packets/s, %7.1f Mbit/s, %.3f CPU ms per Mbit%n", name, destinations.length, packets / seconds, mbits / seconds, cpu / 1e6 / mbits);
+	}
+
+	public static void main(String[] args) throws IOException {
+		for (int nbReceivers : new int[] { 1, 10, 50 }) {
+			DatagramSocket[] receivers = new DatagramSocket[nbReceivers];
+			InetSocketAddress[] destinations = new InetSocketAddress[nbReceivers];
+			for (int i = 0; i < nbReceivers; i++) {
+				receivers[i] = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+				destinations[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), receivers[i].getLocalPort());
+			}
+
+			try (H264Streamer streamer = new H264Streamer(RTPPacketizer.DEFAULT_MAX_PACKET_SIZE, RTPPacketizer.DEFAULT_PAYLOAD_TYPE, false)) {
+				benchmark("DatagramChannel", streamer, destinations);
+			}
+			if (UDPBatchSender.isAvailable()) {
+				try (H264Streamer streamer = new H264Streamer(RTPPacketizer.DEFAULT_MAX_PACKET_SIZE, RTPPacketizer.DEFAULT_PAYLOAD_TYPE, true)) {
+					streamer.batchSender.setSegmentationOffload(false);
+					benchmark("sendmmsg", streamer, destinations);
+				}
+				try (H264Streamer streamer = new H264Streamer(RTPPacketizer.DEFAULT_MAX_PACKET_SIZE, RTPPacketizer.DEFAULT_PAYLOAD_TYPE, true)) {
+					if (streamer.batchSender.isSegmentationOffload())
+						benchmark("sendmmsg + GSO", streamer, destinations);
+				}
+			}
+
+			for (DatagramSocket receiver : receivers)
+				receiver.close();
+		}
+	}
+}
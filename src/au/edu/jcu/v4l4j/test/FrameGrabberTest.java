@@ -24,21 +24,29 @@
 
 package au.edu.jcu.v4l4j.test;
 
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import au.edu.jcu.v4l4j.CaptureCallback;
+import au.edu.jcu.v4l4j.CapturePoller;
 import au.edu.jcu.v4l4j.FrameGrabber;
 import au.edu.jcu.v4l4j.VideoDevice;
 import au.edu.jcu.v4l4j.VideoFrame;
 import au.edu.jcu.v4l4j.exceptions.StateException;
+import au.edu.jcu.v4l4j.exceptions.UnsupportedMethod;
 import au.edu.jcu.v4l4j.exceptions.V4L4JException;
 
 public class FrameGrabberTest implements CaptureCallback {
@@ -223,6 +231,120 @@ public class FrameGrabberTest implements CaptureCallback {
 			fail(failureMsg);
 	}
 
+	@Test
+	public void testRetainRelease() throws V4L4JException, InterruptedException, ExecutionException {
+		CompletableFuture<String> result = new CompletableFuture<>();
+
+		fg.setCaptureCallback(frame->{
+			if (result.isDone()) {
+				frame.recycle();
+				return;
+			}
+			frame.retain();
+			frame.release();
+			try {
+				//The second holder still has the frame
+				frame.getFrameLength();
+			} catch (StateException e) {
+				frame.recycle();
+				result.complete("Error: frame recycled while still retained");
+				return;
+			}
+			frame.release();
+			try {
+				frame.release();
+				result.complete("Error: release() of a recycled frame returned without throwing an exception");
+			} catch (StateException e) {
+				//Expected
+				result.complete(null);
+			}
+		}, err -> {
+			result.obtrudeException(err);
+		});
+
+		fg.startCapture();
+		String failureMsg = result.get();
+		fg.stopCapture();
+
+		if (failureMsg != null)
+			fail(failureMsg);
+	}
+
+	@Test
+	public void testDmaBufExport() throws V4L4JException, InterruptedException, ExecutionException {
+		//fd, offset and length of the exported buffer, frame length, and
+		//whether the fd is open, or null if the driver cannot export
+		CompletableFuture<int[]> result = new CompletableFuture<>();
+		
+		fg.setCaptureCallback(frame->{
+			try {
+				int fd = frame.getDmaBufFd();
+				boolean open = (fd >= 0) && new File("/proc/self/fd/" + fd).exists();
+				result.complete(new int[] { fd, frame.getDmaBufOffset(), frame.getDmaBufLength(), frame.getFrameLength(), open ? 1 : 0 });
+			} catch (UnsupportedMethod e) {
+				result.complete(null);
+			} finally {
+				frame.recycle();
+			}
+		}, err -> {
+			result.obtrudeException(err);
+		});
+		
+		fg.startCapture();
+		int[] export = result.get();
+		fg.stopCapture();
+		
+		if (export == null) {
+			//JUnit 4.1 has no assumptions: skip by returning
+			System.out.println("Skipping testDmaBufExport: the driver cannot export its buffers");
+			return;
+		}
+		assertTrue("Error: invalid DMABUF file descriptor " + export[0], export[0] >= 0);
+		assertTrue("Error: DMABUF file descriptor " + export[0] + " is not open", export[4] == 1);
+		assertTrue("Error: frame does not fit in the exported buffer", export[1] >= 0 && export[1] + export[3] <= export[2]);
+	}
+
+	@Test
+	public void testPullCapture() throws V4L4JException {
+		try {
+			fg.tryNextFrame();
+			fail("Error: we shouldn't be here");
+		} catch (StateException e) {
+			//the capture is not started
+		}
+
+		fg.startPullCapture();
+		try (CapturePoller poller = new CapturePoller()) {
+			poller.add(fg);
+			int captured = 0;
+			while (captured < repeats) {
+				List<FrameGrabber> ready = poller.select(5, TimeUnit.SECONDS);
+				assertTrue("Error: no frame within 5 seconds", !ready.isEmpty());
+				VideoFrame frame;
+				while ((frame = ready.get(0).tryNextFrame()) != null) {
+					assertTrue(frame.getFrameLength() > 0);
+					frame.recycle();
+					captured++;
+				}
+			}
+
+			//frames held by the application are not waited for
+			List<VideoFrame> held = new ArrayList<>();
+			VideoFrame[] frames = new VideoFrame[fg.getNumberOfVideoFrames()];
+			while (held.size() < frames.length) {
+				int count = fg.nextFrames(frames, 5, TimeUnit.SECONDS);
+				assertTrue("Error: no frame within 5 seconds", count > 0);
+				held.addAll(Arrays.asList(frames).subList(0, count));
+			}
+			assertNull(fg.nextFrame(100, TimeUnit.MILLISECONDS));
+			for (VideoFrame frame : held)
+				frame.recycle();
+			poller.remove(fg);
+		} finally {
+			fg.stopCapture();
+		}
+	}
+
 	public void nextFrame(VideoFrame frame) {
 		lastFrame = frame;
 		frame.recycle();
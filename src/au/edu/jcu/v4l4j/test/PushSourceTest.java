@@ -17,14 +17,27 @@
 */
 package au.edu.jcu.v4l4j.test;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import au.edu.jcu.v4l4j.CaptureCallback;
+import au.edu.jcu.v4l4j.DeliveryPolicy;
 import au.edu.jcu.v4l4j.FrameGrabber;
 import au.edu.jcu.v4l4j.VideoDevice;
 import au.edu.jcu.v4l4j.VideoFrame;
@@ -209,6 +222,101 @@ public class PushSourceTest implements CaptureCallback {
 
 	}
 
+	@Test
+	public void testOrderedExecutorDelivery() throws V4L4JException, InterruptedException {
+		final int numberOfVideoFrames = fg.getNumberOfVideoFrames();
+		final AtomicInteger inCallback = new AtomicInteger();
+		final AtomicInteger maxInCallback = new AtomicInteger();
+		final Set<Long> sequences = Collections.synchronizedSet(new HashSet<Long>());
+		final AtomicBoolean duplicate = new AtomicBoolean();
+		final AtomicLong lastStarted = new AtomicLong(-1);
+		final AtomicBoolean outOfOrder = new AtomicBoolean();
+		final CountDownLatch frames = new CountDownLatch(20);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		fg.setCaptureCallback(new CaptureCallback() {
+
+			@Override
+			public void nextFrame(VideoFrame frame) {
+				// only the start of callbacks is ordered, so check it first
+				if (frame.getSequenceNumber() <= lastStarted.getAndSet(frame.getSequenceNumber()))
+					outOfOrder.set(true);
+				int current = inCallback.incrementAndGet();
+				maxInCallback.accumulateAndGet(current, Math::max);
+				if (!sequences.add(frame.getSequenceNumber()))
+					duplicate.set(true);
+				try {
+					// slower than the camera, so frames pile up in the executor
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				frame.recycle();
+				inCallback.decrementAndGet();
+				frames.countDown();
+			}
+
+			@Override
+			public void exceptionReceived(V4L4JException e) {
+				e.printStackTrace();
+				fail("Received exception when we were not expecting one");
+			}
+		}, executor, true);
+
+		fg.startCapture();
+		frames.await(10, TimeUnit.SECONDS);
+		fg.stopCapture();
+		executor.shutdown();
+
+		assertTrue(frames.getCount() == 0);
+		assertFalse(duplicate.get());
+		assertFalse(outOfOrder.get());
+		assertTrue(maxInCallback.get() <= numberOfVideoFrames);
+		// stopCapture() waits for callbacks to return
+		assertTrue(inCallback.get() == 0);
+	}
+
+	@Test
+	public void testDropOldestDelivery() throws V4L4JException, InterruptedException {
+		final AtomicLong lastSequence = new AtomicLong(-1);
+		final AtomicBoolean outOfOrder = new AtomicBoolean();
+		final AtomicBoolean skipped = new AtomicBoolean();
+		final CountDownLatch frames = new CountDownLatch(5);
+
+		fg.setCaptureCallback(new CaptureCallback() {
+
+			@Override
+			public void nextFrame(VideoFrame frame) {
+				long previous = lastSequence.getAndSet(frame.getSequenceNumber());
+				if (frame.getSequenceNumber() <= previous)
+					outOfOrder.set(true);
+				else if ((previous >= 0) && (frame.getSequenceNumber() > previous + 1))
+					skipped.set(true);
+				frame.recycle();
+				try {
+					// much slower than the camera
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				frames.countDown();
+			}
+
+			@Override
+			public void exceptionReceived(V4L4JException e) {
+				e.printStackTrace();
+				fail("Received exception when we were not expecting one");
+			}
+		}, DeliveryPolicy.DROP_OLDEST);
+
+		fg.startCapture();
+		frames.await(10, TimeUnit.SECONDS);
+		fg.stopCapture();
+
+		assertTrue(frames.getCount() == 0);
+		assertFalse(outOfOrder.get());
+		// stale frames must have been dropped rather than delivered late
+		assertTrue(skipped.get());
+	}
+
 	@Override
 	public void nextFrame(VideoFrame frame) {
 		numCapturedFrames++;
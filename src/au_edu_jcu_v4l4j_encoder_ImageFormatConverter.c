@@ -78,6 +78,33 @@ JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_initW
 	return (jlong)(uintptr_t) encoder;
 }
 
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_ImageFormatConverter
+ * Method:    initScaler
+ * Signature: (IIIIIII)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_initScaler(JNIEnv *env, jclass me, jint srcFmt, jint dstFmt, jint srcWidth, jint srcHeight, jint dstWidth, jint dstHeight, jint filter) {
+	LOG_FN_ENTER();
+	if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal scaling (%dx%d => %dx%d)", srcWidth, srcHeight, dstWidth, dstHeight);
+		return -1;
+	}
+
+	struct v4lconvert_encoder* encoder;
+	XMALLOC(encoder, struct v4lconvert_encoder*, sizeof(struct v4lconvert_encoder));
+	if (!encoder) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating memory for v4lconvert_encoder");
+		return -1;
+	}
+	if (v4lconvert_encoder_initForScale(encoder, (u32) srcFmt, (u32) dstFmt, (u32) srcWidth, (u32) srcHeight, (u32) dstWidth, (u32) dstHeight, (enum v4lconvert_scale_filter) filter) != EXIT_SUCCESS) {
+		XFREE(encoder);
+		THROW_EXCEPTION(env, INIT_EXCP, "Unsupported scaling (fmt %d @ %dx%d => fmt %d @ %dx%d, filter %d)", srcFmt, srcWidth, srcHeight, dstFmt, dstWidth, dstHeight, filter);
+		return -1;
+	}
+	dprint(LOG_V4L4J, "[V4L4J] Scaling %dx%d => %dx%d (filter %d)\n", srcWidth, srcHeight, dstWidth, dstHeight, filter);
+	return (jlong)(uintptr_t) encoder;
+}
+
 /*
  * Class:     au_edu_jcu_v4l4j_encoder_ImageFormatConverter
  * Method:    getData
@@ -149,7 +176,12 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_encode
 	return (int) buffer->buf1_len;
 }
 
-JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_apply(JNIEnv* env, jobject self, jobject src, jobject dst) {
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_ImageFormatConverter
+ * Method:    doApply
+ * Signature: (Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_doApply(JNIEnv* env, jobject self, jobject src, jobject dst, jint slices) {
 	LOG_FN_ENTER();
 	struct v4lconvert_encoder* encoder = lookupNative(env, self);
 	if (!encoder)
@@ -172,7 +204,7 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_ImageFormatConverter_apply(
 	if (srcLen < 0)
 		return -1;
 	
-	u32 result = encoder->apply(encoder, (const u8*) srcPtr, (u8*) dstPtr, (u32) srcLen);
+	u32 result = v4lconvert_encoder_applySliced(encoder, (const u8*) srcPtr, (u8*) dstPtr, (u32) srcLen, slices > 1 ? (unsigned int) slices : 1);
 	dprint(LOG_V4L4J, "[V4L4J] Converted %'u => %'u bytes.\n", srcLen, result);
 	//Set capacity of output buffer
 	setBufferLimit(env, dst, (int) result);
@@ -198,6 +230,113 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_getQuality(JNIE
 		return -1;
 	return encoder->jpeg_encode_params.quality;
 }
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_JPEGEncoder
+ * Method:    isTurboJPEGLoaded
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_isTurboJPEGLoaded(JNIEnv* env, jclass me) {
+	LOG_FN_ENTER();
+	return v4lconvert_turbojpeg_available() ? JNI_TRUE : JNI_FALSE;
+}
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_JPEGEncoder
+ * Method:    getBackendId
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_getBackendId(JNIEnv* env, jclass me) {
+	LOG_FN_ENTER();
+	return (jint) v4lconvert_jpeg_get_backend();
+}
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_JPEGEncoder
+ * Method:    setBackendId
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_setBackendId(JNIEnv* env, jclass me, jint backend) {
+	LOG_FN_ENTER();
+	return (jint) v4lconvert_jpeg_set_backend(backend == V4LCONVERT_JPEG_TURBOJPEG ? V4LCONVERT_JPEG_TURBOJPEG : V4LCONVERT_JPEG_LIBJPEG);
+}
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_JPEGEncoder
+ * Method:    doSetStripes
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_doSetStripes(JNIEnv* env, jobject self, jint stripes) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder* encoder = lookupNative(env, self);
+	if (!encoder)
+		return;
+	if (stripes < 1 || stripes > V4LCONVERT_JPEG_MAX_STRIPES) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal number of stripes (%d; expected between 1 and %d)", stripes, V4LCONVERT_JPEG_MAX_STRIPES);
+		return;
+	}
+	if (v4lconvert_encoder_setJPEGStripes(encoder, (unsigned int) stripes) != EXIT_SUCCESS)
+		THROW_EXCEPTION(env, ARG_EXCP, "Frames of this format or size can't be compressed in stripes (%ux%u frames)", encoder->src_width, encoder->src_height);
+}
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_JPEGEncoder
+ * Method:    getStripes
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_JPEGEncoder_getStripes(JNIEnv* env, jobject self) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder* encoder = lookupNative(env, self);
+	if (!encoder)
+		return -1;
+	return encoder->jpeg_encode_params.stripes ? (jint) v4lconvert_jpeg_stripes_count(encoder->jpeg_encode_params.stripes) : 1;
+}
+
+// Methods for crop converter
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_CropConverter
+ * Method:    initCrop
+ * Signature: (IIIIIII)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_CropConverter_initCrop(JNIEnv* env, jclass me, jint format, jint frameWidth, jint frameHeight, jint left, jint top, jint width, jint height) {
+	LOG_FN_ENTER();
+	if (frameWidth <= 0 || frameHeight <= 0 || left < 0 || top < 0 || width <= 0 || height <= 0) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal region (%dx%d at %d,%d in %dx%d frame)", width, height, left, top, frameWidth, frameHeight);
+		return -1;
+	}
+	struct v4lconvert_encoder* encoder;
+	XMALLOC(encoder, struct v4lconvert_encoder*, sizeof(struct v4lconvert_encoder));
+	if (!encoder) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating memory for v4lconvert_encoder");
+		return -1;
+	}
+	if (v4lconvert_encoder_initForCrop(encoder, (u32) format, (u32) frameWidth, (u32) frameHeight, (u32) left, (u32) top, (u32) width, (u32) height) != EXIT_SUCCESS) {
+		XFREE(encoder);
+		THROW_EXCEPTION(env, INIT_EXCP, "Unsupported crop (fmt %d, %dx%d at %d,%d in %dx%d frame)", format, width, height, left, top, frameWidth, frameHeight);
+		return -1;
+	}
+	return (jlong)(uintptr_t) encoder;
+}
+
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_CropConverter_setOffset(JNIEnv* env, jobject self, jint left, jint top) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder* encoder = lookupNative(env, self);
+	if (!encoder)
+		return;
+	if (left < 0 || top < 0 || v4lconvert_encoder_setCropOffset(encoder, (u32) left, (u32) top) != EXIT_SUCCESS)
+		THROW_EXCEPTION(env, ARG_EXCP, "Region at %d,%d does not fit in the frame (%ux%u region in %ux%u frame)", left, top, encoder->dst_width, encoder->dst_height, encoder->src_width, encoder->src_height);
+}
+
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_CropConverter_getLeft(JNIEnv* env, jobject self) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder* encoder = lookupNative(env, self);
+	if (!encoder)
+		return -1;
+	return encoder->crop_params.left;
+}
+
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_CropConverter_getTop(JNIEnv* env, jobject self) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder* encoder = lookupNative(env, self);
+	if (!encoder)
+		return -1;
+	return encoder->crop_params.top;
+}
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,308 @@
+/*
+* Copyright (C) 20016 mailmindlin
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+* or FITNESS FOR A PARTICULAR PURPOSE.
+*/
+#include <jni.h>
+#include <stdint.h>
+#include <stdbool.h>
+#include <errno.h>
+#include <string.h>
+
+#include "common.h"
+#include "debug.h"
+#include "jniutils.h"
+#include "libvideo.h"
+#include "types.h"
+#include "libv4lconvert/libv4lconvert-flat.h"
+#include "libv4lconvert/costs.h"
+/* Header for class au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries */
+
+#ifndef _Included_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+#define _Included_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Converts the frame in buf0 of the given buffer with the given series,
+ * throwing an exception if a buffer is too small
+ * @return the number of bytes written to buf1, or -1 if an exception was thrown
+ */
+static jint applySeries(JNIEnv* env, struct v4lconvert_encoder_series* series, struct v4lconvert_buffer* buffer, jint slices) {
+	if (!buffer->buf0 || !buffer->buf1) {
+		THROW_EXCEPTION(env, NULL_EXCP, "One of the input buffers was null");
+		return -1;
+	}
+	u32 buf1_len, buf2_len;
+	v4lconvert_encoder_series_getBufferSizes(series, &buf1_len, &buf2_len);
+	if (buffer->buf1_cap < buf1_len || buffer->buf2_cap < buf2_len || (buf2_len && !buffer->buf2)) {
+		THROW_EXCEPTION(env, OVERFLOW_EXCP, "Buffers too small for series (output capacity %u, needs %u; intermediate capacity %u, needs %u)", buffer->buf1_cap, buf1_len, buffer->buf2_cap, buf2_len);
+		return -1;
+	}
+	series->slices = slices > 1 ? (unsigned int) slices : 1;
+	u32 result = series->convert(series, buffer);
+	if (!result) {
+		THROW_EXCEPTION(env, UNDERFLOW_EXCP, "Error converting %u bytes (expected %u)", buffer->buf0_len, (u32) series->src_len);
+		return -1;
+	}
+	dprint(LOG_V4L4J, "[V4L4J] Converted %'u => %'u bytes in %zu stages.\n", buffer->buf0_len, result, series->num_encoders);
+	return (jint) result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    initWithEncoders
+ * Signature: ([J)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_initWithEncoders(JNIEnv* env, jclass me, jlongArray encoderPtrs) {
+	LOG_FN_ENTER();
+	jsize numEncoders = (*env)->GetArrayLength(env, encoderPtrs);
+	if (numEncoders < 1) {
+		THROW_EXCEPTION(env, ARG_EXCP, "A series needs at least one encoder");
+		return 0;
+	}
+	jlong* ptrs = (*env)->GetLongArrayElements(env, encoderPtrs, NULL);
+	if (!ptrs) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Could not get pointer to array");
+		return 0;
+	}
+	struct v4lconvert_encoder** encoders;
+	XCALLOC(encoders, struct v4lconvert_encoder**, (size_t) numEncoders, sizeof(struct v4lconvert_encoder*));
+	struct v4lconvert_encoder_series* series;
+	XMALLOC(series, struct v4lconvert_encoder_series*, sizeof(struct v4lconvert_encoder_series));
+	if (!encoders || !series) {
+		(*env)->ReleaseLongArrayElements(env, encoderPtrs, ptrs, JNI_ABORT);
+		XFREE(encoders);
+		XFREE(series);
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating memory for v4lconvert_encoder_series");
+		return 0;
+	}
+	for (jsize i = 0; i < numEncoders; i++)
+		encoders[i] = (struct v4lconvert_encoder*) (uintptr_t) ptrs[i];
+	(*env)->ReleaseLongArrayElements(env, encoderPtrs, ptrs, JNI_ABORT);
+
+	//The series keeps its own copy of the array
+	int result = v4lconvert_encoder_series_initWithEncoders(series, (u32) numEncoders, encoders);
+	XFREE(encoders);
+	if (result != EXIT_SUCCESS) {
+		XFREE(series);
+		THROW_EXCEPTION(env, INIT_EXCP, "Error chaining %d encoders", numEncoders);
+		return 0;
+	}
+	return (jlong) (uintptr_t) series;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    doInit
+ * Signature: (IIIII)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_doInit(JNIEnv* env, jclass me, jint from, jint to, jint width, jint height, jint maxConversions) {
+	LOG_FN_ENTER();
+	if (maxConversions < 1) {
+		THROW_EXCEPTION(env, ARG_EXCP, "A series needs at least one conversion (was %d)", maxConversions);
+		return 0;
+	}
+	struct v4lconvert_encoder_series* series;
+	XMALLOC(series, struct v4lconvert_encoder_series*, sizeof(struct v4lconvert_encoder_series));
+	if (!series) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating memory for v4lconvert_encoder_series");
+		return 0;
+	}
+	if (v4lconvert_encoder_series_computeConversion(series, (u32) width, (u32) height, (u32) from, (u32) to, (unsigned int) maxConversions) != EXIT_SUCCESS) {
+		XFREE(series);
+		THROW_EXCEPTION(env, JNI_EXCP, "Error initializing encoder series (fmt %d => %d; %d iterations)", from, to, maxConversions);
+		return 0;
+	}
+	return (jlong) (uintptr_t) series;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    getEncoderPointers
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_getEncoderPointers(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) ptr;
+	jlongArray result = (*env)->NewLongArray(env, (jsize) series->num_encoders);
+	if (!result) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Could not create long array");
+		return NULL;
+	}
+	jlong* data = (*env)->GetLongArrayElements(env, result, NULL);
+	if (!data) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Could not get pointer to array");
+		return NULL;
+	}
+	for (size_t i = 0; i < series->num_encoders; i++)
+		data[i] = (jlong) (uintptr_t) series->encoders[i];
+	(*env)->ReleaseLongArrayElements(env, result, data, 0);
+	return result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    getBufferSizes
+ * Signature: (J)[I
+ */
+JNIEXPORT jintArray JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_getBufferSizes(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) ptr;
+	u32 buf1_len, buf2_len;
+	v4lconvert_encoder_series_getBufferSizes(series, &buf1_len, &buf2_len);
+	jintArray result = (*env)->NewIntArray(env, 3);
+	if (!result) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Could not create int array");
+		return NULL;
+	}
+	jint sizes[3] = { (jint) series->src_len, (jint) buf1_len, (jint) buf2_len };
+	(*env)->SetIntArrayRegion(env, result, 0, 3, sizes);
+	return result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    doApply
+ * Signature: (JJI)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_doApply(JNIEnv* env, jclass me, jlong seriesPtr, jlong bufPtr, jint slices) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) seriesPtr;
+	struct v4lconvert_buffer* buffer = (struct v4lconvert_buffer*) (uintptr_t) bufPtr;
+	if (!series || !buffer) {
+		THROW_EXCEPTION(env, NULL_EXCP, "Series or buffer pointer was null");
+		return -1;
+	}
+	return applySeries(env, series, buffer, slices);
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    doApplyBuffers
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_doApplyBuffers(JNIEnv* env, jclass me, jlong seriesPtr, jobject src, jobject dst, jobject imed, jint slices) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) seriesPtr;
+	if (!series) {
+		THROW_EXCEPTION(env, NULL_EXCP, "Series pointer was null");
+		return -1;
+	}
+	int srcLen = getBufferLimit(env, src);
+	if (srcLen < 0)
+		return -1;
+	struct v4lconvert_buffer buffer = {
+		.preserve_buf0 = true,
+		.buf0 = (*env)->GetDirectBufferAddress(env, src),
+		.buf0_len = (u32) srcLen,
+		.buf0_cap = (u32) (*env)->GetDirectBufferCapacity(env, src),
+		.buf1 = (*env)->GetDirectBufferAddress(env, dst),
+		.buf1_len = 0,
+		.buf1_cap = (u32) (*env)->GetDirectBufferCapacity(env, dst),
+		.buf2 = imed ? (*env)->GetDirectBufferAddress(env, imed) : NULL,
+		.buf2_cap = imed ? (u32) (*env)->GetDirectBufferCapacity(env, imed) : 0,
+	};
+	if (!buffer.buf0 || !buffer.buf1 || (imed && !buffer.buf2)) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Unable to get direct pointer to buffer");
+		return -1;
+	}
+	jint result = applySeries(env, series, &buffer, slices);
+	if (result >= 0)
+		setBufferLimit(env, dst, (int) result);
+	return result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    doRelease
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_doRelease(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) ptr;
+	if (!series)
+		return;
+	series->release(series);
+	XFREE(series);
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    getPredictedCost
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_getPredictedCost(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_series* series = (struct v4lconvert_encoder_series*) (uintptr_t) ptr;
+	return (jlong) series->predicted_cost;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    calibrate
+ * Signature: (III)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_calibrate(JNIEnv* env, jclass me, jint width, jint height, jint rounds) {
+	LOG_FN_ENTER();
+	if (width <= 0 || height <= 0 || rounds <= 0) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal calibration (%dx%d, %d rounds)", width, height, rounds);
+		return -1;
+	}
+	return v4lconvert_costs_calibrate((u32) width, (u32) height, (unsigned int) rounds);
+}
+
+/*
+ * Calls the given cost table function with a Java string, throwing an
+ * IOException if it fails
+ */
+static jint withPath(JNIEnv* env, jstring path, int (*fn)(const char* path), const char* action) {
+	const char* cpath = (*env)->GetStringUTFChars(env, path, NULL);
+	if (!cpath) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Unable to get path");
+		return -1;
+	}
+	int result = fn(cpath);
+	if (result < 0)
+		THROW_EXCEPTION(env, "java/io/IOException", "Unable to %s conversion costs '%s' (%s)", action, cpath, strerror(errno));
+	(*env)->ReleaseStringUTFChars(env, path, cpath);
+	return result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    loadCosts
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_loadCosts(JNIEnv* env, jclass me, jstring path) {
+	LOG_FN_ENTER();
+	return withPath(env, path, v4lconvert_costs_load, "load");
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    saveCosts
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_saveCosts(JNIEnv* env, jclass me, jstring path) {
+	LOG_FN_ENTER();
+	return withPath(env, path, v4lconvert_costs_save, "save");
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries
+ * Method:    clearCosts
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameEncoderSeries_clearCosts(JNIEnv* env, jclass me) {
+	LOG_FN_ENTER();
+	v4lconvert_costs_clear();
+}
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 20016 mailmindlin
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+* or FITNESS FOR A PARTICULAR PURPOSE.
+*/
+#include <jni.h>
+#include <stdint.h>
+#include <stdbool.h>
+
+#include "common.h"
+#include "debug.h"
+#include "jniutils.h"
+#include "libvideo.h"
+#include "types.h"
+#include "libv4lconvert/libv4lconvert-flat.h"
+/* Header for class au_edu_jcu_v4l4j_encoder_VideoFrameFanout */
+
+#ifndef _Included_au_edu_jcu_v4l4j_encoder_VideoFrameFanout
+#define _Included_au_edu_jcu_v4l4j_encoder_VideoFrameFanout
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameFanout
+ * Method:    doInit
+ * Signature: ([J[I)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameFanout_doInit(JNIEnv* env, jclass me, jlongArray encoderPtrs, jintArray parentIdxs) {
+	LOG_FN_ENTER();
+	jsize numEncoders = (*env)->GetArrayLength(env, encoderPtrs);
+	if (numEncoders < 1 || (*env)->GetArrayLength(env, parentIdxs) != numEncoders) {
+		THROW_EXCEPTION(env, ARG_EXCP, "A fanout needs at least one encoder, and a parent for each one");
+		return 0;
+	}
+	struct v4lconvert_encoder** encoders;
+	XCALLOC(encoders, struct v4lconvert_encoder**, (size_t) numEncoders, sizeof(struct v4lconvert_encoder*));
+	int* parents;
+	XCALLOC(parents, int*, (size_t) numEncoders, sizeof(int));
+	struct v4lconvert_encoder_fanout* fanout;
+	XMALLOC(fanout, struct v4lconvert_encoder_fanout*, sizeof(struct v4lconvert_encoder_fanout));
+	if (!encoders || !parents || !fanout) {
+		XFREE(encoders);
+		XFREE(parents);
+		XFREE(fanout);
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating memory for v4lconvert_encoder_fanout");
+		return 0;
+	}
+	jlong ptrs[numEncoders];
+	jint idxs[numEncoders];
+	(*env)->GetLongArrayRegion(env, encoderPtrs, 0, numEncoders, ptrs);
+	(*env)->GetIntArrayRegion(env, parentIdxs, 0, numEncoders, idxs);
+	for (jsize i = 0; i < numEncoders; i++) {
+		encoders[i] = (struct v4lconvert_encoder*) (uintptr_t) ptrs[i];
+		parents[i] = idxs[i];
+	}
+
+	//The fanout keeps its own copies of the arrays
+	int result = v4lconvert_encoder_fanout_init(fanout, (u32) numEncoders, encoders, parents);
+	XFREE(encoders);
+	XFREE(parents);
+	if (result != EXIT_SUCCESS) {
+		XFREE(fanout);
+		THROW_EXCEPTION(env, INIT_EXCP, "Error arranging %d encoders", numEncoders);
+		return 0;
+	}
+	return (jlong) (uintptr_t) fanout;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameFanout
+ * Method:    doApply
+ * Signature: (JLjava/nio/ByteBuffer;[Ljava/nio/ByteBuffer;I)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameFanout_doApply(JNIEnv* env, jclass me, jlong ptr, jobject src, jobjectArray dsts, jint parallelism) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_fanout* fanout = (struct v4lconvert_encoder_fanout*) (uintptr_t) ptr;
+	if (!fanout) {
+		THROW_EXCEPTION(env, NULL_EXCP, "Fanout pointer was null");
+		return;
+	}
+	const size_t n = fanout->num_encoders;
+	if ((size_t) (*env)->GetArrayLength(env, dsts) != n) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Expected %zu output buffers (got %d)", n, (*env)->GetArrayLength(env, dsts));
+		return;
+	}
+	int srcLen = getBufferLimit(env, src);
+	if (srcLen < 0)
+		return;
+	const u8* srcPtr = (*env)->GetDirectBufferAddress(env, src);
+	if (!srcPtr) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Unable to get direct pointer to source buffer");
+		return;
+	}
+
+	u8* outputs[n];
+	u32 caps[n];
+	u32 lens[n];
+	for (size_t i = 0; i < n; i++) {
+		jobject dst = (*env)->GetObjectArrayElement(env, dsts, (jsize) i);
+		outputs[i] = NULL;
+		caps[i] = 0;
+		if (!dst)
+			continue;
+		outputs[i] = (*env)->GetDirectBufferAddress(env, dst);
+		caps[i] = (u32) (*env)->GetDirectBufferCapacity(env, dst);
+		(*env)->DeleteLocalRef(env, dst);
+		if (!outputs[i]) {
+			THROW_EXCEPTION(env, JNI_EXCP, "Unable to get direct pointer to output buffer #%zu", i);
+			return;
+		}
+	}
+
+	if (!v4lconvert_encoder_fanout_apply(fanout, srcPtr, (u32) srcLen, outputs, caps, lens, parallelism > 1 ? (unsigned int) parallelism : 1)) {
+		for (size_t i = 0; i < n; i++) {
+			if (outputs[i] && caps[i] < fanout->encoders[i]->dst_len) {
+				THROW_EXCEPTION(env, OVERFLOW_EXCP, "Output buffer #%zu too small (capacity %u, needs %u)", i, caps[i], (u32) fanout->encoders[i]->dst_len);
+				return;
+			}
+		}
+		THROW_EXCEPTION(env, UNDERFLOW_EXCP, "Error converting %d bytes (expected %u)", srcLen, (u32) fanout->src_len);
+		return;
+	}
+
+	for (size_t i = 0; i < n; i++) {
+		if (!outputs[i])
+			continue;
+		jobject dst = (*env)->GetObjectArrayElement(env, dsts, (jsize) i);
+		setBufferLimit(env, dst, (int) lens[i]);
+		(*env)->DeleteLocalRef(env, dst);
+	}
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_VideoFrameFanout
+ * Method:    doRelease
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_VideoFrameFanout_doRelease(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4lconvert_encoder_fanout* fanout = (struct v4lconvert_encoder_fanout*) (uintptr_t) ptr;
+	if (!fanout)
+		return;
+	v4lconvert_encoder_fanout_release(fanout);
+	XFREE(fanout);
+}
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,376 @@
+/*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+* or FITNESS FOR A PARTICULAR PURPOSE.
+*/
+// sendmmsg()
+#define _GNU_SOURCE
+#include <jni.h>
+#include <errno.h>
+#include <stdbool.h>
+#include <stdint.h>
+#include <string.h>
+#include <unistd.h>
+#include <netinet/in.h>
+#include <netinet/udp.h>
+#include <sys/socket.h>
+
+#include "common.h"
+#include "debug.h"
+
+#ifndef UDP_SEGMENT
+#define UDP_SEGMENT 103
+#endif
+
+/*
+ * Largest number of datagrams sent by one sendmmsg() call
+ */
+#define UDP_BATCH_MESSAGES 256
+/*
+ * Largest number of datagrams sent as one GSO super-datagram, which older
+ * kernels limit to 64, and largest payload of a super-datagram, leaving room
+ * for IPv4 and UDP headers in a 64 KiB IP packet
+ */
+#define UDP_GSO_MAX_SEGMENTS 64
+#define UDP_GSO_MAX_PAYLOAD 65000
+
+struct udp_batch_sender {
+	int fd;
+	int family;
+	bool gso_supported;
+	bool gso;
+	unsigned int max_packets;
+	/* lengths of the packets of the batch being sent */
+	jint* lengths;
+	struct mmsghdr msgs[UDP_BATCH_MESSAGES];
+	struct iovec iovs[UDP_BATCH_MESSAGES];
+	union {
+		struct sockaddr_in v4;
+		struct sockaddr_in6 v6;
+	} addrs[UDP_BATCH_MESSAGES];
+	union {
+		char buf[CMSG_SPACE(sizeof(uint16_t))];
+		struct cmsghdr align;
+	} controls[UDP_BATCH_MESSAGES];
+	/* where each message of a call starts, to rebuild them without GSO */
+	int msg_dest[UDP_BATCH_MESSAGES];
+	unsigned int msg_packet[UDP_BATCH_MESSAGES];
+	size_t msg_offset[UDP_BATCH_MESSAGES];
+};
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doOpen
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doOpen(JNIEnv* env, jclass me, jint max_packets) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender;
+
+	XMALLOC(sender, struct udp_batch_sender*, sizeof(struct udp_batch_sender));
+	if (!sender) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating the UDP batch sender");
+		return 0;
+	}
+	XMALLOC(sender->lengths, jint*, sizeof(jint) * (size_t) max_packets);
+	if (!sender->lengths) {
+		XFREE(sender);
+		THROW_EXCEPTION(env, JNI_EXCP, "Error allocating the UDP batch sender");
+		return 0;
+	}
+	sender->max_packets = (unsigned int) max_packets;
+
+	// dual stack, so that IPv4 destinations are reached through mapped
+	// addresses, unless IPv6 is disabled
+	sender->family = AF_INET6;
+	sender->fd = socket(AF_INET6, SOCK_DGRAM | SOCK_CLOEXEC, IPPROTO_UDP);
+	if (sender->fd < 0) {
+		sender->family = AF_INET;
+		sender->fd = socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, IPPROTO_UDP);
+	}
+	if (sender->fd < 0) {
+		int err = errno;
+		XFREE(sender->lengths);
+		XFREE(sender);
+		THROW_EXCEPTION(env, IO_EXCP, "Error opening UDP socket: %s", strerror(err));
+		return 0;
+	}
+	// bound now rather than by the first sendmmsg(), so that receivers can
+	// be told the source port before
+	struct sockaddr_in6 any6 = { .sin6_family = AF_INET6, .sin6_addr = IN6ADDR_ANY_INIT };
+	struct sockaddr_in any4 = { .sin_family = AF_INET, .sin_addr.s_addr = htonl(INADDR_ANY) };
+	int result;
+	if (sender->family == AF_INET6) {
+		int off = 0;
+		setsockopt(sender->fd, IPPROTO_IPV6, IPV6_V6ONLY, &off, sizeof(off));
+		result = bind(sender->fd, (struct sockaddr*) &any6, sizeof(any6));
+	} else {
+		result = bind(sender->fd, (struct sockaddr*) &any4, sizeof(any4));
+	}
+	if (result < 0) {
+		int err = errno;
+		close(sender->fd);
+		XFREE(sender->lengths);
+		XFREE(sender);
+		THROW_EXCEPTION(env, IO_EXCP, "Error binding UDP socket: %s", strerror(err));
+		return 0;
+	}
+
+	// UDP GSO appeared in Linux 4.18: setting a segment size tells if it is
+	// there, and is then cleared so that each message sets its own
+	int segment = 1400;
+	if (setsockopt(sender->fd, SOL_UDP, UDP_SEGMENT, &segment, sizeof(segment)) == 0) {
+		segment = 0;
+		setsockopt(sender->fd, SOL_UDP, UDP_SEGMENT, &segment, sizeof(segment));
+		sender->gso_supported = sender->gso = true;
+	}
+	dprint(LOG_V4L4J, "[V4L4J] Opened UDP batch sender (fd %d, GSO %s)\n", sender->fd, sender->gso ? "on" : "off");
+
+	return (uintptr_t) sender;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doGetLocalPort
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doGetLocalPort(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	struct sockaddr_storage addr;
+	socklen_t len = sizeof(addr);
+
+	if (getsockname(sender->fd, (struct sockaddr*) &addr, &len) < 0) {
+		THROW_EXCEPTION(env, IO_EXCP, "Error getting the UDP socket address: %s", strerror(errno));
+		return 0;
+	}
+	return ntohs(addr.ss_family == AF_INET6 ? ((struct sockaddr_in6*) &addr)->sin6_port : ((struct sockaddr_in*) &addr)->sin_port);
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doIsSegmentationOffloadSupported
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doIsSegmentationOffloadSupported(JNIEnv* env, jclass me, jlong ptr) {
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	return sender->gso_supported ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doIsSegmentationOffload
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doIsSegmentationOffload(JNIEnv* env, jclass me, jlong ptr) {
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	return sender->gso ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doSetSegmentationOffload
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doSetSegmentationOffload(JNIEnv* env, jclass me, jlong ptr, jboolean enabled) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	sender->gso = enabled && sender->gso_supported;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doSetMulticastTTL
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doSetMulticastTTL(JNIEnv* env, jclass me, jlong ptr, jint ttl) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	unsigned char ttl_v4 = (unsigned char) ttl;
+	int hops = ttl;
+
+	// IPv4 destinations of a dual stack socket use the IPv4 option
+	if (setsockopt(sender->fd, IPPROTO_IP, IP_MULTICAST_TTL, &ttl_v4, sizeof(ttl_v4)) < 0 && sender->family == AF_INET)
+		THROW_EXCEPTION(env, IO_EXCP, "Error setting the multicast TTL: %s", strerror(errno));
+	else if (sender->family == AF_INET6 && setsockopt(sender->fd, IPPROTO_IPV6, IPV6_MULTICAST_HOPS, &hops, sizeof(hops)) < 0)
+		THROW_EXCEPTION(env, IO_EXCP, "Error setting the multicast hop limit: %s", strerror(errno));
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doSetMulticastInterface
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doSetMulticastInterface(JNIEnv* env, jclass me, jlong ptr, jint index) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	struct ip_mreqn mreq = { .imr_ifindex = index };
+
+	if (setsockopt(sender->fd, IPPROTO_IP, IP_MULTICAST_IF, &mreq, sizeof(mreq)) < 0 && sender->family == AF_INET)
+		THROW_EXCEPTION(env, IO_EXCP, "Error setting the multicast interface: %s", strerror(errno));
+	else if (sender->family == AF_INET6 && setsockopt(sender->fd, IPPROTO_IPV6, IPV6_MULTICAST_IF, &index, sizeof(index)) < 0)
+		THROW_EXCEPTION(env, IO_EXCP, "Error setting the multicast interface: %s", strerror(errno));
+}
+
+/*
+ * fill in the socket address of a destination, given as a 16 byte IPv6
+ * address (IPv4 ones mapped) and a port
+ * return the length of the address, or 0 if the socket can't reach it
+ */
+static socklen_t set_destination(struct udp_batch_sender* sender, int msg, const jbyte* address, jint port) {
+	if (sender->family == AF_INET6) {
+		struct sockaddr_in6* addr = &sender->addrs[msg].v6;
+		memset(addr, 0, sizeof(*addr));
+		addr->sin6_family = AF_INET6;
+		addr->sin6_port = htons((uint16_t) port);
+		memcpy(&addr->sin6_addr, address, 16);
+		return sizeof(*addr);
+	}
+	static const jbyte mapped[12] = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (jbyte) 0xFF, (jbyte) 0xFF };
+	if (memcmp(address, mapped, sizeof(mapped)))
+		return 0;
+	struct sockaddr_in* addr = &sender->addrs[msg].v4;
+	memset(addr, 0, sizeof(*addr));
+	addr->sin_family = AF_INET;
+	addr->sin_port = htons((uint16_t) port);
+	memcpy(&addr->sin_addr, address + 12, 4);
+	return sizeof(*addr);
+}
+
+/*
+ * send a batch of datagrams, stored one after the other in a direct buffer,
+ * to each destination. With GSO, runs of datagrams of the same size (and a
+ * shorter last one) are sent as one message the kernel splits; if the path
+ * can't do it, GSO is turned off and the messages are sent again without.
+ * return the number of sendmmsg() calls made
+ */
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doSend
+ * Signature: (JLjava/nio/ByteBuffer;[II[B[II)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doSend(JNIEnv* env, jclass me, jlong ptr, jobject batch, jintArray lengths, jint count, jbyteArray addresses, jintArray ports, jint nb_dests) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	uint8_t* data = (*env)->GetDirectBufferAddress(env, batch);
+	jbyte address[16];
+	jint port = 0;
+	socklen_t addr_len = 0;
+	int calls = 0;
+
+	if (!data) {
+		THROW_EXCEPTION(env, ARG_EXCP, "The batch buffer is not a direct buffer");
+		return 0;
+	}
+	if (count <= 0 || (unsigned int) count > sender->max_packets || nb_dests <= 0)
+		return 0;
+	(*env)->GetIntArrayRegion(env, lengths, 0, count, sender->lengths);
+
+	// position of the next datagram to put in a message
+	int dest = 0;
+	unsigned int packet = 0;
+	size_t offset = 0;
+	int loaded_dest = -1;
+	while (dest < nb_dests) {
+		int nb_msgs = 0;
+		while (nb_msgs < UDP_BATCH_MESSAGES && dest < nb_dests) {
+			if (loaded_dest != dest) {
+				(*env)->GetByteArrayRegion(env, addresses, dest * 16, 16, address);
+				(*env)->GetIntArrayRegion(env, ports, dest, 1, &port);
+				loaded_dest = dest;
+			}
+			addr_len = set_destination(sender, nb_msgs, address, port);
+			if (!addr_len) {
+				THROW_EXCEPTION(env, IO_EXCP, "IPv6 destination unreachable from an IPv4 socket");
+				return calls;
+			}
+
+			// datagrams of the same size, and a shorter last one, go together
+			unsigned int segments = 1;
+			size_t size = (size_t) sender->lengths[packet];
+			size_t total = size;
+			if (sender->gso) {
+				while (packet + segments < (unsigned int) count && segments < UDP_GSO_MAX_SEGMENTS) {
+					size_t next = (size_t) sender->lengths[packet + segments];
+					if (next > size || total + next > UDP_GSO_MAX_PAYLOAD)
+						break;
+					segments++;
+					total += next;
+					if (next < size)
+						break;
+				}
+			}
+
+			struct mmsghdr* msg = &sender->msgs[nb_msgs];
+			memset(msg, 0, sizeof(*msg));
+			sender->iovs[nb_msgs].iov_base = data + offset;
+			sender->iovs[nb_msgs].iov_len = total;
+			msg->msg_hdr.msg_name = &sender->addrs[nb_msgs];
+			msg->msg_hdr.msg_namelen = addr_len;
+			msg->msg_hdr.msg_iov = &sender->iovs[nb_msgs];
+			msg->msg_hdr.msg_iovlen = 1;
+			if (segments > 1) {
+				msg->msg_hdr.msg_control = sender->controls[nb_msgs].buf;
+				msg->msg_hdr.msg_controllen = sizeof(sender->controls[nb_msgs].buf);
+				struct cmsghdr* cmsg = CMSG_FIRSTHDR(&msg->msg_hdr);
+				cmsg->cmsg_level = SOL_UDP;
+				cmsg->cmsg_type = UDP_SEGMENT;
+				cmsg->cmsg_len = CMSG_LEN(sizeof(uint16_t));
+				uint16_t segment_size = (uint16_t) size;
+				memcpy(CMSG_DATA(cmsg), &segment_size, sizeof(segment_size));
+			}
+			sender->msg_dest[nb_msgs] = dest;
+			sender->msg_packet[nb_msgs] = packet;
+			sender->msg_offset[nb_msgs] = offset;
+			nb_msgs++;
+
+			packet += segments;
+			offset += total;
+			if (packet == (unsigned int) count) {
+				packet = 0;
+				offset = 0;
+				dest++;
+			}
+		}
+
+		int sent = 0;
+		while (sent < nb_msgs) {
+			int result = sendmmsg(sender->fd, &sender->msgs[sent], (unsigned int) (nb_msgs - sent), 0);
+			calls++;
+			if (result >= 0) {
+				sent += result;
+			} else if (errno == EINTR) {
+				continue;
+			} else if (sender->gso && (errno == EIO || errno == EINVAL) && sender->msgs[sent].msg_hdr.msg_controllen) {
+				// no checksum offload on the way out, or segments larger than
+				// the MTU: send the rest one datagram per message
+				dprint(LOG_V4L4J, "[V4L4J] UDP GSO failed (%s), turning it off\n", strerror(errno));
+				sender->gso = false;
+				dest = sender->msg_dest[sent];
+				packet = sender->msg_packet[sent];
+				offset = sender->msg_offset[sent];
+				loaded_dest = -1;
+				break;
+			} else {
+				THROW_EXCEPTION(env, IO_EXCP, "Error sending UDP datagrams: %s", strerror(errno));
+				return calls;
+			}
+		}
+	}
+	return calls;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_stream_UDPBatchSender
+ * Method:    doClose
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_stream_UDPBatchSender_doClose(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct udp_batch_sender* sender = (struct udp_batch_sender*) (uintptr_t) ptr;
+	if (!sender)
+		return;
+	close(sender->fd);
+	XFREE(sender->lengths);
+	XFREE(sender);
+}
@@ -42,6 +42,10 @@ struct jpeg_data {
 	struct jpeg_error_mgr *jerr;
 	int lines_written_per_loop;
 	int jpeg_quality;			//the jpeg quality, set to -1 if disable
+	struct v4lconvert_turbojpeg *turbo;	//used instead of cinfo if not NULL
+	struct v4lconvert_jpeg_stripes *stripes;	//used instead of the above if not NULL
+	//the conversion function used when frames are not compressed in stripes
+	size_t (*convert_whole) (struct v4l4j_device *device, unsigned char *src, unsigned char *dst);
 };
 
 struct rgb_data {
@@ -124,6 +128,7 @@ struct v4l4j_device {
 #define UNDERFLOW_EXCP			EXCEPTION_PACKAGE "BufferUnderflowException"
 #define NULL_EXCP				"java/lang/NullPointerException"
 #define ARG_EXCP				"java/lang/IllegalArgumentException"
+#define IO_EXCP					"java/io/IOException"
 
 
 /* Exception throwing helper */
@@ -25,6 +25,8 @@
 #include "debug.h"
 #include "libvideo.h"
 #include "pixfmt-conv.h"
+#include "libv4lconvert/jpeg_stripes.h"
+#include "libv4lconvert/jpeg_turbo.h"
 
 #define DHT_SIZE		420
 static uint8_t huffman_table[] =
@@ -357,10 +359,77 @@ static size_t jpeg_encode_bgr24(struct v4l4j_device *d, unsigned char *src, unsi
 }
 
 
+/* Room for the JPEG image of a frame, the same the libjpeg encoders give
+ * themselves
+ */
+static size_t jpeg_dst_len(struct v4l4j_device *d) {
+	int palette = d->vdev->capture->palette;
+	if (palette == YUYV || palette == YVYU || palette == UYVY)
+		return d->vdev->capture->imagesize;
+	return (size_t) d->vdev->capture->width * d->vdev->capture->height * 3;
+}
+
+/* Encodes a frame of any format TurboJPEG supports in a single call, rather
+ * than feeding libjpeg one scanline or MCU row at a time
+ */
+static size_t jpeg_encode_turbo(struct v4l4j_device *d, unsigned char *src, unsigned char *dst) {
+	LOG_FN_ENTER();
+	unsigned int width = d->vdev->capture->width;
+	unsigned int height = d->vdev->capture->height;
+	int palette = d->vdev->capture->palette;
+
+	dprint(LOG_JPEG, "[JPEG] Starting compression (%u bytes)\n", d->vdev->capture->imagesize);
+	size_t len = v4lconvert_turbojpeg_encode(d->j->turbo, src, (u32) palette, width, height, d->j->jpeg_quality, dst, jpeg_dst_len(d));
+	dprint(LOG_JPEG, "[JPEG] Finished compression (%u bytes)\n", len);
+	return len;
+}
+
+/* Encodes a frame as horizontal stripes compressed at the same time, joined
+ * with restart markers into a single JPEG image
+ */
+static size_t jpeg_encode_stripes(struct v4l4j_device *d, unsigned char *src, unsigned char *dst) {
+	LOG_FN_ENTER();
+	dprint(LOG_JPEG, "[JPEG] Starting compression in %u stripes (%u bytes)\n", v4lconvert_jpeg_stripes_count(d->j->stripes), d->vdev->capture->imagesize);
+	size_t len = v4lconvert_jpeg_stripes_encode(d->j->stripes, src, d->j->jpeg_quality, dst, jpeg_dst_len(d));
+	dprint(LOG_JPEG, "[JPEG] Finished compression (%u bytes)\n", len);
+	return len;
+}
+
+int set_jpeg_stripes(struct v4l4j_device *d, unsigned int stripes) {
+	struct v4lconvert_jpeg_stripes *compressor = NULL;
+	if (stripes > 1) {
+		compressor = v4lconvert_jpeg_stripes_create((u32) d->vdev->capture->palette, d->vdev->capture->width, d->vdev->capture->height, stripes);
+		if (!compressor) {
+			info("[JPEG] Image format %d cannot be JPEG encoded in %u stripes\n", d->vdev->capture->palette, stripes);
+			return -1;
+		}
+	}
+	if (d->j->stripes)
+		v4lconvert_jpeg_stripes_destroy(d->j->stripes);
+	else
+		d->j->convert_whole = d->convert;
+	d->j->stripes = compressor;
+	d->convert = compressor ? jpeg_encode_stripes : d->j->convert_whole;
+	dprint(LOG_JPEG, "[JPEG] Compressing frames in %u stripes\n", compressor ? v4lconvert_jpeg_stripes_count(compressor) : 1);
+	return 0;
+}
+
 int init_jpeg_compressor(struct v4l4j_device *d, int q){
 	dprint(LOG_JPEG, "[JPEG] Initializing the JPEG compressor\n");
 	XMALLOC(d->j, struct jpeg_data *, sizeof(struct jpeg_data));
 
+	if (v4lconvert_jpeg_get_backend() == V4LCONVERT_JPEG_TURBOJPEG && (d->vdev->capture->palette == YUV420 ||
+		d->vdev->capture->palette == YUYV || d->vdev->capture->palette == YVYU ||
+		d->vdev->capture->palette == RGB24 || d->vdev->capture->palette == RGB32 ||
+		d->vdev->capture->palette == BGR24 || d->vdev->capture->palette == UYVY ||
+		d->vdev->capture->palette == BGR32) && (d->j->turbo = v4lconvert_turbojpeg_create())) {
+
+		dprint(LOG_JPEG, "[JPEG] Setting TurboJPEG compressor for palette %d\n", d->vdev->capture->palette);
+		d->j->jpeg_quality = q;
+		d->convert = jpeg_encode_turbo;
+		return 0;
+	}
+
 	if(d->vdev->capture->palette == YUV420 || d->vdev->capture->palette == YUYV ||
 		d->vdev->capture->palette == YVYU || d->vdev->capture->palette == RGB24 ||
 		d->vdev->capture->palette == RGB32 || d->vdev->capture->palette == BGR24 ||
@@ -474,7 +543,11 @@ int init_jpeg_compressor(struct v4l4j_device *d, int q){
 
 void destroy_jpeg_compressor(struct v4l4j_device *d){
 	dprint(LOG_JPEG, "[JPEG] Destroying JPEG compressor\n");
-	if(d->vdev->capture->palette == YUV420 || d->vdev->capture->palette == YUYV ||
+	if (d->j->stripes)
+		v4lconvert_jpeg_stripes_destroy(d->j->stripes);
+	if (d->j->turbo) {
+		v4lconvert_turbojpeg_destroy(d->j->turbo);
+	} else if(d->vdev->capture->palette == YUV420 || d->vdev->capture->palette == YUYV ||
 		d->vdev->capture->palette == YVYU || d->vdev->capture->palette == RGB24 ||
 		d->vdev->capture->palette == RGB32 || d->vdev->capture->palette == BGR24 ||
 		d->vdev->capture->palette == UYVY || d->vdev->capture->palette == BGR32) {
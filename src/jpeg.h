@@ -33,4 +33,9 @@ int init_jpeg_compressor(struct v4l4j_device *, int quality);
 
 void destroy_jpeg_compressor(struct v4l4j_device *);
 
+//Compresses each frame as the given number of stripes at the same time, or
+//whole again if 1. Returns 0, or -1 if the palette or frame size can't be
+//split into stripes
+int set_jpeg_stripes(struct v4l4j_device *, unsigned int stripes);
+
 #endif /*H_JPEG*/
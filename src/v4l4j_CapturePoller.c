@@ -0,0 +1,86 @@
+#include <jni.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdint.h>
+#include <string.h>
+#include <sys/eventfd.h>
+#include <unistd.h>
+
+#include "common.h"
+#include "debug.h"
+
+/*
+ * create the eventfd used to wake up a thread blocked in doPoll()
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_CapturePoller_doOpen(JNIEnv *env, jclass me) {
+	LOG_FN_ENTER();
+	int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+
+	if (fd < 0)
+		THROW_EXCEPTION(env, GENERIC_EXCP, "Error creating the wake-up file descriptor: %s", strerror(errno));
+
+	return fd;
+}
+
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_CapturePoller_doWakeup(JNIEnv *env, jclass me, jint wakeup_fd) {
+	LOG_FN_ENTER();
+	uint64_t one = 1;
+
+	// the counter can only overflow after 2^64 - 1 wake-ups without a poll,
+	// in which case it is readable already
+	if (write(wakeup_fd, &one, sizeof(one)) != sizeof(one))
+		dprint(LOG_V4L4J, "[V4L4J] Error waking up poller: %s\n", strerror(errno));
+}
+
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_CapturePoller_doClose(JNIEnv *env, jclass me, jint wakeup_fd) {
+	LOG_FN_ENTER();
+	close(wakeup_fd);
+}
+
+/*
+ * wait until one of the given device file descriptors has a buffer ready, or
+ * the wake-up file descriptor is written to. Set the matching entry of ready
+ * for each device with a buffer ready.
+ * return the number of devices with a buffer ready
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_CapturePoller_doPoll(JNIEnv *env, jclass me, jint wakeup_fd, jintArray fds, jbooleanArray ready, jint timeout_ms) {
+	LOG_FN_ENTER();
+	jsize nb_fds = (*env)->GetArrayLength(env, fds);
+	struct pollfd pfds[nb_fds + 1];
+	jint device_fds[nb_fds + 1];
+	jboolean device_ready[nb_fds + 1];
+	int count = 0;
+
+	(*env)->GetIntArrayRegion(env, fds, 0, nb_fds, device_fds);
+	pfds[0].fd = wakeup_fd;
+	pfds[0].events = POLLIN;
+	for (jsize i = 0; i < nb_fds; i++) {
+		pfds[i + 1].fd = device_fds[i];
+		pfds[i + 1].events = POLLIN;
+	}
+
+	int result = poll(pfds, nb_fds + 1, timeout_ms);
+	if (result < 0) {
+		if (errno == EINTR)
+			return 0;
+		THROW_EXCEPTION(env, GENERIC_EXCP, "Error polling video devices: %s", strerror(errno));
+		return 0;
+	}
+
+	if (pfds[0].revents & POLLIN) {
+		uint64_t value;
+		if (read(wakeup_fd, &value, sizeof(value)) < 0)
+			dprint(LOG_V4L4J, "[V4L4J] Error draining poller wake-up: %s\n", strerror(errno));
+	}
+
+	// report errors (eg capture stopped) as readiness, so the application
+	// finds out about them from tryNextFrame()
+	for (jsize i = 0; i < nb_fds; i++) {
+		device_ready[i] = (pfds[i + 1].revents & (POLLIN | POLLERR | POLLHUP | POLLNVAL)) ? JNI_TRUE : JNI_FALSE;
+		if (device_ready[i])
+			count++;
+	}
+	(*env)->SetBooleanArrayRegion(env, ready, 0, nb_fds, device_ready);
+
+	return count;
+}
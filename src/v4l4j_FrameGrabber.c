@@ -27,6 +27,7 @@
 #include <jpeglib.h>
 #include <stdint.h>
 #include <sys/time.h>		//for struct timeval
+#include <time.h>			//for clock_gettime
 
 #include "common.h"
 #include "debug.h"
@@ -34,13 +35,21 @@
 #include "libvideo.h"
 #include "libvideo-err.h"
 #include "jpeg.h"
+#include "libv4lconvert/jpeg_stripes.h"
 #include "libvideo-palettes.h"
 #include "rgb.h"
 
-// static variables
-static jfieldID last_captured_frame_sequence_fID = NULL;
-static jfieldID last_captured_frame_time_usec_fID = NULL;
-static jfieldID last_captured_frame_buffer_index_fID = NULL;
+/*
+ * Layout of the frame metadata entries written to the long[] given by
+ * AbstractGrabber. Update AbstractGrabber.METADATA_* if this changes.
+ */
+#define METADATA_INDEX				0
+#define METADATA_LENGTH				1
+#define METADATA_SEQUENCE			2
+#define METADATA_TIME_US			3
+#define METADATA_DEQUEUE_NS			4
+#define METADATA_CONVERSION_NS		5
+#define METADATA_SIZE				6
 
 
 /*
@@ -238,45 +247,74 @@ static int init_capture_format(struct v4l4j_device *d, int fg_out_fmt, int* src_
 
 
 /*
- * Gets the fieldIDs for members that have to be updated every time a frame is captured
+ * Returns the current value of the monotonic clock, in nanoseconds
+ */
+static jlong monotonic_ns() {
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (jlong) now.tv_sec * INT64_C(1000000000) + (jlong) now.tv_nsec;
+}
+
+/*
+ * Fills a frame metadata entry
+ */
+static void set_frame_metadata(jlong *entry, unsigned int index, unsigned int length, unsigned long long sequence, struct timeval *captureTime, jlong dequeue_ns, jlong conversion_ns) {
+	entry[METADATA_INDEX] = index;
+	entry[METADATA_LENGTH] = length;
+	entry[METADATA_SEQUENCE] = (jlong) sequence;
+	entry[METADATA_TIME_US] = (jlong) captureTime->tv_sec * INT64_C(1000000) + (jlong) captureTime->tv_usec;
+	entry[METADATA_DEQUEUE_NS] = dequeue_ns;
+	entry[METADATA_CONVERSION_NS] = conversion_ns;
+}
+
+
+/*
+ * Hands the given array of direct ByteBuffers to libvideo, so the driver
+ * captures straight into them (V4L2_MEMORY_USERPTR)
  * return 0 if an exception is thrown, 1 otherwise
  */
-static int get_lastFrame_field_ids(JNIEnv *e, jobject this, struct v4l4j_device *d){
+static int set_user_buffers(JNIEnv *e, struct v4l4j_device *d, jobjectArray user_buffers) {
 	LOG_FN_ENTER();
-	
-	//gets the fields of members updated every frame captured.
-	jclass this_class = (*e)->GetObjectClass(e, this);
-	if(this_class == NULL) {
-		THROW_EXCEPTION(e, JNI_EXCP, "Error looking up FrameGrabber class");
-		return 0;
-	}
-
-	//last_captured_frame_sequence_fID
-	last_captured_frame_sequence_fID = (*e)->GetFieldID(e, this_class, "lastCapturedFrameSequence", "J");
-	if(last_captured_frame_sequence_fID == NULL) {
-		THROW_EXCEPTION(e, JNI_EXCP, "Error looking up last_captured_frame_sequence_fID field in FrameGrabber class");
-		return 0;
+	jsize nb_buf = (*e)->GetArrayLength(e, user_buffers);
+	void **buffers;
+	unsigned int *lengths;
+	int ret = 1;
+
+	XMALLOC(buffers, void **, nb_buf * sizeof(void *));
+	XMALLOC(lengths, unsigned int *, nb_buf * sizeof(unsigned int));
+
+	for(jsize i = 0; i < nb_buf; i++) {
+		jobject buffer = (*e)->GetObjectArrayElement(e, user_buffers, i);
+		buffers[i] = buffer ? (*e)->GetDirectBufferAddress(e, buffer) : NULL;
+		if(buffers[i] == NULL) {
+			if(buffer)
+				(*e)->DeleteLocalRef(e, buffer);
+			THROW_EXCEPTION(e, ARG_EXCP, "Capture buffer %d is not a direct ByteBuffer", i);
+			ret = 0;
+			goto end;
+		}
+		lengths[i] = (unsigned int) (*e)->GetDirectBufferCapacity(e, buffer);
+		(*e)->DeleteLocalRef(e, buffer);
 	}
 
-	// last_captured_frame_time_usec_fID
-	last_captured_frame_time_usec_fID = (*e)->GetFieldID(e, this_class, "lastCapturedFrameTimeuSec", "J");
-	if(last_captured_frame_time_usec_fID == NULL) {
-		THROW_EXCEPTION(e, JNI_EXCP, "Error looking up lastCapturedFrameTimeuSec field in FrameGrabber class");
-		return 0;
+	dprint(LOG_LIBVIDEO, "[LIBVIDEO] Calling 'set_capture_user_buffers(dev: %s, %d buffers)'\n", d->vdev->file, nb_buf);
+	int err = set_capture_user_buffers(d->vdev, buffers, lengths, nb_buf);
+	if(err == LIBVIDEO_ERR_WRONG_VERSION) {
+		THROW_EXCEPTION(e, UNSUPPORTED_METH_EXCP, "V4L1 devices cannot capture into user-supplied buffers");
+		ret = 0;
+	} else if(err != LIBVIDEO_ERR_SUCCESS) {
+		THROW_EXCEPTION(e, INIT_EXCP, "Error setting up user-supplied capture buffers (error=%d)", err);
+		ret = 0;
 	}
 
-	// last_captured_frame_buffer_index_fID
-	last_captured_frame_buffer_index_fID = (*e)->GetFieldID(e, this_class, "lastCapturedFrameBufferIndex", "I");
-	if(last_captured_frame_buffer_index_fID == NULL) {
-		THROW_EXCEPTION(e, JNI_EXCP, "Error looking up lastCapturedFrameBufferIndex field in FrameGrabber class");
-		return 0;
-	}
-	return 1;
+end:
+	XFREE(lengths);
+	XFREE(buffers);
+	return ret;
 }
 
-
 /*
- * initialize LIBVIDEO (open, set_cap_param, init_capture)
+ * initialize LIBVIDEO (open, set_cap_param, set_capture_user_buffers, init_capture)
  * creates the Java ByteBuffers
  * creates the V4L2Controls
  * initialize the JPEG compressor
@@ -285,17 +323,12 @@ static int get_lastFrame_field_ids(JNIEnv *e, jobject this, struct v4l4j_device
  * return the number of mmap''ed buffers
  */
 JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_doInit(JNIEnv *e, jobject self, jlong object, jint num_buffers, jint w, jint h, jint ch, jint std,
-		jint in_fmt, jint fg_out_fmt) {
+		jint in_fmt, jint fg_out_fmt, jobjectArray user_buffers) {
 	LOG_FN_ENTER();
 	int i = 0;
 	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
 	int src_fmt = in_fmt, dest_fmt;
 
-	// Get the field IDs if we dont have them already. If error getting them, return.
-	if (!last_captured_frame_sequence_fID || !last_captured_frame_time_usec_fID)
-		if (!get_lastFrame_field_ids(e, self, d))
-			return 0;
-
 
 	/*
 	 * i n i t _ c a p t u r e _ d e v i c e ( )
@@ -342,14 +375,30 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_doInit(JNIEnv *e, j
 	}
 
 
+	/*
+	 * s e t _ c a p t u r e _ u s e r _ b u f f e r s ( )
+	 */
+	if(user_buffers != NULL && !set_user_buffers(e, d, user_buffers)) {
+		free_capture_device(d->vdev);
+		return 0;
+	}
+
+
 	/*
 	 * i n i t _ c a p t u r e ( )
 	 */
 	dprint(LOG_LIBVIDEO, "[LIBVIDEO] Calling 'init_capture(dev: %s)'\n", d->vdev->file);
 	if((i=(*c->actions->init_capture)(d->vdev)) < 0) {
+		//c is freed along with the capture device
+		int width = c->width, height = c->height;
 		dprint(LOG_V4L4J, "[V4L4J] init_capture failed\n");
 		free_capture_device(d->vdev);
-		THROW_EXCEPTION(e, GENERIC_EXCP, "Error initializing capture (error=%d)",i);
+		if(i==LIBVIDEO_ERR_BUF_SIZE)
+			THROW_EXCEPTION(e, INIT_EXCP, "The capture buffers are too small to hold a %dx%d frame", width, height);
+		else if(i==LIBVIDEO_ERR_INVALID_BUF_NB)
+			THROW_EXCEPTION(e, INIT_EXCP, "The driver requires more capture buffers than were supplied");
+		else
+			THROW_EXCEPTION(e, GENERIC_EXCP, "Error initializing capture (error=%d)",i);
 		return 0;
 	}
 
@@ -405,6 +454,23 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_setQuality(JNIEnv *
 	dev->j->jpeg_quality = quality;
 }
 
+/*
+ * tell the JPEG compressor how many stripes to split frames into
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_setStripes(JNIEnv *env, jclass me, jlong object, jint stripes) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *dev = (struct v4l4j_device *) (uintptr_t) object;
+	if(dev->output_fmt != OUTPUT_JPG)
+		return;
+	if (stripes < 1 || stripes > V4LCONVERT_JPEG_MAX_STRIPES) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal number of stripes (%d; expected between 1 and %d)", stripes, V4LCONVERT_JPEG_MAX_STRIPES);
+		return;
+	}
+	dprint(LOG_V4L4J, "[V4L4J] Setting JPEG stripes to %d\n", stripes);
+	if (set_jpeg_stripes(dev, (unsigned int) stripes) != 0)
+		THROW_EXCEPTION(env, ARG_EXCP, "Frames of this image format or size can't be JPEG encoded in stripes (%ux%u frames)", dev->vdev->capture->width, dev->vdev->capture->height);
+}
+
 /*
  * sets the frame interval
  */
@@ -509,21 +575,37 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_enqueueBuffer(JNIEn
 }
 
 /*
- * dequeue a buffer, perform conversion if required and return frame
+ * dequeue a buffer, perform conversion if required and return frame. The
+ * frame metadata is written to the first entry of the given array. Wait up
+ * to timeout_ms (forever if negative) for a buffer to be filled.
+ * return the frame length, or -1 if no buffer was filled in time
  */
-JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_fillBuffer(JNIEnv *env, jobject this, jlong object, jobject buffer) {
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_fillBuffer(JNIEnv *env, jobject this, jlong object, jobject buffer, jlongArray metadata, jint timeout_ms) {
 	LOG_FN_ENTER();
 	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
 
+	// V4L1 devices cannot be polled, and always block
+	if (timeout_ms >= 0 && d->vdev->capture->actions->wait_for_buffer != NULL) {
+		int ready = (*d->vdev->capture->actions->wait_for_buffer)(d->vdev, timeout_ms);
+		if (ready < 0) {
+			THROW_EXCEPTION(env, GENERIC_EXCP, "Error waiting for a buffer to be captured");
+			return 0;
+		}
+		if (ready == 0)
+			return -1;
+	}
+
 	//get frame from libvideo
 	unsigned int buffer_index;
 	struct timeval captureTime;
 	unsigned long long sequence;
+	jlong dequeue_start = monotonic_ns();
 	void* frame = (*d->vdev->capture->actions->dequeue_buffer)(d->vdev, &d->capture_len, &buffer_index, &captureTime, &sequence);
 	if(frame == NULL) {
 		THROW_EXCEPTION(env, GENERIC_EXCP, "Error dequeuing buffer for capture");
 		return 0;
 	}
+	jlong conversion_start = monotonic_ns();
 
 	// get a pointer to the java array
 	jbyteArray arrayRef = NULL;
@@ -574,15 +656,149 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_fillBuffer(JNIEnv *
 	// release pointer to java byte array
 	releaseArray(env, arrayRef, array);
 	
-	// update class members
-	(*env)->SetLongField(env, this, last_captured_frame_sequence_fID, sequence);
-	//Convert timeval to int64_t (hopefully) handling overflows
-	(*env)->SetLongField(env, this, last_captured_frame_time_usec_fID, (jlong) (captureTime.seconds) + (jlong) (captureTime.microseconds * UINT64_C(1000000)));
-	(*env)->SetIntField(env, this, last_captured_frame_buffer_index_fID, buffer_index);
+	// hand the frame metadata back in one go
+	jlong entry[METADATA_SIZE];
+	set_frame_metadata(entry, buffer_index, output_len, sequence, &captureTime, conversion_start - dequeue_start, monotonic_ns() - conversion_start);
+	(*env)->SetLongArrayRegion(env, metadata, 0, METADATA_SIZE, entry);
 
 	return output_len;
 }
 
+/*
+ * dequeue all filled buffers (waiting up to timeout_ms for one, forever if
+ * negative), up to the number of entries in the given metadata array, and
+ * leave them in the driver's memory, without any copy or conversion. Their
+ * metadata is written to the array. Each buffer must be given back with
+ * enqueueBuffer().
+ * return the number of buffers dequeued
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_dequeueBuffers(JNIEnv *env, jobject this, jlong object, jlongArray metadata, jint timeout_ms) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
+
+	unsigned int max = (*env)->GetArrayLength(env, metadata) / METADATA_SIZE;
+	if (max == 0)
+		return 0;
+	struct dequeued_buffer buffers[max];
+	int count;
+
+	jlong dequeue_start = monotonic_ns();
+	if (d->vdev->capture->actions->dequeue_buffers != NULL) {
+		count = (*d->vdev->capture->actions->dequeue_buffers)(d->vdev, buffers, max, timeout_ms);
+	} else {
+		// V4L1: one buffer at a time, always blocking
+		count = (*d->vdev->capture->actions->dequeue_buffer)(d->vdev, &buffers[0].length, &buffers[0].index,
+				&buffers[0].capture_time, &buffers[0].sequence) == NULL ? LIBVIDEO_ERR_IOCTL : 1;
+	}
+	if (count < 0) {
+		THROW_EXCEPTION(env, GENERIC_EXCP, "Error dequeuing buffer for capture");
+		return 0;
+	}
+	if (count == 0)
+		return 0;
+	jlong dequeue_ns = monotonic_ns() - dequeue_start;
+
+	jlong entries[count * METADATA_SIZE];
+	int i;
+	for (i = 0; i < count; i++)
+		// the wait is only accounted for once, against the first buffer.
+		// Nothing is converted in zero-copy mode.
+		set_frame_metadata(&entries[i * METADATA_SIZE], buffers[i].index, buffers[i].length, buffers[i].sequence,
+				&buffers[i].capture_time, i == 0 ? dequeue_ns : 0, -1);
+	d->capture_len = buffers[count - 1].length;
+
+	(*env)->SetLongArrayRegion(env, metadata, 0, count * METADATA_SIZE, entries);
+	return count;
+}
+
+/*
+ * return the file descriptor of the device, which can be polled for captured
+ * buffers, or -1 if the device cannot be polled (V4L1)
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_getDeviceFd(JNIEnv *env, jclass me, jlong object) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
+
+	if (d->vdev->capture->actions->wait_for_buffer == NULL)
+		return -1;
+
+	return d->vdev->fd;
+}
+
+/*
+ * wrap the mmap'ed driver buffer at the given index in a direct ByteBuffer.
+ * Only possible if frames are handed out exactly as the driver captured them.
+ */
+JNIEXPORT jobject JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_getDriverBuffer(JNIEnv *env, jclass me, jlong object, jint buffer_index) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
+	struct mmap *m = d->vdev->capture->mmap;
+
+	if(d->need_conv || !d->vdev->capture->is_native) {
+		THROW_EXCEPTION(env, UNSUPPORTED_METH_EXCP, "Zero-copy capture requires a format native to the driver");
+		return NULL;
+	}
+
+	if(buffer_index < 0 || (unsigned int) buffer_index >= m->buffer_nr) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid buffer index %d", buffer_index);
+		return NULL;
+	}
+
+	dprint(LOG_V4L4J, "[V4L4J] Wrapping driver buffer %d (%u bytes at %p)\n", buffer_index, m->buffers[buffer_index].length, m->buffers[buffer_index].start);
+	jobject buffer = (*env)->NewDirectByteBuffer(env, m->buffers[buffer_index].start, (jlong) m->buffers[buffer_index].length);
+	if(buffer == NULL)
+		THROW_EXCEPTION(env, JNI_EXCP, "Error creating direct ByteBuffer over driver buffer %d", buffer_index);
+
+	return buffer;
+}
+
+/*
+ * export the driver buffer at the given index as a DMABUF file descriptor.
+ * Only meaningful if frames are handed out exactly as the driver captured them.
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_exportBuffer(JNIEnv *env, jclass me, jlong object, jint buffer_index) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
+
+	if(d->vdev->capture->actions->export_buffer == NULL) {
+		THROW_EXCEPTION(env, UNSUPPORTED_METH_EXCP, "DMABUF export is not supported by V4L1 devices");
+		return -1;
+	}
+
+	if(d->need_conv || !d->vdev->capture->is_native) {
+		THROW_EXCEPTION(env, UNSUPPORTED_METH_EXCP, "DMABUF export requires a format native to the driver");
+		return -1;
+	}
+
+	if(buffer_index < 0 || (unsigned int) buffer_index >= d->vdev->capture->mmap->buffer_nr) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid buffer index %d", buffer_index);
+		return -1;
+	}
+
+	int fd = (*d->vdev->capture->actions->export_buffer)(d->vdev, buffer_index);
+	if(fd < 0) {
+		THROW_EXCEPTION(env, UNSUPPORTED_METH_EXCP, "Error exporting buffer %d as DMABUF (error=%d)", buffer_index, fd);
+		return -1;
+	}
+
+	return fd;
+}
+
+/*
+ * returns the size of the driver buffer at the given index
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_AbstractGrabber_getDriverBufferLength(JNIEnv *env, jclass me, jlong object, jint buffer_index) {
+	LOG_FN_ENTER();
+	struct v4l4j_device *d = (struct v4l4j_device *) (uintptr_t) object;
+
+	if(buffer_index < 0 || (unsigned int) buffer_index >= d->vdev->capture->mmap->buffer_nr) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid buffer index %d", buffer_index);
+		return 0;
+	}
+
+	return d->vdev->capture->mmap->buffers[buffer_index].length;
+}
+
 /*
  * tell LIBVIDEO to stop the capture
  */
@@ -1,32 +1,87 @@
 #include <stdint.h>
+#include <string.h>
 #include <jni.h>
 #include "common.h"
 #include "debug.h"
+#include "jniutils.h"
+#include "libvideo.h"
+#include "types.h"
+#include "libv4lconvert/libv4lconvert-flat.h"
+#include "v4l4j_H264Picture.h"
 #include <x264.h>
 
-static jclass H264Encoder_class = NULL;
-static jfieldID H264Encoder_object_fid = NULL;
-
 #define H264_PACKAGE V4L4J_PACKAGE "encoder/h264/"
 #define H264_ENCODE_FAIL_EXCEPTION H264_PACKAGE "H264EncodeFailedException"
 #define H264_NO_NALS_EXCEPTION H264_PACKAGE "H264NoNalsException"
 
-static inline jclass getH264EncoderClass(JNIEnv* env, jobject self) {
-	if (H264Encoder_class == NULL && !(H264Encoder_class = (*env)->GetObjectClass(env, self)))
-		THROW_EXCEPTION(e, JNI_EXCP, "Error looking up class H264Encoder");
-	return H264Encoder_class;
+/**
+ * An x264 encoder wrapped as the last stage of a series. Its apply() reads
+ * a raw picture of the encoder's colorspace straight from the source buffer,
+ * and writes the frame's NALs to the destination.
+ */
+struct v4l4j_h264_stage {
+	/** Must be first, as the series only sees this */
+	struct v4lconvert_encoder encoder;
+	x264_t* x264;
+	int csp;
+	int64_t pts;
+};
+
+static u32 v4l4j_h264_stage_apply(struct v4lconvert_encoder* self, const u8* src, u8* dst, u32 src_len) {
+	struct v4l4j_h264_stage* stage = (struct v4l4j_h264_stage*) self;
+	if (src_len < self->src_len)
+		return 0;
+	x264_picture_t pic_in;
+	x264_picture_init(&pic_in);
+	pic_in.i_type = X264_TYPE_AUTO;
+	pic_in.i_pts = stage->pts++;
+	if (!v4l4j_h264_setPlanes(&pic_in.img, stage->csp, (int) self->src_width, (int) self->src_height, (u8*) src))
+		return 0;
+	
+	int num_nals;
+	x264_nal_t* nals;
+	x264_picture_t pic_out;
+	int frame_size = x264_encoder_encode(stage->x264, &nals, &num_nals, &pic_in, &pic_out);
+	//A frame held back by the encoder (lookahead, B-frames) leaves nothing to pass on
+	if (frame_size <= 0 || !nals) {
+		dprint(LOG_V4L4J, "[V4L4J] x264_encoder_encode returned %d with %d NALs\n", frame_size, nals ? num_nals : 0);
+		return 0;
+	}
+	if ((u32) frame_size > self->dst_len) {
+		dprint(LOG_V4L4J, "[V4L4J] Frame size was %d bytes, buffer was %u\n", frame_size, (unsigned) self->dst_len);
+		return 0;
+	}
+	//The payloads of a frame's NALs are contiguous
+	memcpy(dst, nals->p_payload, (size_t) frame_size);
+	return (u32) frame_size;
 }
 
-static inline x264_t* getPointer(JNIEnv* env, jobject self) {
-	if (H264Encoder_object_fid == NULL) {
-		if ((H264Encoder_object_fid = (*env)->GetFieldID(env, getH264EncoderClass(env, self), "object", "J")) == NULL) {
-			info("[V4L4J] Error looking up the object fieldID of H264Encoder\n");
-			THROW_EXCEPTION(e, JNI_EXCP, "Error looking up the object fieldID of H264Encoder");
-		}
+static int v4l4j_h264_stage_release(struct v4lconvert_encoder* self) {
+	//The x264 encoder belongs to the H264Encoder
+	(void) self;
+	return EXIT_SUCCESS;
+}
+
+/**
+ * The libvideo palette of a colorspace x264 takes as is
+ */
+static u32 v4l4j_h264_mapCsp(int csp) {
+	switch (csp) {
+		case X264_CSP_I420:
+			return YUV420;
+		case X264_CSP_YV12:
+			return YVU420;
+		case X264_CSP_NV12:
+			return NV12;
+		case X264_CSP_NV21:
+			return NV21;
+		case X264_CSP_I422:
+			return YUV422P;
+		case X264_CSP_NV16:
+			return NV16;
+		default:
+			return NB_SUPPORTED_PALETTES;
 	}
-	
-	long ptr = (*env)->GetLongField(env, self, H264Encoder_object_fid);
-	return (x264_t*) (uintptr_t) ptr;
 }
 
 JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doInit(JNIEnv * env, jclass me, jlong parameters) {
@@ -63,9 +118,14 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doSetParam
 	x264_encoder_reconfig(encoder, params);
 }
 
-JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_close(JNIEnv * env, jobject self) {
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doClose
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doClose(JNIEnv * env, jclass me, jlong object) {
 	LOG_FN_ENTER();
-	x264_t* encoder = getPointer(env, self);
+	x264_t* encoder = (x264_t*) (uintptr_t) object;
 	
 	x264_encoder_close(encoder);
 }
@@ -125,4 +185,149 @@ JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doEncode(J
 	}
 	(*output_release)(env, arrayRef, output_buffer);
 	return written;
-}
\ No newline at end of file
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doInitStage
+ * Signature: (JIII)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doInitStage(JNIEnv * env, jclass me, jlong object, jint csp, jint width, jint height) {
+	LOG_FN_ENTER();
+	const u32 fmt = v4l4j_h264_mapCsp(csp);
+	if (fmt == NB_SUPPORTED_PALETTES) {
+		//Only H264Picture can feed this encoder
+		dprint(LOG_V4L4J, "[V4L4J] Colorspace %d can't be read from a frame buffer\n", csp);
+		return 0;
+	}
+	if (width <= 0 || height <= 0 || (width & 1) || (height & 1)) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal frame size %dx%d", width, height);
+		return 0;
+	}
+	
+	struct v4l4j_h264_stage* stage;
+	XMALLOC(stage, struct v4l4j_h264_stage*, sizeof(struct v4l4j_h264_stage));
+	if (!stage) {
+		THROW_EXCEPTION(env, GENERIC_EXCP, "Error allocating H.264 stage");
+		return 0;
+	}
+	stage->x264 = (x264_t*) (uintptr_t) object;
+	stage->csp = csp;
+	stage->pts = 0;
+	
+	struct v4lconvert_encoder* encoder = &stage->encoder;
+	//x264 isn't in the converter table
+	encoder->converter = NULL;
+	encoder->src_fmt = fmt;
+	//No libvideo palette for H.264, so nothing may follow this stage
+	encoder->dst_fmt = NB_SUPPORTED_PALETTES;
+	encoder->src_width = encoder->dst_width = (u32) width;
+	encoder->src_height = encoder->dst_height = (u32) height;
+	encoder->apply = v4l4j_h264_stage_apply;
+	encoder->release = v4l4j_h264_stage_release;
+	encoder->src_len = v4lconvert_estimateBufferSize(fmt, (u32) width, (u32) height);
+	//An I frame of noise can be larger than the picture itself
+	encoder->dst_len = encoder->src_len * 2;
+	return (jlong) (uintptr_t) stage;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doApply
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doApply(JNIEnv * env, jclass me, jlong ptr, jobject src, jobject dst) {
+	LOG_FN_ENTER();
+	struct v4l4j_h264_stage* stage = (struct v4l4j_h264_stage*) (uintptr_t) ptr;
+	const int srcLen = getBufferLimit(env, src);
+	const int dstCapacity = (int) (*env)->GetDirectBufferCapacity(env, dst);
+	if (srcLen < 0)
+		return -1;
+	u8* srcPtr = (*env)->GetDirectBufferAddress(env, src);
+	u8* dstPtr = (*env)->GetDirectBufferAddress(env, dst);
+	if (!srcPtr || !dstPtr) {
+		THROW_EXCEPTION(env, JNI_EXCP, "Unable to get direct pointer to buffer");
+		return -1;
+	}
+	if ((u32) srcLen < stage->encoder.src_len) {
+		THROW_EXCEPTION(env, UNDERFLOW_EXCP, "Frame was %d bytes, expected %u", srcLen, (unsigned) stage->encoder.src_len);
+		return -1;
+	}
+	
+	//Let the NALs fill as much of the buffer as there is
+	const size_t dstLen = stage->encoder.dst_len;
+	stage->encoder.dst_len = (size_t) dstCapacity;
+	u32 result = stage->encoder.apply(&stage->encoder, srcPtr, dstPtr, (u32) srcLen);
+	stage->encoder.dst_len = dstLen;
+	if (!result) {
+		THROW_EXCEPTION(env, H264_ENCODE_FAIL_EXCEPTION, "Error encoding frame (or frame delayed; %d bytes of output space)", dstCapacity);
+		return -1;
+	}
+	dprint(LOG_V4L4J, "[V4L4J] Encoded %'d => %'u bytes.\n", srcLen, result);
+	setBufferLimit(env, dst, (int) result);
+	return (jint) result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doReleaseStage
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doReleaseStage(JNIEnv * env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	struct v4l4j_h264_stage* stage = (struct v4l4j_h264_stage*) (uintptr_t) ptr;
+	XFREE(stage);
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doEncodeFrame
+ * Signature: (JJLjava/nio/ByteBuffer;[J)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doEncodeFrame(JNIEnv * env, jclass me, jlong object, jlong in_ptr, jobject output, jlongArray info) {
+	LOG_FN_ENTER();
+	x264_t* encoder = (x264_t*) (uintptr_t) object;
+	//NULL to get a delayed frame out
+	x264_picture_t* pic_in = (x264_picture_t*) (uintptr_t) in_ptr;
+	
+	u8* output_buffer = (*env)->GetDirectBufferAddress(env, output);
+	if (!output_buffer) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Buffer must be direct");
+		return -1;
+	}
+	const jlong output_len = (*env)->GetDirectBufferCapacity(env, output);
+	
+	int num_nals;
+	x264_nal_t* nals;
+	x264_picture_t pic_out;
+	int frame_size = x264_encoder_encode(encoder, &nals, &num_nals, pic_in, &pic_out);
+	if (frame_size < 0) {
+		THROW_EXCEPTION(env, H264_ENCODE_FAIL_EXCEPTION, "Error code %d", frame_size);
+		return -1;
+	}
+	//Frame held back in the lookahead
+	if (frame_size == 0 || !nals)
+		return 0;
+	if (frame_size > output_len) {
+		THROW_EXCEPTION(env, OVERFLOW_EXCP, "Frame size was %d bytes, buffer was %lld", frame_size, (long long) output_len);
+		return -1;
+	}
+	//The payloads of a frame's NALs are contiguous
+	memcpy(output_buffer, nals->p_payload, (size_t) frame_size);
+	
+	//Which picture came out, as it may not be the one that went in
+	jlong out_info[2] = { (jlong) pic_out.i_pts, pic_out.b_keyframe ? 1 : 0 };
+	(*env)->SetLongArrayRegion(env, info, 0, 2, out_info);
+	return frame_size;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Encoder
+ * Method:    doGetDelayedFrames
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Encoder_doGetDelayedFrames(JNIEnv * env, jclass me, jlong object) {
+	LOG_FN_ENTER();
+	x264_t* encoder = (x264_t*) (uintptr_t) object;
+	return x264_encoder_delayed_frames(encoder);
+}
@@ -1,4 +1,5 @@
 #include <stdint.h>
+#include <stdio.h>
 #include <jni.h>
 #include "common.h"
 #include "debug.h"
@@ -49,23 +50,24 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_initDef
 /*
  * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Parameters
  * Method:    initWithPreset
- * Signature: (JLjava/lang/String;Ljava/lang/String;)I
+ * Signature: (II)V
  */
 JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_initWithPreset(JNIEnv* env, jobject self, jint preset, jint tune) {
 	LOG_FN_ENTER();
 	x264_param_t* params = getPointer(env, self);
 	
+	//x264_preset_names and x264_tune_names are 0-terminated, so subtract 1 from their sizes
 	if (preset < 0 || preset >= ARRAY_SIZE(x264_preset_names) - 1) {
-		THROW_EXCEPTION(e, INVALID_VALUE, "Invalid value (%d) for preset.", preset);
-		return -1;
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid value (%d) for preset.", preset);
+		return;
 	}
 	
 	if (tune < 0 || tune >= ARRAY_SIZE(x264_tune_names) - 1) {
-		THROW_EXCEPTION(e, INVALID_VALUE, "Invalid value (%d) for tune.", tune)
-		return -1;
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid value (%d) for tune.", tune);
+		return;
 	}
-	char* preset_name = x264_preset_names[preset];
-	char* tune_name = x264_tune_names[tune];
+	const char* preset_name = x264_preset_names[preset];
+	const char* tune_name = x264_tune_names[tune];
 	
 	dprint(LOG_V4L4J, "[PARAM] Initializing with preset '%s', tune '%s'\n", preset_name, tune_name);
 	int result = x264_param_default_preset(params, preset_name, tune_name);
@@ -106,50 +108,59 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_applyPr
 }
 
 static inline jint setParamByName(x264_param_t* params, JNIEnv* env, jstring key, const char* value) {
-	const jchar* c_key = (*env)->GetStringChars(env, key, NULL);
+	//x264 parses C strings, so pass it modified UTF-8 rather than Java's UTF-16
+	const char* c_key = (*env)->GetStringUTFChars(env, key, NULL);
+	if (!c_key)
+		return -1;
 	
-	int result = x264_param_parse(params, (char*) c_key, value);
+	int result = x264_param_parse(params, c_key, value);
 	
-	(*env)->ReleaseStringChars(env, key, c_key);
+	(*env)->ReleaseStringUTFChars(env, key, c_key);
 	
 	return result;
 }
 /*
  * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Parameters
  * Method:    setParamByName
- * Signature: (JLjava/lang/String;Z)I
+ * Signature: (Ljava/lang/String;Z)I
  */
-JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__JLjava_lang_String_2Z(JNIEnv* env, jobject self, jstring name, jboolean value) {
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__Ljava_lang_String_2Z(JNIEnv* env, jobject self, jstring name, jboolean value) {
 	LOG_FN_ENTER();
 	x264_param_t* params = getPointer(env, self);
 	
-	return setParamByName(params, env, name, (const char*) &value);
+	return setParamByName(params, env, name, value ? "1" : "0");
 }
 
 /*
  * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Parameters
  * Method:    setParamByName
- * Signature: (JLjava/lang/String;I)I
+ * Signature: (Ljava/lang/String;I)I
  */
-JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__JLjava_lang_String_2I(JNIEnv* env, jobject self, jstring name, jint value) {
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__Ljava_lang_String_2I(JNIEnv* env, jobject self, jstring name, jint value) {
 	LOG_FN_ENTER();
 	x264_param_t* params = getPointer(env, self);
 	
-	return setParamByName(params, env, name, (const char*) &value);
+	char c_value[12];
+	snprintf(c_value, sizeof(c_value), "%d", value);
+	return setParamByName(params, env, name, c_value);
 }
 
 /*
  * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Parameters
  * Method:    setParamByName
- * Signature: (JLjava/lang/String;Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;Ljava/lang/String;)I
  */
-JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__JLjava_lang_String_2Ljava_lang_String_2(JNIEnv* env, jobject self, jstring name, jstring value) {
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setParamByName__Ljava_lang_String_2Ljava_lang_String_2(JNIEnv* env, jobject self, jstring name, jstring value) {
 	LOG_FN_ENTER();
 	x264_param_t* params = getPointer(env, self);
 	
-	const jchar* c_value = (*env)->GetStringChars(env, value, NULL);
-	int result = setParamByName(params, env, name, (const char*) &value);
-	(*env)->ReleaseStringChars(env, value, c_value);
+	//NULL means "true" for boolean options
+	const char* c_value = value ? (*env)->GetStringUTFChars(env, value, NULL) : NULL;
+	if (value && !c_value)
+		return -1;
+	int result = setParamByName(params, env, name, c_value);
+	if (c_value)
+		(*env)->ReleaseStringUTFChars(env, value, c_value);
 	
 	return result;
 }
@@ -237,7 +248,7 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setThre
 	params->i_threads = numThreads;
 }
 
-JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setFps(JNIEnv* env, jobject self, jint numerator, jint denominator) {
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Parameters_setFPS(JNIEnv* env, jobject self, jint numerator, jint denominator) {
 	LOG_FN_ENTER();
 	x264_param_t* params = getPointer(env, self);
 	
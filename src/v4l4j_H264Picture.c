@@ -1,10 +1,86 @@
 #include <stdint.h>
+#include <string.h>
 #include <jni.h>
 #include "common.h"
 #include "debug.h"
+#include "jniutils.h"
+#include "types.h"
+#include "v4l4j_H264Picture.h"
 #include <x264.h>
 
-JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_init(JNIEnv* env, jclass me, jint csp, jint width, jint height) {
+size_t v4l4j_h264_setPlanes(x264_image_t* img, int csp, int width, int height, uint8_t* buffer) {
+	const size_t luma = (size_t) width * (size_t) height;
+	img->i_csp = csp;
+	switch (csp) {
+		case X264_CSP_I420:
+		case X264_CSP_YV12:
+			//x264 swaps the chroma planes of YV12 itself
+			img->i_plane = 3;
+			img->i_stride[0] = width;
+			img->i_stride[1] = img->i_stride[2] = width / 2;
+			img->plane[0] = buffer;
+			img->plane[1] = buffer + luma;
+			img->plane[2] = buffer + luma + luma / 4;
+			return luma * 3 / 2;
+		case X264_CSP_I422:
+		case X264_CSP_YV16:
+			img->i_plane = 3;
+			img->i_stride[0] = width;
+			img->i_stride[1] = img->i_stride[2] = width / 2;
+			img->plane[0] = buffer;
+			img->plane[1] = buffer + luma;
+			img->plane[2] = buffer + luma + luma / 2;
+			return luma * 2;
+		case X264_CSP_NV12:
+		case X264_CSP_NV21:
+			img->i_plane = 2;
+			img->i_stride[0] = img->i_stride[1] = width;
+			img->plane[0] = buffer;
+			img->plane[1] = buffer + luma;
+			return luma * 3 / 2;
+		case X264_CSP_NV16:
+			img->i_plane = 2;
+			img->i_stride[0] = img->i_stride[1] = width;
+			img->plane[0] = buffer;
+			img->plane[1] = buffer + luma;
+			return luma * 2;
+		case X264_CSP_BGR:
+		case X264_CSP_RGB:
+			img->i_plane = 1;
+			img->i_stride[0] = width * 3;
+			img->plane[0] = buffer;
+			return luma * 3;
+		case X264_CSP_BGRA:
+			img->i_plane = 1;
+			img->i_stride[0] = width * 4;
+			img->plane[0] = buffer;
+			return luma * 4;
+		default:
+			return 0;
+	}
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Picture
+ * Method:    alloc
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_alloc(JNIEnv* env, jclass me) {
+	LOG_FN_ENTER();
+	x264_picture_t* result;
+	XMALLOC(result, x264_picture_t*, sizeof(x264_picture_t));
+	
+	x264_picture_init(result);
+	
+	return (uintptr_t) result;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Picture
+ * Method:    init
+ * Signature: (III)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_init(JNIEnv* env, jclass me, jint width, jint height, jint csp) {
 	LOG_FN_ENTER();
 	x264_picture_t* result;
 	XMALLOC(result, x264_picture_t*, sizeof(x264_picture_t));
@@ -18,7 +94,7 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_putInPlane
 	LOG_FN_ENTER();
 	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
 	
-	if (plane < 0 || plane > picture->img.i_plane) {
+	if (plane < 0 || plane >= picture->img.i_plane) {
 		THROW_EXCEPTION(env, ARG_EXCP, "Invalid plane %d", plane);
 		return;
 	}
@@ -47,18 +123,49 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_putInPlane
 	output_release(env, arrayRef, output_buffer);
 }
 
-JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_doSetAndGetPts(JNIEnv* env, jclass me, jobject ptr, jint pts) {
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Picture
+ * Method:    doSetAndGetPts
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_doSetAndGetPts(JNIEnv* env, jclass me, jlong ptr, jint pts) {
 	LOG_FN_ENTER();
 	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
-	if (pts > 0)
+	if (pts >= 0)
 		picture->i_pts = pts;
-	return picture->i_pts;
+	return (jint) picture->i_pts;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Picture
+ * Method:    doGetStride
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_doGetStride(JNIEnv* env, jclass me, jlong ptr, jint plane) {
+	LOG_FN_ENTER();
+	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
+	if (plane < 0 || plane >= picture->img.i_plane) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Invalid plane %d", plane);
+		return -1;
+	}
+	return picture->img.i_stride[plane];
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264Picture
+ * Method:    doGetNumPlanes
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_doGetNumPlanes(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
+	return picture->img.i_plane;
 }
 
 JNIEXPORT jobject JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_doGetBuffer(JNIEnv* env, jclass me, jlong ptr, jint plane) {
 	LOG_FN_ENTER();
 	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
-	if (plane < 0 || plane > picture->img.i_plane) {
+	if (plane < 0 || plane >= picture->img.i_plane) {
 		THROW_EXCEPTION(env, ARG_EXCP, "Invalid plane %d", plane);
 		return NULL;
 	}
@@ -87,4 +194,75 @@ JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264Picture_close(JNIE
 	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) (*env)->GetLongField(env, self, H264Picture_object_fid);
 	x264_picture_clean(picture);
 	XFREE(picture);
-}
\ No newline at end of file
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264FramePicture
+ * Method:    doWrap
+ * Signature: (III)J
+ */
+JNIEXPORT jlong JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264FramePicture_doWrap(JNIEnv* env, jclass me, jint csp, jint width, jint height) {
+	LOG_FN_ENTER();
+	if (width <= 0 || height <= 0 || (width & 1) || (height & 1)) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Illegal picture size %dx%d", width, height);
+		return 0;
+	}
+	x264_picture_t* picture;
+	XMALLOC(picture, x264_picture_t*, sizeof(x264_picture_t));
+	if (!picture) {
+		THROW_EXCEPTION(env, GENERIC_EXCP, "Error allocating picture");
+		return 0;
+	}
+	x264_picture_init(picture);
+	//Check the colorspace now, rather than on the first frame
+	if (!v4l4j_h264_setPlanes(&picture->img, csp, width, height, NULL)) {
+		XFREE(picture);
+		THROW_EXCEPTION(env, ARG_EXCP, "Colorspace %d can't be read from a frame buffer", csp);
+		return 0;
+	}
+	return (jlong) (uintptr_t) picture;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264FramePicture
+ * Method:    doSetPlanes
+ * Signature: (JIILjava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264FramePicture_doSetPlanes(JNIEnv* env, jclass me, jlong ptr, jint width, jint height, jobject buffer) {
+	LOG_FN_ENTER();
+	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
+	if (!buffer) {
+		//Detach from the last frame
+		memset(picture->img.plane, 0, sizeof(picture->img.plane));
+		return;
+	}
+	uint8_t* address = (*env)->GetDirectBufferAddress(env, buffer);
+	if (!address) {
+		THROW_EXCEPTION(env, ARG_EXCP, "Buffer must be direct");
+		return;
+	}
+	const int position = getBufferPosition(env, buffer);
+	const int limit = getBufferLimit(env, buffer);
+	if (position < 0 || limit < 0)
+		return;
+	
+	x264_image_t img = picture->img;
+	const size_t size = v4l4j_h264_setPlanes(&img, picture->img.i_csp, width, height, address + position);
+	if ((size_t) (limit - position) < size) {
+		THROW_EXCEPTION(env, UNDERFLOW_EXCP, "Frame was %d bytes, expected %zu", limit - position, size);
+		return;
+	}
+	picture->img = img;
+}
+
+/*
+ * Class:     au_edu_jcu_v4l4j_encoder_h264_H264FramePicture
+ * Method:    doRelease
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_au_edu_jcu_v4l4j_encoder_h264_H264FramePicture_doRelease(JNIEnv* env, jclass me, jlong ptr) {
+	LOG_FN_ENTER();
+	x264_picture_t* picture = (x264_picture_t*) (uintptr_t) ptr;
+	//The planes belong to the frames, so no x264_picture_clean()
+	XFREE(picture);
+}
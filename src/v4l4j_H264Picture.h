@@ -0,0 +1,20 @@
+/**
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ */
+#ifndef __V4L4J_H264PICTURE_H
+#define __V4L4J_H264PICTURE_H
+
+#include <stddef.h>
+#include <stdint.h>
+#include <x264.h>
+
+/**
+ * Point the planes of an x264 image at a picture in a frame buffer, its
+ * planes packed one after the other without padding, as V4L2 lays them out.
+ * Returns the size of the picture, or 0 if pictures of this colorspace can't
+ * be read in place.
+ */
+size_t v4l4j_h264_setPlanes(x264_image_t* img, int csp, int width, int height, uint8_t* buffer) __attribute__((visibility ("hidden")));
+#endif